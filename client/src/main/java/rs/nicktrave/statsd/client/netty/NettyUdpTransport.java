@@ -19,22 +19,31 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.nio.NioDatagramChannel;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.RejectedExecutionException;
 import rs.nicktrave.statsd.client.Transport;
 import rs.nicktrave.statsd.common.Metric;
 
 /**
  * A transport that writes {@link Metric}s as their statsd string representations to a UDP socket
  * with Netty.
+ *
+ * <p>By default each metric is written in a datagram of its own. The transport can instead pack
+ * the metrics of each {@link #write(Metric...)} into newline-delimited datagrams of up to a
+ * maximum size, typically chosen to fit the path MTU, which greatly reduces the number of
+ * datagrams sent. Many such transports can share one event loop group.
  */
 public class NettyUdpTransport implements Transport {
 
   private final EventLoopGroup group;
+  private final boolean ownsGroup;
+  private final boolean packing;
   private final Channel channel;
 
   /**
@@ -44,14 +53,46 @@ public class NettyUdpTransport implements Transport {
    * @throws InterruptedException if the underlying transport could not be created
    */
   public NettyUdpTransport(InetSocketAddress address) throws InterruptedException {
-    group = new NioEventLoopGroup();
+    this(new NioEventLoopGroup(), true, address, 0);
+  }
+
+  /**
+   * Create a new transport with a given destination address, that packs metrics into datagrams
+   * and runs on a shared event loop group.
+   *
+   * @param group the event loop group to use, which is not shut down when the transport is closed
+   * @param address the intended address
+   * @param maxDatagramSize the maximum size of the payload of each datagram, in bytes
+   * @throws InterruptedException if the underlying transport could not be created
+   * @throws IllegalArgumentException if the maximum datagram size is not positive
+   */
+  public NettyUdpTransport(EventLoopGroup group, InetSocketAddress address, int maxDatagramSize)
+      throws InterruptedException {
+    this(group, false, address, checkDatagramSize(maxDatagramSize));
+  }
+
+  private static int checkDatagramSize(int maxDatagramSize) {
+    if (maxDatagramSize <= 0) {
+      throw new IllegalArgumentException(
+          "Maximum datagram size must be positive: " + maxDatagramSize);
+    }
+    return maxDatagramSize;
+  }
+
+  private NettyUdpTransport(EventLoopGroup group, boolean ownsGroup, InetSocketAddress address,
+      int maxDatagramSize) throws InterruptedException {
+    this.group = group;
+    this.ownsGroup = ownsGroup;
+    this.packing = maxDatagramSize > 0;
     Bootstrap b = new Bootstrap();
     b.group(group)
         .channel(NioDatagramChannel.class)
         .handler(new ChannelInitializer<DatagramChannel>() {
           @Override protected void initChannel(DatagramChannel ch) throws Exception {
             ChannelPipeline pipeline = ch.pipeline();
-            pipeline.addLast(new StatsdToDatagramEncoder(address));
+            pipeline.addLast(packing
+                ? new PackingDatagramEncoder(address, maxDatagramSize)
+                : new StatsdToDatagramEncoder(address));
           }
         });
 
@@ -69,17 +110,45 @@ public class NettyUdpTransport implements Transport {
    */
   NettyUdpTransport(EventLoopGroup group, Channel channel) {
     this.group = group;
+    this.ownsGroup = true;
+    this.packing = false;
     this.channel = channel;
   }
 
   /**
    * {@inheritDoc}
    *
-   * <p>Writes each metric to the channel and the flushes.
+   * <p>Writes each metric to the channel and the flushes. When packing, the metrics are written
+   * without waiting for, or reporting, the outcome of each datagram, and a call from outside the
+   * channel's event loop hands every metric to the loop in a single task, rather than one per
+   * metric. The array must then not be modified after this returns.
+   *
+   * @throws IOException if packing and the channel's event loop has shut down
    */
   @Override public void write(Metric... metrics) throws IOException {
+    if (!packing) {
+      for (Metric metric : metrics) {
+        channel.write(metric);
+      }
+      channel.flush();
+      return;
+    }
+
+    EventLoop loop = channel.eventLoop();
+    if (loop.inEventLoop()) {
+      writePacked(metrics);
+      return;
+    }
+    try {
+      loop.execute(() -> writePacked(metrics));
+    } catch (RejectedExecutionException e) {
+      throw new IOException("Transport is closed", e);
+    }
+  }
+
+  private void writePacked(Metric[] metrics) {
     for (Metric metric : metrics) {
-      channel.write(metric);
+      channel.write(metric, channel.voidPromise());
     }
     channel.flush();
   }
@@ -87,14 +156,17 @@ public class NettyUdpTransport implements Transport {
   /**
    * {@inheritDoc}
    *
-   * <p>Closes the underlying channel and shuts down the client event-loop group.
+   * <p>Closes the underlying channel and shuts down the client event-loop group, unless it is
+   * shared.
    */
   @Override public void close() throws IOException {
     try {
       channel.close().sync();
     } catch (InterruptedException ignored) {
     } finally {
-      group.shutdownGracefully();
+      if (ownsGroup) {
+        group.shutdownGracefully();
+      }
     }
   }
 }
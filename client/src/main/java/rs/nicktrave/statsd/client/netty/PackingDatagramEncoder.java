@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.client.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import rs.nicktrave.statsd.common.Metric;
+
+/**
+ * Packs the {@link Metric}s written between flushes into as few newline-delimited {@link
+ * DatagramPacket}s as possible, each no larger than a maximum size. A datagram is written as soon
+ * as the next metric would not fit, and the last partial datagram is written on flush.
+ *
+ * <p>A metric that is larger than the maximum size on its own is written in a datagram of its own.
+ * The promise of each metric is completed once the datagram containing it has been written.
+ *
+ * <p>This handler holds state between writes, and so cannot be shared between channels.
+ */
+class PackingDatagramEncoder extends ChannelOutboundHandlerAdapter {
+
+  private final InetSocketAddress address;
+  private final int maxDatagramSize;
+  private final List<ChannelPromise> promises = new ArrayList<>();
+  private ByteBuf pending;
+
+  /**
+   * @param address the recipient of every datagram
+   * @param maxDatagramSize the maximum size of the payload of each datagram, in bytes
+   */
+  PackingDatagramEncoder(InetSocketAddress address, int maxDatagramSize) {
+    this.address = address;
+    this.maxDatagramSize = maxDatagramSize;
+  }
+
+  @Override public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+    if (!(msg instanceof Metric)) {
+      ctx.write(msg, promise);
+      return;
+    }
+
+    String line = msg.toString();
+    if (pending != null && pending.readableBytes() + 1 + line.length() > maxDatagramSize) {
+      writePending(ctx);
+    }
+    if (pending == null) {
+      pending = ctx.alloc().buffer(Math.max(maxDatagramSize, line.length()));
+    } else {
+      pending.writeByte('\n');
+    }
+    pending.writeCharSequence(line, StandardCharsets.US_ASCII);
+    if (!promise.isVoid()) {
+      promises.add(promise);
+    }
+  }
+
+  @Override public void flush(ChannelHandlerContext ctx) {
+    if (pending != null) {
+      writePending(ctx);
+    }
+    ctx.flush();
+  }
+
+  private void writePending(ChannelHandlerContext ctx) {
+    DatagramPacket packet = new DatagramPacket(pending, address);
+    pending = null;
+    if (promises.isEmpty()) {
+      ctx.write(packet, ctx.voidPromise());
+      return;
+    }
+
+    ChannelPromise[] completed = promises.toArray(new ChannelPromise[0]);
+    promises.clear();
+    ctx.write(packet).addListener(future -> {
+      for (ChannelPromise promise : completed) {
+        if (future.isSuccess()) {
+          promise.trySuccess();
+        } else {
+          promise.tryFailure(future.cause());
+        }
+      }
+    });
+  }
+
+  @Override public void handlerRemoved(ChannelHandlerContext ctx) {
+    if (pending != null) {
+      pending.release();
+      pending = null;
+    }
+    for (ChannelPromise promise : promises) {
+      promise.tryFailure(new IllegalStateException("Channel closed before the metric was written"));
+    }
+    promises.clear();
+  }
+}
@@ -18,7 +18,14 @@ package rs.nicktrave.statsd.client.netty;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -28,6 +35,8 @@ import org.mockito.junit.MockitoRule;
 import rs.nicktrave.statsd.common.Counter;
 import rs.nicktrave.statsd.common.Metric;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -63,6 +72,37 @@ public class NettyUdpTransportTest {
     verify(group, times(1)).shutdownGracefully();
   }
 
+  @Test public void testWrite_packing() throws Exception {
+    EventLoopGroup sharedGroup = new NioEventLoopGroup(1);
+    try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      socket.setSoTimeout(10_000);
+      NettyUdpTransport packing = new NettyUdpTransport(sharedGroup,
+          new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort()), 1432);
+
+      packing.write(METRIC_1, METRIC_2);
+      packing.close();
+
+      byte[] buffer = new byte[1432];
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      socket.receive(packet);
+      assertThat(new String(buffer, 0, packet.getLength(), StandardCharsets.US_ASCII))
+          .isEqualTo("foo:1|c\nbar:2|c");
+      assertThat(sharedGroup.isShuttingDown()).isFalse();
+    } finally {
+      sharedGroup.shutdownGracefully();
+    }
+  }
+
+  @Test public void testWrite_packingAfterShutdown() throws Exception {
+    EventLoopGroup sharedGroup = new NioEventLoopGroup(1);
+    NettyUdpTransport packing = new NettyUdpTransport(sharedGroup,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 8125), 1432);
+    sharedGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+
+    assertThatThrownBy(() -> packing.write(METRIC_1))
+        .isInstanceOf(IOException.class);
+  }
+
   @Test public void testClose_channelCloseThrows() throws IOException, InterruptedException {
     when(channelFuture.sync()).thenThrow(InterruptedException.class);
 
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.client.netty;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.Timing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PackingDatagramEncoderTest {
+
+  private static final InetSocketAddress socketAddress = new InetSocketAddress("hostly", 123);
+
+  @Test public void testPacksUntilFlush() {
+    EmbeddedChannel channel = new EmbeddedChannel(new PackingDatagramEncoder(socketAddress, 1432));
+
+    ChannelFuture first = channel.write(new Counter("foo", 1));
+    channel.write(new Gauge("bar", -2, Gauge.Type.UPDATE));
+    channel.write(new Timing("baz", 3, 0.5));
+    assertThat(channel.outboundMessages()).isEmpty();
+    assertThat(first.isDone()).isFalse();
+
+    channel.flush();
+
+    assertThat(readOutbound(channel)).containsExactly("foo:1|c\nbar:-2|g\nbaz:3|ms|@0.5");
+    assertThat(first.isSuccess()).isTrue();
+  }
+
+  @Test public void testMaxDatagramSize() {
+    // Two 7 byte metrics and a newline fit, a third does not
+    EmbeddedChannel channel = new EmbeddedChannel(new PackingDatagramEncoder(socketAddress, 15));
+
+    channel.write(new Counter("foo", 1));
+    channel.write(new Counter("bar", 2));
+    channel.write(new Counter("baz", 3));
+    channel.write(new Counter("a.very.long.name", 4));
+    channel.flush();
+
+    assertThat(readOutbound(channel))
+        .containsExactly("foo:1|c\nbar:2|c", "baz:3|c", "a.very.long.name:4|c");
+  }
+
+  @Test public void testClose_releasesPending() {
+    EmbeddedChannel channel = new EmbeddedChannel(new PackingDatagramEncoder(socketAddress, 1432));
+
+    ChannelFuture write = channel.write(new Counter("foo", 1));
+    channel.close();
+
+    assertThat(write.isDone()).isTrue();
+    assertThat(write.isSuccess()).isFalse();
+    assertThat(channel.outboundMessages()).isEmpty();
+  }
+
+  private static List<String> readOutbound(EmbeddedChannel channel) {
+    List<String> datagrams = new ArrayList<>();
+    DatagramPacket packet;
+    while ((packet = channel.readOutbound()) != null) {
+      assertThat(packet.recipient()).isEqualTo(socketAddress);
+      datagrams.add(packet.content().toString(StandardCharsets.US_ASCII));
+      packet.release();
+    }
+    return datagrams;
+  }
+}
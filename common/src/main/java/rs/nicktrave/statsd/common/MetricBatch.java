@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.common;
+
+import java.util.Arrays;
+
+/**
+ * A reusable, bounded batch of metrics, stored column by column.
+ *
+ * <p>A batch is filled by a producer, handed to a consumer, and then cleared and refilled, so that
+ * the cost of handing metrics over is paid once per batch rather than once per metric.
+ *
+ * <p>Rather than holding a {@link Metric} object per metric, the batch keeps parallel arrays of the
+ * type, name, value, sample rate and gauge type of each metric, preallocated to its capacity. A
+ * producer that adds metrics with {@link #addCounter}, {@link #addGauge} and {@link #addTiming},
+ * and a consumer that reads them back with the per-column accessors, never allocate a metric
+ * object. {@link #add(Metric)} and {@link #get(int)} convert to and from the {@link Metric}
+ * classes for compatibility.
+ *
+ * <p>Instances are not thread-safe.
+ */
+public final class MetricBatch {
+
+  /**
+   * The default maximum number of metrics in a batch.
+   */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  /**
+   * The type code of a {@link Counter}.
+   */
+  public static final byte COUNTER = 1;
+
+  /**
+   * The type code of a {@link Gauge}.
+   */
+  public static final byte GAUGE = 2;
+
+  /**
+   * The type code of a {@link Timing}.
+   */
+  public static final byte TIMING = 3;
+
+  private final byte[] types;
+  private final String[] names;
+  private final long[] values;
+  private final double[] sampleRates;
+  private final boolean[] gaugeUpdates;
+  private int size;
+
+  /**
+   * A new, empty batch with the {@link #DEFAULT_CAPACITY default capacity}.
+   */
+  public MetricBatch() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * A new, empty batch that can hold up to the given number of metrics.
+   *
+   * @throws IllegalArgumentException if the capacity is not positive
+   */
+  public MetricBatch(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.types = new byte[capacity];
+    this.names = new String[capacity];
+    this.values = new long[capacity];
+    this.sampleRates = new double[capacity];
+    this.gaugeUpdates = new boolean[capacity];
+  }
+
+  /**
+   * Adds a counter to the end of the batch.
+   *
+   * @return false if the batch is full, in which case the counter is not added
+   * @throws IllegalArgumentException if the sample rate is not in the range [0, 1]
+   */
+  public boolean addCounter(String name, long value, double sampleRate) {
+    return add(COUNTER, name, value, checkSampleRate(sampleRate), false);
+  }
+
+  /**
+   * Adds a gauge of the given type to the end of the batch.
+   *
+   * @return false if the batch is full, in which case the gauge is not added
+   */
+  public boolean addGauge(String name, long value, Gauge.Type type) {
+    return add(GAUGE, name, value, 1.0, Gauge.Type.UPDATE == type);
+  }
+
+  /**
+   * Adds a timing to the end of the batch.
+   *
+   * @return false if the batch is full, in which case the timing is not added
+   * @throws IllegalArgumentException if the sample rate is not in the range [0, 1]
+   */
+  public boolean addTiming(String name, long value, double sampleRate) {
+    return add(TIMING, name, value, checkSampleRate(sampleRate), false);
+  }
+
+  /**
+   * Adds a metric to the end of the batch.
+   *
+   * @return false if the batch is full, in which case the metric is not added
+   * @throws IllegalArgumentException if the metric is of an unknown type
+   */
+  public boolean add(Metric metric) {
+    if (metric instanceof Counter) {
+      return add(COUNTER, metric.name, metric.value, ((Counter) metric).getSampleRate(), false);
+    } else if (metric instanceof Gauge) {
+      return addGauge(metric.name, metric.value, ((Gauge) metric).getType());
+    } else if (metric instanceof Timing) {
+      return add(TIMING, metric.name, metric.value, ((Timing) metric).getSampleRate(), false);
+    }
+    throw new IllegalArgumentException("Unknown metric type: " + metric.getClass().getName());
+  }
+
+  private boolean add(byte type, String name, long value, double sampleRate, boolean update) {
+    if (size == types.length) {
+      return false;
+    }
+    types[size] = type;
+    names[size] = name;
+    values[size] = value;
+    sampleRates[size] = sampleRate;
+    gaugeUpdates[size] = update;
+    size++;
+    return true;
+  }
+
+  private static double checkSampleRate(double sampleRate) {
+    if (sampleRate < 0 || sampleRate > 1) {
+      throw new IllegalArgumentException(
+          "Sample rate " + sampleRate + " is not in the range [0, 1]");
+    }
+    return sampleRate;
+  }
+
+  /**
+   * Returns a new {@link Metric} instance for the metric at the given index.
+   *
+   * @throws IndexOutOfBoundsException if the index is not less than the size of the batch
+   */
+  public Metric get(int index) {
+    switch (type(index)) {
+      case COUNTER:
+        return new Counter(names[index], values[index], sampleRates[index]);
+      case GAUGE:
+        return new Gauge(names[index], values[index], gaugeType(index));
+      case TIMING:
+        return new Timing(names[index], values[index], sampleRates[index]);
+      default:
+        throw new IllegalStateException("Unknown type code: " + types[index]);
+    }
+  }
+
+  /**
+   * @return the type code of the metric at the given index, one of {@link #COUNTER}, {@link
+   *     #GAUGE} or {@link #TIMING}
+   * @throws IndexOutOfBoundsException if the index is not less than the size of the batch
+   */
+  public byte type(int index) {
+    checkIndex(index);
+    return types[index];
+  }
+
+  /**
+   * @return the name of the metric at the given index
+   * @throws IndexOutOfBoundsException if the index is not less than the size of the batch
+   */
+  public String name(int index) {
+    checkIndex(index);
+    return names[index];
+  }
+
+  /**
+   * @return the value of the metric at the given index
+   * @throws IndexOutOfBoundsException if the index is not less than the size of the batch
+   */
+  public long value(int index) {
+    checkIndex(index);
+    return values[index];
+  }
+
+  /**
+   * @return the sample rate of the metric at the given index, which is 1.0 for gauges
+   * @throws IndexOutOfBoundsException if the index is not less than the size of the batch
+   */
+  public double sampleRate(int index) {
+    checkIndex(index);
+    return sampleRates[index];
+  }
+
+  /**
+   * @return the gauge type of the metric at the given index, which is only meaningful for gauges
+   * @throws IndexOutOfBoundsException if the index is not less than the size of the batch
+   */
+  public Gauge.Type gaugeType(int index) {
+    checkIndex(index);
+    return gaugeUpdates[index] ? Gauge.Type.UPDATE : Gauge.Type.SET;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + " is out of bounds for " + size);
+    }
+  }
+
+  /**
+   * @return the number of metrics in the batch
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return true if the batch contains no metrics
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return true if no more metrics can be added to the batch
+   */
+  public boolean isFull() {
+    return size == types.length;
+  }
+
+  /**
+   * @return the maximum number of metrics in the batch
+   */
+  public int capacity() {
+    return types.length;
+  }
+
+  /**
+   * Removes every metric from the batch, so that it can be refilled. Only the names are cleared,
+   * so that the batch does not retain them; the primitive columns are overwritten as the batch is
+   * refilled.
+   */
+  public void clear() {
+    Arrays.fill(names, 0, size, null);
+    size = 0;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.common;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MetricBatchTest {
+
+  @Test public void testAdd_columns() {
+    MetricBatch batch = new MetricBatch(3);
+
+    assertThat(batch.addCounter("foo", 1, 0.5)).isTrue();
+    assertThat(batch.addGauge("bar", -2, Gauge.Type.UPDATE)).isTrue();
+    assertThat(batch.addTiming("baz", 3, 1.0)).isTrue();
+
+    assertThat(batch.size()).isEqualTo(3);
+    assertThat(batch.type(0)).isEqualTo(MetricBatch.COUNTER);
+    assertThat(batch.name(0)).isEqualTo("foo");
+    assertThat(batch.value(0)).isEqualTo(1);
+    assertThat(batch.sampleRate(0)).isEqualTo(0.5);
+    assertThat(batch.type(1)).isEqualTo(MetricBatch.GAUGE);
+    assertThat(batch.gaugeType(1)).isEqualTo(Gauge.Type.UPDATE);
+    assertThat(batch.value(1)).isEqualTo(-2);
+    assertThat(batch.type(2)).isEqualTo(MetricBatch.TIMING);
+    assertThat(batch.name(2)).isEqualTo("baz");
+  }
+
+  @Test public void testAdd_metrics() {
+    MetricBatch batch = new MetricBatch(3);
+
+    batch.add(new Counter("foo", 1, 0.5));
+    batch.add(new Gauge("bar", 2));
+    batch.add(new Timing("baz", 3, 0.25));
+
+    assertThat(batch.type(0)).isEqualTo(MetricBatch.COUNTER);
+    assertThat(batch.sampleRate(0)).isEqualTo(0.5);
+    assertThat(batch.type(1)).isEqualTo(MetricBatch.GAUGE);
+    assertThat(batch.gaugeType(1)).isEqualTo(Gauge.Type.SET);
+    assertThat(batch.type(2)).isEqualTo(MetricBatch.TIMING);
+    assertThat(batch.sampleRate(2)).isEqualTo(0.25);
+  }
+
+  @Test public void testGet() {
+    MetricBatch batch = new MetricBatch(3);
+    batch.addCounter("foo", 1, 0.5);
+    batch.addGauge("bar", 2, Gauge.Type.UPDATE);
+    batch.addTiming("baz", 3, 0.25);
+
+    assertThat(batch.get(0).toString()).isEqualTo("foo:1|c|@0.5");
+    assertThat(batch.get(1).toString()).isEqualTo("bar:+2|g");
+    assertThat(batch.get(2).toString()).isEqualTo("baz:3|ms|@0.25");
+  }
+
+  @Test public void testAdd_invalidSampleRate() {
+    MetricBatch batch = new MetricBatch(1);
+
+    assertThatThrownBy(() -> batch.addCounter("foo", 1, 2))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThat(batch.isEmpty()).isTrue();
+  }
+
+  @Test public void testAdd_full() {
+    MetricBatch batch = new MetricBatch(1);
+
+    assertThat(batch.add(new Counter("foo", 1))).isTrue();
+    assertThat(batch.isFull()).isTrue();
+    assertThat(batch.add(new Counter("foo", 2))).isFalse();
+    assertThat(batch.size()).isEqualTo(1);
+  }
+
+  @Test public void testClear() {
+    MetricBatch batch = new MetricBatch(1);
+    batch.add(new Counter("foo", 1));
+
+    batch.clear();
+
+    assertThat(batch.isEmpty()).isTrue();
+    assertThat(batch.add(new Counter("foo", 2))).isTrue();
+  }
+
+  @Test public void testGet_outOfBounds() {
+    MetricBatch batch = new MetricBatch(2);
+    batch.add(new Counter("foo", 1));
+
+    assertThatThrownBy(() -> batch.get(1)).isInstanceOf(IndexOutOfBoundsException.class);
+    assertThatThrownBy(() -> batch.value(1)).isInstanceOf(IndexOutOfBoundsException.class);
+  }
+
+  @Test public void testInvalidCapacity() {
+    assertThatThrownBy(() -> new MetricBatch(0)).isInstanceOf(IllegalArgumentException.class);
+  }
+}
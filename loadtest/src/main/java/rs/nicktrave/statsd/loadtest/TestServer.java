@@ -17,11 +17,26 @@ package rs.nicktrave.statsd.loadtest;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
 import rs.nicktrave.statsd.server.MetricProcessor;
+import rs.nicktrave.statsd.server.aggregate.AggregatingProcessor;
+import rs.nicktrave.statsd.server.aggregate.IntervalFlusher;
+import rs.nicktrave.statsd.server.graphite.GraphiteBackend;
 import rs.nicktrave.statsd.server.netty.NettyUdpServer;
+import rs.nicktrave.statsd.server.netty.OverflowPolicy;
+import rs.nicktrave.statsd.server.prometheus.PrometheusBackend;
+import rs.nicktrave.statsd.server.relay.RelayProcessor;
+import rs.nicktrave.statsd.server.spool.SpoolingBackend;
+import rs.nicktrave.statsd.server.stats.StatsRegistry;
 
 /**
  * Runs a server instance, listening on a given address and port.
@@ -36,26 +51,194 @@ public class TestServer {
         description ="The UDP port the server will listen on")
     private int port;
 
+    @Parameter(
+        names = "-tcpPort",
+        description = "The TCP port the server will listen on. Defaults to not listening on TCP")
+    private int tcpPort;
+
+    @Parameter(
+        names = "-domainSocketPath",
+        description = "The path of a Unix domain socket the server will listen on. Requires"
+            + " -useEpoll. Defaults to not listening on a domain socket")
+    private String domainSocketPath;
+
     @Parameter(
         names = "-numThreads",
         description = "The number of Netty threads to use. Defaults to Netty's default value")
     private int numThreads;
 
+    @Parameter(
+        names = "-numChannels",
+        description = "The number of UDP sockets to read from. Defaults to one per Netty thread"
+            + " with epoll, and one otherwise")
+    private int numChannels;
+
+    @Parameter(
+        names = "-portRange",
+        description = "Whether to bind each UDP socket to its own port, counting up from -port,"
+            + " rather than sharing the port with SO_REUSEPORT")
+    private boolean portRange = false;
+
+    @Parameter(
+        names = "-maxDatagramsPerRead",
+        description = "The maximum number of datagrams read by each channel per wakeup. Defaults to"
+            + " 16")
+    private int maxDatagramsPerRead;
+
+    @Parameter(
+        names = "-receiveBufferSize",
+        description = "The size of the kernel receive buffer of each UDP socket, in bytes. Defaults"
+            + " to the system default")
+    private int receiveBufferSize;
+
+    @Parameter(
+        names = "-datagramBufferSize",
+        description = "The size of the buffer each datagram is read into, in bytes")
+    private int datagramBufferSize;
+
+    @Parameter(
+        names = "-adaptiveBufferPercentile",
+        description = "Sizes datagram buffers to fit this percentile of received datagram sizes."
+            + " Defaults to a fixed size")
+    private double adaptiveBufferPercentile;
+
+    @Parameter(
+        names = "-sharedNothing",
+        description = "Whether to give each Netty thread its own decoder and name cache")
+    private boolean sharedNothing = false;
+
+    @Parameter(
+        names = "-lenient",
+        description = "Whether to skip malformed metrics without failing")
+    private boolean lenient = false;
+
     @Parameter(
         names = "-useEpoll",
         description = "Whether to use the epoll transport. Only available on Linux")
     private boolean useEpoll = false;
 
+    @Parameter(
+        names = "-offloadThreads",
+        description = "The number of threads to process metrics on. Defaults to processing on the"
+            + " Netty threads")
+    private int offloadThreads;
+
+    @Parameter(
+        names = "-offloadCapacity",
+        description = "The number of metrics that can be queued per Netty thread when offloading")
+    private int offloadCapacity = 1 << 16;
+
+    @Parameter(
+        names = "-overflowPolicy",
+        description = "What to do when an offload queue is full")
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+    @Parameter(
+        names = "-graphiteHost",
+        description = "The host of a Graphite plaintext listener to flush aggregated metrics to")
+    private String graphiteHost = "localhost";
+
+    @Parameter(
+        names = "-graphitePort",
+        description = "The port of a Graphite plaintext listener to flush aggregated metrics to."
+            + " Defaults to counting metrics without aggregating them")
+    private int graphitePort;
+
+    @Parameter(
+        names = "-prometheusPort",
+        description = "The port to serve aggregated metrics to Prometheus on. Defaults to not"
+            + " serving them")
+    private int prometheusPort;
+
+    @Parameter(
+        names = "-spoolDirectory",
+        description = "A directory to spool snapshots to while Graphite is unavailable. Defaults to"
+            + " dropping them")
+    private String spoolDirectory;
+
+    @Parameter(
+        names = "-flushIntervalMillis",
+        description = "How often to flush aggregated metrics to Graphite and Prometheus")
+    private long flushIntervalMillis = 10_000;
+
+    @Parameter(
+        names = "-relayNodes",
+        description = "A comma-separated list of host:port statsd servers to relay metrics to,"
+            + " rather than aggregating them")
+    private List<String> relayNodes = new ArrayList<>();
+
+    @Parameter(
+        names = "-shutdownTimeoutMillis",
+        description = "The maximum time to wait for queued metrics to be processed when shutting"
+            + " down")
+    private long shutdownTimeoutMillis = 30_000;
+
     @Parameter(names = "--help", help = true)
     private boolean help;
   }
 
   private final NettyUdpServer server;
   private final CountingProcessor processor;
+  private final IntervalFlusher flusher;
+  private final GraphiteBackend graphite;
+  private final PrometheusBackend prometheus;
+  private final SpoolingBackend spool;
+  private final RelayProcessor relay;
   private final CountDownLatch shutdownLatch;
 
-  private TestServer(NettyUdpServer.Builder serverBuilder) {
-    this.processor = new CountingProcessor();
+  private TestServer(NettyUdpServer.Builder serverBuilder, Args args)
+      throws IOException, InterruptedException {
+    if (!args.relayNodes.isEmpty()) {
+      List<InetSocketAddress> nodes = new ArrayList<>();
+      for (String node : args.relayNodes) {
+        int colon = node.lastIndexOf(':');
+        nodes.add(new InetSocketAddress(node.substring(0, colon),
+            Integer.parseInt(node.substring(colon + 1))));
+      }
+      this.relay = RelayProcessor.newBuilder().withNodes(nodes).build();
+    } else {
+      this.relay = null;
+    }
+
+    this.graphite = relay == null && args.graphitePort > 0
+        ? GraphiteBackend.newBuilder()
+            .withAddress(new InetSocketAddress(args.graphiteHost, args.graphitePort))
+            .build()
+        : null;
+    this.prometheus = relay == null && args.prometheusPort > 0
+        ? PrometheusBackend.newBuilder()
+            .withAddress(new InetSocketAddress(args.prometheusPort))
+            .build()
+        : null;
+
+    this.spool = graphite != null && args.spoolDirectory != null
+        ? SpoolingBackend.newBuilder()
+            .withBackend(graphite)
+            .withDirectory(new File(args.spoolDirectory))
+            .build()
+        : null;
+
+    if (relay != null) {
+      this.flusher = null;
+      this.processor = new CountingProcessor(relay);
+    } else if (graphite != null || prometheus != null) {
+      AggregatingProcessor aggregator = AggregatingProcessor.newBuilder().build();
+      IntervalFlusher.Builder flusherBuilder = IntervalFlusher.newBuilder()
+          .withProcessor(aggregator)
+          .withInterval(args.flushIntervalMillis, TimeUnit.MILLISECONDS);
+      if (prometheus != null) {
+        flusherBuilder.withBackend(prometheus);
+      }
+      if (graphite != null) {
+        flusherBuilder.withBackend(spool != null ? spool : graphite);
+      }
+      this.flusher = flusherBuilder.build();
+      this.processor = new CountingProcessor(aggregator);
+      serverBuilder.withFlusher(flusher);
+    } else {
+      this.flusher = null;
+      this.processor = new CountingProcessor(null);
+    }
     this.server = serverBuilder.withProcessor(processor).build();
     this.shutdownLatch = new CountDownLatch(1);
   }
@@ -63,24 +246,71 @@ public class TestServer {
   private static NettyUdpServer.Builder newServerBuilderFromArgs(Args args) {
     return NettyUdpServer.newBuilder()
         .withPort(args.port)
+        .withTcpPort(args.tcpPort)
+        .withDomainSocketPath(args.domainSocketPath)
         .withThreads(args.numThreads)
+        .withChannels(args.numChannels)
+        .withPortRange(args.portRange)
+        .withMaxDatagramsPerRead(args.maxDatagramsPerRead)
+        .withReceiveBufferSize(args.receiveBufferSize)
+        .withDatagramBufferSize(args.datagramBufferSize)
+        .withAdaptiveDatagramBufferSize(args.adaptiveBufferPercentile)
+        .withSharedNothing(args.sharedNothing)
+        .withLenientParsing(args.lenient)
+        .withOffload(args.offloadThreads, args.offloadCapacity, args.overflowPolicy)
         .withEpoll(args.useEpoll);
   }
 
-  private void run() throws InterruptedException {
+  private void run(Args args) throws InterruptedException, IOException {
     Thread shutdownThread = new Thread(shutdownLatch::countDown);
     shutdownThread.setDaemon(true);
     Runtime.getRuntime().addShutdownHook(shutdownThread);
 
     System.out.println("Starting up server");
     server.start();
+    if (prometheus != null) {
+      prometheus.start();
+    }
+    if (flusher != null) {
+      flusher.start();
+    }
+    System.out.println("Receive buffer size is " + server.getReceiveBufferSize() + " bytes");
 
     System.out.println("Waiting for shutdown");
     shutdownLatch.await();
 
     System.out.println("Finished having processed " + processor.eventCount.get() + " metrics");
+    long reads = server.getDatagramReadCount();
+    System.out.printf("Received %d datagrams in %d reads (%.2f per read)%n",
+        server.getDatagramCount(), reads,
+        reads > 0 ? (double) server.getDatagramCount() / reads : 0);
+    System.out.println("Skipped " + server.getParseErrors().total() + " malformed metrics");
+    System.out.println("Dropped " + server.getOffloadDroppedCount() + " metrics when offloading");
+    System.out.println("The kernel dropped " + server.getKernelDropCount() + " datagrams");
+    server.getStats().getCounters().forEach((name, value) ->
+        System.out.println("  " + StatsRegistry.PREFIX + name + " = " + value));
     System.out.println("Shutting down");
-    server.shutdown();
+    System.out.println("Shut down: " + server.shutdown(args.shutdownTimeoutMillis,
+        TimeUnit.MILLISECONDS));
+    if (spool != null) {
+      System.out.println("Spooled " + spool.getSpooledCount() + " snapshots and replayed "
+          + spool.getReplayedCount() + ", " + spool.getSpooledSnapshots() + " remain spooled");
+      spool.close();
+    }
+    if (graphite != null) {
+      System.out.println("Wrote " + graphite.getLinesWritten() + " lines to Graphite");
+      graphite.close();
+    }
+    if (prometheus != null) {
+      System.out.println("Served " + prometheus.getScrapeCount() + " scrapes of "
+          + prometheus.getSeriesCount() + " series");
+      prometheus.close();
+    }
+    if (relay != null) {
+      System.out.println("Relayed " + relay.getRelayedCount() + " metrics, failed to relay "
+          + relay.getFailedCount());
+      relay.close();
+    }
   }
 
   public static void main(String ...args) throws InterruptedException {
@@ -96,7 +326,7 @@ public class TestServer {
     }
 
     try {
-      new TestServer(newServerBuilderFromArgs(cliArgs)).run();
+      new TestServer(newServerBuilderFromArgs(cliArgs), cliArgs).run(cliArgs);
     } catch (Exception e) {
       System.err.println("Caught exception. Shutting down");
       e.printStackTrace();
@@ -104,14 +334,29 @@ public class TestServer {
   }
 
   /**
-   * Processes metrics by simply counting them.
+   * Processes metrics by counting them, and passing them on to another processor, if any.
    */
   private static class CountingProcessor implements MetricProcessor {
 
+    private final MetricProcessor delegate;
     private AtomicLong eventCount = new AtomicLong();
 
+    CountingProcessor(MetricProcessor delegate) {
+      this.delegate = delegate;
+    }
+
     @Override public void process(Metric metric) {
       eventCount.incrementAndGet();
+      if (delegate != null) {
+        delegate.process(metric);
+      }
+    }
+
+    @Override public void processBatch(MetricBatch batch) {
+      eventCount.addAndGet(batch.size());
+      if (delegate != null) {
+        delegate.processBatch(batch);
+      }
     }
   }
 }
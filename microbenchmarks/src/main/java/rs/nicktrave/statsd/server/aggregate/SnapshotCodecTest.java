@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.Timing;
+import rs.nicktrave.statsd.microbenchmarks.AbstractMicrobenchmarkBase;
+
+/**
+ * Measures how long {@link SnapshotCodec} takes to encode and decode a large snapshot, split
+ * evenly between counters, gauges and timers, each timer with a handful of distinct values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SnapshotCodecTest extends AbstractMicrobenchmarkBase {
+
+  @Param({"100000", "1000000"})
+  public int series;
+
+  private Snapshot snapshot;
+  private ByteBuf encoded;
+  private ByteBuf buf;
+
+  @Setup
+  public void setup() {
+    AggregatingProcessor processor = AggregatingProcessor.newBuilder().build();
+    for (int i = 0; i < series; i++) {
+      String name = "foo.bar.baz." + i;
+      switch (i % 3) {
+        case 0:
+          processor.process(new Counter(name, i));
+          break;
+        case 1:
+          processor.process(new Gauge(name, i));
+          break;
+        default:
+          for (int j = 0; j < 5; j++) {
+            processor.process(new Timing(name, i + j * 100));
+          }
+      }
+    }
+    snapshot = processor.flush(System.currentTimeMillis());
+    processor.close();
+
+    encoded = Unpooled.directBuffer();
+    SnapshotCodec.encode(snapshot, encoded);
+    buf = Unpooled.directBuffer(encoded.capacity());
+  }
+
+  @TearDown
+  public void teardown() {
+    encoded.release();
+    buf.release();
+  }
+
+  @Benchmark
+  public int encode() {
+    buf.clear();
+    SnapshotCodec.encode(snapshot, buf);
+    return buf.readableBytes();
+  }
+
+  @Benchmark
+  public int decode() {
+    return SnapshotCodec.decode(encoded.duplicate()).size();
+  }
+}
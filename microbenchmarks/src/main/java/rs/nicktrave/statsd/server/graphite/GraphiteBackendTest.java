@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.graphite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.Timing;
+import rs.nicktrave.statsd.microbenchmarks.AbstractMicrobenchmarkBase;
+import rs.nicktrave.statsd.server.aggregate.AggregatingProcessor;
+import rs.nicktrave.statsd.server.aggregate.Snapshot;
+
+/**
+ * Measures how long a {@link GraphiteBackend} takes to write a large snapshot, split evenly
+ * between counters, gauges and timers, to a local listener that discards everything it reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GraphiteBackendTest extends AbstractMicrobenchmarkBase {
+
+  @Param({"100000", "1000000"})
+  public int series;
+
+  private ServerSocket listener;
+  private GraphiteBackend backend;
+  private Snapshot snapshot;
+
+  @Setup
+  public void setup() throws IOException {
+    listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread discard = new Thread(this::discard, "graphite-discard");
+    discard.setDaemon(true);
+    discard.start();
+
+    backend = GraphiteBackend.newBuilder()
+        .withAddress(new InetSocketAddress(listener.getInetAddress(), listener.getLocalPort()))
+        .build();
+
+    AggregatingProcessor processor = AggregatingProcessor.newBuilder().build();
+    for (int i = 0; i < series; i++) {
+      String name = "foo.bar.baz." + i;
+      switch (i % 3) {
+        case 0:
+          processor.process(new Counter(name, i));
+          break;
+        case 1:
+          processor.process(new Gauge(name, i));
+          break;
+        default:
+          processor.process(new Timing(name, i));
+      }
+    }
+    snapshot = processor.flush(System.currentTimeMillis());
+    processor.close();
+  }
+
+  @TearDown
+  public void teardown() throws IOException {
+    backend.close();
+    listener.close();
+  }
+
+  private void discard() {
+    byte[] buffer = new byte[64 * 1024];
+    try {
+      while (true) {
+        Socket connection = listener.accept();
+        try (InputStream in = connection.getInputStream()) {
+          while (in.read(buffer) >= 0) {
+            // Discard
+          }
+        }
+      }
+    } catch (IOException e) {
+      // Closed
+    }
+  }
+
+  @Benchmark
+  public long flush() throws IOException {
+    backend.flush(snapshot);
+    return backend.getLinesWritten();
+  }
+}
@@ -17,26 +17,69 @@ package rs.nicktrave.statsd.server.netty;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.channel.socket.DatagramPacket;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
+import rs.nicktrave.statsd.common.MetricBatch;
 import rs.nicktrave.statsd.microbenchmarks.AbstractMicrobenchmarkBase;
 
-@State(Scope.Benchmark)
+/**
+ * Compares the byte-scanning {@link DatagramToMetricDecoder}, emitting either metric objects or
+ * columns of a {@link MetricBatch}, against the original state machine decoder. Run with {@code
+ * -prof gc} to compare allocation rates.
+ */
+@State(Scope.Thread)
 public class DatagramToMetricDecoderTest extends AbstractMicrobenchmarkBase {
 
-  private static final DatagramToMetricDecoder decoder = new DatagramToMetricDecoder();
-  private static final byte[] content = "foo:1234|c".getBytes(StandardCharsets.US_ASCII);
-  private static final ByteBuf buf = Unpooled.wrappedBuffer(content);
   private static final InetSocketAddress address = new InetSocketAddress(42);
 
+  @Param({"foo:1234|c", "foo.bar.baz:-5|g", "foo.bar.baz.qux:320|ms|@0.1"})
+  public String metric;
+
+  private final DatagramToMetricDecoder decoder = new DatagramToMetricDecoder();
+  private final StateMachineDatagramToMetricDecoder stateMachineDecoder =
+      new StateMachineDatagramToMetricDecoder();
+  private final List<Object> out = new ArrayList<>(1);
+  private final MetricBatch batch = new MetricBatch();
+
+  private ByteBuf buf;
+  private DatagramPacket packet;
+
+  @Setup
+  public void setup() {
+    buf = Unpooled.wrappedBuffer(metric.getBytes(StandardCharsets.US_ASCII));
+    packet = new DatagramPacket(buf, address);
+  }
+
+  @Benchmark
+  public Object byteScanning() throws Exception {
+    buf.readerIndex(0);
+    out.clear();
+    decoder.decode(null, packet, out);
+    return out.get(0);
+  }
+
+  @Benchmark
+  public long columnar() {
+    batch.clear();
+    decoder.decode(buf, 0, buf.writerIndex(), batch, failure -> {
+      throw failure;
+    });
+    return batch.value(0);
+  }
+
   @Benchmark
-  public void test() throws Exception {
-    EmbeddedChannel embeddedChannel = new EmbeddedChannel(decoder);
-    embeddedChannel.writeInbound(new DatagramPacket(buf.copy(), address));
+  public Object stateMachine() throws Exception {
+    buf.readerIndex(0);
+    out.clear();
+    stateMachineDecoder.decode(null, packet, out);
+    return out.get(0);
   }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.prometheus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.microbenchmarks.AbstractMicrobenchmarkBase;
+import rs.nicktrave.statsd.server.aggregate.AggregatingProcessor;
+import rs.nicktrave.statsd.server.aggregate.Snapshot;
+
+/**
+ * Measures how long a {@link PrometheusBackend} takes to take in a steady-state snapshot, in which
+ * every gauge is unchanged and a tenth of the counters were incremented, and to serve a scrape of
+ * every series over a local connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PrometheusBackendTest extends AbstractMicrobenchmarkBase {
+
+  @Param({"100000", "1000000"})
+  public int series;
+
+  private PrometheusBackend backend;
+  private AggregatingProcessor processor;
+  private Snapshot steady;
+  private URL url;
+  private final byte[] buffer = new byte[64 * 1024];
+
+  @Setup
+  public void setup() throws Exception {
+    backend = PrometheusBackend.newBuilder()
+        .withAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+        .build();
+    backend.start();
+    url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), backend.getPort(),
+        "/metrics");
+
+    processor = AggregatingProcessor.newBuilder().build();
+    for (int i = 0; i < series; i++) {
+      String name = "foo.bar.baz." + i;
+      if (i % 2 == 0) {
+        processor.process(new Counter(name, i));
+      } else {
+        processor.process(new Gauge(name, i));
+      }
+    }
+    backend.flush(processor.flush(System.currentTimeMillis()));
+
+    for (int i = 0; i < series; i += 20) {
+      processor.process(new Counter("foo.bar.baz." + i, 1));
+    }
+    steady = processor.flush(System.currentTimeMillis());
+  }
+
+  @TearDown
+  public void teardown() {
+    backend.close();
+    processor.close();
+  }
+
+  @Benchmark
+  public long flush() {
+    backend.flush(steady);
+    return backend.getRenderCount();
+  }
+
+  @Benchmark
+  public long scrape() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    long bytes = 0;
+    try (InputStream in = connection.getInputStream()) {
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        bytes += read;
+      }
+    }
+    return bytes;
+  }
+}
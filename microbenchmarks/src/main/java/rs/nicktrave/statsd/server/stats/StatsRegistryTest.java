@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.stats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.microbenchmarks.AbstractMicrobenchmarkBase;
+import rs.nicktrave.statsd.server.MetricProcessor;
+import rs.nicktrave.statsd.server.aggregate.AggregatingProcessor;
+
+/**
+ * Measures the overhead of the server's own instrumentation on the hot path, by comparing an
+ * {@link AggregatingProcessor} against the same processor wrapped by {@link
+ * StatsRegistry#instrument}, and the cost of the counter and histogram primitives on their own.
+ *
+ * <p>Every thread shares one registry, as every event loop of a server does, so that contention
+ * between the threads updating the same statistics is included. Each thread has its own batch and
+ * processor. Run with {@code -t} to measure other numbers of threads.
+ */
+@State(Scope.Benchmark)
+@Threads(4)
+public class StatsRegistryTest extends AbstractMicrobenchmarkBase {
+
+  private final StatsRegistry stats = new StatsRegistry();
+  private final StatsCounter counter = stats.counter("counter");
+  private final StatsHistogram histogram = stats.histogram("histogram");
+
+  /**
+   * The batch and processors of a single thread.
+   */
+  @State(Scope.Thread)
+  public static class ThreadState {
+
+    private final MetricBatch batch = new MetricBatch();
+
+    private AggregatingProcessor processor;
+    private MetricProcessor instrumented;
+
+    @Setup
+    public void setup(StatsRegistryTest benchmark) {
+      processor = AggregatingProcessor.newBuilder().build();
+      instrumented = benchmark.stats.instrument(processor, "processor");
+      for (int i = 0; i < MetricBatch.DEFAULT_CAPACITY; i++) {
+        batch.addCounter("counter." + (i % 64), i, 1);
+      }
+    }
+
+    @TearDown
+    public void teardown() {
+      processor.close();
+    }
+  }
+
+  @Benchmark
+  public void processBatch(ThreadState state) {
+    state.processor.processBatch(state.batch);
+  }
+
+  @Benchmark
+  public void processBatchInstrumented(ThreadState state) {
+    state.instrumented.processBatch(state.batch);
+  }
+
+  @Benchmark
+  public void counterIncrement() {
+    counter.increment();
+  }
+
+  @Benchmark
+  public void histogramRecord() {
+    histogram.record(System.nanoTime() & 0xFFFFF);
+  }
+
+  /**
+   * Records values that all fall into one bucket, as most latencies of a processor do.
+   */
+  @Benchmark
+  public void histogramRecordSameBucket() {
+    histogram.record(1000);
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server;
+
+import java.io.IOException;
+import rs.nicktrave.statsd.server.aggregate.Snapshot;
+
+/**
+ * A destination for aggregated metrics.
+ *
+ * <p>Instances receive a {@link Snapshot} of every series at the end of each flush interval.
+ */
+public interface Backend {
+
+  /**
+   * Writes the series in a snapshot to this backend.
+   *
+   * @param snapshot the aggregated series for the interval
+   * @throws IOException if the snapshot could not be written
+   */
+  void flush(Snapshot snapshot) throws IOException;
+}
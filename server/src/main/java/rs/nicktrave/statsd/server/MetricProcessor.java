@@ -16,6 +16,7 @@
 package rs.nicktrave.statsd.server;
 
 import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
 
 /**
  * A processor for {@link Metric}s.
@@ -31,4 +32,20 @@ public interface MetricProcessor {
    * @param metric the metric to process
    */
   void process(Metric metric);
+
+  /**
+   * Process every metric in a batch, in order.
+   *
+   * <p>The batch is cleared and reused once this method returns, so implementations must not
+   * retain it. Implementations that can amortize work across metrics, such as taking a lock or
+   * looking up per-thread state, should override this method. The default implementation calls
+   * {@link #process(Metric)} for each metric.
+   *
+   * @param batch the metrics to process
+   */
+  default void processBatch(MetricBatch batch) {
+    for (int i = 0; i < batch.size(); i++) {
+      process(batch.get(i));
+    }
+  }
 }
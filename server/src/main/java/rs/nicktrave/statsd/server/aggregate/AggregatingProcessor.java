@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.common.Timing;
+import rs.nicktrave.statsd.server.MetricProcessor;
+import rs.nicktrave.statsd.server.aggregate.Merger.RetainedGauge;
+
+/**
+ * A {@link MetricProcessor} that aggregates metrics by name until they are flushed.
+ *
+ * <ul>
+ *   <li>{@link Counter}s are summed, each increment scaled up by its sample rate.</li>
+ *   <li>{@link Gauge}s are set or updated according to their type. The value of a gauge is
+ *   retained across flushes so that updates apply to the last known value, until the gauge has
+ *   gone a configurable number of intervals without being set or updated.</li>
+ *   <li>{@link Timing}s are recorded in a fixed-memory, log-linear {@link Histogram} per name, from
+ *   which percentiles are reported. The precision and range of the histograms are
+ *   configurable.</li>
+ * </ul>
+ *
+ * <p>Each thread calling {@link #process(Metric)} (typically one per Netty event loop) writes to
+ * its own shard, so the ingest path never takes a lock or contends with other writers. Shards are
+ * only merged when {@link #flush()} is called, typically by an {@link IntervalFlusher}.
+ *
+ * <p>When a gauge is set on one shard and updated on another within the same interval, the
+ * relative order of the two cannot be determined, and updates are applied on top of the most
+ * recent set.
+ *
+ * <p>By default each shard keeps its series as objects on the Java heap, which grows with the
+ * number of series. For very high cardinality, shards can instead keep their series in a
+ * fixed-size region of direct memory, reserved up front and sized by the maximum number of
+ * series per shard. See {@link Builder#withOffHeapStore(int, int)}. The retained value of each
+ * gauge is kept on the heap in either case, and is bounded by {@link
+ * Builder#withGaugeExpiry(int)}.
+ *
+ * <p>The aggregation state can be written to a checkpoint file and restored from it by a new
+ * process, so that a restart does not lose the retained value of each gauge, or the series of the
+ * interval in progress. See {@link #checkpoint(File, boolean)} and {@link #restore(File)}.
+ */
+public class AggregatingProcessor implements MetricProcessor, Closeable {
+
+  private static final InternalLogger logger =
+      InternalLoggerFactory.getInstance(AggregatingProcessor.class);
+
+  private static final int DEFAULT_TIMER_PRECISION = 2;
+  private static final long DEFAULT_TIMER_MAX_VALUE = TimeUnit.HOURS.toMillis(1);
+  private static final int DEFAULT_GAUGE_EXPIRY_INTERVALS = 360;
+
+  private final HistogramLayout timerLayout;
+  private final int gaugeExpiryIntervals;
+  private final Supplier<SeriesStore> storeFactory;
+  private final List<Shard> shards = new CopyOnWriteArrayList<>();
+  private final FastThreadLocal<Shard> localShard = new FastThreadLocal<Shard>() {
+    @Override protected Shard initialValue() {
+      Shard shard = new Shard(storeFactory);
+      shards.add(shard);
+      if (shard.reservedBytes() > 0) {
+        logger.info("Reserved {} bytes of direct memory for a new shard, {} in total",
+            shard.reservedBytes(), getReservedBytes());
+      }
+      return shard;
+    }
+  };
+
+  // The value of each gauge at the end of the last flush. Only accessed when flushing.
+  private final Map<String, RetainedGauge> gaugeValues = new HashMap<>();
+
+  // Series drained from the shards, or restored from a checkpoint, that are merged into the next
+  // flush, and the System.nanoTime() at which they were drained. Only accessed when flushing.
+  private Snapshot pending;
+  private long pendingNanos;
+
+  private AggregatingProcessor(Builder builder) {
+    timerLayout = new HistogramLayout(
+        builder.timerPrecision >= 0 ? builder.timerPrecision : DEFAULT_TIMER_PRECISION,
+        builder.timerMaxValue > 0 ? builder.timerMaxValue : DEFAULT_TIMER_MAX_VALUE);
+    gaugeExpiryIntervals = builder.gaugeExpiryIntervals > 0
+        ? builder.gaugeExpiryIntervals : DEFAULT_GAUGE_EXPIRY_INTERVALS;
+
+    if (builder.offHeapMaxSeries > 0 || builder.offHeapMaxTimers > 0) {
+      int maxSeries = builder.offHeapMaxSeries;
+      int maxTimers = builder.offHeapMaxTimers;
+      // Fail fast on an invalid capacity, rather than on the first metric
+      OffHeapSeriesStore.checkCapacity(timerLayout, maxSeries, maxTimers);
+      storeFactory = () -> new OffHeapSeriesStore(timerLayout, maxSeries, maxTimers);
+    } else {
+      storeFactory = () -> new HeapSeriesStore(timerLayout);
+    }
+  }
+
+  /**
+   * Returns a new builder for an {@link AggregatingProcessor} instance.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * A builder for an {@link AggregatingProcessor} instance.
+   */
+  public static class Builder {
+
+    private int timerPrecision = -1;
+    private long timerMaxValue;
+    private int gaugeExpiryIntervals;
+    private int offHeapMaxSeries;
+    private int offHeapMaxTimers;
+
+    private Builder() {
+    }
+
+    /**
+     * Sets the number of significant decimal digits retained by timer histograms, in the range [0,
+     * 5]. Each additional digit increases the memory used by a histogram by roughly a factor of
+     * ten. Defaults to 2.
+     */
+    public Builder withTimerPrecision(int significantDigits) {
+      this.timerPrecision = significantDigits;
+      return this;
+    }
+
+    /**
+     * Sets the largest timing that can be recorded. Larger timings are recorded as this value, but
+     * are still reflected in the maximum and mean. Defaults to one hour, in milliseconds.
+     */
+    public Builder withTimerMaxValue(long maxValue) {
+      this.timerMaxValue = maxValue;
+      return this;
+    }
+
+    /**
+     * Sets the number of consecutive intervals in which a gauge is neither set nor updated, after
+     * which its retained value is dropped. An update to the gauge after that applies to zero, as
+     * it would to a new gauge. Defaults to 360, an hour at the default flush interval.
+     *
+     * <p>The retained values are kept on the heap, whichever store is configured, so this bounds
+     * them by the number of gauges active in that many intervals. Each flush checks every retained
+     * value.
+     */
+    public Builder withGaugeExpiry(int intervals) {
+      this.gaugeExpiryIntervals = intervals;
+      return this;
+    }
+
+    /**
+     * Keeps the series of each shard in direct memory, outside of the Java heap, rather than as
+     * objects on the heap. Metrics for new series beyond the given maximums are dropped until the
+     * next flush, and counted by {@link #getDroppedCount()}.
+     *
+     * <p>Each shard reserves two stores up front, one receiving metrics while the other is
+     * flushed. A store reserves 8 bytes per counter, 32 bytes per gauge, and 40 bytes plus four
+     * bytes per histogram bucket per timer, which is roughly 8KB at the default timer precision
+     * and maximum value. The index of each type adds between 16 and 32 bytes per series. The
+     * memory reserved is reported by {@link #getReservedBytes()}.
+     *
+     * @param maxSeries the maximum number of counters, and separately of gauges, per shard in
+     *     each interval
+     * @param maxTimers the maximum number of timers per shard in each interval
+     */
+    public Builder withOffHeapStore(int maxSeries, int maxTimers) {
+      this.offHeapMaxSeries = maxSeries;
+      this.offHeapMaxTimers = maxTimers;
+      return this;
+    }
+
+    /**
+     * Construct and return a new processor instance.
+     *
+     * @throws IllegalArgumentException if the timer precision or maximum value is out of range,
+     *     or an off-heap store is configured with a capacity that is not positive or too large
+     */
+    public AggregatingProcessor build() {
+      return new AggregatingProcessor(this);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Adds the metric to the shard owned by the calling thread.
+   *
+   * @throws IllegalArgumentException if the metric is of an unknown type
+   */
+  @Override public void process(Metric metric) {
+    localShard.get().add(metric);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Adds the metrics to the shard owned by the calling thread, which is looked up once for the
+   * whole batch. A flush concurrent with the batch includes either all or none of its metrics.
+   *
+   * @throws IllegalArgumentException if a metric is of an unknown type, in which case the
+   *     metrics before it are still added
+   */
+  @Override public void processBatch(MetricBatch batch) {
+    localShard.get().addAll(batch);
+  }
+
+  /**
+   * Drains every shard, merges their series, and returns the result, timestamped with the current
+   * time.
+   *
+   * @see #flush(long)
+   */
+  public Snapshot flush() {
+    return flush(System.currentTimeMillis());
+  }
+
+  /**
+   * Drains every shard, merges their series, and returns the result. Metrics processed
+   * concurrently with a flush are included in either this or the next flush, but never both.
+   *
+   * @param timestamp the timestamp of the snapshot, in milliseconds since the epoch
+   */
+  public synchronized Snapshot flush(long timestamp) {
+    Merger merger = new Merger(timerLayout, gaugeValues);
+    if (pending != null) {
+      merger.merge(pending, pendingNanos);
+      pending = null;
+    }
+    drainShards(merger);
+    Snapshot snapshot = merger.build(timestamp);
+    // Gauges in the snapshot were reset to zero idle flushes when it was built
+    gaugeValues.values().removeIf(gauge -> gauge.idleFlushes++ >= gaugeExpiryIntervals);
+    return snapshot;
+  }
+
+  /**
+   * Writes the aggregation state to a checkpoint file, replacing any existing checkpoint. The
+   * state is the retained value of each gauge, and the series that have not yet been flushed.
+   *
+   * <p>Right after a flush there is little to drain, and the checkpoint can be written without
+   * draining the shards. When the process is about to exit, the shards should be drained, so that
+   * the series of the interval in progress are flushed by the next process instead.
+   *
+   * @param drain whether to first drain every shard into the series merged into the next flush
+   * @throws IOException if the checkpoint could not be written
+   */
+  public synchronized void checkpoint(File file, boolean drain) throws IOException {
+    if (drain) {
+      long nanos = System.nanoTime();
+      Merger merger = new Merger(timerLayout, gaugeValues);
+      if (pending != null) {
+        merger.merge(pending, pendingNanos);
+      }
+      drainShards(merger);
+      pending = merger.build(0);
+      pendingNanos = nanos;
+    }
+    Snapshot series = pending != null ? pending : new Merger(timerLayout, gaugeValues).build(0);
+    new Checkpoint(gaugeValues, series).write(file);
+  }
+
+  /**
+   * Restores the aggregation state from a checkpoint file written by {@link #checkpoint(File,
+   * boolean)}. The restored series are merged into the next flush, and gauges set since the restore
+   * take precedence over the restored values. Timers recorded with a different precision or maximum
+   * value are converted to the current layout.
+   *
+   * <p>The file is read through a memory mapping and decoded straight into the series of the next
+   * flush, so restoring is bound by the number of series rather than by disk reads.
+   *
+   * @return whether a checkpoint was restored, which is false if the file does not exist
+   * @throws IOException if the file could not be read, or is not a valid checkpoint
+   * @throws IllegalStateException if the processor has been checkpointed with its shards drained,
+   *     or restored, since it was last flushed
+   */
+  public synchronized boolean restore(File file) throws IOException {
+    if (pending != null) {
+      throw new IllegalStateException("Series are already pending the next flush");
+    }
+    long start = System.nanoTime();
+    Checkpoint checkpoint = Checkpoint.read(file);
+    if (checkpoint == null) {
+      return false;
+    }
+    gaugeValues.putAll(checkpoint.gaugeValues);
+    pending = checkpoint.pending;
+    pendingNanos = System.nanoTime();
+    logger.info("Restored {} retained gauges and {} pending series from {} in {}ms",
+        checkpoint.gaugeValues.size(), pending.size(), file,
+        TimeUnit.NANOSECONDS.toMillis(pendingNanos - start));
+    return true;
+  }
+
+  private void drainShards(Merger merger) {
+    for (Shard shard : shards) {
+      SeriesStore store = shard.swap();
+      store.drainTo(merger);
+      store.clear();
+    }
+  }
+
+  /**
+   * @return the number of bytes of memory currently reserved outside of the Java heap by every
+   *     shard, which is zero unless an off-heap store is configured
+   */
+  public long getReservedBytes() {
+    long reserved = 0;
+    for (Shard shard : shards) {
+      reserved += shard.reservedBytes();
+    }
+    return reserved;
+  }
+
+  /**
+   * @return the total number of metrics dropped because a shard's off-heap store was full
+   */
+  public long getDroppedCount() {
+    long dropped = 0;
+    for (Shard shard : shards) {
+      dropped += shard.droppedCount();
+    }
+    return dropped;
+  }
+
+  /**
+   * Releases the memory held by every shard outside of the Java heap. The processor must not be
+   * used afterwards.
+   */
+  @Override public synchronized void close() {
+    for (Shard shard : shards) {
+      shard.release();
+    }
+    shards.clear();
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.internal.PlatformDependent;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import rs.nicktrave.statsd.server.aggregate.Merger.RetainedGauge;
+
+/**
+ * The aggregation state of an {@link AggregatingProcessor}, as written to and read from a
+ * checkpoint file.
+ *
+ * <p>A checkpoint starts with a magic number, a version, and the length and CRC32 of its body. The
+ * body is the retained value of each gauge, each as a length-prefixed UTF-8 name and a value,
+ * followed by the series of the interval in progress, encoded by {@link SnapshotCodec}.
+ *
+ * <p>The checkpoint is encoded straight into a memory mapping of a temporary file beside it. The
+ * mapping is sized for the largest the checkpoint can be, and the file is truncated to the bytes
+ * written, forced to disk, and then atomically moved into place, so a crash while writing leaves
+ * the previous checkpoint intact. It is read through a read-only mapping, without copying the
+ * file onto the heap.
+ */
+final class Checkpoint {
+
+  private static final int MAGIC = 0x53434b50; // "SCKP"
+  private static final byte VERSION = 1;
+  private static final int HEADER_SIZE = Integer.BYTES + 1 + 2 * Integer.BYTES;
+
+  final Map<String, RetainedGauge> gaugeValues;
+  final Snapshot pending;
+
+  Checkpoint(Map<String, RetainedGauge> gaugeValues, Snapshot pending) {
+    this.gaugeValues = gaugeValues;
+    this.pending = pending;
+  }
+
+  /**
+   * Writes the checkpoint to a file, replacing any existing checkpoint.
+   *
+   * @throws IOException if the file could not be written, or is larger than 2GB
+   */
+  void write(File file) throws IOException {
+    int capacity = (int) Math.min(maxEncodedSize(), Integer.MAX_VALUE);
+    File temporary = new File(file.getPath() + ".tmp");
+    try (RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        FileChannel channel = raf.getChannel()) {
+      // Pages past the end of the encoding are never touched, so they take no memory or disk
+      // before the file is truncated
+      MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      int length;
+      try {
+        ByteBuf buf = Unpooled.wrappedBuffer(mapping).writerIndex(0);
+        encode(buf);
+        length = buf.writerIndex();
+      } finally {
+        PlatformDependent.freeDirectBuffer(mapping);
+      }
+      raf.setLength(length);
+      channel.force(true);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Checkpoint is too large to write to " + file, e);
+    }
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Returns an upper bound on the number of bytes {@link #encode(ByteBuf)} writes.
+   */
+  private long maxEncodedSize() {
+    long size = HEADER_SIZE + Integer.BYTES;
+    for (String name : gaugeValues.keySet()) {
+      size += SnapshotCodec.maxNameSize(name) + Long.BYTES;
+    }
+    return size + SnapshotCodec.maxEncodedSize(pending);
+  }
+
+  /**
+   * Reads a checkpoint from a file.
+   *
+   * @return the checkpoint, or null if the file does not exist
+   * @throws IOException if the file could not be read, or is not a valid checkpoint
+   */
+  static Checkpoint read(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    MappedByteBuffer mapping;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Checkpoint " + file + " is too large to read: " + channel.size());
+      }
+      // The mapping remains valid after the channel is closed
+      mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    try {
+      return decode(Unpooled.wrappedBuffer(mapping));
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw new IOException("Invalid checkpoint " + file, e);
+    } finally {
+      PlatformDependent.freeDirectBuffer(mapping);
+    }
+  }
+
+  void encode(ByteBuf buf) {
+    int start = buf.writerIndex();
+    buf.writeInt(MAGIC);
+    buf.writeByte(VERSION);
+    buf.writeZero(2 * Integer.BYTES);
+
+    int body = buf.writerIndex();
+    buf.writeInt(gaugeValues.size());
+    for (Map.Entry<String, RetainedGauge> entry : gaugeValues.entrySet()) {
+      SnapshotCodec.writeName(buf, entry.getKey());
+      buf.writeLong(entry.getValue().value);
+    }
+    SnapshotCodec.encode(pending, buf);
+
+    int length = buf.writerIndex() - body;
+    buf.setInt(start + HEADER_SIZE - 2 * Integer.BYTES, length);
+    buf.setInt(start + HEADER_SIZE - Integer.BYTES, crc(buf, body, length));
+  }
+
+  /**
+   * @throws IllegalArgumentException if the buffer does not contain a valid checkpoint
+   */
+  static Checkpoint decode(ByteBuf buf) {
+    if (buf.readableBytes() < HEADER_SIZE) {
+      throw new IllegalArgumentException("Checkpoint is truncated");
+    }
+    int magic = buf.readInt();
+    if (magic != MAGIC) {
+      throw new IllegalArgumentException("Not a checkpoint: " + Integer.toHexString(magic));
+    }
+    byte version = buf.readByte();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported checkpoint version: " + version);
+    }
+    int length = buf.readInt();
+    int crc = buf.readInt();
+    if (length < 0 || length > buf.readableBytes()) {
+      throw new IllegalArgumentException("Checkpoint is truncated");
+    }
+    if (crc(buf, buf.readerIndex(), length) != crc) {
+      throw new IllegalArgumentException("Checkpoint is corrupt");
+    }
+
+    int gaugeCount = buf.readInt();
+    if (gaugeCount < 0 || gaugeCount > length) {
+      throw new IllegalArgumentException("Invalid gauge count: " + gaugeCount);
+    }
+    Map<String, RetainedGauge> gaugeValues = new HashMap<>(gaugeCount * 4 / 3 + 1);
+    for (int i = 0; i < gaugeCount; i++) {
+      gaugeValues.put(SnapshotCodec.readName(buf), new RetainedGauge(buf.readLong()));
+    }
+    return new Checkpoint(gaugeValues, SnapshotCodec.decode(buf));
+  }
+
+  private static int crc(ByteBuf buf, int index, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(buf.nioBuffer(index, length));
+    return (int) crc.getValue();
+  }
+}
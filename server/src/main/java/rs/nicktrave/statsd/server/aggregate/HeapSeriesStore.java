@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import rs.nicktrave.statsd.common.Gauge;
+
+/**
+ * A {@link SeriesStore} that keeps each series as an object on the Java heap.
+ */
+final class HeapSeriesStore implements SeriesStore {
+
+  private final Map<String, CounterSeries> counters = new HashMap<>();
+  private final Map<String, GaugeSeries> gauges = new HashMap<>();
+  private final Map<String, Histogram> timers = new HashMap<>();
+
+  private final HistogramLayout timerLayout;
+
+  HeapSeriesStore(HistogramLayout timerLayout) {
+    this.timerLayout = timerLayout;
+  }
+
+  @Override public void addCounter(String name, long value, double sampleRate) {
+    CounterSeries series = counters.get(name);
+    if (series == null) {
+      series = new CounterSeries();
+      counters.put(name, series);
+    }
+    series.add(value, sampleRate);
+  }
+
+  @Override public void addGauge(String name, long value, Gauge.Type type) {
+    GaugeSeries series = gauges.get(name);
+    if (series == null) {
+      series = new GaugeSeries();
+      gauges.put(name, series);
+    }
+    series.add(value, type);
+  }
+
+  @Override public void addTiming(String name, long value, double sampleRate) {
+    Histogram histogram = timers.get(name);
+    if (histogram == null) {
+      histogram = new Histogram(timerLayout);
+      timers.put(name, histogram);
+    }
+    histogram.record(value, sampleRate);
+  }
+
+  @Override public void drainTo(Merger merger) {
+    counters.forEach((name, series) -> merger.mergeCounter(name, series.value));
+    gauges.forEach((name, series) ->
+        merger.mergeGauge(name, series.set, series.setValue, series.setNanos, series.delta));
+    timers.forEach((name, histogram) -> {
+      // Histograms kept by clear() stay empty until the timer is recorded again
+      if (histogram.getSampleCount() != 0) {
+        merger.timer(name).add(histogram);
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Timer histograms that recorded values in the interval are reset and kept, so that steady
+   * state recording does not allocate. Histograms that went unused for a whole interval are
+   * released.
+   */
+  @Override public void clear() {
+    counters.clear();
+    gauges.clear();
+
+    Iterator<Histogram> it = timers.values().iterator();
+    while (it.hasNext()) {
+      Histogram histogram = it.next();
+      if (histogram.getSampleCount() == 0) {
+        it.remove();
+      } else {
+        histogram.reset();
+      }
+    }
+  }
+
+  @Override public long reservedBytes() {
+    return 0;
+  }
+
+  @Override public long droppedCount() {
+    return 0;
+  }
+
+  @Override public void release() {
+  }
+
+  /**
+   * The sum of all increments to a counter, each scaled up by its sample rate.
+   */
+  private static final class CounterSeries {
+
+    double value;
+
+    void add(long value, double sampleRate) {
+      this.value += sampleRate < 1 && sampleRate > 0 ? value / sampleRate : value;
+    }
+  }
+
+  /**
+   * The most recent value a gauge was set to, and the sum of all updates to it since.
+   */
+  private static final class GaugeSeries {
+
+    boolean set;
+    long setValue;
+    long setNanos;
+    long delta;
+
+    void add(long value, Gauge.Type type) {
+      if (Gauge.Type.SET == type) {
+        set = true;
+        setValue = value;
+        setNanos = System.nanoTime();
+        delta = 0;
+      } else {
+        delta += value;
+      }
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import io.netty.buffer.ByteBuf;
+import java.util.Arrays;
+
+/**
+ * A fixed-memory, log-linear histogram of timings.
+ *
+ * <p>Recording a value is allocation-free. The exact minimum, maximum and mean are tracked
+ * alongside the buckets, and percentiles are reported as the highest value in the bucket that
+ * contains them, clamped to the observed range. See {@link HistogramLayout} for the bucketing
+ * scheme and its precision guarantees.
+ *
+ * <p>Instances are not thread-safe.
+ */
+final class Histogram implements TimerSummary {
+
+  private final HistogramLayout layout;
+  private final int[] counts;
+
+  private long sampleCount;
+  private double count;
+  private double sum;
+  private long min = Long.MAX_VALUE;
+  private long max = Long.MIN_VALUE;
+
+  Histogram(HistogramLayout layout) {
+    this.layout = layout;
+    this.counts = new int[layout.length()];
+  }
+
+  /**
+   * Records a value, received with the given sample rate.
+   */
+  void record(long value, double sampleRate) {
+    counts[layout.index(value)]++;
+    sampleCount++;
+    count += sampleRate < 1 && sampleRate > 0 ? 1 / sampleRate : 1;
+    sum += value;
+    if (value < min) {
+      min = value;
+    }
+    if (value > max) {
+      max = value;
+    }
+  }
+
+  /**
+   * Adds the values recorded by another histogram with the same layout to this one.
+   */
+  void add(Histogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    sampleCount += other.sampleCount;
+    count += other.count;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Adds the values recorded by a histogram with any layout to this one. Values recorded with a
+   * different layout are moved to the bucket of this layout containing the highest value of their
+   * original bucket.
+   */
+  void addConverted(Histogram other) {
+    if (other.layout.significantDigits() == layout.significantDigits()
+        && other.layout.highestTrackableValue() == layout.highestTrackableValue()) {
+      add(other);
+      return;
+    }
+    for (int i = 0; i < other.counts.length; i++) {
+      if (other.counts[i] != 0) {
+        counts[layout.index(other.layout.highestValueAt(i))] += other.counts[i];
+      }
+    }
+    addTotals(other.sampleCount, other.count, other.sum, other.min, other.max);
+  }
+
+  /**
+   * Adds values recorded outside of a histogram instance with the same layout, such as by an
+   * {@link OffHeapSeriesStore}.
+   *
+   * @param counts the buffer holding the counts of each bucket, as consecutive ints
+   * @param offset the offset of the first count in the buffer
+   */
+  void add(long sampleCount, double count, double sum, long min, long max, ByteBuf counts,
+      int offset) {
+    for (int i = 0; i < this.counts.length; i++) {
+      this.counts[i] += counts.getInt(offset + i * Integer.BYTES);
+    }
+    this.sampleCount += sampleCount;
+    this.count += count;
+    this.sum += sum;
+    this.min = Math.min(this.min, min);
+    this.max = Math.max(this.max, max);
+  }
+
+  /**
+   * Adds the totals of values recorded elsewhere, whose bucket counts are added separately with
+   * {@link #addCountAt(int, int)}.
+   */
+  void addTotals(long sampleCount, double count, double sum, long min, long max) {
+    this.sampleCount += sampleCount;
+    this.count += count;
+    this.sum += sum;
+    this.min = Math.min(this.min, min);
+    this.max = Math.max(this.max, max);
+  }
+
+  /**
+   * Adds to the count at the given index of the layout.
+   */
+  void addCountAt(int index, int count) {
+    counts[index] += count;
+  }
+
+  HistogramLayout layout() {
+    return layout;
+  }
+
+  /**
+   * Returns the count at the given index of the layout.
+   */
+  int countAt(int index) {
+    return counts[index];
+  }
+
+  /**
+   * @return the sum of the values recorded
+   */
+  double getSum() {
+    return sum;
+  }
+
+  /**
+   * Removes every recorded value.
+   */
+  void reset() {
+    Arrays.fill(counts, 0);
+    sampleCount = 0;
+    count = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = Long.MIN_VALUE;
+  }
+
+  @Override public long getSampleCount() {
+    return sampleCount;
+  }
+
+  @Override public double getCount() {
+    return count;
+  }
+
+  @Override public long getMin() {
+    return sampleCount > 0 ? min : 0;
+  }
+
+  @Override public long getMax() {
+    return sampleCount > 0 ? max : 0;
+  }
+
+  @Override public double getMean() {
+    return sampleCount > 0 ? sum / sampleCount : 0;
+  }
+
+  @Override public long getValueAtPercentile(double percentile) {
+    if (sampleCount == 0) {
+      return 0;
+    }
+
+    double fraction = Math.min(Math.max(percentile, 0), 100) / 100;
+    long target = Math.max(1, (long) Math.ceil(fraction * sampleCount));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.max(min, Math.min(max, layout.highestValueAt(i)));
+      }
+    }
+    return max;
+  }
+}
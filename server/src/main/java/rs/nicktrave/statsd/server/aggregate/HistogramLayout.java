@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The bucket layout of a log-linear {@link Histogram}, shared by every histogram with the same
+ * precision and range.
+ *
+ * <p>The layout follows HdrHistogram. Values are divided into buckets covering successive powers
+ * of two, and each bucket is divided linearly into sub-buckets. The number of sub-buckets is the
+ * smallest power of two that gives the requested number of significant decimal digits, so the
+ * relative error of any recorded value is bounded regardless of its magnitude. Values below the
+ * sub-bucket count are recorded exactly.
+ */
+@Immutable
+final class HistogramLayout {
+
+  private final int significantDigits;
+  private final long highestTrackableValue;
+  private final int subBucketHalfCountMagnitude;
+  private final int subBucketHalfCount;
+  private final long subBucketMask;
+  private final int leadingZeroCountBase;
+  private final int length;
+
+  /**
+   * @param significantDigits the number of significant decimal digits to retain, in [0, 5]
+   * @param highestTrackableValue the largest value that can be recorded without being clamped
+   * @throws IllegalArgumentException if either argument is out of range
+   */
+  HistogramLayout(int significantDigits, long highestTrackableValue) {
+    if (significantDigits < 0 || significantDigits > 5) {
+      throw new IllegalArgumentException(
+          "Significant digits " + significantDigits + " is not in the range [0, 5]");
+    }
+    if (highestTrackableValue < 2) {
+      throw new IllegalArgumentException(
+          "Highest trackable value must be at least 2: " + highestTrackableValue);
+    }
+
+    this.significantDigits = significantDigits;
+    this.highestTrackableValue = highestTrackableValue;
+
+    long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+    int subBucketCountMagnitude =
+        64 - Long.numberOfLeadingZeros(largestValueWithSingleUnitResolution - 1);
+    subBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+    int subBucketCount = 1 << (subBucketHalfCountMagnitude + 1);
+    subBucketHalfCount = subBucketCount / 2;
+    subBucketMask = subBucketCount - 1;
+    leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+
+    int bucketCount = 1;
+    long smallestUntrackableValue = subBucketCount;
+    while (smallestUntrackableValue <= highestTrackableValue) {
+      if (smallestUntrackableValue > Long.MAX_VALUE / 2) {
+        bucketCount++;
+        break;
+      }
+      smallestUntrackableValue <<= 1;
+      bucketCount++;
+    }
+    length = (bucketCount + 1) * subBucketHalfCount;
+  }
+
+  /**
+   * @return the number of significant decimal digits retained
+   */
+  int significantDigits() {
+    return significantDigits;
+  }
+
+  /**
+   * @return the largest value that can be recorded without being clamped
+   */
+  long highestTrackableValue() {
+    return highestTrackableValue;
+  }
+
+  /**
+   * @return the number of counts in a histogram with this layout
+   */
+  int length() {
+    return length;
+  }
+
+  /**
+   * Returns the index of the count that a value is recorded in. Values outside the range [0,
+   * highest trackable value] are clamped.
+   */
+  int index(long value) {
+    if (value < 0) {
+      value = 0;
+    } else if (value > highestTrackableValue) {
+      value = highestTrackableValue;
+    }
+
+    int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+    int subBucketIndex = (int) (value >>> bucketIndex);
+    return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex
+        - subBucketHalfCount);
+  }
+
+  /**
+   * Returns the largest value that is recorded in the count at the given index.
+   */
+  long highestValueAt(int index) {
+    int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+    int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+    if (bucketIndex < 0) {
+      subBucketIndex -= subBucketHalfCount;
+      bucketIndex = 0;
+    }
+    long lowest = ((long) subBucketIndex) << bucketIndex;
+    return lowest + (1L << bucketIndex) - 1;
+  }
+}
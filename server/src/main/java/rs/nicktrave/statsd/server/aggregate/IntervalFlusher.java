@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import rs.nicktrave.statsd.server.Backend;
+import rs.nicktrave.statsd.server.stats.StatsCounter;
+import rs.nicktrave.statsd.server.stats.StatsHistogram;
+import rs.nicktrave.statsd.server.stats.StatsRegistry;
+
+/**
+ * Periodically flushes an {@link AggregatingProcessor} to one or more {@link Backend}s on a
+ * dedicated thread.
+ *
+ * <p>Flushes are aligned to wall-clock multiples of the interval (e.g. every 10 seconds on the 10
+ * second mark), so that several server instances with the same interval emit comparable time
+ * buckets. Each {@link Snapshot} is timestamped with the boundary it was taken at. The next flush
+ * is scheduled from the clock after each run, so a slow flush or a clock adjustment does not cause
+ * the schedule to drift.
+ *
+ * <p>The flusher can record how long each flush takes in a {@link StatsRegistry}, and report the
+ * registry's statistics into the processor just before each flush, so that the server's own
+ * metrics are flushed alongside everything else.
+ *
+ * <p>The flusher can also checkpoint the processor's aggregation state to a file after each flush,
+ * and restore it when the server restarts, so that a deploy does not reset gauges or lose the
+ * interval in progress. See {@link Builder#withCheckpoint(File)}.
+ */
+public class IntervalFlusher implements Closeable {
+
+  private static final InternalLogger logger =
+      InternalLoggerFactory.getInstance(IntervalFlusher.class);
+
+  private static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private final AggregatingProcessor processor;
+  private final List<Backend> backends;
+  private final long intervalMillis;
+  private final ScheduledExecutorService executor;
+  private final StatsRegistry stats;
+  private final boolean selfMetrics;
+  private final StatsHistogram flushDuration;
+  private final StatsCounter backendFailures;
+  private final StatsCounter checkpointFailures;
+  private final File checkpoint;
+
+  private IntervalFlusher(Builder builder) {
+    processor = builder.processor;
+    backends = new ArrayList<>(builder.backends);
+    intervalMillis = builder.intervalMillis > 0 ? builder.intervalMillis : DEFAULT_INTERVAL_MILLIS;
+    stats = builder.stats;
+    selfMetrics = builder.selfMetrics;
+    checkpoint = builder.checkpoint;
+    if (stats != null) {
+      flushDuration = stats.histogram("flush.duration_nanos");
+      backendFailures = stats.counter("flush.backend_failures");
+      checkpointFailures = stats.counter("flush.checkpoint_failures");
+      stats.registerCounter("aggregate.dropped", processor::getDroppedCount);
+      stats.registerGauge("aggregate.reserved_bytes", processor::getReservedBytes);
+    } else {
+      flushDuration = null;
+      backendFailures = null;
+      checkpointFailures = null;
+    }
+    ScheduledThreadPoolExecutor flushExecutor = new ScheduledThreadPoolExecutor(1,
+        new DefaultThreadFactory("statsd-flusher", true));
+    // Closing cancels the next flush, rather than waiting for it
+    flushExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    executor = flushExecutor;
+  }
+
+  /**
+   * Returns a new builder for an {@link IntervalFlusher} instance.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * A builder for an {@link IntervalFlusher} instance.
+   */
+  public static class Builder {
+
+    private AggregatingProcessor processor;
+    private final List<Backend> backends = new ArrayList<>();
+    private long intervalMillis;
+    private StatsRegistry stats;
+    private boolean selfMetrics;
+    private File checkpoint;
+
+    private Builder() {
+    }
+
+    /**
+     * Sets the processor to flush.
+     */
+    public Builder withProcessor(AggregatingProcessor processor) {
+      this.processor = processor;
+      return this;
+    }
+
+    /**
+     * Adds a backend to write each snapshot to. Backends are written to in the order they were
+     * added.
+     */
+    public Builder withBackend(Backend backend) {
+      this.backends.add(backend);
+      return this;
+    }
+
+    /**
+     * Sets the flush interval. Defaults to 10 seconds.
+     */
+    public Builder withInterval(long interval, TimeUnit unit) {
+      this.intervalMillis = unit.toMillis(interval);
+      return this;
+    }
+
+    /**
+     * Records the duration of each flush, backend and checkpoint failures, and the processor's
+     * dropped metrics and reserved memory, in the given registry.
+     *
+     * @param selfMetrics whether to also report the registry's statistics into the processor just
+     *     before each flush, as metrics prefixed with {@link StatsRegistry#PREFIX}
+     */
+    public Builder withStats(StatsRegistry stats, boolean selfMetrics) {
+      this.stats = stats;
+      this.selfMetrics = selfMetrics;
+      return this;
+    }
+
+    /**
+     * Checkpoints the processor's aggregation state to the given file after each flush, before the
+     * snapshot is written to the backends. The file is replaced atomically, so a crash while
+     * writing leaves the previous checkpoint intact. Defaults to no checkpoint.
+     *
+     * @see IntervalFlusher#restore()
+     * @see IntervalFlusher#closeAndCheckpoint(long, TimeUnit)
+     */
+    public Builder withCheckpoint(File file) {
+      this.checkpoint = file;
+      return this;
+    }
+
+    /**
+     * Construct and return a new flusher instance.
+     */
+    public IntervalFlusher build() {
+      if (processor == null) {
+        throw new IllegalStateException("Processor must be provided");
+      }
+      if (selfMetrics && stats == null) {
+        throw new IllegalStateException("Stats must be provided to report self metrics");
+      }
+      return new IntervalFlusher(this);
+    }
+  }
+
+  /**
+   * Schedules the first flush at the next interval boundary.
+   */
+  public void start() {
+    scheduleNext(0);
+  }
+
+  /**
+   * Stops flushing. Metrics aggregated since the last flush are not written.
+   */
+  @Override public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Stops flushing, waits for a flush in progress to finish, and then flushes the metrics
+   * aggregated since the last flush, timestamped with the current time. This is the last flush
+   * before the server exits, so that the final, partial interval is not lost.
+   *
+   * @param timeout the maximum time to wait for a flush in progress
+   * @return the snapshot that was written, or null if a flush in progress did not finish in time
+   * @throws InterruptedException if interrupted while waiting for a flush in progress
+   */
+  public Snapshot closeAndFlush(long timeout, TimeUnit unit) throws InterruptedException {
+    executor.shutdown();
+    if (!executor.awaitTermination(timeout, unit)) {
+      executor.shutdownNow();
+      return null;
+    }
+    return flush(System.currentTimeMillis());
+  }
+
+  /**
+   * Stops flushing, waits for a flush in progress to finish, and then checkpoints the metrics
+   * aggregated since the last flush, rather than writing them to the backends. The next process
+   * restores them and flushes them at the end of its first interval, so that a restart neither
+   * emits a partial interval nor loses one.
+   *
+   * @param timeout the maximum time to wait for a flush in progress
+   * @return whether the checkpoint was written
+   * @throws IllegalStateException if no checkpoint is configured
+   * @throws InterruptedException if interrupted while waiting for a flush in progress
+   */
+  public boolean closeAndCheckpoint(long timeout, TimeUnit unit) throws InterruptedException {
+    if (checkpoint == null) {
+      throw new IllegalStateException("No checkpoint is configured");
+    }
+    executor.shutdown();
+    if (!executor.awaitTermination(timeout, unit)) {
+      executor.shutdownNow();
+      return false;
+    }
+    return writeCheckpoint(true);
+  }
+
+  /**
+   * Restores the processor's aggregation state from the checkpoint, if one is configured and has
+   * been written. This should be called before the processor receives any metrics. A checkpoint
+   * that cannot be read is logged and ignored, so that it does not prevent the server from
+   * starting.
+   *
+   * @return whether a checkpoint was restored
+   */
+  public boolean restore() {
+    if (checkpoint == null) {
+      return false;
+    }
+    try {
+      return processor.restore(checkpoint);
+    } catch (IOException e) {
+      logger.warn("Ignoring checkpoint {}, which could not be restored", checkpoint, e);
+      return false;
+    }
+  }
+
+  /**
+   * @return whether the processor is checkpointed after each flush
+   */
+  public boolean hasCheckpoint() {
+    return checkpoint != null;
+  }
+
+  /**
+   * @return the flush interval, in milliseconds
+   */
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * Flushes the processor and writes the snapshot to every backend. A backend that fails does not
+   * prevent the snapshot from being written to the others.
+   *
+   * @param timestamp the timestamp of the snapshot, in milliseconds since the epoch
+   * @return the snapshot that was written
+   */
+  Snapshot flush(long timestamp) {
+    long start = System.nanoTime();
+    if (selfMetrics) {
+      stats.report(processor);
+    }
+    Snapshot snapshot = processor.flush(timestamp);
+    if (checkpoint != null) {
+      // Before the backends, so that a crash while writing to them cannot flush the series of a
+      // checkpoint twice
+      writeCheckpoint(false);
+    }
+    for (Backend backend : backends) {
+      try {
+        backend.flush(snapshot);
+      } catch (Exception e) {
+        logger.warn("Failed to flush {} series to {}", snapshot.size(), backend, e);
+        if (backendFailures != null) {
+          backendFailures.increment();
+        }
+      }
+    }
+    if (flushDuration != null) {
+      flushDuration.record(System.nanoTime() - start);
+    }
+    return snapshot;
+  }
+
+  private boolean writeCheckpoint(boolean drain) {
+    try {
+      processor.checkpoint(checkpoint, drain);
+      return true;
+    } catch (IOException e) {
+      logger.warn("Failed to checkpoint to {}", checkpoint, e);
+      if (checkpointFailures != null) {
+        checkpointFailures.increment();
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Schedules a flush at the next boundary after both the current time and the previous boundary.
+   * The latter guards against flushing the same boundary twice if the timer fires slightly ahead
+   * of the wall clock.
+   */
+  private void scheduleNext(long previousBoundary) {
+    long now = System.currentTimeMillis();
+    long boundary = Math.max(nextBoundary(now, intervalMillis), previousBoundary + intervalMillis);
+    try {
+      executor.schedule(() -> {
+        try {
+          flush(boundary);
+        } finally {
+          scheduleNext(boundary);
+        }
+      }, boundary - now, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      logger.debug("Not scheduling flush after shutdown");
+    }
+  }
+
+  /**
+   * Returns the first multiple of the interval strictly after the given time.
+   */
+  static long nextBoundary(long now, long intervalMillis) {
+    return (now / intervalMillis + 1) * intervalMillis;
+  }
+}
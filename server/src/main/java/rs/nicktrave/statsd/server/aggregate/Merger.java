@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Merges the series drained from each {@link SeriesStore} into a {@link Snapshot}.
+ *
+ * <p>When a gauge is set in one store and updated in another, the relative order of the two
+ * cannot be determined. The most recent set across all stores wins, and the updates from every
+ * store are applied on top of it.
+ */
+final class Merger {
+
+  private final HistogramLayout timerLayout;
+  private final Map<String, RetainedGauge> previousGauges;
+
+  private final Map<String, double[]> counters = new HashMap<>();
+  private final Map<String, GaugeState> gauges = new HashMap<>();
+  private final Map<String, Histogram> timers = new HashMap<>();
+
+  /**
+   * @param timerLayout the layout of the merged timer histograms
+   * @param previousGauges the value of each gauge at the end of the previous interval, which is
+   *     updated with the merged values when the snapshot is built
+   */
+  Merger(HistogramLayout timerLayout, Map<String, RetainedGauge> previousGauges) {
+    this.timerLayout = timerLayout;
+    this.previousGauges = previousGauges;
+  }
+
+  void mergeCounter(String name, double value) {
+    double[] merged = counters.get(name);
+    if (merged == null) {
+      merged = new double[1];
+      counters.put(name, merged);
+    }
+    merged[0] += value;
+  }
+
+  /**
+   * @param set whether the gauge was set in the store's interval
+   * @param setValue the value of the most recent set, if any
+   * @param setNanos the {@link System#nanoTime()} of the most recent set, if any
+   * @param delta the sum of updates since the most recent set, or since the start of the
+   *     interval if the gauge was not set
+   */
+  void mergeGauge(String name, boolean set, long setValue, long setNanos, long delta) {
+    GaugeState merged = gauges.get(name);
+    if (merged == null) {
+      merged = new GaugeState();
+      gauges.put(name, merged);
+    }
+
+    if (set && (!merged.set || setNanos - merged.setNanos > 0)) {
+      merged.set = true;
+      merged.setValue = setValue;
+      merged.setNanos = setNanos;
+    }
+    merged.delta += delta;
+  }
+
+  /**
+   * Returns the merged histogram for the named timer, to which the store should add its values.
+   */
+  Histogram timer(String name) {
+    Histogram merged = timers.get(name);
+    if (merged == null) {
+      merged = new Histogram(timerLayout);
+      timers.put(name, merged);
+    }
+    return merged;
+  }
+
+  /**
+   * Merges the series of a snapshot that has not been flushed, such as one restored from a
+   * checkpoint. Each gauge is treated as set to its value in the snapshot.
+   *
+   * @param setNanos the {@link System#nanoTime()} at which the snapshot's gauges were set, so that
+   *     later sets in the stores take precedence
+   */
+  void merge(Snapshot snapshot, long setNanos) {
+    snapshot.accept(new SeriesVisitor() {
+      @Override public void visitCounter(String name, double value) {
+        mergeCounter(name, value);
+      }
+
+      @Override public void visitGauge(String name, long value) {
+        mergeGauge(name, true, value, setNanos, 0);
+      }
+
+      @Override public void visitTimer(String name, TimerSummary timer) {
+        // Every snapshot built by a merger or decoded by the codec holds histograms
+        timer(name).addConverted((Histogram) timer);
+      }
+    });
+  }
+
+  Snapshot build(long timestamp) {
+    String[] counterNames = new String[counters.size()];
+    double[] counterValues = new double[counters.size()];
+    int i = 0;
+    for (Map.Entry<String, double[]> entry : counters.entrySet()) {
+      counterNames[i] = entry.getKey();
+      counterValues[i] = entry.getValue()[0];
+      i++;
+    }
+
+    String[] gaugeNames = new String[gauges.size()];
+    long[] gaugeValues = new long[gauges.size()];
+    i = 0;
+    for (Map.Entry<String, GaugeState> entry : gauges.entrySet()) {
+      RetainedGauge previous = previousGauges.get(entry.getKey());
+      if (previous == null) {
+        previous = new RetainedGauge(0);
+        previousGauges.put(entry.getKey(), previous);
+      }
+      GaugeState gauge = entry.getValue();
+      previous.value = (gauge.set ? gauge.setValue : previous.value) + gauge.delta;
+      previous.idleFlushes = 0;
+
+      gaugeNames[i] = entry.getKey();
+      gaugeValues[i] = previous.value;
+      i++;
+    }
+
+    String[] timerNames = new String[timers.size()];
+    TimerSummary[] timerSummaries = new TimerSummary[timers.size()];
+    i = 0;
+    for (Map.Entry<String, Histogram> entry : timers.entrySet()) {
+      timerNames[i] = entry.getKey();
+      timerSummaries[i] = entry.getValue();
+      i++;
+    }
+
+    return new Snapshot(timestamp, counterNames, counterValues, gaugeNames, gaugeValues,
+        timerNames, timerSummaries);
+  }
+
+  /**
+   * The value of a gauge at the end of the last interval in which it was set or updated, and the
+   * number of flushes since.
+   */
+  static final class RetainedGauge {
+
+    long value;
+    int idleFlushes;
+
+    RetainedGauge(long value) {
+      this.value = value;
+    }
+  }
+
+  private static final class GaugeState {
+
+    boolean set;
+    long setValue;
+    long setNanos;
+    long delta;
+  }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.Arrays;
+import rs.nicktrave.statsd.common.Gauge;
+
+/**
+ * A {@link SeriesStore} that keeps the value of each series in direct memory, outside of the Java
+ * heap.
+ *
+ * <p>Each metric type has a fixed-size table of slots, reserved up front. A name is mapped to its
+ * slot by an open-addressing index with linear probing, also held in direct memory. The only
+ * per-series objects on the heap are the names themselves, which are already interned by the
+ * decoder.
+ *
+ * <ul>
+ *   <li>A counter slot holds the bits of its sample-rate scaled sum, as a raw long.</li>
+ *   <li>A gauge slot holds whether it was set, the value and time of the most recent set, and
+ *   the sum of updates since, as raw longs.</li>
+ *   <li>A timer slot holds the sample count, count, sum, minimum and maximum, followed by a
+ *   fixed-size array of bucket counts with the same layout as a {@link Histogram}.</li>
+ * </ul>
+ *
+ * <p>Once a table is full, metrics for new series of that type are dropped and counted until the
+ * store is cleared. Metrics for existing series are always recorded.
+ */
+final class OffHeapSeriesStore implements SeriesStore {
+
+  private static final int COUNTER_SLOT_SIZE = Long.BYTES;
+
+  private static final int GAUGE_SET = 0;
+  private static final int GAUGE_SET_VALUE = GAUGE_SET + Long.BYTES;
+  private static final int GAUGE_SET_NANOS = GAUGE_SET_VALUE + Long.BYTES;
+  private static final int GAUGE_DELTA = GAUGE_SET_NANOS + Long.BYTES;
+  private static final int GAUGE_SLOT_SIZE = GAUGE_DELTA + Long.BYTES;
+
+  private static final int TIMER_SAMPLE_COUNT = 0;
+  private static final int TIMER_COUNT = TIMER_SAMPLE_COUNT + Long.BYTES;
+  private static final int TIMER_SUM = TIMER_COUNT + Long.BYTES;
+  private static final int TIMER_MIN = TIMER_SUM + Long.BYTES;
+  private static final int TIMER_MAX = TIMER_MIN + Long.BYTES;
+  private static final int TIMER_COUNTS = TIMER_MAX + Long.BYTES;
+
+  private final HistogramLayout timerLayout;
+  private final Table counters;
+  private final Table gauges;
+  private final Table timers;
+
+  // Written only by the writer, read by the flusher for reporting
+  private volatile long dropped;
+
+  /**
+   * @param timerLayout the layout of the timer histograms
+   * @param maxSeries the maximum number of counters, and separately of gauges, per interval
+   * @param maxTimers the maximum number of timers per interval
+   * @throws IllegalArgumentException if either maximum is not positive, or a table would exceed
+   *     the maximum size of a direct buffer
+   */
+  OffHeapSeriesStore(HistogramLayout timerLayout, int maxSeries, int maxTimers) {
+    this.timerLayout = timerLayout;
+    this.counters = new Table(maxSeries, COUNTER_SLOT_SIZE);
+    this.gauges = new Table(maxSeries, GAUGE_SLOT_SIZE);
+    try {
+      this.timers = new Table(maxTimers, timerSlotSize(timerLayout));
+    } catch (RuntimeException e) {
+      counters.release();
+      gauges.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Checks that a store with the given capacity can be allocated, without allocating it.
+   *
+   * @throws IllegalArgumentException if either maximum is not positive, or a table would exceed
+   *     the maximum size of a direct buffer
+   */
+  static void checkCapacity(HistogramLayout timerLayout, int maxSeries, int maxTimers) {
+    Table.checkCapacity(maxSeries, GAUGE_SLOT_SIZE);
+    Table.checkCapacity(maxTimers, timerSlotSize(timerLayout));
+  }
+
+  private static int timerSlotSize(HistogramLayout timerLayout) {
+    return TIMER_COUNTS + timerLayout.length() * Integer.BYTES;
+  }
+
+  @Override public void addCounter(String name, long value, double sampleRate) {
+    int offset = counters.offset(name);
+    if (offset < 0) {
+      dropped++;
+      return;
+    }
+    double scaled = sampleRate < 1 && sampleRate > 0 ? value / sampleRate : value;
+    addDouble(counters.slots, offset, scaled);
+  }
+
+  @Override public void addGauge(String name, long value, Gauge.Type type) {
+    int offset = gauges.offset(name);
+    if (offset < 0) {
+      dropped++;
+      return;
+    }
+    ByteBuf slots = gauges.slots;
+    if (Gauge.Type.SET == type) {
+      slots.setLong(offset + GAUGE_SET, 1);
+      slots.setLong(offset + GAUGE_SET_VALUE, value);
+      slots.setLong(offset + GAUGE_SET_NANOS, System.nanoTime());
+      slots.setLong(offset + GAUGE_DELTA, 0);
+    } else {
+      slots.setLong(offset + GAUGE_DELTA, slots.getLong(offset + GAUGE_DELTA) + value);
+    }
+  }
+
+  @Override public void addTiming(String name, long value, double sampleRate) {
+    int offset = timers.offset(name);
+    if (offset < 0) {
+      dropped++;
+      return;
+    }
+    record(timers.slots, offset, value, sampleRate);
+  }
+
+  private void record(ByteBuf slots, int offset, long value, double sampleRate) {
+    int index = offset + TIMER_COUNTS + timerLayout.index(value) * Integer.BYTES;
+    slots.setInt(index, slots.getInt(index) + 1);
+    slots.setLong(offset + TIMER_SAMPLE_COUNT, slots.getLong(offset + TIMER_SAMPLE_COUNT) + 1);
+    addDouble(slots, offset + TIMER_COUNT, sampleRate < 1 && sampleRate > 0 ? 1 / sampleRate : 1);
+    addDouble(slots, offset + TIMER_SUM, value);
+
+    // A new slot is zeroed, so the bounds are only meaningful once a value has been recorded
+    long sampleCount = slots.getLong(offset + TIMER_SAMPLE_COUNT);
+    if (sampleCount == 1 || value < slots.getLong(offset + TIMER_MIN)) {
+      slots.setLong(offset + TIMER_MIN, value);
+    }
+    if (sampleCount == 1 || value > slots.getLong(offset + TIMER_MAX)) {
+      slots.setLong(offset + TIMER_MAX, value);
+    }
+  }
+
+  private static void addDouble(ByteBuf slots, int offset, double value) {
+    double sum = Double.longBitsToDouble(slots.getLong(offset)) + value;
+    slots.setLong(offset, Double.doubleToRawLongBits(sum));
+  }
+
+  @Override public void drainTo(Merger merger) {
+    for (int slot = 0; slot < counters.size; slot++) {
+      double value = Double.longBitsToDouble(counters.slots.getLong(counters.offsetOf(slot)));
+      merger.mergeCounter(counters.names[slot], value);
+    }
+
+    ByteBuf slots = gauges.slots;
+    for (int slot = 0; slot < gauges.size; slot++) {
+      int offset = gauges.offsetOf(slot);
+      merger.mergeGauge(gauges.names[slot],
+          slots.getLong(offset + GAUGE_SET) != 0,
+          slots.getLong(offset + GAUGE_SET_VALUE),
+          slots.getLong(offset + GAUGE_SET_NANOS),
+          slots.getLong(offset + GAUGE_DELTA));
+    }
+
+    slots = timers.slots;
+    for (int slot = 0; slot < timers.size; slot++) {
+      int offset = timers.offsetOf(slot);
+      merger.timer(timers.names[slot]).add(
+          slots.getLong(offset + TIMER_SAMPLE_COUNT),
+          Double.longBitsToDouble(slots.getLong(offset + TIMER_COUNT)),
+          Double.longBitsToDouble(slots.getLong(offset + TIMER_SUM)),
+          slots.getLong(offset + TIMER_MIN),
+          slots.getLong(offset + TIMER_MAX),
+          slots, offset + TIMER_COUNTS);
+    }
+  }
+
+  @Override public void clear() {
+    counters.clear();
+    gauges.clear();
+    timers.clear();
+  }
+
+  @Override public long reservedBytes() {
+    return counters.reservedBytes() + gauges.reservedBytes() + timers.reservedBytes();
+  }
+
+  @Override public long droppedCount() {
+    return dropped;
+  }
+
+  @Override public void release() {
+    counters.release();
+    gauges.release();
+    timers.release();
+  }
+
+  /**
+   * A fixed number of equally sized slots in direct memory, indexed by name.
+   *
+   * <p>Each index entry is the hash of a name followed by its slot number plus one, so that a
+   * zeroed entry is empty. The index has at least twice as many entries as there are slots, which
+   * keeps probe sequences short even when the table is full.
+   */
+  private static final class Table {
+
+    private static final int ENTRY_SIZE = 2 * Integer.BYTES;
+
+    final ByteBuf slots;
+    final String[] names;
+    final int slotSize;
+    int size;
+
+    private final ByteBuf index;
+    private final int mask;
+
+    Table(int capacity, int slotSize) {
+      checkCapacity(capacity, slotSize);
+      int slotBytes = capacity * slotSize;
+      int indexBytes = (int) indexLength(capacity) * ENTRY_SIZE;
+
+      this.slotSize = slotSize;
+      this.names = new String[capacity];
+      this.mask = (int) indexLength(capacity) - 1;
+      this.index = Unpooled.directBuffer(indexBytes, indexBytes);
+      this.index.setZero(0, index.capacity());
+      try {
+        this.slots = Unpooled.directBuffer(slotBytes, slotBytes);
+      } catch (RuntimeException | Error e) {
+        index.release();
+        throw e;
+      }
+      this.slots.setZero(0, slots.capacity());
+    }
+
+    static void checkCapacity(int capacity, int slotSize) {
+      if (capacity <= 0) {
+        throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+      }
+      if ((long) capacity * slotSize > Integer.MAX_VALUE
+          || indexLength(capacity) * ENTRY_SIZE > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException(
+            "Capacity " + capacity + " with slots of " + slotSize + " bytes is too large");
+      }
+    }
+
+    private static long indexLength(int capacity) {
+      return Long.highestOneBit(2L * capacity - 1) << 1;
+    }
+
+    int offsetOf(int slot) {
+      return slot * slotSize;
+    }
+
+    /**
+     * Returns the offset of the slot for the given name, claiming a new, zeroed slot if the name
+     * is not present, or -1 if it is not present and the table is full.
+     */
+    int offset(String name) {
+      int h = name.hashCode();
+      h ^= h >>> 16;
+      for (int i = h & mask; ; i = (i + 1) & mask) {
+        int entry = i * ENTRY_SIZE;
+        int slot = index.getInt(entry + Integer.BYTES) - 1;
+        if (slot < 0) {
+          if (size == names.length) {
+            return -1;
+          }
+          slot = size++;
+          names[slot] = name;
+          index.setInt(entry, h);
+          index.setInt(entry + Integer.BYTES, slot + 1);
+          return offsetOf(slot);
+        }
+        if (index.getInt(entry) == h && names[slot].equals(name)) {
+          return offsetOf(slot);
+        }
+      }
+    }
+
+    /**
+     * Removes every series, zeroing only the slots that were used.
+     */
+    void clear() {
+      if (size == 0) {
+        return;
+      }
+      slots.setZero(0, offsetOf(size));
+      index.setZero(0, index.capacity());
+      Arrays.fill(names, 0, size, null);
+      size = 0;
+    }
+
+    long reservedBytes() {
+      return slots.capacity() + (long) index.capacity();
+    }
+
+    void release() {
+      if (slots.refCnt() > 0) {
+        slots.release();
+      }
+      if (index.refCnt() > 0) {
+        index.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.common.Timing;
+
+/**
+ * The series aggregated by a single {@link Shard} over one interval.
+ *
+ * <p>Implementations are not thread-safe. A store is only ever accessed by one thread at a time:
+ * the shard's writer while the store is active, and then the flusher once it has been swapped out.
+ */
+interface SeriesStore {
+
+  void addCounter(String name, long value, double sampleRate);
+
+  void addGauge(String name, long value, Gauge.Type type);
+
+  void addTiming(String name, long value, double sampleRate);
+
+  /**
+   * Adds a metric to the series of the same name and type.
+   *
+   * @throws IllegalArgumentException if the metric is of an unknown type
+   */
+  default void add(Metric metric) {
+    if (metric instanceof Counter) {
+      addCounter(metric.name, metric.value, ((Counter) metric).getSampleRate());
+    } else if (metric instanceof Gauge) {
+      addGauge(metric.name, metric.value, ((Gauge) metric).getType());
+    } else if (metric instanceof Timing) {
+      addTiming(metric.name, metric.value, ((Timing) metric).getSampleRate());
+    } else {
+      throw new IllegalArgumentException("Unknown metric type: " + metric.getClass().getName());
+    }
+  }
+
+  /**
+   * Adds the metric at the given index of a batch to the series of the same name and type, reading
+   * its columns directly.
+   *
+   * @throws IllegalArgumentException if the metric is of an unknown type
+   */
+  default void add(MetricBatch batch, int index) {
+    switch (batch.type(index)) {
+      case MetricBatch.COUNTER:
+        addCounter(batch.name(index), batch.value(index), batch.sampleRate(index));
+        break;
+      case MetricBatch.GAUGE:
+        addGauge(batch.name(index), batch.value(index), batch.gaugeType(index));
+        break;
+      case MetricBatch.TIMING:
+        addTiming(batch.name(index), batch.value(index), batch.sampleRate(index));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown type code: " + batch.type(index));
+    }
+  }
+
+  /**
+   * Merges every series in this store into the given merger.
+   */
+  void drainTo(Merger merger);
+
+  /**
+   * Removes every series, retaining the allocated capacity for the next interval.
+   */
+  void clear();
+
+  /**
+   * @return the number of bytes of memory reserved by this store outside of the Java heap
+   */
+  long reservedBytes();
+
+  /**
+   * @return the number of metrics dropped because the store was full
+   */
+  long droppedCount();
+
+  /**
+   * Releases any memory held outside of the Java heap. The store must not be used afterwards.
+   */
+  void release();
+}
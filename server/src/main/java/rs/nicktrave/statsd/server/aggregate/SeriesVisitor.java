@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+/**
+ * Receives each aggregated series in a {@link Snapshot}.
+ */
+public interface SeriesVisitor {
+
+  /**
+   * Visits a counter, with its value scaled up by the sample rate of each increment.
+   */
+  void visitCounter(String name, double value);
+
+  /**
+   * Visits a gauge, with its value after all sets and updates in the interval were applied.
+   */
+  void visitGauge(String name, long value);
+
+  /**
+   * Visits a timer.
+   */
+  void visitTimer(String name, TimerSummary timer);
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import java.util.function.Supplier;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
+
+/**
+ * A partition of the aggregation state with a single writer.
+ *
+ * <p>The shard is double-buffered. The writer adds metrics to the active {@link SeriesStore}
+ * without taking a lock. At the end of each interval the flusher makes the other store active and
+ * then waits for any write that may have started against the previous store to complete, so no
+ * update is lost at the boundary. Once drained, the previous store is cleared by the flusher and
+ * becomes the target of the next swap, retaining its allocated capacity.
+ */
+final class Shard {
+
+  private final SeriesStore[] stores;
+  private volatile SeriesStore active;
+
+  // Written only by the writer; the flusher waits until exited catches up with entered
+  private volatile long entered;
+  private volatile long exited;
+
+  Shard(Supplier<SeriesStore> storeFactory) {
+    stores = new SeriesStore[] {storeFactory.get(), storeFactory.get()};
+    active = stores[0];
+  }
+
+  /**
+   * Adds a metric to the active store. Must only be called by the writer of this shard.
+   */
+  void add(Metric metric) {
+    long epoch = entered + 1;
+    entered = epoch;
+    try {
+      active.add(metric);
+    } finally {
+      exited = epoch;
+    }
+  }
+
+  /**
+   * Adds every metric in a batch to the active store, entering and exiting it once for the whole
+   * batch. Must only be called by the writer of this shard.
+   */
+  void addAll(MetricBatch batch) {
+    long epoch = entered + 1;
+    entered = epoch;
+    try {
+      SeriesStore store = active;
+      for (int i = 0; i < batch.size(); i++) {
+        store.add(batch, i);
+      }
+    } finally {
+      exited = epoch;
+    }
+  }
+
+  /**
+   * Makes the inactive store active and returns the previous store once the writer is no longer
+   * modifying it. The caller must {@link SeriesStore#clear() clear} the returned store before the
+   * next swap. Must only be called by one thread at a time.
+   */
+  SeriesStore swap() {
+    SeriesStore previous = active;
+    active = previous == stores[0] ? stores[1] : stores[0];
+
+    // A write that read the previous store incremented entered before the swap, so waiting for
+    // exited to reach the current value of entered is sufficient
+    long epoch = entered;
+    while (exited < epoch) {
+      Thread.yield();
+    }
+
+    return previous;
+  }
+
+  /**
+   * @return the number of bytes reserved outside of the Java heap by both stores
+   */
+  long reservedBytes() {
+    return stores[0].reservedBytes() + stores[1].reservedBytes();
+  }
+
+  /**
+   * @return the number of metrics dropped because a store was full
+   */
+  long droppedCount() {
+    return stores[0].droppedCount() + stores[1].droppedCount();
+  }
+
+  /**
+   * Releases both stores. The shard must not be used afterwards.
+   */
+  void release() {
+    stores[0].release();
+    stores[1].release();
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An immutable view of every series aggregated over a flush interval.
+ */
+@Immutable
+public final class Snapshot {
+
+  private final long timestamp;
+  private final String[] counterNames;
+  private final double[] counterValues;
+  private final String[] gaugeNames;
+  private final long[] gaugeValues;
+  private final String[] timerNames;
+  private final TimerSummary[] timers;
+
+  Snapshot(long timestamp, String[] counterNames, double[] counterValues, String[] gaugeNames,
+      long[] gaugeValues, String[] timerNames, TimerSummary[] timers) {
+    this.timestamp = timestamp;
+    this.counterNames = counterNames;
+    this.counterValues = counterValues;
+    this.gaugeNames = gaugeNames;
+    this.gaugeValues = gaugeValues;
+    this.timerNames = timerNames;
+    this.timers = timers;
+  }
+
+  /**
+   * @return the time at which the snapshot was taken, in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the total number of series in this snapshot
+   */
+  public int size() {
+    return counterNames.length + gaugeNames.length + timerNames.length;
+  }
+
+  /**
+   * Visits each series in this snapshot: first the counters, then the gauges, then the timers.
+   */
+  public void accept(SeriesVisitor visitor) {
+    for (int i = 0; i < counterNames.length; i++) {
+      visitor.visitCounter(counterNames[i], counterValues[i]);
+    }
+    for (int i = 0; i < gaugeNames.length; i++) {
+      visitor.visitGauge(gaugeNames[i], gaugeValues[i]);
+    }
+    for (int i = 0; i < timerNames.length; i++) {
+      visitor.visitTimer(timerNames[i], timers[i]);
+    }
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes a {@link Snapshot} as compact binary, and decodes it again, so that snapshots can be
+ * kept outside of the heap, such as in a spool on disk.
+ *
+ * <p>The encoding starts with a magic number and a version, followed by the timestamp and the
+ * number of counters, gauges and timers. Each series is its name, as a length-prefixed UTF-8
+ * string, followed by its value. A timer's value is its totals and the layout of its histogram,
+ * followed by only the buckets with a non-zero count, each as an index and a count, so a timer
+ * with few distinct values takes a few dozen bytes regardless of the precision of the layout.
+ *
+ * <p>A decoded snapshot reports exactly the same values as the original.
+ */
+public final class SnapshotCodec {
+
+  private static final int MAGIC = 0x53534e50; // "SSNP"
+  private static final byte VERSION = 1;
+
+  private SnapshotCodec() {
+  }
+
+  /**
+   * Writes a snapshot to the end of a buffer, which grows as needed.
+   */
+  public static void encode(Snapshot snapshot, ByteBuf buf) {
+    buf.writeInt(MAGIC);
+    buf.writeByte(VERSION);
+    buf.writeLong(snapshot.getTimestamp());
+    int sizes = buf.writerIndex();
+    buf.writeZero(3 * Integer.BYTES);
+
+    Encoder encoder = new Encoder(buf);
+    snapshot.accept(encoder);
+    buf.setInt(sizes, encoder.counters);
+    buf.setInt(sizes + Integer.BYTES, encoder.gauges);
+    buf.setInt(sizes + 2 * Integer.BYTES, encoder.timers);
+  }
+
+  /**
+   * Returns an upper bound on the number of bytes {@link #encode(Snapshot, ByteBuf)} writes for a
+   * snapshot, without encoding it. Each name is counted at its largest UTF-8 length, which is also
+   * what writing it reserves, and each timer at no more non-empty buckets than it has samples.
+   */
+  static long maxEncodedSize(Snapshot snapshot) {
+    SizeEstimator estimator = new SizeEstimator();
+    snapshot.accept(estimator);
+    return Integer.BYTES + 1 + Long.BYTES + 3 * Integer.BYTES + estimator.size;
+  }
+
+  /**
+   * Returns an upper bound on the number of bytes {@link #writeName(ByteBuf, String)} writes.
+   */
+  static int maxNameSize(String name) {
+    return Short.BYTES + ByteBufUtil.utf8MaxBytes(name);
+  }
+
+  /**
+   * Reads a snapshot from a buffer, advancing its reader index past the snapshot.
+   *
+   * @throws IllegalArgumentException if the buffer does not start with an encoded snapshot, or
+   *     the snapshot is truncated or malformed
+   */
+  public static Snapshot decode(ByteBuf buf) {
+    try {
+      return doDecode(buf);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Snapshot is truncated", e);
+    }
+  }
+
+  private static Snapshot doDecode(ByteBuf buf) {
+    int magic = buf.readInt();
+    if (magic != MAGIC) {
+      throw new IllegalArgumentException("Not an encoded snapshot: " + Integer.toHexString(magic));
+    }
+    byte version = buf.readByte();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported snapshot version: " + version);
+    }
+    long timestamp = buf.readLong();
+    int counterCount = readSize(buf);
+    int gaugeCount = readSize(buf);
+    int timerCount = readSize(buf);
+
+    String[] counterNames = new String[counterCount];
+    double[] counterValues = new double[counterCount];
+    for (int i = 0; i < counterCount; i++) {
+      counterNames[i] = readName(buf);
+      counterValues[i] = buf.readDouble();
+    }
+
+    String[] gaugeNames = new String[gaugeCount];
+    long[] gaugeValues = new long[gaugeCount];
+    for (int i = 0; i < gaugeCount; i++) {
+      gaugeNames[i] = readName(buf);
+      gaugeValues[i] = buf.readLong();
+    }
+
+    String[] timerNames = new String[timerCount];
+    TimerSummary[] timers = new TimerSummary[timerCount];
+    HistogramLayout layout = null;
+    for (int i = 0; i < timerCount; i++) {
+      timerNames[i] = readName(buf);
+      int significantDigits = buf.readByte();
+      long highestTrackableValue = buf.readLong();
+      // Every timer in a snapshot normally shares one layout
+      if (layout == null || layout.significantDigits() != significantDigits
+          || layout.highestTrackableValue() != highestTrackableValue) {
+        layout = new HistogramLayout(significantDigits, highestTrackableValue);
+      }
+      Histogram histogram = new Histogram(layout);
+      histogram.addTotals(buf.readLong(), buf.readDouble(), buf.readDouble(), buf.readLong(),
+          buf.readLong());
+      int buckets = readSize(buf);
+      for (int b = 0; b < buckets; b++) {
+        int index = buf.readInt();
+        if (index < 0 || index >= layout.length()) {
+          throw new IllegalArgumentException("Bucket index out of range: " + index);
+        }
+        histogram.addCountAt(index, buf.readInt());
+      }
+      timers[i] = histogram;
+    }
+
+    return new Snapshot(timestamp, counterNames, counterValues, gaugeNames, gaugeValues,
+        timerNames, timers);
+  }
+
+  private static int readSize(ByteBuf buf) {
+    int size = buf.readInt();
+    // Each entry takes at least one byte, which bounds what a corrupt size can allocate
+    if (size < 0 || size > buf.readableBytes()) {
+      throw new IllegalArgumentException("Invalid size: " + size);
+    }
+    return size;
+  }
+
+  /**
+   * Reads a name written by {@link #writeName(ByteBuf, String)}.
+   */
+  static String readName(ByteBuf buf) {
+    int length = buf.readUnsignedShort();
+    return buf.readCharSequence(length, StandardCharsets.UTF_8).toString();
+  }
+
+  /**
+   * Writes a name as its length in UTF-8, followed by the UTF-8 bytes.
+   *
+   * @throws IllegalArgumentException if the name is longer than 65535 bytes
+   */
+  static void writeName(ByteBuf buf, String name) {
+    int length = buf.writerIndex();
+    buf.writeShort(0);
+    int written = buf.writeCharSequence(name, StandardCharsets.UTF_8);
+    if (written > 0xffff) {
+      throw new IllegalArgumentException("Name is too long to encode: " + written + " bytes");
+    }
+    buf.setShort(length, written);
+  }
+
+  /**
+   * Adds up the largest size of each series as it is visited.
+   */
+  private static final class SizeEstimator implements SeriesVisitor {
+
+    // The name of a timer, its layout and totals, and the number of buckets
+    private static final int TIMER_SIZE = 1 + 6 * Long.BYTES + Integer.BYTES;
+
+    long size;
+
+    @Override public void visitCounter(String name, double value) {
+      size += maxNameSize(name) + Double.BYTES;
+    }
+
+    @Override public void visitGauge(String name, long value) {
+      size += maxNameSize(name) + Long.BYTES;
+    }
+
+    @Override public void visitTimer(String name, TimerSummary timer) {
+      Histogram histogram = (Histogram) timer;
+      long buckets = Math.min(histogram.layout().length(), histogram.getSampleCount());
+      size += maxNameSize(name) + TIMER_SIZE + buckets * 2 * Integer.BYTES;
+    }
+  }
+
+  /**
+   * Writes each series as it is visited, counting the series of each type.
+   */
+  private static final class Encoder implements SeriesVisitor {
+
+    private final ByteBuf buf;
+    int counters;
+    int gauges;
+    int timers;
+
+    Encoder(ByteBuf buf) {
+      this.buf = buf;
+    }
+
+    @Override public void visitCounter(String name, double value) {
+      writeName(buf, name);
+      buf.writeDouble(value);
+      counters++;
+    }
+
+    @Override public void visitGauge(String name, long value) {
+      writeName(buf, name);
+      buf.writeLong(value);
+      gauges++;
+    }
+
+    @Override public void visitTimer(String name, TimerSummary timer) {
+      // Snapshots are only built from histograms
+      Histogram histogram = (Histogram) timer;
+      HistogramLayout layout = histogram.layout();
+      writeName(buf, name);
+      buf.writeByte(layout.significantDigits());
+      buf.writeLong(layout.highestTrackableValue());
+      buf.writeLong(histogram.getSampleCount());
+      buf.writeDouble(histogram.getCount());
+      buf.writeDouble(histogram.getSum());
+      buf.writeLong(histogram.getMin());
+      buf.writeLong(histogram.getMax());
+
+      int buckets = buf.writerIndex();
+      buf.writeInt(0);
+      int written = 0;
+      for (int i = 0; i < layout.length(); i++) {
+        int count = histogram.countAt(i);
+        if (count != 0) {
+          buf.writeInt(i);
+          buf.writeInt(count);
+          written++;
+        }
+      }
+      buf.setInt(buckets, written);
+      timers++;
+    }
+  }
+}
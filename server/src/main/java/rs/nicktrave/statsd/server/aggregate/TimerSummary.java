@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import rs.nicktrave.statsd.common.Timing;
+
+/**
+ * The aggregate of all {@link Timing}s recorded for a single name over a flush interval.
+ */
+public interface TimerSummary {
+
+  /**
+   * @return the number of timings received
+   */
+  long getSampleCount();
+
+  /**
+   * @return the estimated number of timings sent, accounting for the sample rate of each timing
+   */
+  double getCount();
+
+  /**
+   * @return the smallest timing received
+   */
+  long getMin();
+
+  /**
+   * @return the largest timing received
+   */
+  long getMax();
+
+  /**
+   * @return the arithmetic mean of the timings received
+   */
+  double getMean();
+
+  /**
+   * Returns the timing at or below which the given percentage of timings fall.
+   *
+   * @param percentile the percentile, in the range [0, 100]
+   */
+  long getValueAtPercentile(double percentile);
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.graphite;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import rs.nicktrave.statsd.server.Backend;
+import rs.nicktrave.statsd.server.aggregate.SeriesVisitor;
+import rs.nicktrave.statsd.server.aggregate.Snapshot;
+import rs.nicktrave.statsd.server.aggregate.TimerSummary;
+
+/**
+ * A {@link Backend} that writes each snapshot to Graphite, or anything else that accepts the
+ * Graphite plaintext protocol, over a persistent TCP connection.
+ *
+ * <p>Series are encoded by a {@link GraphiteEncoder} straight into pooled direct buffers of around
+ * 64KB, each of which is written as soon as it is full, without waiting for the previous write to
+ * complete. The bytes queued in the connection are capped: when the cap is reached, encoding waits
+ * for the connection to catch up, so a slow receiver cannot cause a flush to buffer the whole
+ * snapshot in memory. A flush returns once every line has been written to the socket.
+ *
+ * <p>The connection is opened by the first flush, and reopened by the next flush after it is
+ * closed, so a snapshot is only lost if the connection fails while it is being written, or cannot
+ * be reopened. A snapshot is never partially resent, which would duplicate its counters.
+ */
+public final class GraphiteBackend implements Backend, Closeable {
+
+  private static final InternalLogger logger =
+      InternalLoggerFactory.getInstance(GraphiteBackend.class);
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int DEFAULT_MAX_BYTES_IN_FLIGHT = 4 * 1024 * 1024;
+  private static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 5_000;
+  private static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 30_000;
+  private static final double[] DEFAULT_PERCENTILES = {50, 95, 99};
+
+  private final InetSocketAddress address;
+  private final GraphiteEncoder encoder;
+  private final int maxBytesInFlight;
+  private final long connectTimeoutMillis;
+  private final long writeTimeoutMillis;
+  private final EventLoopGroup group;
+  private final boolean ownsGroup;
+  private final Object writability = new Object();
+  private final AtomicLong connects = new AtomicLong();
+  private final AtomicLong linesWritten = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+
+  private volatile Channel channel;
+
+  private GraphiteBackend(Builder builder) {
+    address = builder.address;
+    encoder = new GraphiteEncoder(builder.prefix != null ? builder.prefix : "",
+        builder.percentiles != null ? builder.percentiles : DEFAULT_PERCENTILES);
+    maxBytesInFlight = builder.maxBytesInFlight > 0
+        ? builder.maxBytesInFlight : DEFAULT_MAX_BYTES_IN_FLIGHT;
+    connectTimeoutMillis = builder.connectTimeoutMillis > 0
+        ? builder.connectTimeoutMillis : DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    writeTimeoutMillis = builder.writeTimeoutMillis > 0
+        ? builder.writeTimeoutMillis : DEFAULT_WRITE_TIMEOUT_MILLIS;
+    ownsGroup = builder.group == null;
+    group = ownsGroup
+        ? new NioEventLoopGroup(1, new DefaultThreadFactory("statsd-graphite", true))
+        : builder.group;
+  }
+
+  /**
+   * Returns a new builder for a {@link GraphiteBackend} instance.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * A builder for a {@link GraphiteBackend} instance.
+   */
+  public static class Builder {
+
+    private InetSocketAddress address;
+    private String prefix;
+    private double[] percentiles;
+    private int maxBytesInFlight;
+    private long connectTimeoutMillis;
+    private long writeTimeoutMillis;
+    private EventLoopGroup group;
+
+    private Builder() {
+    }
+
+    /**
+     * Sets the address of the Graphite plaintext listener, which is required.
+     */
+    public Builder withAddress(InetSocketAddress address) {
+      this.address = address;
+      return this;
+    }
+
+    /**
+     * Sets a prefix for every path, such as {@code "stats."}. Defaults to no prefix.
+     */
+    public Builder withPrefix(String prefix) {
+      this.prefix = prefix;
+      return this;
+    }
+
+    /**
+     * Sets the percentiles written for each timer. Defaults to the 50th, 95th and 99th.
+     */
+    public Builder withPercentiles(double... percentiles) {
+      this.percentiles = percentiles;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of bytes queued in the connection but not yet written to the socket,
+     * beyond which a flush waits. Defaults to 4MB.
+     */
+    public Builder withMaxBytesInFlight(int maxBytesInFlight) {
+      this.maxBytesInFlight = maxBytesInFlight;
+      return this;
+    }
+
+    /**
+     * Sets the maximum time to wait for the connection to be opened. Defaults to five seconds.
+     */
+    public Builder withConnectTimeout(long timeout, TimeUnit unit) {
+      this.connectTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    /**
+     * Sets the maximum time to wait for the connection to accept more bytes, and for the last
+     * bytes of a snapshot to be written. Defaults to thirty seconds.
+     */
+    public Builder withWriteTimeout(long timeout, TimeUnit unit) {
+      this.writeTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    /**
+     * Sets the event loop group to run the connection on, which the backend does not shut down.
+     * Defaults to a single NIO thread of the backend's own.
+     */
+    public Builder withEventLoopGroup(EventLoopGroup group) {
+      this.group = group;
+      return this;
+    }
+
+    /**
+     * Construct and return a new backend instance.
+     *
+     * @throws IllegalArgumentException if the address is missing, or a percentile is out of range
+     */
+    public GraphiteBackend build() {
+      if (address == null) {
+        throw new IllegalArgumentException("Address must be provided");
+      }
+      if (percentiles != null) {
+        for (double percentile : percentiles) {
+          if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("Percentile must be in [0, 100]: " + percentile);
+          }
+        }
+      }
+      return new GraphiteBackend(this);
+    }
+  }
+
+  @Override public synchronized void flush(Snapshot snapshot) throws IOException {
+    Channel channel = connect();
+    Writer writer = new Writer(channel, snapshot.getTimestamp() / 1000);
+    try {
+      snapshot.accept(writer);
+      writer.send();
+    } finally {
+      writer.release();
+    }
+    if (writer.failure != null) {
+      channel.close();
+      throw writer.failure;
+    }
+    writer.awaitLastWrite();
+    linesWritten.addAndGet(writer.lines);
+  }
+
+  /**
+   * Returns the open connection, opening a new one if necessary.
+   */
+  private Channel connect() throws IOException {
+    Channel current = channel;
+    if (current != null && current.isActive()) {
+      return current;
+    }
+
+    ChannelFuture connect = new Bootstrap()
+        .group(group)
+        .channel(NioSocketChannel.class)
+        .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+        .option(ChannelOption.TCP_NODELAY, true)
+        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeoutMillis)
+        .option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+            new WriteBufferWaterMark(maxBytesInFlight / 2, maxBytesInFlight))
+        .handler(new ConnectionHandler())
+        .connect(address);
+    try {
+      connect.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      connect.channel().close();
+      throw new IOException("Interrupted while connecting to " + address, e);
+    }
+    if (!connect.isSuccess()) {
+      throw new IOException("Failed to connect to " + address, connect.cause());
+    }
+    connects.incrementAndGet();
+    if (current != null) {
+      logger.info("Reconnected to {}", address);
+    }
+    channel = connect.channel();
+    return channel;
+  }
+
+  /**
+   * Closes the connection, and shuts down the event loop group if the backend created it.
+   */
+  @Override public synchronized void close() {
+    Channel current = channel;
+    if (current != null) {
+      current.close().syncUninterruptibly();
+    }
+    if (ownsGroup) {
+      group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS).syncUninterruptibly();
+    }
+  }
+
+  /**
+   * @return whether the connection is open
+   */
+  public boolean isConnected() {
+    Channel current = channel;
+    return current != null && current.isActive();
+  }
+
+  /**
+   * @return the number of times the connection has been opened
+   */
+  public long getConnectCount() {
+    return connects.get();
+  }
+
+  /**
+   * @return the number of lines written by successful flushes
+   */
+  public long getLinesWritten() {
+    return linesWritten.get();
+  }
+
+  /**
+   * @return the number of bytes written to the connection
+   */
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  @Override public String toString() {
+    return "GraphiteBackend(" + address + ")";
+  }
+
+  /**
+   * Encodes the series of one snapshot into chunks, and writes each to the connection as it fills.
+   * Once a write fails, the remaining series are skipped.
+   */
+  private final class Writer implements SeriesVisitor {
+
+    private final Channel channel;
+    private final long timestamp;
+    private ByteBuf chunk;
+    private ChannelFuture lastWrite;
+    private IOException failure;
+    private long lines;
+
+    Writer(Channel channel, long timestamp) {
+      this.channel = channel;
+      this.timestamp = timestamp;
+    }
+
+    @Override public void visitCounter(String name, double value) {
+      if (failure == null) {
+        lines += encoder.counter(chunk(), name, value, timestamp);
+        sendIfFull();
+      }
+    }
+
+    @Override public void visitGauge(String name, long value) {
+      if (failure == null) {
+        lines += encoder.gauge(chunk(), name, value, timestamp);
+        sendIfFull();
+      }
+    }
+
+    @Override public void visitTimer(String name, TimerSummary timer) {
+      if (failure == null) {
+        lines += encoder.timer(chunk(), name, timer, timestamp);
+        sendIfFull();
+      }
+    }
+
+    private ByteBuf chunk() {
+      if (chunk == null) {
+        chunk = channel.alloc().directBuffer(CHUNK_SIZE);
+      }
+      return chunk;
+    }
+
+    private void sendIfFull() {
+      if (chunk.readableBytes() >= CHUNK_SIZE - 1024) {
+        send();
+      }
+    }
+
+    /**
+     * Writes the current chunk, first waiting for the connection to drain below its cap.
+     */
+    void send() {
+      if (chunk == null || failure != null) {
+        return;
+      }
+      try {
+        awaitWritable();
+      } catch (IOException e) {
+        failure = e;
+        return;
+      }
+      ByteBuf written = chunk;
+      chunk = null;
+      int bytes = written.readableBytes();
+      // Counted before the write is seen as complete, so a flush reports every byte it wrote
+      ChannelPromise counted = channel.newPromise();
+      channel.writeAndFlush(written).addListener(future -> {
+        if (future.isSuccess()) {
+          bytesWritten.addAndGet(bytes);
+          counted.trySuccess();
+        } else {
+          counted.tryFailure(future.cause());
+        }
+      });
+      lastWrite = counted;
+    }
+
+    private void awaitWritable() throws IOException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+      synchronized (writability) {
+        while (channel.isActive() && !channel.isWritable()) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            throw new IOException("Timed out waiting to write to " + address);
+          }
+          try {
+            TimeUnit.NANOSECONDS.timedWait(writability, remaining);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing to " + address, e);
+          }
+        }
+      }
+      if (!channel.isActive()) {
+        throw new IOException("Connection to " + address + " was closed");
+      }
+    }
+
+    /**
+     * Waits for the last chunk to be written. Writes complete in order, so every earlier chunk
+     * has then also been written.
+     */
+    void awaitLastWrite() throws IOException {
+      if (lastWrite == null) {
+        return;
+      }
+      try {
+        if (!lastWrite.await(writeTimeoutMillis)) {
+          channel.close();
+          throw new IOException("Timed out writing to " + address);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while writing to " + address, e);
+      }
+      if (!lastWrite.isSuccess()) {
+        throw new IOException("Failed to write to " + address, lastWrite.cause());
+      }
+    }
+
+    void release() {
+      if (chunk != null) {
+        chunk.release();
+        chunk = null;
+      }
+    }
+  }
+
+  /**
+   * Wakes a waiting flush when the connection's writability changes or it closes, and discards
+   * anything the receiver sends.
+   */
+  private final class ConnectionHandler extends ChannelInboundHandlerAdapter {
+
+    @Override public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      ReferenceCountUtil.release(msg);
+    }
+
+    @Override public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+      signal();
+      ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override public void channelInactive(ChannelHandlerContext ctx) {
+      signal();
+      ctx.fireChannelInactive();
+    }
+
+    @Override public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      logger.debug("Closing the connection to {}", address, cause);
+      ctx.close();
+    }
+
+    private void signal() {
+      synchronized (writability) {
+        writability.notifyAll();
+      }
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.graphite;
+
+import io.netty.buffer.ByteBuf;
+import java.nio.charset.StandardCharsets;
+import rs.nicktrave.statsd.server.aggregate.TimerSummary;
+
+/**
+ * Writes series in the Graphite plaintext protocol, one {@code <path> <value> <timestamp>\n} line
+ * per value, directly into a {@link ByteBuf}. Names and numbers are written byte by byte, without
+ * creating intermediate strings.
+ *
+ * <p>A timer is written as one line for each of its count, minimum, maximum and mean, and each
+ * configured percentile, suffixed {@code .count}, {@code .min}, {@code .max}, {@code .mean} and,
+ * for example, {@code .p99} or {@code .p99_9}.
+ *
+ * <p>Graphite paths cannot contain whitespace, so spaces and control and non-ASCII characters in
+ * names are written as underscores. Values that are not finite are not written.
+ */
+final class GraphiteEncoder {
+
+  private static final int FRACTION_DIGITS = 6;
+  private static final long FRACTION_SCALE = 1_000_000;
+  // Larger values are written in scientific notation, as scaling them would overflow a long
+  private static final double MAX_FIXED_POINT = 1e12;
+
+  private static final byte[] COUNT = ascii(".count");
+  private static final byte[] MIN = ascii(".min");
+  private static final byte[] MAX = ascii(".max");
+  private static final byte[] MEAN = ascii(".mean");
+
+  private final byte[] prefix;
+  private final double[] percentiles;
+  private final byte[][] percentileSuffixes;
+
+  /**
+   * @param prefix the prefix of every path, written as is
+   * @param percentiles the percentiles to write for each timer, in the range [0, 100]
+   */
+  GraphiteEncoder(String prefix, double[] percentiles) {
+    this.prefix = ascii(prefix);
+    this.percentiles = percentiles.clone();
+    this.percentileSuffixes = new byte[percentiles.length][];
+    for (int i = 0; i < percentiles.length; i++) {
+      percentileSuffixes[i] = ascii(percentileSuffix(percentiles[i]));
+    }
+  }
+
+  static String percentileSuffix(double percentile) {
+    return percentile == Math.rint(percentile)
+        ? ".p" + (long) percentile
+        : ".p" + Double.toString(percentile).replace('.', '_');
+  }
+
+  /**
+   * Writes a counter.
+   *
+   * @param timestamp the timestamp, in seconds since the epoch
+   * @return the number of lines written
+   */
+  int counter(ByteBuf buf, String name, double value, long timestamp) {
+    return counter(buf, name, null, value, timestamp);
+  }
+
+  /**
+   * Writes a gauge.
+   *
+   * @param timestamp the timestamp, in seconds since the epoch
+   * @return the number of lines written
+   */
+  int gauge(ByteBuf buf, String name, long value, long timestamp) {
+    return gauge(buf, name, null, value, timestamp);
+  }
+
+  /**
+   * Writes a timer, unless it has no samples.
+   *
+   * @param timestamp the timestamp, in seconds since the epoch
+   * @return the number of lines written
+   */
+  int timer(ByteBuf buf, String name, TimerSummary timer, long timestamp) {
+    if (timer.getSampleCount() == 0) {
+      return 0;
+    }
+    int lines = counter(buf, name, COUNT, timer.getCount(), timestamp);
+    lines += gauge(buf, name, MIN, timer.getMin(), timestamp);
+    lines += gauge(buf, name, MAX, timer.getMax(), timestamp);
+    lines += counter(buf, name, MEAN, timer.getMean(), timestamp);
+    for (int i = 0; i < percentiles.length; i++) {
+      lines += gauge(buf, name, percentileSuffixes[i], timer.getValueAtPercentile(percentiles[i]),
+          timestamp);
+    }
+    return lines;
+  }
+
+  private int counter(ByteBuf buf, String name, byte[] suffix, double value, long timestamp) {
+    if (!Double.isFinite(value)) {
+      return 0;
+    }
+    writePath(buf, name, suffix);
+    writeDouble(buf, value);
+    writeTimestamp(buf, timestamp);
+    return 1;
+  }
+
+  private int gauge(ByteBuf buf, String name, byte[] suffix, long value, long timestamp) {
+    writePath(buf, name, suffix);
+    writeLong(buf, value);
+    writeTimestamp(buf, timestamp);
+    return 1;
+  }
+
+  private void writePath(ByteBuf buf, String name, byte[] suffix) {
+    buf.writeBytes(prefix);
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      buf.writeByte(c > ' ' && c < 0x7F ? c : '_');
+    }
+    if (suffix != null) {
+      buf.writeBytes(suffix);
+    }
+    buf.writeByte(' ');
+  }
+
+  private static void writeTimestamp(ByteBuf buf, long timestamp) {
+    buf.writeByte(' ');
+    writeLong(buf, timestamp);
+    buf.writeByte('\n');
+  }
+
+  /**
+   * Writes the decimal digits of a long.
+   */
+  static void writeLong(ByteBuf buf, long value) {
+    if (value == Long.MIN_VALUE) {
+      buf.writeBytes(ascii(Long.toString(value)));
+      return;
+    }
+    if (value < 0) {
+      buf.writeByte('-');
+      value = -value;
+    }
+    writeDigits(buf, value, digits(value));
+  }
+
+  /**
+   * Writes a finite double in fixed point, with up to six fraction digits and no trailing zeros,
+   * or in scientific notation if it is very large.
+   */
+  static void writeDouble(ByteBuf buf, double value) {
+    if (Math.abs(value) >= MAX_FIXED_POINT) {
+      buf.writeBytes(ascii(Double.toString(value)));
+      return;
+    }
+    long scaled = Math.round(Math.abs(value) * FRACTION_SCALE);
+    if (scaled != 0 && value < 0) {
+      buf.writeByte('-');
+    }
+    long integer = scaled / FRACTION_SCALE;
+    long fraction = scaled % FRACTION_SCALE;
+    writeDigits(buf, integer, digits(integer));
+    if (fraction != 0) {
+      int fractionDigits = FRACTION_DIGITS;
+      while (fraction % 10 == 0) {
+        fraction /= 10;
+        fractionDigits--;
+      }
+      buf.writeByte('.');
+      writeDigits(buf, fraction, fractionDigits);
+    }
+  }
+
+  /**
+   * Writes the given number of least significant decimal digits of a non-negative value, padded
+   * with leading zeros.
+   */
+  private static void writeDigits(ByteBuf buf, long value, int digits) {
+    int end = buf.writerIndex() + digits;
+    buf.ensureWritable(digits);
+    for (int i = end - 1; i >= buf.writerIndex(); i--) {
+      buf.setByte(i, '0' + (int) (value % 10));
+      value /= 10;
+    }
+    buf.writerIndex(end);
+  }
+
+  private static int digits(long value) {
+    int digits = 1;
+    for (long bound = 10; digits < 19 && value >= bound; bound *= 10) {
+      digits++;
+    }
+    return digits;
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closes a connection as soon as it becomes active if the number of open connections sharing the
+ * same counter would exceed a limit.
+ */
+final class ConnectionLimitHandler extends ChannelInboundHandlerAdapter {
+
+  private static final InternalLogger logger =
+      InternalLoggerFactory.getInstance(ConnectionLimitHandler.class);
+
+  private final AtomicInteger connections;
+  private final AtomicLong rejected;
+  private final int maxConnections;
+
+  /**
+   * @param connections the number of open connections, shared by every connection on a listener
+   * @param rejected the number of rejected connections, shared by every connection on a listener
+   * @param maxConnections the maximum number of open connections
+   */
+  ConnectionLimitHandler(AtomicInteger connections, AtomicLong rejected, int maxConnections) {
+    this.connections = connections;
+    this.rejected = rejected;
+    this.maxConnections = maxConnections;
+  }
+
+  @Override public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    if (connections.incrementAndGet() > maxConnections) {
+      connections.decrementAndGet();
+      rejected.incrementAndGet();
+      logger.debug("Rejecting connection from {}: limit of {} reached",
+          ctx.channel().remoteAddress(), maxConnections);
+      ctx.close();
+      return;
+    }
+
+    ctx.channel().closeFuture().addListener(future -> connections.decrementAndGet());
+    ctx.fireChannelActive();
+    ctx.pipeline().remove(this);
+  }
+}
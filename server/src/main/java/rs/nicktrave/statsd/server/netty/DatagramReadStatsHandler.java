@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the datagrams received by each pass of a channel's read loop, to show how well reads are
+ * being batched.
+ *
+ * <p>Netty reads up to the channel's maximum messages per read before firing {@link
+ * #channelReadComplete(ChannelHandlerContext)}, so the ratio of datagrams to read loops is the
+ * number of datagrams handled per wakeup of the event loop. A ratio close to one under load means
+ * each datagram pays for its own wakeup.
+ *
+ * <p>The same instance may be shared by every datagram channel of a server.
+ */
+@ChannelHandler.Sharable
+final class DatagramReadStatsHandler extends ChannelInboundHandlerAdapter {
+
+  private final LongAdder datagrams = new LongAdder();
+  private final LongAdder reads = new LongAdder();
+
+  @Override public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    datagrams.increment();
+    ctx.fireChannelRead(msg);
+  }
+
+  @Override public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    reads.increment();
+    ctx.fireChannelReadComplete();
+  }
+
+  /**
+   * @return the number of datagrams received
+   */
+  long datagramCount() {
+    return datagrams.sum();
+  }
+
+  /**
+   * @return the number of completed read loops, including any that found no datagrams
+   */
+  long readCount() {
+    return reads.sum();
+  }
+}
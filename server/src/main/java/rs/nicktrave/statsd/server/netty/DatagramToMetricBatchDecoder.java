@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.DecoderException;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.MetricProcessor;
+
+/**
+ * Decodes each {@link DatagramPacket} straight into a {@link MetricBatch} owned by the channel,
+ * and passes the batch to a {@link MetricProcessor} on the event loop when the read cycle
+ * completes, or earlier if the batch fills up.
+ *
+ * <p>Unlike a {@link DatagramToMetricDecoder} followed by a {@link MetricOffloadHandler}, no
+ * object is allocated per metric. Lines that fail to parse are skipped, and the first failure in
+ * each packet is fired down the pipeline as a {@link DecoderException}, with any later failures
+ * attached as suppressed exceptions.
+ */
+public class DatagramToMetricBatchDecoder extends SimpleChannelInboundHandler<DatagramPacket> {
+
+  private final MetricBatchCollector collector;
+
+  /**
+   * @param decoder the decoder to parse metrics with, which may be shared with other channels
+   * @param processor the processor to pass each batch to
+   */
+  public DatagramToMetricBatchDecoder(DatagramToMetricDecoder decoder, MetricProcessor processor) {
+    this.collector = new MetricBatchCollector(decoder, processor);
+  }
+
+  @Override protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg)
+      throws Exception {
+    ByteBuf content = msg.content();
+    collector.decode(content, content.readerIndex(), content.writerIndex());
+    collector.fireFailure(ctx);
+  }
+
+  @Override public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    collector.flush();
+    super.channelReadComplete(ctx);
+  }
+
+  @Override public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    collector.flush();
+  }
+}
@@ -20,111 +20,465 @@ import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.util.concurrent.FastThreadLocal;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
-import rs.nicktrave.statsd.common.Counter;
+import java.util.function.Consumer;
 import rs.nicktrave.statsd.common.Gauge;
 import rs.nicktrave.statsd.common.Metric;
-import rs.nicktrave.statsd.common.Timing;
+import rs.nicktrave.statsd.common.MetricBatch;
 
 /**
- * Decodes a {@link DatagramPacket} containing a raw statsd metric string and parses it into a
- * {@link Metric}.
+ * Decodes a {@link DatagramPacket} containing one or more newline-delimited raw statsd metric
+ * strings and parses each into a {@link Metric}.
+ *
+ * <p>A line that fails to parse does not prevent the remaining lines in the packet from being
+ * decoded. Every valid metric in the packet is emitted before the first failure is rethrown, with
+ * any subsequent failures attached as suppressed exceptions. A lenient decoder instead skips
+ * malformed lines without creating any exceptions, so that a misbehaving client cannot slow the
+ * server down with stack traces. Either way, malformed lines are counted in a {@link
+ * ParseErrors}.
+ *
+ * <p>The packet content is scanned in place for the delimiter offsets and the numeric fields are
+ * parsed directly from the bytes. Names are resolved through a {@link MetricNameCache}, so the only
+ * object allocated for a metric with a previously seen name is the metric itself. Metrics can also
+ * be decoded straight into the columns of a {@link MetricBatch}, as {@link
+ * DatagramToMetricBatchDecoder} does, in which case nothing is allocated per metric at all.
  */
 @Sharable
 public class DatagramToMetricDecoder extends MessageToMessageDecoder<DatagramPacket> {
 
+  private static final byte LINE_SEPARATOR = '\n';
+  private static final byte CARRIAGE_RETURN = '\r';
+  private static final byte VALUE_SEPARATOR = ':';
+  private static final byte FIELD_SEPARATOR = '|';
+  private static final byte SAMPLE_RATE_PREFIX = '@';
+
+  /**
+   * The maximum number of significant digits accepted by the fast path for parsing doubles. Any
+   * mantissa of up to 15 digits is below 2^53, and so is exactly representable as a double.
+   */
+  private static final int MAX_MANTISSA_DIGITS = 15;
+
+  /**
+   * Powers of ten that are exactly representable as doubles.
+   */
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+      1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  private static final byte[] LONG_MIN_VALUE =
+      Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+  // Metrics are decoded into a batch and then converted, so that both paths share one parser
+  private static final FastThreadLocal<MetricBatch> SCRATCH_BATCH =
+      new FastThreadLocal<MetricBatch>() {
+        @Override protected MetricBatch initialValue() {
+          return new MetricBatch();
+        }
+      };
+
+  private final MetricNameCache nameCache;
+  private final ParseErrors errors;
+  private final boolean lenient;
+
+  /**
+   * A new decoder with its own name cache of the default capacity.
+   */
+  public DatagramToMetricDecoder() {
+    this(new MetricNameCache(MetricNameCache.DEFAULT_CAPACITY));
+  }
+
   /**
-   * The current node of the statsd parsing state-machine. The progression is as follows:
+   * A new decoder resolving metric names through the given cache, which may be shared with other
+   * decoders.
+   */
+  public DatagramToMetricDecoder(MetricNameCache nameCache) {
+    this(nameCache, new ParseErrors(), false);
+  }
+
+  /**
+   * A new decoder resolving metric names through the given cache, and counting malformed lines in
+   * the given errors, either of which may be shared with other decoders.
    *
-   * <pre>
-   * NAME -> VALUE -> TYPE -> SAMPLE
-   *                   |        |
-   *                   +--------+-----> END
-   * </pre>
+   * @param lenient whether to skip malformed lines, rather than failing with an exception
+   */
+  public DatagramToMetricDecoder(MetricNameCache nameCache, ParseErrors errors, boolean lenient) {
+    this.nameCache = nameCache;
+    this.errors = errors;
+    this.lenient = lenient;
+  }
+
+  /**
+   * @return the malformed lines seen by this decoder
    */
-  private enum Node {
-    NAME, VALUE, TYPE, SAMPLE
+  public ParseErrors getParseErrors() {
+    return errors;
   }
 
   @Override protected void decode(ChannelHandlerContext ctx, DatagramPacket msg, List<Object> out)
       throws Exception {
-    ByteBuf byteBuf = msg.content();
-
-    StringBuilder nameBuilder = new StringBuilder();
-    StringBuilder valueBuilder = new StringBuilder();
-    StringBuilder typeBuilder = new StringBuilder();
-    StringBuilder sampleBuilder = new StringBuilder();
-
-    Node node = Node.NAME;
-    StringBuilder currentBuilder = nameBuilder;
-    while (byteBuf.isReadable()) {
-      char c = (char) byteBuf.readByte();
-      switch (c) {
-        case ':':
-          currentBuilder = valueBuilder;
-          node = Node.VALUE;
-          break;
-        case '|':
-          if (Node.VALUE == node) {
-            currentBuilder = typeBuilder;
-            node = Node.TYPE;
-          } else {
-            currentBuilder = sampleBuilder;
-            node = Node.SAMPLE;
+    ByteBuf content = msg.content();
+    int end = content.writerIndex();
+    MetricBatch batch = SCRATCH_BATCH.get();
+    FailureCollector failures = new FailureCollector();
+
+    int index = content.readerIndex();
+    do {
+      index = decode(content, index, end, batch, failures);
+      try {
+        for (int i = 0; i < batch.size(); i++) {
+          out.add(batch.get(i));
+        }
+      } finally {
+        batch.clear();
+      }
+    } while (index < end);
+
+    failures.rethrow();
+  }
+
+  /**
+   * Decodes the newline-delimited metrics in the range {@code [start, end)} of the given buffer
+   * into a batch, until either the range is exhausted or the batch is full. The reader index of
+   * the buffer is not modified.
+   *
+   * <p>Lines that fail to parse are counted and skipped. Unless the decoder is lenient, an
+   * exception describing each is also passed to the failure handler.
+   *
+   * @return the index of the first line that was not decoded because the batch is full, or {@code
+   *     end} if every line was decoded
+   */
+  int decode(ByteBuf buf, int start, int end, MetricBatch batch,
+      Consumer<RuntimeException> onFailure) {
+    int lineStart = start;
+    while (lineStart < end && !batch.isFull()) {
+      int lineEnd = buf.indexOf(lineStart, end, LINE_SEPARATOR);
+      int next;
+      if (lineEnd < 0) {
+        lineEnd = end;
+        next = end;
+      } else {
+        next = lineEnd + 1;
+      }
+
+      if (lineEnd > lineStart && buf.getByte(lineEnd - 1) == CARRIAGE_RETURN) {
+        lineEnd--;
+      }
+
+      if (lineEnd > lineStart) {
+        ParseError error = decodeLine(buf, lineStart, lineEnd, batch);
+        if (error != null) {
+          errors.record(error, buf, lineStart, lineEnd);
+          if (!lenient) {
+            onFailure.accept(newException(error, buf, lineStart, lineEnd));
           }
-          break;
-        case '@':
-          break;
-        default:
-          currentBuilder.append(c);
+        }
       }
+
+      lineStart = next;
+    }
+    return lineStart;
+  }
+
+  /**
+   * Parses a single statsd metric from the bytes in the range {@code [start, end)} of the given
+   * buffer and adds it to a batch, which must not be full. The reader index of the buffer is not
+   * modified.
+   *
+   * @return the reason the metric could not be parsed, or null if it was added to the batch
+   */
+  ParseError decodeLine(ByteBuf buf, int start, int end, MetricBatch batch) {
+    int valueStart = buf.indexOf(start, end, VALUE_SEPARATOR) + 1;
+    if (valueStart <= 0) {
+      return ParseError.MISSING_VALUE;
     }
 
-    String nameStr = nameBuilder.toString();
-    String valueStr = valueBuilder.toString();
-    String typeStr = typeBuilder.toString();
-    String sampleStr = sampleBuilder.toString();
+    int typeStart = buf.indexOf(valueStart, end, FIELD_SEPARATOR) + 1;
+    if (typeStart <= 0) {
+      return ParseError.MISSING_TYPE;
+    }
+
+    int typeEnd = buf.indexOf(typeStart, end, FIELD_SEPARATOR);
+    if (typeEnd < 0) {
+      typeEnd = end;
+    }
 
-    Metric metric;
     // TODO(nickt): Make the types constants on the defined Metric classes.
-    switch (typeStr) {
-      case "c":
-        metric = newCounter(nameStr, valueStr, sampleStr);
-        break;
-      case "g":
-        metric = newGauge(nameStr, valueStr);
-        break;
-      case "ms":
-        metric = newTiming(nameStr, valueStr, sampleStr);
-        break;
+    int typeLength = typeEnd - typeStart;
+    byte type = typeLength > 0 ? buf.getByte(typeStart) : 0;
+    byte code;
+    if (typeLength == 1 && type == 'c') {
+      code = MetricBatch.COUNTER;
+    } else if (typeLength == 1 && type == 'g') {
+      code = MetricBatch.GAUGE;
+    } else if (typeLength == 2 && type == 'm' && buf.getByte(typeStart + 1) == 's') {
+      code = MetricBatch.TIMING;
+    } else {
+      return ParseError.UNKNOWN_TYPE;
+    }
+
+    int valueEnd = typeStart - 1;
+    long value = parseLong(buf, valueStart, valueEnd);
+    if (value == Long.MIN_VALUE && !isLongMinValue(buf, valueStart, valueEnd)) {
+      return ParseError.INVALID_VALUE;
+    }
+
+    if (code == MetricBatch.GAUGE) {
+      addGauge(buf, start, valueStart, value, batch);
+      return null;
+    }
+
+    double sampleRate = 1.0;
+    if (typeEnd < end) {
+      int rateStart = typeEnd + 1;
+      if (rateStart >= end || buf.getByte(rateStart) != SAMPLE_RATE_PREFIX) {
+        return ParseError.MALFORMED_SAMPLE_RATE;
+      }
+      sampleRate = parseDouble(buf, rateStart + 1, end);
+      if (Double.isNaN(sampleRate)) {
+        return ParseError.INVALID_SAMPLE_RATE;
+      }
+      if (sampleRate < 0 || sampleRate > 1) {
+        return ParseError.SAMPLE_RATE_OUT_OF_RANGE;
+      }
+    }
+
+    String name = nameCache.intern(buf, start, valueStart - 1);
+    if (code == MetricBatch.COUNTER) {
+      batch.addCounter(name, value, sampleRate);
+    } else {
+      batch.addTiming(name, value, sampleRate);
+    }
+    return null;
+  }
+
+  /**
+   * Adds a gauge to the batch. A leading sign on the value denotes an update to the gauge.
+   */
+  private void addGauge(ByteBuf buf, int nameStart, int valueStart, long value,
+      MetricBatch batch) {
+    String name = nameCache.intern(buf, nameStart, valueStart - 1);
+    byte first = buf.getByte(valueStart);
+    batch.addGauge(name, value,
+        first == '+' || first == '-' ? Gauge.Type.UPDATE : Gauge.Type.SET);
+  }
+
+  /**
+   * Returns the exception describing a malformed metric in the range {@code [start, end)} of the
+   * given buffer, of the type that strict decoding has always failed with for the error.
+   */
+  private static RuntimeException newException(ParseError error, ByteBuf buf, int start,
+      int end) {
+    String line = toString(buf, start, end);
+    switch (error) {
+      case MISSING_VALUE:
+        return new IllegalStateException("Missing value in metric: " + line);
+      case MISSING_TYPE:
+        return new IllegalStateException("Missing type in metric: " + line);
+      case UNKNOWN_TYPE:
+        return new IllegalStateException("Unexpected metric type in metric: " + line);
+      case INVALID_VALUE:
+        return new NumberFormatException("Invalid value in metric: " + line);
+      case MALFORMED_SAMPLE_RATE:
+        return new IllegalStateException("Malformed sample rate in metric: " + line);
+      case INVALID_SAMPLE_RATE:
+        return new NumberFormatException("Invalid sample rate in metric: " + line);
+      case SAMPLE_RATE_OUT_OF_RANGE:
+        return new IllegalArgumentException("Sample rate out of range in metric: " + line);
       default:
-        throw new IllegalStateException("Unexpected metric type: " + typeStr);
+        throw new AssertionError(error);
+    }
+  }
+
+  /**
+   * Parses a signed decimal long from the bytes in the range {@code [start, end)}.
+   *
+   * @return the value, or {@link Long#MIN_VALUE} if the bytes are not a valid long. As that is
+   *     also a valid value, callers must tell the two apart with {@link #isLongMinValue(ByteBuf,
+   *     int, int)}
+   */
+  static long parseLong(ByteBuf buf, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end) {
+      byte first = buf.getByte(i);
+      if (first == '-' || first == '+') {
+        negative = first == '-';
+        i++;
+      }
+    }
+
+    if (i >= end) {
+      return Long.MIN_VALUE;
     }
 
-    out.add(metric);
+    // Accumulate negatively so that Long.MIN_VALUE can be represented
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multiplyLimit = limit / 10;
+    long result = 0;
+    for (; i < end; i++) {
+      int digit = buf.getByte(i) - '0';
+      if (digit < 0 || digit > 9 || result < multiplyLimit) {
+        return Long.MIN_VALUE;
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        return Long.MIN_VALUE;
+      }
+      result -= digit;
+    }
+
+    return negative ? result : -result;
   }
 
   /**
-   * Returns a new counter instance with an optional sample rate.
+   * Returns whether the bytes in the range {@code [start, end)} are exactly {@link
+   * Long#MIN_VALUE}.
    */
-  private static Counter newCounter(String name, String value, String sample) {
-    return new Counter(name, Long.valueOf(value), sample.isEmpty() ? 1.0 : Double.valueOf(sample));
+  static boolean isLongMinValue(ByteBuf buf, int start, int end) {
+    if (end - start != LONG_MIN_VALUE.length) {
+      return false;
+    }
+    for (int i = 0; i < LONG_MIN_VALUE.length; i++) {
+      if (buf.getByte(start + i) != LONG_MIN_VALUE[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses a decimal double from the bytes in the range {@code [start, end)}.
+   *
+   * <p>Plain decimals with up to {@link #MAX_MANTISSA_DIGITS} significant digits are parsed
+   * without allocating. Other decimals (exponents, more significant digits) fall back to {@link
+   * Double#parseDouble(String)}, but only once they are known to be valid, so that parsing never
+   * throws.
+   *
+   * @return the value, or {@link Double#NaN} if the bytes are not a valid decimal number
+   */
+  static double parseDouble(ByteBuf buf, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end) {
+      byte first = buf.getByte(i);
+      if (first == '-' || first == '+') {
+        negative = first == '-';
+        i++;
+      }
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int fractionDigits = -1;
+    boolean seenDigit = false;
+    for (; i < end; i++) {
+      byte b = buf.getByte(i);
+      if (b == '.' && fractionDigits < 0) {
+        fractionDigits = 0;
+        continue;
+      }
+
+      int digit = b - '0';
+      if (digit < 0 || digit > 9 || digits == MAX_MANTISSA_DIGITS) {
+        return parseDecimal(buf, start, end);
+      }
+
+      seenDigit = true;
+      if (mantissa != 0 || digit != 0) {
+        digits++;
+      }
+      mantissa = mantissa * 10 + digit;
+      if (fractionDigits >= 0) {
+        fractionDigits++;
+      }
+    }
+
+    if (!seenDigit) {
+      return Double.NaN;
+    }
+
+    double value = mantissa;
+    if (fractionDigits > 0) {
+      if (fractionDigits >= POWERS_OF_TEN.length) {
+        return parseDecimal(buf, start, end);
+      }
+      // The mantissa has at most 15 digits and the power of ten is at most 10^22, so both operands
+      // are exact, and the division is correctly rounded
+      value /= POWERS_OF_TEN[fractionDigits];
+    }
+    return negative ? -value : value;
   }
 
   /**
-   * Returns a new gauge instance.
+   * Parses a decimal number with an optional sign, fraction and exponent, or returns {@link
+   * Double#NaN} if the bytes are not one. Unlike {@link Double#parseDouble(String)}, special
+   * values, hexadecimal and type suffixes are not accepted.
    */
-  private static Gauge newGauge(String name, String value) {
-    if (value.charAt(0) == '+' || value.charAt(0) == '-') {
-      return new Gauge(name, Long.valueOf(value), Gauge.Type.UPDATE);
+  private static double parseDecimal(ByteBuf buf, int start, int end) {
+    int i = skipSign(buf, start, end);
+    int digits = 0;
+    for (; i < end && isDigit(buf.getByte(i)); i++) {
+      digits++;
+    }
+    if (i < end && buf.getByte(i) == '.') {
+      for (i++; i < end && isDigit(buf.getByte(i)); i++) {
+        digits++;
+      }
     }
-    return new Gauge(name, Long.valueOf(value));
+    if (digits == 0) {
+      return Double.NaN;
+    }
+
+    if (i < end && (buf.getByte(i) == 'e' || buf.getByte(i) == 'E')) {
+      i = skipSign(buf, i + 1, end);
+      int exponentStart = i;
+      while (i < end && isDigit(buf.getByte(i))) {
+        i++;
+      }
+      if (i == exponentStart) {
+        return Double.NaN;
+      }
+    }
+    return i == end ? Double.parseDouble(toString(buf, start, end)) : Double.NaN;
+  }
+
+  private static int skipSign(ByteBuf buf, int index, int end) {
+    if (index < end && (buf.getByte(index) == '-' || buf.getByte(index) == '+')) {
+      return index + 1;
+    }
+    return index;
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  private static String toString(ByteBuf buf, int start, int end) {
+    return buf.toString(start, end - start, StandardCharsets.US_ASCII);
   }
 
   /**
-   * Returns a new timing instance with an optional sample rate.
+   * Retains the first failure in a packet, with any later failures attached as suppressed.
    */
-  private static Timing newTiming(String name, String value, String sample) {
-    return new Timing(name, Long.valueOf(value), sample.isEmpty() ? 1.0 : Double.valueOf(sample));
+  private static final class FailureCollector implements Consumer<RuntimeException> {
+
+    private RuntimeException failure;
+
+    @Override public void accept(RuntimeException e) {
+      if (failure == null) {
+        failure = e;
+      } else {
+        failure.addSuppressed(e);
+      }
+    }
+
+    void rethrow() {
+      if (failure != null) {
+        throw failure;
+      }
+    }
   }
 }
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the kernel's accounting of a fixed set of UDP sockets from {@code /proc/net/udp} and
+ * {@code /proc/net/udp6}: the bytes waiting in each socket's receive queue, and the datagrams the
+ * kernel dropped because the queue was full. These are datagrams that never reached the server.
+ *
+ * <p>Each socket is identified by its inode. With the epoll transport, the inode is read directly
+ * from the socket's file descriptor in {@code /proc/self/fd}. Otherwise, it is found by looking for
+ * a socket on the same port that is open in this process, which is unambiguous unless several of
+ * the process's sockets share the port. Sockets that share a port are never identified, and are
+ * not looked for again. Sockets that cannot be identified report zero.
+ *
+ * <p>This is only available on Linux. Refreshing reads several files, which takes longer on hosts
+ * with many sockets, so it should not run on an event loop. The values are read on {@link
+ * #refresh()} and may be read by any thread.
+ */
+final class KernelUdpStats {
+
+  private static final InternalLogger logger =
+      InternalLoggerFactory.getInstance(KernelUdpStats.class);
+
+  private static final Path PROC_SELF_FD = Paths.get("/proc/self/fd");
+  private static final Path[] PROC_NET_UDP = {
+      Paths.get("/proc/net/udp"), Paths.get("/proc/net/udp6")};
+
+  // Columns of each line, after the header
+  private static final int LOCAL_ADDRESS = 1;
+  private static final int QUEUES = 4;
+  private static final int INODE = 9;
+  private static final int DROPS = 12;
+
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  // The inode of a socket that shares its port with another socket without a file descriptor
+  private static final long AMBIGUOUS = -1;
+
+  private final long[] inodes;
+  private final int[] ports;
+  private final AtomicLongArray receiveQueues;
+  private final AtomicLongArray drops;
+
+  /**
+   * @param sockets the number of sockets to report on
+   */
+  KernelUdpStats(int sockets) {
+    this.inodes = new long[sockets];
+    this.ports = new int[sockets];
+    this.receiveQueues = new AtomicLongArray(sockets);
+    this.drops = new AtomicLongArray(sockets);
+  }
+
+  /**
+   * @return whether the kernel's UDP accounting can be read on this platform
+   */
+  static boolean isAvailable() {
+    return Files.isReadable(PROC_NET_UDP[0]);
+  }
+
+  /**
+   * Identifies the socket with the given index.
+   *
+   * @param fd the socket's file descriptor, or a negative value if it is not known
+   * @param port the port the socket is bound to
+   */
+  synchronized void setSocket(int index, int fd, int port) {
+    ports[index] = port;
+    inodes[index] = fd >= 0 ? socketInode(PROC_SELF_FD.resolve(Integer.toString(fd))) : 0;
+    if (inodes[index] != 0) {
+      return;
+    }
+    for (int i = 0; i < inodes.length; i++) {
+      if (i != index && ports[i] == port && inodes[i] <= 0) {
+        logger.debug("Cannot tell apart the sockets on port {}", port);
+        inodes[i] = AMBIGUOUS;
+        inodes[index] = AMBIGUOUS;
+      }
+    }
+  }
+
+  /**
+   * Reads the current accounting of each socket from the kernel.
+   *
+   * @throws IOException if the accounting could not be read
+   */
+  synchronized void refresh() throws IOException {
+    Set<Long> processInodes = null;
+    for (Path path : PROC_NET_UDP) {
+      if (!Files.isReadable(path)) {
+        continue; // e.g. IPv6 is disabled
+      }
+      List<String> lines = Files.readAllLines(path);
+      if (processInodes == null && hasUnidentifiedSockets()) {
+        processInodes = processInodes();
+      }
+      update(lines, processInodes);
+    }
+  }
+
+  /**
+   * Updates the accounting from the lines of a {@code /proc/net/udp} file, including its header.
+   *
+   * @param processInodes the inodes of the sockets open in this process, used to identify sockets
+   *     without a file descriptor, or null to leave them unidentified
+   */
+  synchronized void update(List<String> lines, Set<Long> processInodes) {
+    for (int i = 1; i < lines.size(); i++) {
+      String[] columns = WHITESPACE.split(lines.get(i).trim());
+      if (columns.length <= DROPS) {
+        continue;
+      }
+      long inode = Long.parseLong(columns[INODE]);
+      int socket = indexOf(inode);
+      if (socket < 0 && processInodes != null && processInodes.contains(inode)) {
+        socket = identify(inode, port(columns[LOCAL_ADDRESS]));
+      }
+      if (socket < 0) {
+        continue;
+      }
+      String queues = columns[QUEUES];
+      receiveQueues.set(socket, Long.parseLong(queues.substring(queues.indexOf(':') + 1), 16));
+      drops.set(socket, Long.parseLong(columns[DROPS]));
+    }
+  }
+
+  private int indexOf(long inode) {
+    for (int i = 0; i < inodes.length; i++) {
+      if (inodes[i] == inode) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Assigns an inode to the unidentified socket on the given port, returning its index, or -1 if
+   * there is no such socket. Sockets sharing a port are marked as ambiguous when they are set, so
+   * there is at most one.
+   */
+  private int identify(long inode, int port) {
+    for (int i = 0; i < inodes.length; i++) {
+      if (inodes[i] == 0 && ports[i] == port) {
+        inodes[i] = inode;
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return whether any socket may still be identified by its port
+   */
+  boolean hasUnidentifiedSockets() {
+    for (long inode : inodes) {
+      if (inode == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int port(String localAddress) {
+    return Integer.parseInt(localAddress.substring(localAddress.lastIndexOf(':') + 1), 16);
+  }
+
+  private static Set<Long> processInodes() throws IOException {
+    Set<Long> inodes = new HashSet<>();
+    try (DirectoryStream<Path> fds = Files.newDirectoryStream(PROC_SELF_FD)) {
+      for (Path fd : fds) {
+        long inode = socketInode(fd);
+        if (inode != 0) {
+          inodes.add(inode);
+        }
+      }
+    }
+    return inodes;
+  }
+
+  /**
+   * Returns the inode of the socket the given file descriptor link points to, or zero if it is not
+   * a socket.
+   */
+  private static long socketInode(Path fd) {
+    try {
+      String target = Files.readSymbolicLink(fd).toString();
+      if (target.startsWith("socket:[") && target.endsWith("]")) {
+        return Long.parseLong(target.substring("socket:[".length(), target.length() - 1));
+      }
+    } catch (IOException | NumberFormatException e) {
+      // The descriptor was closed, or is not a socket
+    }
+    return 0;
+  }
+
+  /**
+   * @return the number of sockets reported on
+   */
+  int size() {
+    return inodes.length;
+  }
+
+  /**
+   * @return the inode of the socket with the given index, or zero if it has not been identified
+   */
+  synchronized long inode(int index) {
+    return Math.max(0, inodes[index]);
+  }
+
+  /**
+   * @return the bytes waiting in the receive queue of the socket with the given index
+   */
+  long receiveQueueBytes(int index) {
+    return receiveQueues.get(index);
+  }
+
+  /**
+   * @return the datagrams dropped by the kernel for the socket with the given index
+   */
+  long drops(int index) {
+    return drops.get(index);
+  }
+
+  /**
+   * @return the datagrams dropped by the kernel for every socket
+   */
+  long totalDrops() {
+    long total = 0;
+    for (int i = 0; i < drops.length(); i++) {
+      total += drops.get(i);
+    }
+    return total;
+  }
+}
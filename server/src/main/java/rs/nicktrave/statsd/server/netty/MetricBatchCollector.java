@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.DecoderException;
+import java.util.function.Consumer;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.MetricProcessor;
+
+/**
+ * Decodes metrics into a {@link MetricBatch} owned by a single channel and passes the batch to a
+ * {@link MetricProcessor} whenever it fills up or is flushed.
+ *
+ * <p>Lines that fail to parse are skipped. The first failure since the last call to {@link
+ * #fireFailure(ChannelHandlerContext)} is retained, with any later failures attached as
+ * suppressed exceptions.
+ */
+final class MetricBatchCollector {
+
+  private final DatagramToMetricDecoder decoder;
+  private final MetricProcessor processor;
+  private final MetricBatch batch = new MetricBatch();
+  private final Consumer<RuntimeException> onFailure = this::onFailure;
+
+  private RuntimeException failure;
+
+  MetricBatchCollector(DatagramToMetricDecoder decoder, MetricProcessor processor) {
+    this.decoder = decoder;
+    this.processor = processor;
+  }
+
+  /**
+   * Decodes the newline-delimited metrics in the range {@code [start, end)} of the given buffer,
+   * processing the batch each time it fills up. The reader index of the buffer is not modified.
+   */
+  void decode(ByteBuf buf, int start, int end) {
+    int index = start;
+    while ((index = decoder.decode(buf, index, end, batch, onFailure)) < end) {
+      flush();
+    }
+  }
+
+  /**
+   * Passes any metrics in the batch to the processor.
+   */
+  void flush() {
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      processor.processBatch(batch);
+    } finally {
+      batch.clear();
+    }
+  }
+
+  /**
+   * Fires the retained failure, if any, down the pipeline as a {@link DecoderException}.
+   */
+  void fireFailure(ChannelHandlerContext ctx) {
+    if (failure != null) {
+      RuntimeException cause = failure;
+      failure = null;
+      ctx.fireExceptionCaught(new DecoderException(cause));
+    }
+  }
+
+  private void onFailure(RuntimeException e) {
+    if (failure == null) {
+      failure = e;
+    } else {
+      failure.addSuppressed(e);
+    }
+  }
+}
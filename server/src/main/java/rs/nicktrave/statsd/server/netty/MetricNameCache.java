@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, concurrent intern table for metric names, keyed on the raw bytes of the name.
+ *
+ * <p>Names are looked up by hashing the bytes in place, so a name that has been seen before is
+ * returned as its canonical {@link String} without being decoded. The table is set-associative:
+ * each name hashes to a small bucket of slots, and when a bucket is full the slot that has gone
+ * longest without a lookup is evicted (CLOCK replacement).
+ *
+ * <p>Lookups never block. Two threads interning the same previously unseen name at the same time
+ * may briefly produce two distinct instances, one of which will eventually be evicted, so callers
+ * should use identity only as a fast path and fall back to {@link String#equals(Object)}.
+ */
+public class MetricNameCache {
+
+  /**
+   * The default number of names retained by a cache.
+   */
+  public static final int DEFAULT_CAPACITY = 1 << 18;
+
+  /**
+   * The number of slots in each bucket.
+   */
+  private static final int WAYS = 4;
+
+  private final AtomicReferenceArray<Entry> entries;
+  private final int bucketMask;
+
+  /**
+   * A new cache retaining approximately the given number of names. The capacity is rounded up to
+   * the next power of two.
+   *
+   * @throws IllegalArgumentException if the capacity is not positive
+   */
+  public MetricNameCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+
+    int size = capacity <= WAYS ? WAYS : Integer.highestOneBit(capacity - 1) << 1;
+    if (size <= 0) {
+      throw new IllegalArgumentException("Capacity is too large: " + capacity);
+    }
+
+    entries = new AtomicReferenceArray<>(size);
+    bucketMask = size / WAYS - 1;
+  }
+
+  /**
+   * Returns the canonical instance of the US-ASCII name held in the bytes in the range {@code
+   * [start, end)} of the given buffer, decoding and retaining it if it has not been seen before.
+   * The reader index of the buffer is not modified.
+   */
+  public String intern(ByteBuf buf, int start, int end) {
+    int hash = hash(buf, start, end);
+    int base = bucket(hash);
+
+    for (int i = base; i < base + WAYS; i++) {
+      Entry entry = entries.get(i);
+      if (entry != null && entry.hash == hash && entry.matches(buf, start, end)) {
+        if (!entry.referenced) {
+          entry.referenced = true;
+        }
+        return entry.name;
+      }
+    }
+
+    byte[] bytes = new byte[end - start];
+    buf.getBytes(start, bytes);
+    Entry entry = new Entry(hash, bytes);
+    entries.set(victim(base, hash), entry);
+    return entry.name;
+  }
+
+  /**
+   * @return the maximum number of names this cache can retain
+   */
+  public int capacity() {
+    return entries.length();
+  }
+
+  /**
+   * Returns the index of the slot in the bucket starting at {@code base} that should receive a new
+   * entry, clearing the reference bits of any recently used entries that are passed over.
+   */
+  private int victim(int base, int hash) {
+    for (int i = base; i < base + WAYS; i++) {
+      Entry entry = entries.get(i);
+      if (entry == null) {
+        return i;
+      }
+    }
+
+    for (int i = base; i < base + WAYS; i++) {
+      Entry entry = entries.get(i);
+      if (!entry.referenced) {
+        return i;
+      }
+      entry.referenced = false;
+    }
+
+    // Every entry in the bucket was recently used; pick one based on the hash
+    return base + ((hash >>> 24) & (WAYS - 1));
+  }
+
+  private int bucket(int hash) {
+    return ((hash ^ (hash >>> 16)) & bucketMask) * WAYS;
+  }
+
+  /**
+   * Hashes the bytes with the same function as {@link String#hashCode()} uses for ASCII strings.
+   */
+  private static int hash(ByteBuf buf, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + buf.getByte(i);
+    }
+    return hash;
+  }
+
+  private static final class Entry {
+
+    final int hash;
+    final byte[] bytes;
+    final String name;
+
+    /**
+     * Whether the entry has been looked up since the last eviction pass over its bucket. Updated
+     * racily; a lost update only affects which entry is evicted next.
+     */
+    boolean referenced;
+
+    Entry(int hash, byte[] bytes) {
+      this.hash = hash;
+      this.bytes = bytes;
+      this.name = new String(bytes, StandardCharsets.US_ASCII);
+      // Compute the hash code of the canonical instance once, for the benefit of downstream maps
+      this.name.hashCode();
+    }
+
+    boolean matches(ByteBuf buf, int start, int end) {
+      if (bytes.length != end - start) {
+        return false;
+      }
+      for (int i = 0; i < bytes.length; i++) {
+        if (bytes[i] != buf.getByte(start + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
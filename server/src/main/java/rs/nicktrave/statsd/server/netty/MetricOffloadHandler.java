@@ -18,20 +18,75 @@ package rs.nicktrave.statsd.server.netty;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
 import rs.nicktrave.statsd.server.MetricProcessor;
 
 /**
  * Offloads a {@link Metric} to a {@link MetricProcessor}.
+ *
+ * <p>When constructed with a {@link MetricOffloader}, metrics are queued on the ring of the
+ * channel's event loop and processed in batches on a consumer thread. Otherwise metrics are
+ * collected into a {@link MetricBatch} per channel, which is passed to the processor on the event
+ * loop when the read cycle completes, or earlier if the batch fills up.
  */
 public class MetricOffloadHandler extends SimpleChannelInboundHandler<Metric> {
 
   private final MetricProcessor processor;
+  private final MetricOffloader offloader;
+  private final MetricBatch batch;
+  private MetricRing ring;
 
   public MetricOffloadHandler(MetricProcessor processor) {
     this.processor = processor;
+    this.offloader = null;
+    this.batch = new MetricBatch();
+  }
+
+  MetricOffloadHandler(MetricOffloader offloader) {
+    this.processor = null;
+    this.offloader = offloader;
+    this.batch = null;
+  }
+
+  @Override public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    if (offloader != null) {
+      ring = offloader.ring(ctx.executor());
+    }
   }
 
   @Override protected void channelRead0(ChannelHandlerContext ctx, Metric msg) throws Exception {
-    processor.process(msg);
+    if (ring != null) {
+      offloader.offload(ring, msg);
+      return;
+    }
+
+    batch.add(msg);
+    if (batch.isFull()) {
+      processBatch();
+    }
+  }
+
+  @Override public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    if (batch != null) {
+      processBatch();
+    }
+    super.channelReadComplete(ctx);
+  }
+
+  @Override public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    if (batch != null) {
+      processBatch();
+    }
+  }
+
+  private void processBatch() {
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      processor.processBatch(batch);
+    } finally {
+      batch.clear();
+    }
   }
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.MetricProcessor;
+
+/**
+ * Hands metrics off from Netty event loops to a pool of consumer threads that call the {@link
+ * MetricProcessor}, so that a slow processor does not stall socket reads.
+ *
+ * <p>Each event loop offloads to its own bounded {@link MetricRing}, preallocated when the first
+ * channel on that loop becomes active. Rings are assigned round-robin to consumer threads, and
+ * each ring is only ever drained by the one consumer it is assigned to, so metrics from one event
+ * loop are processed in order. Consumers drain each ring into a {@link MetricBatch}, up to its
+ * capacity at a time so that a busy ring cannot starve the others, and pass it to {@link
+ * MetricProcessor#processBatch(MetricBatch)}. When a ring is full, the configured {@link
+ * OverflowPolicy} is applied.
+ *
+ * <p>Consumers that find no work spin briefly and then park, trading a small amount of latency
+ * for not burning a core while idle.
+ */
+final class MetricOffloader implements Closeable {
+
+  private static final InternalLogger logger =
+      InternalLoggerFactory.getInstance(MetricOffloader.class);
+
+  private static final int IDLE_SPINS = 100;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+  private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  private final MetricProcessor processor;
+  private final int ringCapacity;
+  private final OverflowPolicy policy;
+  private final Consumer[] consumers;
+  private final Thread[] threads;
+  private final Map<EventExecutor, MetricRing> rings = new HashMap<>(); // Guarded by this
+
+  private volatile boolean closed;
+
+  /**
+   * @param processor the processor called by the consumer threads
+   * @param consumerThreads the number of consumer threads
+   * @param ringCapacity the number of metrics that can be queued by each event loop
+   * @param policy what to do when an event loop's ring is full
+   * @throws IllegalArgumentException if the number of threads is not positive, or the capacity is
+   *     out of range
+   */
+  MetricOffloader(MetricProcessor processor, int consumerThreads, int ringCapacity,
+      OverflowPolicy policy) {
+    if (consumerThreads <= 0) {
+      throw new IllegalArgumentException("Consumer threads must be positive: " + consumerThreads);
+    }
+    // Validate the capacity up front, rather than when the first channel becomes active
+    if (ringCapacity <= 0 || ringCapacity > MetricRing.MAX_CAPACITY) {
+      throw new IllegalArgumentException(
+          "Capacity " + ringCapacity + " is not in the range [1, " + MetricRing.MAX_CAPACITY + "]");
+    }
+
+    this.processor = processor;
+    this.ringCapacity = ringCapacity;
+    this.policy = policy;
+    this.consumers = new Consumer[consumerThreads];
+    this.threads = new Thread[consumerThreads];
+
+    ThreadFactory threadFactory = new DefaultThreadFactory("statsd-offload", true);
+    for (int i = 0; i < consumerThreads; i++) {
+      consumers[i] = new Consumer();
+      threads[i] = threadFactory.newThread(consumers[i]);
+    }
+  }
+
+  /**
+   * Starts the consumer threads.
+   */
+  void start() {
+    for (Thread thread : threads) {
+      thread.start();
+    }
+  }
+
+  /**
+   * Returns the ring that the given event loop offloads to, creating it and assigning it to a
+   * consumer if necessary.
+   */
+  synchronized MetricRing ring(EventExecutor executor) {
+    MetricRing ring = rings.get(executor);
+    if (ring == null) {
+      ring = new MetricRing(ringCapacity);
+      consumers[rings.size() % consumers.length].assign(ring);
+      rings.put(executor, ring);
+    }
+    return ring;
+  }
+
+  /**
+   * Returns a processor that offloads every metric it is given to the ring of the given event
+   * loop. The processor must only be called on that event loop.
+   */
+  MetricProcessor producer(EventExecutor executor) {
+    MetricRing ring = ring(executor);
+    return metric -> offload(ring, metric);
+  }
+
+  /**
+   * Adds a metric to a ring, applying the overflow policy if it is full.
+   */
+  void offload(MetricRing ring, Metric metric) {
+    if (ring.offer(metric)) {
+      return;
+    }
+
+    switch (policy) {
+      case DROP_NEWEST:
+        ring.drop();
+        break;
+      case DROP_OLDEST:
+        do {
+          // The consumer may empty the ring first, in which case there is nothing to evict
+          if (ring.poll() != null) {
+            ring.drop();
+          }
+        } while (!ring.offer(metric));
+        break;
+      case BLOCK:
+        while (!ring.offer(metric)) {
+          if (closed) {
+            ring.drop();
+            return;
+          }
+          LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unknown overflow policy: " + policy);
+    }
+  }
+
+  /**
+   * @return the number of metrics queued across every ring
+   */
+  synchronized long depth() {
+    long depth = 0;
+    for (MetricRing ring : rings.values()) {
+      depth += ring.size();
+    }
+    return depth;
+  }
+
+  /**
+   * @return the number of metrics dropped across every ring because it was full
+   */
+  synchronized long droppedCount() {
+    long dropped = 0;
+    for (MetricRing ring : rings.values()) {
+      dropped += ring.droppedCount();
+    }
+    return dropped;
+  }
+
+  /**
+   * Stops the consumer threads once they have drained their rings. Metrics offloaded after this
+   * method is called may not be processed.
+   */
+  @Override public void close() {
+    close(CLOSE_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Stops the consumer threads once they have drained their rings, waiting up to the given timeout
+   * for them to do so. Metrics offloaded after this method is called may not be processed.
+   *
+   * @return whether every consumer thread finished within the timeout
+   */
+  boolean close(long timeoutMillis) {
+    closed = true;
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    try {
+      for (Thread thread : threads) {
+        if (thread.isAlive()) {
+          thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Thread thread : threads) {
+      if (thread.isAlive()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Drains the rings assigned to one consumer thread.
+   */
+  private final class Consumer implements Runnable {
+
+    // Replaced when a ring is assigned, so draining does not need a lock or allocate
+    private volatile MetricRing[] rings = new MetricRing[0];
+    private final MetricBatch batch = new MetricBatch();
+
+    synchronized void assign(MetricRing ring) {
+      MetricRing[] assigned = Arrays.copyOf(rings, rings.length + 1);
+      assigned[rings.length] = ring;
+      rings = assigned;
+    }
+
+    @Override public void run() {
+      int idle = 0;
+      while (!closed) {
+        if (drain() > 0) {
+          idle = 0;
+        } else if (++idle < IDLE_SPINS) {
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+      }
+
+      while (drain() > 0) {
+        // Process everything offloaded before the offloader was closed
+      }
+    }
+
+    private int drain() {
+      int drained = 0;
+      for (MetricRing ring : rings) {
+        Metric metric;
+        while (!batch.isFull() && (metric = ring.poll()) != null) {
+          batch.add(metric);
+        }
+        if (batch.isEmpty()) {
+          continue;
+        }
+
+        drained += batch.size();
+        try {
+          processor.processBatch(batch);
+        } catch (Exception e) {
+          logger.warn("Failed to process a batch of {} metrics", batch.size(), e);
+        } finally {
+          batch.clear();
+        }
+      }
+      return drained;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import rs.nicktrave.statsd.common.Metric;
+
+/**
+ * A bounded, lock-free queue of metrics backed by a preallocated ring.
+ *
+ * <p>The ring follows Dmitry Vyukov's bounded queue. Each slot carries a sequence number that
+ * tells producers and consumers whether it is free to write or ready to read, so neither side
+ * needs a lock and the head and tail are only contended by threads on the same side. Producers
+ * are typically the event loop that owns the ring, and consumers the offload thread it is
+ * assigned to. Any thread may poll, which lets a producer evict the oldest metric when the ring
+ * is full.
+ */
+final class MetricRing {
+
+  static final int MAX_CAPACITY = 1 << 30;
+
+  private final int mask;
+  private final AtomicReferenceArray<Metric> metrics;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * @param capacity the minimum number of metrics the ring can hold, rounded up to a power of two
+   *     no less than two
+   * @throws IllegalArgumentException if the capacity is not positive or too large
+   */
+  MetricRing(int capacity) {
+    if (capacity <= 0 || capacity > MAX_CAPACITY) {
+      throw new IllegalArgumentException(
+          "Capacity " + capacity + " is not in the range [1, " + MAX_CAPACITY + "]");
+    }
+    // A single slot could not distinguish a full ring from an empty one by its sequence alone
+    int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+    mask = size - 1;
+    metrics = new AtomicReferenceArray<>(size);
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Adds a metric to the ring.
+   *
+   * @return false if the ring is full
+   */
+  boolean offer(Metric metric) {
+    long position = tail.get();
+    while (true) {
+      int index = (int) position & mask;
+      long available = sequences.get(index) - position;
+      if (available == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          metrics.lazySet(index, metric);
+          sequences.lazySet(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (available < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes and returns the oldest metric in the ring, or null if it is empty.
+   */
+  Metric poll() {
+    long position = head.get();
+    while (true) {
+      int index = (int) position & mask;
+      long ready = sequences.get(index) - (position + 1);
+      if (ready == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          Metric metric = metrics.get(index);
+          metrics.lazySet(index, null);
+          sequences.lazySet(index, position + mask + 1);
+          return metric;
+        }
+        position = head.get();
+      } else if (ready < 0) {
+        return null;
+      } else {
+        position = head.get();
+      }
+    }
+  }
+
+  /**
+   * Records that a metric was dropped rather than added to the ring.
+   */
+  void drop() {
+    dropped.incrementAndGet();
+  }
+
+  /**
+   * @return the number of metrics in the ring, which may be stale by the time it is returned
+   */
+  int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, mask + 1));
+  }
+
+  /**
+   * @return the number of metrics the ring can hold
+   */
+  int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * @return the number of metrics dropped because the ring was full
+   */
+  long droppedCount() {
+    return dropped.get();
+  }
+}
@@ -16,54 +16,219 @@
 package rs.nicktrave.statsd.server.netty;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.MultithreadEventLoopGroup;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.ServerChannel;
 import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.epoll.EpollDatagramChannel;
 import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import rs.nicktrave.statsd.server.MetricProcessor;
+import rs.nicktrave.statsd.server.aggregate.IntervalFlusher;
+import rs.nicktrave.statsd.server.stats.StatsRegistry;
 
 /**
  * A Netty-based UDP server that decodes incoming statsd packets and offloads them to a {@link
  * MetricProcessor} instance.
+ *
+ * <p>The server can optionally also accept newline-delimited metrics over TCP, for senders that
+ * cannot afford to lose metrics to dropped datagrams. Each connection is decoded into its own
+ * batch, using the same decoder and processor as the UDP channels.
+ *
+ * <p>With the epoll transport, the same newline-delimited protocol can be accepted on a Unix
+ * domain socket, for senders on the same host. These bypass the IP stack entirely, and a slow
+ * server applies backpressure to the sender rather than dropping its metrics.
+ *
+ * <p>By default every channel shares one decoder and name cache. The pipeline can instead be
+ * shared nothing, with a decoder and name cache per event loop thread. See {@link
+ * Builder#withSharedNothing(boolean)}.
+ *
+ * <p>The server counts the datagrams, connections, metrics and malformed metrics it receives, and
+ * how long the processor takes, in a {@link StatsRegistry}. See {@link #getStats()}.
+ *
+ * <p>On Linux, the server also periodically reads the kernel's accounting of each UDP socket, so
+ * that datagrams dropped by the kernel because the server fell behind can be told apart from
+ * datagrams lost in the network. See {@link #getKernelDropCount()}.
+ *
+ * <p>Shutting down stops reading, drains queued metrics and flushes them to the backends before
+ * releasing the event loops, within a deadline. See {@link #shutdown(long, TimeUnit)}. If the
+ * flusher checkpoints the aggregation state, the state is restored before the server binds its
+ * sockets, and the interval in progress is checkpointed rather than flushed when it shuts down, so
+ * that a restart does not leave a gap or a spike. See {@link
+ * IntervalFlusher.Builder#withCheckpoint(java.io.File)}.
  */
 public class NettyUdpServer {
 
+  private static final InternalLogger logger =
+      InternalLoggerFactory.getInstance(NettyUdpServer.class);
+
   private static final int DEFAULT_PORT = 8125;
+  private static final int DEFAULT_TCP_MAX_CONNECTIONS = 1024;
+  private static final int DEFAULT_TCP_READ_BUFFER_SIZE = 64 * 1024;
+  private static final int DEFAULT_TCP_MAX_LINE_LENGTH = 64 * 1024;
+  private static final int DEFAULT_MAX_DATAGRAMS_PER_READ = 16;
+  private static final int DEFAULT_DATAGRAM_BUFFER_SIZE = 2048;
+  private static final int MIN_DATAGRAM_BUFFER_SIZE = 128;
+  private static final int MAX_DATAGRAM_BUFFER_SIZE = 64 * 1024;
+  private static final long DEFAULT_KERNEL_STATS_INTERVAL_MILLIS = 10_000;
+  private static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 30_000;
 
+  private final StatsRegistry stats;
   private final MetricProcessor processor;
+  private final MetricOffloader offloader;
+  private final IntervalFlusher flusher;
+  private final boolean sharedNothing;
+  private final int nameCacheCapacity;
+  private final ParseErrors parseErrors = new ParseErrors();
+  private final boolean lenient;
+  // The decoder and read statistics of every channel, or of each event loop if shared nothing
+  private final LoopState sharedLoop;
+  private final Map<EventExecutor, LoopState> loops = new ConcurrentHashMap<>();
   private final boolean epoll;
   private final EventLoopGroup group;
   private final Channel[] channels;
+  private final RecvByteBufAllocator datagramAllocator;
+  private final int receiveBufferSize;
+  private final KernelUdpStats kernelStats;
+  private final long kernelStatsIntervalMillis;
   private final InetSocketAddress address;
+  private final boolean portRange;
+  private final InetSocketAddress tcpAddress;
+  private final int tcpMaxConnections;
+  private final int tcpReadBufferSize;
+  private final int tcpMaxLineLength;
+  private final AtomicInteger tcpConnections = new AtomicInteger();
+  private final AtomicLong tcpRejectedConnections = new AtomicLong();
   private final AtomicBoolean started;
+  private final String domainSocketPath;
+  private final AtomicInteger domainSocketConnections = new AtomicInteger();
+  private final AtomicLong domainSocketRejectedConnections = new AtomicLong();
+  // Open TCP and domain socket connections, which are removed as they close
+  private final ChannelGroup openConnections =
+      new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+  private Channel tcpChannel;
+  private Channel domainSocketChannel;
+  private ScheduledExecutorService kernelStatsExecutor;
 
   // TODO(nickt): Add null checks and validation when constructing
   private NettyUdpServer(Builder builder) {
-    processor = builder.processor;
+    int maxDatagramsPerRead = builder.maxDatagramsPerRead > 0
+        ? builder.maxDatagramsPerRead : DEFAULT_MAX_DATAGRAMS_PER_READ;
+    int datagramBufferSize = builder.datagramBufferSize > 0
+        ? builder.datagramBufferSize : DEFAULT_DATAGRAM_BUFFER_SIZE;
+    datagramAllocator = builder.datagramBufferPercentile > 0
+        ? new PercentileRecvByteBufAllocator(
+            Math.min(MIN_DATAGRAM_BUFFER_SIZE, datagramBufferSize), datagramBufferSize,
+            Math.max(MAX_DATAGRAM_BUFFER_SIZE, datagramBufferSize),
+            builder.datagramBufferPercentile)
+            .maxMessagesPerRead(maxDatagramsPerRead)
+        : new FixedRecvByteBufAllocator(datagramBufferSize)
+            .maxMessagesPerRead(maxDatagramsPerRead);
+    receiveBufferSize = builder.receiveBufferSize;
+
+    stats = builder.stats != null ? builder.stats : new StatsRegistry();
+    processor = builder.processor != null
+        ? stats.instrument(builder.processor, "processor") : null;
+    offloader = builder.offloadThreads > 0
+        ? new MetricOffloader(processor, builder.offloadThreads, builder.offloadCapacity,
+            builder.overflowPolicy)
+        : null;
+    flusher = builder.flusher;
+    nameCacheCapacity = builder.nameCacheCapacity > 0
+        ? builder.nameCacheCapacity : MetricNameCache.DEFAULT_CAPACITY;
+    sharedNothing = builder.sharedNothing;
+    lenient = builder.lenient;
+    sharedLoop = sharedNothing ? null : new LoopState();
     epoll = builder.epoll;
 
-    int numChannels;
     int numThreads = builder.threads;
-    if (epoll) {
-      numChannels = numThreads;
-      group = new EpollEventLoopGroup(numThreads);
-    } else {
-      numChannels = 1; // cannot reuse the port with the NIO transport, hence a single channel
-      group = new NioEventLoopGroup(numThreads);
-    }
+    group = epoll ? new EpollEventLoopGroup(numThreads) : new NioEventLoopGroup(numThreads);
 
+    // Without SO_REUSEPORT or a port range, a port can only be bound by a single channel
+    int numChannels = builder.channels > 0 ? builder.channels
+        : epoll ? ((MultithreadEventLoopGroup) group).executorCount() : 1;
     channels = new Channel[numChannels];
-    address = new InetSocketAddress(builder.port > 0 ? builder.port : DEFAULT_PORT);
+    kernelStats = KernelUdpStats.isAvailable() ? new KernelUdpStats(numChannels) : null;
+    kernelStatsIntervalMillis = builder.kernelStatsIntervalMillis > 0
+        ? builder.kernelStatsIntervalMillis : DEFAULT_KERNEL_STATS_INTERVAL_MILLIS;
+    address = new InetSocketAddress(builder.port());
+    portRange = builder.portRange;
+    tcpAddress = builder.tcpPort > 0 ? new InetSocketAddress(builder.tcpPort) : null;
+    tcpMaxConnections = builder.tcpMaxConnections > 0
+        ? builder.tcpMaxConnections : DEFAULT_TCP_MAX_CONNECTIONS;
+    tcpReadBufferSize = builder.tcpReadBufferSize > 0
+        ? builder.tcpReadBufferSize : DEFAULT_TCP_READ_BUFFER_SIZE;
+    tcpMaxLineLength = builder.tcpMaxLineLength > 0
+        ? builder.tcpMaxLineLength : DEFAULT_TCP_MAX_LINE_LENGTH;
+    domainSocketPath = builder.domainSocketPath;
     started = new AtomicBoolean(false);
+    registerStats();
+  }
+
+  private void registerStats() {
+    stats.registerCounter("udp.datagrams", this::getDatagramCount);
+    stats.registerCounter("udp.reads", this::getDatagramReadCount);
+    stats.registerGauge("tcp.connections", tcpConnections::get);
+    stats.registerCounter("tcp.rejected_connections", tcpRejectedConnections::get);
+    stats.registerGauge("domain_socket.connections", domainSocketConnections::get);
+    stats.registerCounter("domain_socket.rejected_connections",
+        domainSocketRejectedConnections::get);
+    for (ParseError error : ParseError.values()) {
+      stats.registerCounter("parse_errors." + error.name().toLowerCase(Locale.ROOT),
+          () -> parseErrors.count(error));
+    }
+    if (kernelStats != null) {
+      stats.registerCounter("udp.kernel_drops", kernelStats::totalDrops);
+      for (int i = 0; i < kernelStats.size(); i++) {
+        int socket = i;
+        stats.registerCounter("udp.socket." + i + ".kernel_drops",
+            () -> kernelStats.drops(socket));
+        stats.registerGauge("udp.socket." + i + ".receive_queue_bytes",
+            () -> kernelStats.receiveQueueBytes(socket));
+      }
+    }
+    if (offloader != null) {
+      stats.registerGauge("offload.depth", offloader::depth);
+      stats.registerCounter("offload.dropped", offloader::droppedCount);
+    }
   }
 
   /**
@@ -81,6 +246,26 @@ public class NettyUdpServer {
     private MetricProcessor processor;
     private int threads;
     private int port;
+    private int nameCacheCapacity;
+    private int channels;
+    private boolean portRange;
+    private int maxDatagramsPerRead;
+    private int receiveBufferSize;
+    private int datagramBufferSize;
+    private double datagramBufferPercentile;
+    private int offloadThreads;
+    private int offloadCapacity;
+    private OverflowPolicy overflowPolicy;
+    private int tcpPort;
+    private int tcpMaxConnections;
+    private int tcpReadBufferSize;
+    private int tcpMaxLineLength;
+    private String domainSocketPath;
+    private boolean sharedNothing;
+    private boolean lenient;
+    private StatsRegistry stats;
+    private long kernelStatsIntervalMillis;
+    private IntervalFlusher flusher;
     private boolean epoll = false;
 
     /**
@@ -107,6 +292,248 @@ public class NettyUdpServer {
       return this;
     }
 
+    /**
+     * Sets the number of UDP sockets to read from. The sockets are spread across the event loop
+     * threads, so this caps the number of threads that read datagrams. Defaults to one per thread
+     * with the epoll transport, and one with the NIO transport.
+     *
+     * <p>Unless a port range is used, the sockets share the port with {@code SO_REUSEPORT}, and the
+     * kernel spreads datagrams between them by sender. With the NIO transport this requires JDK 9
+     * or later, on a platform that supports the option.
+     */
+    public Builder withChannels(int channels) {
+      this.channels = channels;
+      return this;
+    }
+
+    /**
+     * Whether to bind each UDP socket to its own port, counting up from the configured port,
+     * rather than sharing a single port. Senders must then spread their metrics across the ports
+     * themselves. This allows several sockets with the NIO transport on any JDK.
+     */
+    public Builder withPortRange(boolean value) {
+      this.portRange = value;
+      return this;
+    }
+
+    /**
+     * Sets the number of distinct metric names retained by each name cache. There is one cache
+     * shared by all channels, or one per event loop thread if the pipeline is shared nothing.
+     * Defaults to {@link MetricNameCache#DEFAULT_CAPACITY}.
+     */
+    public Builder withNameCacheCapacity(int capacity) {
+      this.nameCacheCapacity = capacity;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of datagrams each channel reads from its socket before yielding to
+     * the other channels on its event loop. Defaults to 16.
+     *
+     * <p>Larger values let a busy channel drain more of its socket per wakeup, and deliver larger
+     * batches to the processor, at the cost of fairness between channels sharing a thread. The
+     * effect can be seen with {@link NettyUdpServer#getDatagramCount()} and {@link
+     * NettyUdpServer#getDatagramReadCount()}.
+     */
+    public Builder withMaxDatagramsPerRead(int maxDatagrams) {
+      this.maxDatagramsPerRead = maxDatagrams;
+      return this;
+    }
+
+    /**
+     * Sets the size of the kernel's receive buffer for each UDP socket ({@code SO_RCVBUF}), in
+     * bytes. Defaults to the system default.
+     *
+     * <p>The receive buffer holds datagrams that have arrived but not yet been read, and datagrams
+     * that arrive while it is full are dropped by the kernel. A larger buffer absorbs longer
+     * bursts. The kernel may cap the size (on Linux, at {@code net.core.rmem_max}), so the
+     * effective size is logged when the server starts, and reported by {@link
+     * NettyUdpServer#getReceiveBufferSize()}.
+     */
+    public Builder withReceiveBufferSize(int bytes) {
+      this.receiveBufferSize = bytes;
+      return this;
+    }
+
+    /**
+     * Sets the size of the buffer each datagram is read into, in bytes. Datagrams larger than the
+     * buffer are truncated. Defaults to 2048.
+     *
+     * <p>When adaptive sizing is enabled, this is the size used until enough datagrams have been
+     * received to choose one.
+     */
+    public Builder withDatagramBufferSize(int bytes) {
+      this.datagramBufferSize = bytes;
+      return this;
+    }
+
+    /**
+     * Sizes the buffer each datagram is read into from the sizes of recently received datagrams,
+     * rather than using a fixed size. Defaults to a fixed size.
+     *
+     * <p>Each channel periodically resizes its buffer to the next power of two above the given
+     * percentile of the datagram sizes it has received, between 128 bytes and 64KB. A datagram
+     * that fills the buffer makes the channel read into the largest size until it next resizes, but
+     * the datagram itself may have been truncated. Higher percentiles truncate fewer datagrams.
+     *
+     * @param percentile the percentile of datagram sizes to fit, in (0, 100]
+     */
+    public Builder withAdaptiveDatagramBufferSize(double percentile) {
+      this.datagramBufferPercentile = percentile;
+      return this;
+    }
+
+    /**
+     * Processes metrics on a dedicated pool of threads, rather than on the Netty event loops.
+     *
+     * <p>Each event loop queues decoded metrics on its own bounded, preallocated ring, which is
+     * drained by one of the consumer threads. When a ring is full, the overflow policy decides
+     * whether the metric, or the oldest queued metric, is dropped, or whether the event loop waits.
+     * The queue depth and drops are reported by {@link #getOffloadQueueDepth()} and {@link
+     * #getOffloadDroppedCount()}.
+     *
+     * <p>Without this option, the processor is called on the event loops, and a slow processor
+     * delays socket reads.
+     *
+     * @param threads the number of consumer threads calling the processor
+     * @param capacity the number of metrics that can be queued by each event loop, rounded up to a
+     *     power of two
+     * @param policy what to do when an event loop's queue is full
+     */
+    public Builder withOffload(int threads, int capacity, OverflowPolicy policy) {
+      this.offloadThreads = threads;
+      this.offloadCapacity = capacity;
+      this.overflowPolicy = policy;
+      return this;
+    }
+
+    /**
+     * Sets the port to accept newline-delimited metrics on over TCP. Defaults to not listening on
+     * TCP.
+     */
+    public Builder withTcpPort(int port) {
+      this.tcpPort = port;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of open TCP connections. Further connections are closed as soon as
+     * they are accepted. Defaults to 1024.
+     */
+    public Builder withTcpMaxConnections(int maxConnections) {
+      this.tcpMaxConnections = maxConnections;
+      return this;
+    }
+
+    /**
+     * Sets the size of the buffer each read from a TCP connection is made into, in bytes. Larger
+     * buffers decode more metrics per read from busy connections. Defaults to 64KB.
+     */
+    public Builder withTcpReadBufferSize(int bytes) {
+      this.tcpReadBufferSize = bytes;
+      return this;
+    }
+
+    /**
+     * Sets the maximum length of a line received over TCP, in bytes. Longer lines are discarded.
+     * Defaults to 64KB.
+     */
+    public Builder withTcpMaxLineLength(int bytes) {
+      this.tcpMaxLineLength = bytes;
+      return this;
+    }
+
+    /**
+     * Sets the path of a Unix domain socket to accept newline-delimited metrics on. Defaults to not
+     * listening on a domain socket.
+     *
+     * <p>Any existing file at the path, such as a socket left behind by a previous process, is
+     * replaced when the server starts, and the socket is removed when it shuts down. The limits
+     * set by {@link #withTcpMaxConnections(int)}, {@link #withTcpReadBufferSize(int)} and {@link
+     * #withTcpMaxLineLength(int)} also apply to domain socket connections, with connections
+     * counted separately.
+     *
+     * <p>Note that this requires the epoll transport.
+     */
+    public Builder withDomainSocketPath(String path) {
+      this.domainSocketPath = path;
+      return this;
+    }
+
+    /**
+     * Whether to skip malformed metrics without failing, rather than failing the rest of the
+     * datagram or read with an exception once it has been decoded. Defaults to failing.
+     *
+     * <p>Failing builds an exception, with its stack trace, for every malformed metric, and passes
+     * it through the pipeline to be logged, so a single misbehaving client can slow the server down
+     * considerably. Lenient parsing only counts malformed metrics, and logs a small sample of them.
+     * In both cases they are counted by {@link NettyUdpServer#getParseErrors()}.
+     */
+    public Builder withLenientParsing(boolean value) {
+      this.lenient = value;
+      return this;
+    }
+
+    /**
+     * Sets the registry to record the server's statistics in, which may be shared with other
+     * components, but not another server. Defaults to a registry of the server's own.
+     */
+    public Builder withStats(StatsRegistry stats) {
+      this.stats = stats;
+      return this;
+    }
+
+    /**
+     * Sets the flusher of the processor, which is flushed one last time when the server shuts down,
+     * so that metrics received since its last periodic flush are not lost. The flusher must be
+     * started separately. Defaults to no final flush.
+     *
+     * <p>If the flusher checkpoints the processor, the checkpoint is restored when the server
+     * starts, and written in place of the final flush when it shuts down.
+     *
+     * @see NettyUdpServer#shutdown(long, TimeUnit)
+     */
+    public Builder withFlusher(IntervalFlusher flusher) {
+      this.flusher = flusher;
+      return this;
+    }
+
+    /**
+     * Sets how often to read the kernel's accounting of each UDP socket, in milliseconds. Defaults
+     * to every ten seconds. This only has an effect on Linux.
+     *
+     * @see NettyUdpServer#getKernelDropCount()
+     */
+    public Builder withKernelStatsInterval(long intervalMillis) {
+      this.kernelStatsIntervalMillis = intervalMillis;
+      return this;
+    }
+
+    /**
+     * Whether to give each event loop thread its own decoder, name cache and datagram read
+     * statistics, rather than sharing them between all channels. Defaults to sharing.
+     *
+     * <p>This is most effective with the epoll transport, where each thread reads from its own
+     * socket by default. Combined with a processor that keeps per-thread state, such as the
+     * per-thread shards of an {@code AggregatingProcessor}, a metric is then received, decoded and
+     * aggregated on one thread, and only crosses threads when it is flushed. Each thread retains up
+     * to the configured number of names, so the name caches use correspondingly more memory.
+     *
+     * <p>A few statistics remain shared between the threads: the parse error counts, and the
+     * processor's metric count and latency histogram. Each is striped across threads, so the
+     * threads do not update the same memory, and the stripes are only summed when read.
+     *
+     * <p>The server does not pin its threads to CPU cores. To keep each thread's caches warm, pin
+     * the whole process to a set of CPUs when launching it, for example with {@code taskset} or a
+     * cpuset cgroup.
+     *
+     * <p>Offloading hands metrics to other threads, and cannot be combined with this option.
+     */
+    public Builder withSharedNothing(boolean value) {
+      this.sharedNothing = value;
+      return this;
+    }
+
     /**
      * Whether to use the epoll transport for this server.
      *
@@ -119,10 +546,42 @@ public class NettyUdpServer {
 
     /**
      * Construct and return a new server instance.
+     *
+     * @throws IllegalArgumentException if offloading is configured with a capacity that is out of
+     *     range, a domain socket is configured without the epoll transport, the adaptive
+     *     datagram buffer percentile is out of range, a port range would exceed the maximum port,
+     *     or the pipeline is shared nothing but offloads metrics
+     * @throws IllegalStateException if several NIO sockets would share a port, but {@code
+     *     SO_REUSEPORT} is not supported
      */
     public NettyUdpServer build() {
+      if (offloadThreads > 0 && overflowPolicy == null) {
+        throw new IllegalArgumentException("Overflow policy must be provided");
+      }
+      if (domainSocketPath != null && !epoll) {
+        throw new IllegalArgumentException("Domain sockets require the epoll transport");
+      }
+      if (datagramBufferPercentile < 0 || datagramBufferPercentile > 100) {
+        throw new IllegalArgumentException(
+            "Percentile must be in (0, 100]: " + datagramBufferPercentile);
+      }
+      if (sharedNothing && offloadThreads > 0) {
+        throw new IllegalArgumentException("A shared nothing pipeline cannot offload metrics");
+      }
+      if (channels > 1 && portRange && port() + channels - 1 > 0xFFFF) {
+        throw new IllegalArgumentException(
+            "Port range " + port() + "+" + channels + " exceeds the maximum port");
+      }
+      if (channels > 1 && !portRange && !epoll && !NioReusePort.isSupported()) {
+        throw new IllegalStateException("Sharing a port between NIO sockets requires SO_REUSEPORT,"
+            + " which is not supported by this JDK and platform. Use a port range instead");
+      }
       return new NettyUdpServer(this);
     }
+
+    private int port() {
+      return port > 0 ? port : DEFAULT_PORT;
+    }
   }
 
   /**
@@ -133,66 +592,438 @@ public class NettyUdpServer {
    * {@link IOException}.
    *
    * @throws InterruptedException if the server was interrupted when starting up
+   * @throws IOException if a stale domain socket could not be removed
    */
-  public synchronized void start() throws InterruptedException {
+  public synchronized void start() throws InterruptedException, IOException {
     if (started.get()) {
       return;
     }
 
+    // Before any metrics are received, so that they are aggregated on top of the restored state
+    if (flusher != null) {
+      flusher.restore();
+    }
+
     Bootstrap bootstrap = new Bootstrap();
     bootstrap.group(group)
+        .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+        .option(ChannelOption.RCVBUF_ALLOCATOR, datagramAllocator)
         .handler(new ChannelInitializer<DatagramChannel>() {
           @Override protected void initChannel(DatagramChannel ch) throws Exception {
             ChannelPipeline pipeline = ch.pipeline();
-            pipeline.addLast(new DatagramToMetricDecoder());
-            pipeline.addLast(new MetricOffloadHandler(processor));
+            LoopState loop = loop(ch.eventLoop());
+            pipeline.addLast(loop.readStats);
+            if (offloader != null) {
+              pipeline.addLast(loop.decoder);
+              pipeline.addLast(new MetricOffloadHandler(offloader));
+            } else {
+              pipeline.addLast(new DatagramToMetricBatchDecoder(loop.decoder, processor));
+            }
           }
         });
 
+    if (receiveBufferSize > 0) {
+      bootstrap.option(ChannelOption.SO_RCVBUF, receiveBufferSize);
+    }
+
     if (epoll) {
       bootstrap
           .channel(EpollDatagramChannel.class)
           .option(EpollChannelOption.SO_REUSEPORT, true);
+    } else if (channels.length > 1 && !portRange) {
+      bootstrap.channelFactory(NioReusePort.channelFactory());
     } else {
       bootstrap.channel(NioDatagramChannel.class);
     }
 
+    if (offloader != null) {
+      offloader.start();
+    }
+
     try {
       for (int i = 0; i < channels.length; i++) {
-        channels[i] = bootstrap.bind(address).sync().channel();
+        channels[i] = bootstrap.bind(portRange
+            ? new InetSocketAddress(address.getAddress(), address.getPort() + i) : address)
+            .sync().channel();
+      }
+      logReceiveBufferSize();
+      startKernelStats();
+      if (tcpAddress != null) {
+        tcpChannel = newStreamBootstrap(
+            epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class,
+            tcpConnections, tcpRejectedConnections)
+            .bind(tcpAddress).sync().channel();
+      }
+      if (domainSocketPath != null) {
+        Files.deleteIfExists(Paths.get(domainSocketPath));
+        domainSocketChannel = newStreamBootstrap(EpollServerDomainSocketChannel.class,
+            domainSocketConnections, domainSocketRejectedConnections)
+            .bind(new DomainSocketAddress(domainSocketPath)).sync().channel();
       }
     } catch (Exception e) {
-      doShutdown();
+      doShutdown(
+          System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEFAULT_SHUTDOWN_TIMEOUT_MILLIS));
       throw e;
     }
 
     started.set(true);
   }
 
+  private void startKernelStats() {
+    if (kernelStats == null) {
+      return;
+    }
+    for (int i = 0; i < channels.length; i++) {
+      Channel channel = channels[i];
+      kernelStats.setSocket(i,
+          epoll ? ((EpollDatagramChannel) channel).fd().intValue() : -1,
+          ((InetSocketAddress) channel.localAddress()).getPort());
+    }
+    // Reading the accounting is blocking file I/O that grows with the sockets on the host, so it
+    // runs on its own thread rather than delaying an event loop
+    kernelStatsExecutor = Executors.newSingleThreadScheduledExecutor(
+        new DefaultThreadFactory("statsd-kernel-stats", true));
+    kernelStatsExecutor.scheduleAtFixedRate(this::refreshKernelStats, 0,
+        kernelStatsIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Reads the kernel's accounting of each UDP socket, if available.
+   */
+  void refreshKernelStats() {
+    if (kernelStats == null) {
+      return;
+    }
+    try {
+      kernelStats.refresh();
+    } catch (IOException | RuntimeException e) {
+      logger.debug("Failed to read the kernel's UDP socket accounting", e);
+    }
+  }
+
+  private ServerBootstrap newStreamBootstrap(Class<? extends ServerChannel> channelClass,
+      AtomicInteger connections, AtomicLong rejectedConnections) {
+    ServerBootstrap bootstrap = new ServerBootstrap();
+    bootstrap.group(group)
+        .channel(channelClass)
+        .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+        .childOption(ChannelOption.RCVBUF_ALLOCATOR,
+            new FixedRecvByteBufAllocator(tcpReadBufferSize))
+        .childHandler(new ChannelInitializer<Channel>() {
+          @Override protected void initChannel(Channel ch) throws Exception {
+            MetricProcessor channelProcessor = offloader != null
+                ? offloader.producer(ch.eventLoop()) : processor;
+            openConnections.add(ch);
+            ChannelPipeline pipeline = ch.pipeline();
+            pipeline.addLast(new ConnectionLimitHandler(connections, rejectedConnections,
+                tcpMaxConnections));
+            pipeline.addLast(new StreamToMetricBatchDecoder(loop(ch.eventLoop()).decoder,
+                channelProcessor, tcpMaxLineLength));
+          }
+        });
+    return bootstrap;
+  }
+
+  /**
+   * Returns the decoder and read statistics for channels on the given event loop.
+   */
+  private LoopState loop(EventExecutor loop) {
+    if (!sharedNothing) {
+      return sharedLoop;
+    }
+    return loops.computeIfAbsent(loop, key -> new LoopState());
+  }
+
+  /**
+   * The state used by the channels of one event loop, or of every event loop unless the pipeline
+   * is shared nothing.
+   */
+  private final class LoopState {
+
+    final DatagramToMetricDecoder decoder = new DatagramToMetricDecoder(
+        new MetricNameCache(nameCacheCapacity), parseErrors, lenient);
+    final DatagramReadStatsHandler readStats = new DatagramReadStatsHandler();
+  }
+
+  private void logReceiveBufferSize() {
+    Object bound = portRange && channels.length > 1
+        ? address + "-" + (address.getPort() + channels.length - 1) : address;
+    int effective = getReceiveBufferSize();
+    // Linux reports double the size it granted, to allow for bookkeeping overhead. The JDK halves
+    // it again for NIO sockets, but epoll reports it as is.
+    int granted = epoll ? effective / 2 : effective;
+    if (receiveBufferSize > 0 && granted < receiveBufferSize) {
+      logger.warn("Bound {} UDP channel(s) to {} with a receive buffer of {} bytes, less than the"
+          + " {} requested. The size may be capped by net.core.rmem_max", channels.length, bound,
+          granted, receiveBufferSize);
+    } else {
+      logger.info("Bound {} UDP channel(s) to {} with a receive buffer of {} bytes",
+          channels.length, bound, effective);
+    }
+  }
+
   /**
-   * Shuts down the server, closing all bound channels and shutting down the event loop.
+   * Shuts down the server, waiting up to thirty seconds for metrics already received to be
+   * processed and flushed.
+   *
+   * @see #shutdown(long, TimeUnit)
    */
   public synchronized void shutdown() {
+    shutdown(DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Shuts down the server in phases, so that metrics already received are processed and flushed
+   * rather than lost:
+   *
+   * <ol>
+   *   <li>Stop reading, by closing every channel and open connection. Each connection processes
+   *   the metrics it has buffered as it closes.</li>
+   *   <li>Drain the metrics queued for the offload threads, if offloading is configured.</li>
+   *   <li>Flush the metrics aggregated since the last periodic flush to the backends, if a flusher
+   *   is configured with {@link Builder#withFlusher(IntervalFlusher)}. If the flusher checkpoints
+   *   the processor, the metrics are checkpointed instead, to be flushed by the next process.</li>
+   *   <li>Release the event loops.</li>
+   * </ol>
+   *
+   * <p>Each phase waits at most until the deadline. Once the deadline has passed, the remaining
+   * phases only release resources: queued metrics may be dropped, and the final flush is skipped.
+   * A final flush that has started is not interrupted. The time taken by each phase is logged, so
+   * that a rolling restart can allow enough time.
+   *
+   * @param timeout the maximum time to wait for the server to shut down
+   * @return how long each phase took, or null if the server was not started
+   */
+  public synchronized ShutdownReport shutdown(long timeout, TimeUnit unit) {
     if (!started.get()) {
-      return;
+      return null;
     }
 
-    doShutdown();
+    ShutdownReport report = doShutdown(System.nanoTime() + unit.toNanos(timeout));
+    if (report.isCompleted()) {
+      logger.info("Shut down: {}", report);
+    } else {
+      logger.warn("Shut down after the deadline of {}ms: {}", unit.toMillis(timeout), report);
+    }
 
     started.set(false);
+    return report;
   }
 
-  private void doShutdown() {
+  private ShutdownReport doShutdown(long deadline) {
+    if (kernelStatsExecutor != null) {
+      kernelStatsExecutor.shutdownNow();
+      kernelStatsExecutor = null;
+    }
+
+    boolean completed = true;
+    long start = System.nanoTime();
     try {
-      for (Channel channel : channels) {
-        if (channel == null) {
-          continue;
-        }
-        channel.close().sync();
+      completed = stopReading(deadline);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      completed = false;
+    }
+
+    long stopped = System.nanoTime();
+    if (offloader != null) {
+      completed &= offloader.close(TimeUnit.NANOSECONDS.toMillis(remaining(deadline)));
+    }
+
+    long drained = System.nanoTime();
+    if (flusher != null) {
+      completed &= finalFlush(deadline);
+    }
+
+    long flushed = System.nanoTime();
+    Future<?> release = group.shutdownGracefully(0, remaining(deadline), TimeUnit.NANOSECONDS);
+    try {
+      completed &= release.await(remaining(deadline), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      completed = false;
+    }
+
+    return new ShutdownReport(stopped - start, drained - stopped, flushed - drained,
+        System.nanoTime() - flushed, completed);
+  }
+
+  /**
+   * Closes every listening channel, and then every open connection.
+   *
+   * @return whether every channel closed before the deadline
+   */
+  private boolean stopReading(long deadline) throws InterruptedException {
+    List<ChannelFuture> closing = new ArrayList<>();
+    for (Channel channel : channels) {
+      if (channel != null) {
+        closing.add(channel.close());
       }
-    } catch (InterruptedException ignored) {
-    } finally {
-      group.shutdownGracefully();
     }
+    if (tcpChannel != null) {
+      closing.add(tcpChannel.close());
+    }
+    if (domainSocketChannel != null) {
+      closing.add(domainSocketChannel.close()); // also removes the socket file
+    }
+
+    boolean closed = true;
+    for (ChannelFuture future : closing) {
+      closed &= future.await(remaining(deadline), TimeUnit.NANOSECONDS);
+    }
+    // Once the listeners are closed, there are no new connections
+    return closed && openConnections.close().await(remaining(deadline), TimeUnit.NANOSECONDS);
+  }
+
+  private boolean finalFlush(long deadline) {
+    long remaining = remaining(deadline);
+    if (remaining == 0) {
+      logger.warn("Skipping the final flush, as the shutdown deadline has passed");
+      flusher.close();
+      return false;
+    }
+    try {
+      if (flusher.hasCheckpoint()) {
+        return flusher.closeAndCheckpoint(remaining, TimeUnit.NANOSECONDS);
+      }
+      return flusher.closeAndFlush(remaining, TimeUnit.NANOSECONDS) != null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      flusher.close();
+      return false;
+    }
+  }
+
+  private static long remaining(long deadline) {
+    return Math.max(0, deadline - System.nanoTime());
+  }
+
+  /**
+   * @return the size of the kernel's receive buffer for the UDP sockets, as reported by the
+   *     kernel, or zero if the server is not started. With the epoll transport this is double the
+   *     size granted, to allow for bookkeeping overhead
+   */
+  public int getReceiveBufferSize() {
+    Channel channel = channels[0];
+    return channel != null && channel.isOpen()
+        ? ((DatagramChannel) channel).config().getReceiveBufferSize() : 0;
+  }
+
+  /**
+   * Returns the registry of the server's statistics. These are:
+   *
+   * <ul>
+   *   <li>{@code udp.datagrams} and {@code udp.reads}, the datagrams received and the read loops
+   *   that received them</li>
+   *   <li>{@code udp.kernel_drops}, and per socket {@code udp.socket.<index>.kernel_drops} and
+   *   {@code udp.socket.<index>.receive_queue_bytes}, the kernel's accounting on Linux. See {@link
+   *   #getKernelDropCount()}</li>
+   *   <li>{@code tcp.connections} and {@code tcp.rejected_connections}, and the same for {@code
+   *   domain_socket}</li>
+   *   <li>{@code parse_errors.<category>}, the malformed metrics received in each {@link
+   *   ParseError} category</li>
+   *   <li>{@code processor.metrics} and {@code processor.latency_nanos}, the metrics passed to the
+   *   processor and how long each call took</li>
+   *   <li>{@code offload.depth} and {@code offload.dropped}, if offloading is configured</li>
+   * </ul>
+   */
+  public StatsRegistry getStats() {
+    return stats;
+  }
+
+  /**
+   * @return the malformed metrics received on every channel, counted by category
+   */
+  public ParseErrors getParseErrors() {
+    return parseErrors;
+  }
+
+  /**
+   * @return the number of datagrams received on all UDP channels
+   */
+  public long getDatagramCount() {
+    if (!sharedNothing) {
+      return sharedLoop.readStats.datagramCount();
+    }
+    long count = 0;
+    for (LoopState loop : loops.values()) {
+      count += loop.readStats.datagramCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of read loops completed on all UDP channels, each of which reads up to the
+   *     maximum number of datagrams per read
+   */
+  public long getDatagramReadCount() {
+    if (!sharedNothing) {
+      return sharedLoop.readStats.readCount();
+    }
+    long count = 0;
+    for (LoopState loop : loops.values()) {
+      count += loop.readStats.readCount();
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of datagrams the kernel dropped on all UDP channels, before they could be
+   * read, as of the last periodic read of the kernel's accounting. These are dropped when a
+   * socket's receive buffer is full, and so indicate that the server is not keeping up, as
+   * opposed to datagrams lost in the network, which the server never sees.
+   *
+   * <p>Each socket's drops and receive queue are reported separately in {@link #getStats()}.
+   *
+   * @return the number of datagrams dropped, or zero if the platform does not provide the
+   *     accounting
+   */
+  public long getKernelDropCount() {
+    return kernelStats != null ? kernelStats.totalDrops() : 0;
+  }
+
+  /**
+   * @return the number of open TCP connections
+   */
+  public int getTcpConnectionCount() {
+    return tcpConnections.get();
+  }
+
+  /**
+   * @return the number of TCP connections closed because the connection limit was reached
+   */
+  public long getTcpRejectedConnectionCount() {
+    return tcpRejectedConnections.get();
+  }
+
+  /**
+   * @return the number of open domain socket connections
+   */
+  public int getDomainSocketConnectionCount() {
+    return domainSocketConnections.get();
+  }
+
+  /**
+   * @return the number of domain socket connections closed because the connection limit was
+   *     reached
+   */
+  public long getDomainSocketRejectedConnectionCount() {
+    return domainSocketRejectedConnections.get();
+  }
+
+  /**
+   * @return the number of metrics queued for the offload threads, or zero if offloading is not
+   *     configured
+   */
+  public long getOffloadQueueDepth() {
+    return offloader != null ? offloader.depth() : 0;
+  }
+
+  /**
+   * @return the number of metrics dropped because an offload queue was full, or zero if
+   *     offloading is not configured
+   */
+  public long getOffloadDroppedCount() {
+    return offloader != null ? offloader.droppedCount() : 0;
   }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelFactory;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Opens NIO datagram channels with {@code SO_REUSEPORT} set, so that several channels can bind
+ * the same port and the kernel spreads datagrams between them.
+ *
+ * <p>The option is only available from JDK 9, as {@code StandardSocketOptions.SO_REUSEPORT}, and
+ * only on platforms that support it. It is looked up reflectively so that the server still runs
+ * on JDK 8, where {@link #isSupported()} returns false.
+ */
+final class NioReusePort {
+
+  private static final InternalLogger logger =
+      InternalLoggerFactory.getInstance(NioReusePort.class);
+
+  private static final SocketOption<Boolean> SO_REUSEPORT = lookup();
+
+  private NioReusePort() {
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> lookup() {
+    try {
+      SocketOption<Boolean> option = (SocketOption<Boolean>)
+          StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+      try (DatagramChannel channel = DatagramChannel.open()) {
+        if (channel.supportedOptions().contains(option)) {
+          return option;
+        }
+      }
+      logger.debug("SO_REUSEPORT is not supported for datagram channels on this platform");
+    } catch (NoSuchFieldException e) {
+      logger.debug("SO_REUSEPORT is not available before JDK 9");
+    } catch (IllegalAccessException | IOException e) {
+      logger.debug("Unable to determine whether SO_REUSEPORT is supported", e);
+    }
+    return null;
+  }
+
+  /**
+   * @return whether NIO datagram channels can be opened with {@code SO_REUSEPORT}
+   */
+  static boolean isSupported() {
+    return SO_REUSEPORT != null;
+  }
+
+  /**
+   * Returns a factory for NIO datagram channels with {@code SO_REUSEPORT} set.
+   *
+   * @throws IllegalStateException if the option is not supported
+   */
+  static ChannelFactory<NioDatagramChannel> channelFactory() {
+    if (!isSupported()) {
+      throw new IllegalStateException("SO_REUSEPORT is not supported by this JDK and platform");
+    }
+    return () -> {
+      DatagramChannel channel = null;
+      try {
+        channel = DatagramChannel.open();
+        channel.setOption(SO_REUSEPORT, true);
+        return new NioDatagramChannel(channel);
+      } catch (IOException e) {
+        if (channel != null) {
+          try {
+            channel.close();
+          } catch (IOException suppressed) {
+            e.addSuppressed(suppressed);
+          }
+        }
+        throw new ChannelException("Unable to open a channel with SO_REUSEPORT", e);
+      }
+    };
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+/**
+ * What an event loop does when it offloads a metric to a full queue.
+ */
+public enum OverflowPolicy {
+
+  /**
+   * Discards the metric being offloaded. The event loop is never delayed.
+   */
+  DROP_NEWEST,
+
+  /**
+   * Discards the oldest metric in the queue to make room for the metric being offloaded. The event
+   * loop is never delayed, and the queue favors recent metrics.
+   */
+  DROP_OLDEST,
+
+  /**
+   * Waits for the consumers to make room in the queue. No metric is discarded, but socket reads
+   * are stalled while the queue is full, so the kernel may drop packets instead.
+   */
+  BLOCK
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+/**
+ * The categories of malformed metric line, as counted by {@link ParseErrors}.
+ */
+public enum ParseError {
+
+  /**
+   * The line has no {@code :} separating the name from the value.
+   */
+  MISSING_VALUE,
+
+  /**
+   * The line has no {@code |} separating the value from the type.
+   */
+  MISSING_TYPE,
+
+  /**
+   * The type is not one of {@code c}, {@code g} or {@code ms}.
+   */
+  UNKNOWN_TYPE,
+
+  /**
+   * The value is not a decimal long.
+   */
+  INVALID_VALUE,
+
+  /**
+   * The section following the type does not start with {@code @}.
+   */
+  MALFORMED_SAMPLE_RATE,
+
+  /**
+   * The sample rate is not a decimal number.
+   */
+  INVALID_SAMPLE_RATE,
+
+  /**
+   * The sample rate is not in the range [0, 1].
+   */
+  SAMPLE_RATE_OUT_OF_RANGE
+}
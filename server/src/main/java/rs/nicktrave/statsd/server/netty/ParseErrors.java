@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the malformed lines seen by one or more decoders, by {@link ParseError} category, and
+ * retains a sample of them.
+ *
+ * <p>Counting is cheap and never blocks, as the counters are striped across threads, so a client
+ * sending nothing but malformed lines costs little more than one sending valid ones. A random one
+ * in every {@code sampleInterval} lines is logged and retained, up to a maximum number of the most
+ * recent samples, so that the offending lines can be found without the log growing with the error
+ * rate.
+ */
+public final class ParseErrors {
+
+  private static final InternalLogger logger = InternalLoggerFactory.getInstance(ParseErrors.class);
+
+  /**
+   * The default interval between sampled lines.
+   */
+  public static final int DEFAULT_SAMPLE_INTERVAL = 1000;
+
+  /**
+   * The default number of sampled lines retained.
+   */
+  public static final int DEFAULT_MAX_SAMPLES = 16;
+
+  private static final int MAX_SAMPLE_LENGTH = 256;
+
+  private static final ParseError[] ERRORS = ParseError.values();
+
+  private final LongAdder[] counts = new LongAdder[ERRORS.length];
+  private final int sampleInterval;
+  private final int maxSamples;
+  private final ArrayDeque<String> samples;
+
+  /**
+   * Counts errors, sampling them at the default interval.
+   */
+  public ParseErrors() {
+    this(DEFAULT_SAMPLE_INTERVAL, DEFAULT_MAX_SAMPLES);
+  }
+
+  /**
+   * @param sampleInterval the average number of errors per sampled line, or zero to not sample
+   * @param maxSamples the maximum number of sampled lines retained
+   * @throws IllegalArgumentException if either argument is negative
+   */
+  public ParseErrors(int sampleInterval, int maxSamples) {
+    if (sampleInterval < 0 || maxSamples < 0) {
+      throw new IllegalArgumentException(
+          "Sample interval and maximum must not be negative: " + sampleInterval + ", "
+              + maxSamples);
+    }
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+    this.sampleInterval = sampleInterval;
+    this.maxSamples = maxSamples;
+    this.samples = new ArrayDeque<>(maxSamples);
+  }
+
+  /**
+   * Counts a malformed line held in the range {@code [start, end)} of the given buffer, which is
+   * only read if the line is sampled.
+   */
+  void record(ParseError error, ByteBuf buf, int start, int end) {
+    counts[error.ordinal()].increment();
+    if (sampleInterval > 0 && ThreadLocalRandom.current().nextInt(sampleInterval) == 0) {
+      sample(error, buf.toString(start, Math.min(end - start, MAX_SAMPLE_LENGTH),
+          StandardCharsets.US_ASCII));
+    }
+  }
+
+  private void sample(ParseError error, String line) {
+    String sample = error + ": " + line;
+    logger.warn("Skipped malformed metric, {} in total: {}", total(), sample);
+    if (maxSamples == 0) {
+      return;
+    }
+    synchronized (samples) {
+      if (samples.size() == maxSamples) {
+        samples.removeFirst();
+      }
+      samples.addLast(sample);
+    }
+  }
+
+  /**
+   * @return the number of lines with the given error
+   */
+  public long count(ParseError error) {
+    return counts[error.ordinal()].sum();
+  }
+
+  /**
+   * @return the number of malformed lines, of any category
+   */
+  public long total() {
+    long total = 0;
+    for (LongAdder count : counts) {
+      total += count.sum();
+    }
+    return total;
+  }
+
+  /**
+   * @return the most recently sampled lines, oldest first, each prefixed with its error
+   */
+  public List<String> samples() {
+    synchronized (samples) {
+      return new ArrayList<>(samples);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.channel.DefaultMaxMessagesRecvByteBufAllocator;
+import java.util.Arrays;
+
+/**
+ * Sizes the buffer each datagram is received into from a percentile of the sizes recently
+ * received on the same channel.
+ *
+ * <p>Sizes are recorded in power-of-two buckets, and after each window of datagrams the buffer is
+ * resized to the smallest power of two strictly greater than the chosen percentile of the window,
+ * clamped to a minimum and maximum. Most datagrams are then received into a buffer that is little
+ * larger than they are, rather than one sized for the largest datagram that could be sent.
+ *
+ * <p>A datagram larger than its buffer is truncated by the kernel. A datagram that fills its buffer
+ * is therefore treated as a sign of larger datagrams, and the next buffer is of the maximum size,
+ * until the end of the window. The percentile sets how often that can happen: at the 99th
+ * percentile, up to one datagram in a hundred may arrive while the buffer is too small for it.
+ */
+final class PercentileRecvByteBufAllocator extends DefaultMaxMessagesRecvByteBufAllocator {
+
+  static final int WINDOW = 1024;
+
+  // Bucket i holds sizes in [2^(i-1), 2^i), so that 1 << i always exceeds the sizes it holds
+  private static final int BUCKETS = Integer.SIZE;
+
+  private final int minimum;
+  private final int initial;
+  private final int maximum;
+  private final double percentile;
+
+  /**
+   * @param minimum the minimum buffer size, in bytes
+   * @param initial the buffer size until the first window is complete, in bytes
+   * @param maximum the maximum buffer size, in bytes
+   * @param percentile the percentile of datagram sizes that fit in the buffer, in (0, 100]
+   * @throws IllegalArgumentException if the sizes are not positive and ordered, or the percentile
+   *     is out of range
+   */
+  PercentileRecvByteBufAllocator(int minimum, int initial, int maximum, double percentile) {
+    if (minimum <= 0 || initial < minimum || maximum < initial) {
+      throw new IllegalArgumentException(
+          "Sizes must be positive and ordered: " + minimum + ", " + initial + ", " + maximum);
+    }
+    if (!(percentile > 0 && percentile <= 100)) {
+      throw new IllegalArgumentException("Percentile must be in (0, 100]: " + percentile);
+    }
+    this.minimum = minimum;
+    this.initial = initial;
+    this.maximum = maximum;
+    this.percentile = percentile;
+  }
+
+  @Override public Handle newHandle() {
+    return new PercentileHandle();
+  }
+
+  final class PercentileHandle extends MaxMessageHandle {
+
+    private final int[] counts = new int[BUCKETS];
+    private int samples;
+    private int size = initial;
+    private boolean full;
+
+    @Override public int guess() {
+      return full ? maximum : size;
+    }
+
+    @Override public void lastBytesRead(int bytes) {
+      super.lastBytesRead(bytes);
+      if (bytes <= 0) {
+        return;
+      }
+
+      full |= bytes >= attemptedBytesRead();
+      counts[BUCKETS - Integer.numberOfLeadingZeros(bytes)]++;
+      if (++samples == WINDOW) {
+        resize();
+      }
+    }
+
+    private void resize() {
+      long target = Math.max(1, (long) Math.ceil(percentile / 100 * samples));
+      long seen = 0;
+      int bucket = 0;
+      while ((seen += counts[bucket]) < target) {
+        bucket++;
+      }
+
+      long bound = 1L << bucket;
+      size = (int) Math.min(maximum, Math.max(minimum, bound));
+      full = false;
+      samples = 0;
+      Arrays.fill(counts, 0);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long each phase of a {@link NettyUdpServer} shutdown took, and whether it finished within
+ * its deadline. A phase that was skipped, or had nothing to do, took zero time.
+ */
+public final class ShutdownReport {
+
+  private final long stopReadingNanos;
+  private final long drainNanos;
+  private final long flushNanos;
+  private final long releaseNanos;
+  private final boolean completed;
+
+  ShutdownReport(long stopReadingNanos, long drainNanos, long flushNanos, long releaseNanos,
+      boolean completed) {
+    this.stopReadingNanos = stopReadingNanos;
+    this.drainNanos = drainNanos;
+    this.flushNanos = flushNanos;
+    this.releaseNanos = releaseNanos;
+    this.completed = completed;
+  }
+
+  /**
+   * @return the time taken to close every channel and connection, in milliseconds
+   */
+  public long getStopReadingMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(stopReadingNanos);
+  }
+
+  /**
+   * @return the time taken to process the metrics queued for the offload threads, in
+   *     milliseconds
+   */
+  public long getDrainMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(drainNanos);
+  }
+
+  /**
+   * @return the time taken by the final flush to the backends, in milliseconds
+   */
+  public long getFlushMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(flushNanos);
+  }
+
+  /**
+   * @return the time taken to shut down the event loops, in milliseconds
+   */
+  public long getReleaseMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(releaseNanos);
+  }
+
+  /**
+   * @return the time taken by every phase, in milliseconds
+   */
+  public long getTotalMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(stopReadingNanos + drainNanos + flushNanos + releaseNanos);
+  }
+
+  /**
+   * @return whether every phase finished before the deadline. If not, queued metrics may have
+   *     been dropped, or the final flush skipped
+   */
+  public boolean isCompleted() {
+    return completed;
+  }
+
+  @Override public String toString() {
+    return "stop reading " + getStopReadingMillis() + "ms, drain " + getDrainMillis()
+        + "ms, flush " + getFlushMillis() + "ms, release " + getReleaseMillis() + "ms, total "
+        + getTotalMillis() + "ms" + (completed ? "" : " (deadline exceeded)");
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import java.util.List;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.MetricProcessor;
+
+/**
+ * Decodes a stream of newline-delimited statsd metrics, such as from a TCP connection, straight
+ * into a {@link MetricBatch} owned by the connection, and passes the batch to a {@link
+ * MetricProcessor} on the event loop when the read cycle completes, or earlier if the batch fills
+ * up.
+ *
+ * <p>Every complete line received so far is decoded in place from the cumulated bytes, without
+ * first being split into a frame per line. A trailing partial line is retained until the rest of
+ * it arrives, or decoded as the final line when the stream ends. A partial line longer than the
+ * maximum line length is discarded up to and including its terminating newline, and a {@link
+ * TooLongFrameException} is fired down the pipeline.
+ *
+ * <p>Lines that fail to parse are skipped, and the first failure in each read is fired down the
+ * pipeline as a {@link io.netty.handler.codec.DecoderException}.
+ */
+public class StreamToMetricBatchDecoder extends ByteToMessageDecoder {
+
+  private static final byte LINE_SEPARATOR = '\n';
+
+  private final MetricBatchCollector collector;
+  private final int maxLineLength;
+
+  private boolean discarding;
+
+  /**
+   * @param decoder the decoder to parse metrics with, which may be shared with other channels
+   * @param processor the processor to pass each batch to
+   * @param maxLineLength the maximum length of a line, in bytes
+   */
+  public StreamToMetricBatchDecoder(DatagramToMetricDecoder decoder, MetricProcessor processor,
+      int maxLineLength) {
+    this.collector = new MetricBatchCollector(decoder, processor);
+    this.maxLineLength = maxLineLength;
+  }
+
+  @Override protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out)
+      throws Exception {
+    if (discarding) {
+      int end = in.indexOf(in.readerIndex(), in.writerIndex(), LINE_SEPARATOR);
+      if (end < 0) {
+        in.skipBytes(in.readableBytes());
+        return;
+      }
+      in.readerIndex(end + 1);
+      discarding = false;
+    }
+
+    // Searching from the end finds the last complete line without scanning every line twice
+    int last = in.indexOf(in.writerIndex(), in.readerIndex(), LINE_SEPARATOR);
+    if (last >= 0) {
+      collector.decode(in, in.readerIndex(), last);
+      in.readerIndex(last + 1);
+      collector.fireFailure(ctx);
+    }
+
+    if (in.readableBytes() > maxLineLength) {
+      int length = in.readableBytes();
+      in.skipBytes(length);
+      discarding = true;
+      ctx.fireExceptionCaught(new TooLongFrameException(
+          "Line length exceeds " + maxLineLength + ": " + length + " bytes discarded"));
+    }
+  }
+
+  @Override protected void decodeLast(ChannelHandlerContext ctx, ByteBuf in, List<Object> out)
+      throws Exception {
+    decode(ctx, in, out);
+    if (in.isReadable() && !discarding) {
+      collector.decode(in, in.readerIndex(), in.writerIndex());
+      in.skipBytes(in.readableBytes());
+      collector.fireFailure(ctx);
+    }
+    collector.flush();
+  }
+
+  @Override public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+    collector.flush();
+    super.channelReadComplete(ctx);
+  }
+
+  @Override protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+    collector.flush();
+  }
+}
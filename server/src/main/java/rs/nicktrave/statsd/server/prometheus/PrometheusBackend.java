@@ -0,0 +1,498 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.prometheus;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import rs.nicktrave.statsd.server.Backend;
+import rs.nicktrave.statsd.server.aggregate.SeriesVisitor;
+import rs.nicktrave.statsd.server.aggregate.Snapshot;
+import rs.nicktrave.statsd.server.aggregate.TimerSummary;
+
+/**
+ * A {@link Backend} that serves the aggregated series over HTTP, in the Prometheus text exposition
+ * format, for Prometheus to scrape.
+ *
+ * <p>The backend keeps the latest state of every series it has been flushed, along with the series
+ * rendered as a fragment of the exposition by a {@link PrometheusEncoder}. A flush only re-renders
+ * the fragments of series whose values changed, so the cost of a flush grows with the number of
+ * active series, rather than all of them, and a scrape renders nothing at all. Counters are
+ * exposed as running totals, as Prometheus expects, so a counter only changes in an interval in
+ * which it was incremented.
+ *
+ * <p>A scrape copies the current fragments into the response as a chunked stream of pooled
+ * buffers of around 64KB, written as the connection accepts them, so the whole exposition is never
+ * held in memory. A scrape during a flush may see some series from before the flush and some from
+ * after it.
+ *
+ * <p>Series are never removed. Names that are the same once sanitized for Prometheus are exposed
+ * as the first such series, and the others are counted and ignored.
+ */
+public final class PrometheusBackend implements Backend, Closeable {
+
+  private static final InternalLogger logger =
+      InternalLoggerFactory.getInstance(PrometheusBackend.class);
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final String DEFAULT_PATH = "/metrics";
+  private static final double[] DEFAULT_PERCENTILES = {50, 95, 99};
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final InetSocketAddress address;
+  private final String path;
+  private final double[] percentiles;
+  private final PrometheusEncoder encoder;
+  private final EventLoopGroup group;
+  private final boolean ownsGroup;
+  private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+  private final AtomicLong scrapes = new AtomicLong();
+  private final AtomicLong renders = new AtomicLong();
+  private final AtomicLong collisions = new AtomicLong();
+
+  // Only accessed when flushing
+  private final Updater updater;
+  private final Map<String, Series> counters = new HashMap<>();
+  private final Map<String, Series> gauges = new HashMap<>();
+  private final Map<String, Series> timers = new HashMap<>();
+  private final Set<String> exposedNames = new HashSet<>();
+  private final List<Series> ordered = new ArrayList<>();
+
+  // Every series with a fragment, in the order they were first flushed
+  private volatile Series[] exposed = new Series[0];
+  private volatile Channel listener;
+
+  private PrometheusBackend(Builder builder) {
+    address = builder.address;
+    path = builder.path != null ? builder.path : DEFAULT_PATH;
+    percentiles = builder.percentiles != null ? builder.percentiles.clone() : DEFAULT_PERCENTILES;
+    encoder = new PrometheusEncoder(builder.prefix != null ? builder.prefix : "", percentiles);
+    ownsGroup = builder.group == null;
+    group = ownsGroup
+        ? new NioEventLoopGroup(1, new DefaultThreadFactory("statsd-prometheus", true))
+        : builder.group;
+    updater = new Updater();
+  }
+
+  /**
+   * Returns a new builder for a {@link PrometheusBackend} instance.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * A builder for a {@link PrometheusBackend} instance.
+   */
+  public static class Builder {
+
+    private InetSocketAddress address;
+    private String path;
+    private String prefix;
+    private double[] percentiles;
+    private EventLoopGroup group;
+
+    private Builder() {
+    }
+
+    /**
+     * Sets the address to listen for scrapes on, which is required. A port of zero listens on any
+     * free port.
+     */
+    public Builder withAddress(InetSocketAddress address) {
+      this.address = address;
+      return this;
+    }
+
+    /**
+     * Sets the path the exposition is served on. Defaults to {@code /metrics}.
+     */
+    public Builder withPath(String path) {
+      this.path = path;
+      return this;
+    }
+
+    /**
+     * Sets a prefix for every name, such as {@code "statsd_"}. Defaults to no prefix.
+     */
+    public Builder withPrefix(String prefix) {
+      this.prefix = prefix;
+      return this;
+    }
+
+    /**
+     * Sets the percentiles exposed as quantiles of each timer. Defaults to the 50th, 95th and
+     * 99th.
+     */
+    public Builder withPercentiles(double... percentiles) {
+      this.percentiles = percentiles;
+      return this;
+    }
+
+    /**
+     * Sets the event loop group to serve scrapes on, which the backend does not shut down.
+     * Defaults to a single NIO thread of the backend's own.
+     */
+    public Builder withEventLoopGroup(EventLoopGroup group) {
+      this.group = group;
+      return this;
+    }
+
+    /**
+     * Construct and return a new backend instance.
+     *
+     * @throws IllegalArgumentException if the address is missing, the path does not start with a
+     *     slash, or a percentile is out of range
+     */
+    public PrometheusBackend build() {
+      if (address == null) {
+        throw new IllegalArgumentException("Address must be provided");
+      }
+      if (path != null && !path.startsWith("/")) {
+        throw new IllegalArgumentException("Path must start with a slash: " + path);
+      }
+      if (percentiles != null) {
+        for (double percentile : percentiles) {
+          if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("Percentile must be in [0, 100]: " + percentile);
+          }
+        }
+      }
+      return new PrometheusBackend(this);
+    }
+  }
+
+  /**
+   * Starts listening for scrapes.
+   *
+   * @throws InterruptedException if interrupted while binding
+   */
+  public synchronized void start() throws InterruptedException {
+    if (listener != null) {
+      throw new IllegalStateException("Backend is already started");
+    }
+    listener = new ServerBootstrap()
+        .group(group)
+        .channel(NioServerSocketChannel.class)
+        .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+        .childHandler(new ChannelInitializer<SocketChannel>() {
+          @Override protected void initChannel(SocketChannel ch) {
+            channels.add(ch);
+            ch.pipeline()
+                .addLast(new HttpServerCodec())
+                .addLast(new ChunkedWriteHandler())
+                .addLast(new ScrapeHandler());
+          }
+        })
+        .bind(address)
+        .sync()
+        .channel();
+    channels.add(listener);
+    logger.info("Serving Prometheus metrics on {}{}", listener.localAddress(), path);
+  }
+
+  /**
+   * @return the port scrapes are served on, or zero if the backend is not started
+   */
+  public int getPort() {
+    Channel current = listener;
+    return current != null ? ((InetSocketAddress) current.localAddress()).getPort() : 0;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Updates the state of each series in the snapshot, and re-renders those that changed.
+   */
+  @Override public synchronized void flush(Snapshot snapshot) {
+    int before = ordered.size();
+    snapshot.accept(updater);
+    if (ordered.size() != before) {
+      exposed = ordered.toArray(new Series[0]);
+    }
+  }
+
+  /**
+   * @return the number of series exposed
+   */
+  public int getSeriesCount() {
+    return exposed.length;
+  }
+
+  /**
+   * @return the number of times a series has been rendered
+   */
+  public long getRenderCount() {
+    return renders.get();
+  }
+
+  /**
+   * @return the number of series ignored because their sanitized name was already exposed
+   */
+  public long getCollisionCount() {
+    return collisions.get();
+  }
+
+  /**
+   * @return the number of scrapes served
+   */
+  public long getScrapeCount() {
+    return scrapes.get();
+  }
+
+  /**
+   * Stops listening, closes any open connections, and shuts down the event loop group if the
+   * backend created it.
+   */
+  @Override public synchronized void close() {
+    channels.close().awaitUninterruptibly();
+    if (ownsGroup) {
+      group.shutdownGracefully();
+    }
+  }
+
+  /**
+   * Updates the state of each series it visits, re-rendering those that changed.
+   */
+  private final class Updater implements SeriesVisitor {
+
+    private final long[] quantiles = new long[percentiles.length];
+
+    @Override public void visitCounter(String name, double value) {
+      Series s = series(counters, name);
+      if (s == null || (value == 0 && s.fragment != null)) {
+        return;
+      }
+      s.total += value;
+      render(s, encoder.counter(s.exposedName, s.total));
+    }
+
+    @Override public void visitGauge(String name, long value) {
+      Series s = series(gauges, name);
+      if (s == null || (value == s.value && s.fragment != null)) {
+        return;
+      }
+      s.value = value;
+      render(s, encoder.gauge(s.exposedName, value));
+    }
+
+    @Override public void visitTimer(String name, TimerSummary timer) {
+      Series s = series(timers, name);
+      if (s == null || timer.getSampleCount() == 0) {
+        return;
+      }
+      for (int i = 0; i < percentiles.length; i++) {
+        quantiles[i] = timer.getValueAtPercentile(percentiles[i]);
+      }
+      s.total += timer.getCount();
+      s.sum += timer.getMean() * timer.getCount();
+      render(s, encoder.summary(s.exposedName, quantiles, s.sum, s.total));
+    }
+  }
+
+  /**
+   * Returns the series with the given name, creating it if it is new, or null if it collides with
+   * another series.
+   */
+  private Series series(Map<String, Series> series, String name) {
+    Series s = series.get(name);
+    if (s != null) {
+      return s != Series.COLLIDED ? s : null;
+    }
+    String exposedName = encoder.name(name);
+    if (!exposedNames.add(exposedName)) {
+      collisions.incrementAndGet();
+      series.put(name, Series.COLLIDED);
+      return null;
+    }
+    s = new Series(exposedName);
+    series.put(name, s);
+    return s;
+  }
+
+  private void render(Series s, byte[] fragment) {
+    boolean isNew = s.fragment == null;
+    s.fragment = fragment;
+    renders.incrementAndGet();
+    if (isNew) {
+      ordered.add(s);
+    }
+  }
+
+  /**
+   * The state of a single series, and its rendered fragment.
+   */
+  private static final class Series {
+
+    // Stands in for a series whose name collided, so the collision is only counted once
+    static final Series COLLIDED = new Series(null);
+
+    final String exposedName;
+    // The running total of a counter, or the running count of a timer
+    double total;
+    // The running sum of a timer
+    double sum;
+    // The value of a gauge
+    long value;
+    volatile byte[] fragment;
+
+    Series(String exposedName) {
+      this.exposedName = exposedName;
+    }
+  }
+
+  /**
+   * Serves the exposition, and responds to any other path with a 404.
+   */
+  private final class ScrapeHandler extends SimpleChannelInboundHandler<HttpRequest> {
+
+    @Override protected void channelRead0(ChannelHandlerContext ctx, HttpRequest request) {
+      boolean keepAlive = HttpUtil.isKeepAlive(request);
+      if (!new QueryStringDecoder(request.uri()).path().equals(path)) {
+        respond(ctx, HttpResponseStatus.NOT_FOUND, keepAlive);
+        return;
+      }
+      boolean head = HttpMethod.HEAD.equals(request.method());
+      if (!head && !HttpMethod.GET.equals(request.method())) {
+        respond(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED, keepAlive);
+        return;
+      }
+
+      scrapes.incrementAndGet();
+      HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+      response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+      HttpUtil.setTransferEncodingChunked(response, true);
+      HttpUtil.setKeepAlive(response, keepAlive);
+      ctx.write(response);
+      Object body = head
+          ? LastHttpContent.EMPTY_LAST_CONTENT
+          : new HttpChunkedInput(new ExpositionInput(exposed));
+      ctx.writeAndFlush(body).addListener(keepAlive
+          ? ChannelFutureListener.CLOSE_ON_FAILURE
+          : ChannelFutureListener.CLOSE);
+    }
+
+    private void respond(ChannelHandlerContext ctx, HttpResponseStatus status, boolean keepAlive) {
+      FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+      HttpUtil.setContentLength(response, 0);
+      HttpUtil.setKeepAlive(response, keepAlive);
+      ctx.writeAndFlush(response).addListener(keepAlive
+          ? ChannelFutureListener.CLOSE_ON_FAILURE
+          : ChannelFutureListener.CLOSE);
+    }
+
+    @Override public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      logger.debug("Closing scrape connection {}", ctx.channel(), cause);
+      ctx.close();
+    }
+  }
+
+  /**
+   * Copies the fragments of a fixed set of series into chunks, each read only when the connection
+   * is ready for more.
+   */
+  private static final class ExpositionInput implements ChunkedInput<ByteBuf> {
+
+    private final Series[] series;
+    private int next;
+    private long progress;
+
+    ExpositionInput(Series[] series) {
+      this.series = series;
+    }
+
+    @Override public boolean isEndOfInput() {
+      return next == series.length;
+    }
+
+    @Override public void close() {
+    }
+
+    @Deprecated
+    @Override public ByteBuf readChunk(ChannelHandlerContext ctx) {
+      return readChunk(ctx.alloc());
+    }
+
+    @Override public ByteBuf readChunk(ByteBufAllocator allocator) {
+      if (isEndOfInput()) {
+        return null;
+      }
+      ByteBuf chunk = allocator.buffer(CHUNK_SIZE);
+      // A fragment larger than a chunk is written in a chunk of its own
+      while (next < series.length) {
+        byte[] fragment = series[next].fragment;
+        if (chunk.isReadable() && chunk.writableBytes() < fragment.length) {
+          break;
+        }
+        chunk.writeBytes(fragment);
+        next++;
+      }
+      progress += chunk.readableBytes();
+      return chunk;
+    }
+
+    @Override public long length() {
+      return -1;
+    }
+
+    @Override public long progress() {
+      return progress;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.prometheus;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Renders series in the Prometheus text exposition format, version 0.0.4. Each series is rendered
+ * as a self-contained fragment: its {@code # TYPE} line, followed by its samples.
+ *
+ * <ul>
+ *   <li>A counter is rendered as a {@code counter}, with its running total.</li>
+ *   <li>A gauge is rendered as a {@code gauge}, with its value.</li>
+ *   <li>A timer is rendered as a {@code summary}, with one sample per configured quantile of the
+ *   last interval in which it was recorded, and the running {@code _sum} and {@code _count}.</li>
+ * </ul>
+ *
+ * <p>Prometheus names may only contain letters, digits, underscores and colons, and may not start
+ * with a digit, so any other character in a name is rendered as an underscore, and a name starting
+ * with a digit is prefixed with one.
+ */
+final class PrometheusEncoder {
+
+  private final String prefix;
+  private final String[] quantileLabels;
+  private final StringBuilder sb = new StringBuilder();
+
+  /**
+   * @param prefix the prefix of every name, which is sanitized along with the name
+   * @param percentiles the percentiles to render for each timer, in the range [0, 100]
+   */
+  PrometheusEncoder(String prefix, double[] percentiles) {
+    this.prefix = prefix;
+    this.quantileLabels = new String[percentiles.length];
+    for (int i = 0; i < percentiles.length; i++) {
+      String quantile = BigDecimal.valueOf(percentiles[i]).movePointLeft(2)
+          .stripTrailingZeros().toPlainString();
+      quantileLabels[i] = "{quantile=\"" + quantile + "\"} ";
+    }
+  }
+
+  /**
+   * Returns the Prometheus name of a statsd name.
+   */
+  String name(String name) {
+    StringBuilder sanitized = new StringBuilder(prefix.length() + name.length() + 1);
+    sanitized.append(prefix).append(name);
+    for (int i = 0; i < sanitized.length(); i++) {
+      char c = sanitized.charAt(i);
+      if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == ':'
+          || c >= '0' && c <= '9')) {
+        sanitized.setCharAt(i, '_');
+      }
+    }
+    if (sanitized.length() == 0 || Character.isDigit(sanitized.charAt(0))) {
+      sanitized.insert(0, '_');
+    }
+    return sanitized.toString();
+  }
+
+  byte[] counter(String name, double total) {
+    sb.setLength(0);
+    type(name, "counter");
+    sample(name, "", total);
+    return bytes();
+  }
+
+  byte[] gauge(String name, long value) {
+    sb.setLength(0);
+    type(name, "gauge");
+    sb.append(name).append(' ').append(value).append('\n');
+    return bytes();
+  }
+
+  /**
+   * @param quantiles the value at each configured percentile, in order
+   */
+  byte[] summary(String name, long[] quantiles, double sum, double count) {
+    sb.setLength(0);
+    type(name, "summary");
+    for (int i = 0; i < quantiles.length; i++) {
+      sb.append(name).append(quantileLabels[i]).append(quantiles[i]).append('\n');
+    }
+    sample(name, "_sum", sum);
+    sample(name, "_count", count);
+    return bytes();
+  }
+
+  private void type(String name, String type) {
+    sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private void sample(String name, String suffix, double value) {
+    sb.append(name).append(suffix).append(' ');
+    appendDouble(sb, value);
+    sb.append('\n');
+  }
+
+  static void appendDouble(StringBuilder sb, double value) {
+    if (value == (long) value) {
+      sb.append((long) value);
+    } else if (Double.isNaN(value)) {
+      sb.append("NaN");
+    } else if (Double.isInfinite(value)) {
+      sb.append(value > 0 ? "+Inf" : "-Inf");
+    } else {
+      sb.append(value);
+    }
+  }
+
+  private byte[] bytes() {
+    // Names are sanitized to ASCII, so every character is a byte
+    return sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+}
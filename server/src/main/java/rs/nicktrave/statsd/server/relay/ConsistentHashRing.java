@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.relay;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * An immutable consistent hash ring, mapping metric names to nodes.
+ *
+ * <p>Each node is placed on the ring at a number of points, its virtual nodes, derived only from
+ * its host and port. A name belongs to the node owning the first point at or after the hash of the
+ * name. Adding or removing a node therefore only moves the names between its points and their
+ * predecessors, roughly {@code 1 / n} of them, and every relay with the same nodes routes the same
+ * name to the same node regardless of the order the nodes were given in.
+ *
+ * <p>Names are hashed from {@link String#hashCode()}, which is specified by the language and
+ * cached by each string, through a 64-bit finalizer that spreads it over the whole ring.
+ */
+final class ConsistentHashRing {
+
+  private final List<InetSocketAddress> nodes;
+  private final long[] points;
+  private final int[] owners;
+
+  /**
+   * @param nodes the nodes, of which duplicates are ignored
+   * @param virtualNodes the number of points per node
+   * @throws IllegalArgumentException if there are no nodes, or the number of points is not
+   *     positive
+   */
+  ConsistentHashRing(Collection<InetSocketAddress> nodes, int virtualNodes) {
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("At least one node must be provided");
+    }
+    if (virtualNodes <= 0) {
+      throw new IllegalArgumentException("Virtual nodes must be positive: " + virtualNodes);
+    }
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(nodes)));
+
+    // Sort the points of every node, with their owners alongside
+    String[] keys = new String[this.nodes.size()];
+    int size = keys.length * virtualNodes;
+    long[][] entries = new long[size][];
+    for (int node = 0; node < keys.length; node++) {
+      keys[node] = key(this.nodes.get(node));
+      for (int i = 0; i < virtualNodes; i++) {
+        entries[node * virtualNodes + i] = new long[] {hash(keys[node] + '#' + i), node};
+      }
+    }
+    Arrays.sort(entries, (a, b) -> {
+      int c = Long.compare(a[0], b[0]);
+      // Break ties by key, so that the order of the nodes never matters
+      return c != 0 ? c : keys[(int) a[1]].compareTo(keys[(int) b[1]]);
+    });
+    this.points = new long[size];
+    this.owners = new int[size];
+    for (int i = 0; i < size; i++) {
+      points[i] = entries[i][0];
+      owners[i] = (int) entries[i][1];
+    }
+  }
+
+  private static String key(InetSocketAddress node) {
+    return node.getHostString() + ':' + node.getPort();
+  }
+
+  /**
+   * Returns the distinct nodes on the ring, in the order they were given.
+   */
+  List<InetSocketAddress> nodes() {
+    return nodes;
+  }
+
+  /**
+   * Returns the index, into {@link #nodes()}, of the node that owns the given name.
+   */
+  int nodeIndex(String name) {
+    int i = Arrays.binarySearch(points, hash(name));
+    if (i < 0) {
+      i = -i - 1;
+    }
+    return owners[i == points.length ? 0 : i];
+  }
+
+  /**
+   * Returns the node that owns the given name.
+   */
+  InetSocketAddress node(String name) {
+    return nodes.get(nodeIndex(name));
+  }
+
+  /**
+   * Hashes a string onto the ring with the finalizer of MurmurHash3.
+   */
+  static long hash(String s) {
+    long h = s.hashCode();
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.relay;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import rs.nicktrave.statsd.client.Transport;
+import rs.nicktrave.statsd.client.netty.NettyUdpTransport;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.MetricProcessor;
+import rs.nicktrave.statsd.server.stats.StatsRegistry;
+
+/**
+ * A {@link MetricProcessor} that forwards each metric, unaggregated, to one of a number of
+ * downstream statsd servers, chosen by the name of the metric. A server with a relay processor acts
+ * as a fan-out proxy in front of a tier of aggregating servers.
+ *
+ * <p>Names are assigned to nodes by a {@link ConsistentHashRing}, so every series is aggregated by
+ * exactly one node, and changing the nodes with {@link #setNodes(Collection)} only moves the
+ * series of the nodes that were added or removed.
+ *
+ * <p>The metrics of each batch are grouped by node and written to that node's transport at once,
+ * packed into newline-delimited datagrams of up to a maximum size, so a batch costs at most a few
+ * datagrams per node rather than one per metric. Each write hands the node's metrics to the
+ * transport's event loop in a single task, and the transports are spread over the loops of one
+ * group, which by default has a loop per node, so the nodes are encoded and sent in parallel.
+ *
+ * <p>Relaying is best effort, as with any statsd traffic: a metric that cannot be written is
+ * counted and dropped.
+ */
+public final class RelayProcessor implements MetricProcessor, Closeable {
+
+  private static final InternalLogger logger =
+      InternalLoggerFactory.getInstance(RelayProcessor.class);
+
+  // An Ethernet MTU, less the IPv6 and UDP headers, and some slack for tunnels
+  private static final int DEFAULT_MAX_DATAGRAM_SIZE = 1432;
+  private static final int DEFAULT_VIRTUAL_NODES = 128;
+
+  /**
+   * Opens a transport to a node.
+   */
+  interface TransportFactory {
+
+    Transport open(InetSocketAddress address) throws IOException, InterruptedException;
+  }
+
+  private final int virtualNodes;
+  private final EventLoopGroup group;
+  private final boolean ownsGroup;
+  private final TransportFactory transportFactory;
+  private final LongAdder relayed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final FastThreadLocal<List<List<Metric>>> scratch =
+      new FastThreadLocal<List<List<Metric>>>() {
+        @Override protected List<List<Metric>> initialValue() {
+          return new ArrayList<>();
+        }
+      };
+
+  private volatile Routes routes;
+  private boolean closed;
+
+  private RelayProcessor(Builder builder) throws IOException, InterruptedException {
+    virtualNodes = builder.virtualNodes > 0 ? builder.virtualNodes : DEFAULT_VIRTUAL_NODES;
+    ownsGroup = builder.group == null && builder.transportFactory == null;
+    group = ownsGroup
+        ? new NioEventLoopGroup(
+            builder.nodes.size(), new DefaultThreadFactory("statsd-relay", true))
+        : builder.group;
+    int maxDatagramSize = builder.maxDatagramSize > 0
+        ? builder.maxDatagramSize : DEFAULT_MAX_DATAGRAM_SIZE;
+    transportFactory = builder.transportFactory != null
+        ? builder.transportFactory
+        : address -> new NettyUdpTransport(group, address, maxDatagramSize);
+    try {
+      setNodes(builder.nodes);
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      close();
+      throw e;
+    }
+    if (builder.stats != null) {
+      builder.stats.registerCounter("relay.metrics", relayed::sum);
+      builder.stats.registerCounter("relay.failed_metrics", failed::sum);
+      builder.stats.registerGauge("relay.nodes", () -> routes.ring.nodes().size());
+    }
+  }
+
+  /**
+   * Returns a new builder for a {@link RelayProcessor} instance.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * A builder for a {@link RelayProcessor} instance.
+   */
+  public static class Builder {
+
+    private List<InetSocketAddress> nodes;
+    private int virtualNodes;
+    private int maxDatagramSize;
+    private EventLoopGroup group;
+    private TransportFactory transportFactory;
+    private StatsRegistry stats;
+
+    private Builder() {
+    }
+
+    /**
+     * Sets the addresses of the downstream servers, of which there must be at least one.
+     */
+    public Builder withNodes(Collection<InetSocketAddress> nodes) {
+      this.nodes = new ArrayList<>(nodes);
+      return this;
+    }
+
+    /**
+     * Sets the number of points each node has on the hash ring. More points spread the series
+     * more evenly, at the cost of a larger ring. Defaults to 128.
+     */
+    public Builder withVirtualNodes(int virtualNodes) {
+      this.virtualNodes = virtualNodes;
+      return this;
+    }
+
+    /**
+     * Sets the maximum size of the payload of each datagram sent downstream, in bytes. Defaults to
+     * 1432, which fits an Ethernet MTU.
+     */
+    public Builder withMaxDatagramSize(int maxDatagramSize) {
+      this.maxDatagramSize = maxDatagramSize;
+      return this;
+    }
+
+    /**
+     * Sets the event loop group to run the transports on, which the processor does not shut down.
+     * Each transport is registered with the next of the group's loops. Defaults to a NIO group of
+     * the processor's own, with a thread per node it is built with, so that nodes added later
+     * share those threads.
+     */
+    public Builder withEventLoopGroup(EventLoopGroup group) {
+      this.group = group;
+      return this;
+    }
+
+    /**
+     * Sets how transports to the nodes are opened.
+     *
+     * <p>Note this method is for testing.
+     */
+    Builder withTransportFactory(TransportFactory transportFactory) {
+      this.transportFactory = transportFactory;
+      return this;
+    }
+
+    /**
+     * Sets a registry to report the number of metrics relayed and dropped, and the number of
+     * nodes, to.
+     */
+    public Builder withStats(StatsRegistry stats) {
+      this.stats = stats;
+      return this;
+    }
+
+    /**
+     * Construct and return a new processor instance, with a transport open to each node.
+     *
+     * @throws IllegalArgumentException if there are no nodes
+     * @throws IOException if a transport could not be opened
+     * @throws InterruptedException if interrupted while opening a transport
+     */
+    public RelayProcessor build() throws IOException, InterruptedException {
+      if (nodes == null || nodes.isEmpty()) {
+        throw new IllegalArgumentException("At least one node must be provided");
+      }
+      return new RelayProcessor(this);
+    }
+  }
+
+  /**
+   * Replaces the downstream servers. Transports are opened to the new nodes before any metrics
+   * are routed to them, and the transports of removed nodes are closed once metrics are no longer
+   * routed to them. The transports of nodes that remain are kept.
+   *
+   * @param nodes the addresses of the downstream servers
+   * @throws IllegalArgumentException if there are no nodes
+   * @throws IllegalStateException if the processor is closed
+   * @throws IOException if a transport could not be opened, in which case the nodes are unchanged
+   * @throws InterruptedException if interrupted while opening a transport, in which case the nodes
+   *     are unchanged
+   */
+  public synchronized void setNodes(Collection<InetSocketAddress> nodes)
+      throws IOException, InterruptedException {
+    if (closed) {
+      throw new IllegalStateException("Processor is closed");
+    }
+    ConsistentHashRing ring = new ConsistentHashRing(nodes, virtualNodes);
+    Map<InetSocketAddress, Transport> existing = new HashMap<>();
+    if (routes != null) {
+      for (int i = 0; i < routes.transports.length; i++) {
+        existing.put(routes.ring.nodes().get(i), routes.transports[i]);
+      }
+    }
+
+    Transport[] transports = new Transport[ring.nodes().size()];
+    List<Transport> opened = new ArrayList<>();
+    try {
+      for (int i = 0; i < transports.length; i++) {
+        InetSocketAddress node = ring.nodes().get(i);
+        transports[i] = existing.remove(node);
+        if (transports[i] == null) {
+          transports[i] = transportFactory.open(node);
+          opened.add(transports[i]);
+        }
+      }
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      opened.forEach(RelayProcessor::closeQuietly);
+      throw e;
+    }
+
+    routes = new Routes(ring, transports);
+    // Batches already routed with the old ring may still write to these, and are dropped
+    existing.values().forEach(RelayProcessor::closeQuietly);
+    logger.info("Relaying to {} nodes, {} added and {} removed",
+        transports.length, opened.size(), existing.size());
+  }
+
+  /**
+   * Returns the addresses of the downstream servers.
+   */
+  public List<InetSocketAddress> getNodes() {
+    return routes.ring.nodes();
+  }
+
+  /**
+   * Returns the address of the downstream server that metrics with the given name are relayed to.
+   */
+  public InetSocketAddress nodeFor(String name) {
+    return routes.ring.node(name);
+  }
+
+  /**
+   * Returns the number of metrics handed to a transport.
+   */
+  public long getRelayedCount() {
+    return relayed.sum();
+  }
+
+  /**
+   * Returns the number of metrics dropped because their transport failed.
+   */
+  public long getFailedCount() {
+    return failed.sum();
+  }
+
+  @Override public void process(Metric metric) {
+    Routes routes = this.routes;
+    write(routes.transports[routes.ring.nodeIndex(metric.name)], metric);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Writes to each node at most once per batch, handing the node's metrics to its
+   * transport's event loop in one task.
+   */
+  @Override public void processBatch(MetricBatch batch) {
+    Routes routes = this.routes;
+    List<List<Metric>> byNode = scratch.get();
+    while (byNode.size() < routes.transports.length) {
+      byNode.add(new ArrayList<>());
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      byNode.get(routes.ring.nodeIndex(batch.name(i))).add(batch.get(i));
+    }
+    for (int node = 0; node < routes.transports.length; node++) {
+      List<Metric> metrics = byNode.get(node);
+      if (!metrics.isEmpty()) {
+        write(routes.transports[node], metrics.toArray(new Metric[0]));
+        metrics.clear();
+      }
+    }
+  }
+
+  private void write(Transport transport, Metric... metrics) {
+    try {
+      transport.write(metrics);
+      relayed.add(metrics.length);
+    } catch (IOException | RuntimeException e) {
+      failed.add(metrics.length);
+      logger.debug("Could not relay {} metrics", metrics.length, e);
+    }
+  }
+
+  /**
+   * Closes the transport to every node, and shuts down the event loop group, if it is the
+   * processor's own.
+   */
+  @Override public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (routes != null) {
+      Arrays.stream(routes.transports).forEach(RelayProcessor::closeQuietly);
+    }
+    if (ownsGroup) {
+      group.shutdownGracefully();
+    }
+  }
+
+  private static void closeQuietly(Transport transport) {
+    try {
+      transport.close();
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Could not close transport", e);
+    }
+  }
+
+  /**
+   * A ring, and the transport to each of its nodes, which are swapped together.
+   */
+  private static final class Routes {
+
+    final ConsistentHashRing ring;
+    final Transport[] transports;
+
+    Routes(ConsistentHashRing ring, Transport[] transports) {
+      this.ring = ring;
+      this.transports = transports;
+    }
+  }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.spool;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.PlatformDependent;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of entries, kept in a directory of memory-mapped segment files, and read
+ * back oldest first.
+ *
+ * <p>Each entry is written as its length, the CRC32 of its payload, its state, and the payload.
+ * The length is written last, so an entry torn by a crash has a length of zero, which marks the
+ * end of the segment. Reading an entry does not remove it: once it has been handled it is marked
+ * as consumed, in place, and a segment is deleted as soon as every entry in it is consumed, which
+ * costs an unmap and an unlink. Entries that were not consumed are found again when the log is
+ * reopened.
+ *
+ * <p>The total size of the segments is bounded. When appending would exceed the bound, whole
+ * segments are evicted, oldest first, along with any entries in them that were not consumed.
+ *
+ * <p>Entries are copied into the mapped segments, with no system calls other than to create a
+ * segment, so an append never waits for the disk. Mapped pages survive the process crashing, but
+ * not the machine crashing before the kernel writes them back.
+ *
+ * <p>Instances are not thread-safe.
+ */
+final class SegmentLog implements Closeable {
+
+  private static final InternalLogger logger = InternalLoggerFactory.getInstance(SegmentLog.class);
+
+  private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{20})\\.log");
+
+  private static final int LENGTH = 0;
+  private static final int CRC = LENGTH + Integer.BYTES;
+  private static final int STATE = CRC + Integer.BYTES;
+  static final int HEADER_SIZE = STATE + 1;
+
+  private static final byte PENDING = 1;
+  private static final byte CONSUMED = 2;
+
+  private final File directory;
+  private final int segmentSize;
+  private final long maxBytes;
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private final CRC32 crc = new CRC32();
+
+  private long nextSequence;
+  private long bytes;
+  private int entries;
+  private long evicted;
+  private boolean closed;
+
+  /**
+   * Opens the log in the given directory, creating the directory if needed, and finds the entries
+   * that were not consumed before it was last closed.
+   *
+   * @param segmentSize the size of each segment, in bytes, unless an entry needs a larger one
+   * @param maxBytes the maximum total size of the segments, in bytes
+   * @throws IOException if the directory or a segment could not be opened
+   */
+  SegmentLog(File directory, int segmentSize, long maxBytes) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxBytes = maxBytes;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create spool directory " + directory);
+    }
+    recover();
+  }
+
+  private void recover() throws IOException {
+    File[] files = directory.listFiles((dir, name) -> SEGMENT_NAME.matcher(name).matches());
+    if (files == null) {
+      throw new IOException("Could not list spool directory " + directory);
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+      matcher.matches();
+      long sequence = Long.parseLong(matcher.group(1));
+      nextSequence = Math.max(nextSequence, sequence + 1);
+
+      Segment segment = Segment.map(file, sequence, file.length());
+      segment.scan(crc);
+      if (segment.pending == 0) {
+        segment.delete();
+        continue;
+      }
+      segments.addLast(segment);
+      bytes += segment.size();
+      entries += segment.pending;
+    }
+    if (entries > 0) {
+      logger.info("Recovered {} spooled entries in {} segments from {}",
+          entries, segments.size(), directory);
+    }
+  }
+
+  /**
+   * Appends the readable bytes of a buffer as a new entry, evicting the oldest segments if needed
+   * to stay within the maximum size.
+   *
+   * @return whether the entry was appended, which it is not if it alone exceeds the maximum size
+   * @throws IOException if a new segment could not be created, or the log is closed
+   */
+  boolean append(ByteBuf payload) throws IOException {
+    if (closed) {
+      throw new IOException("Spool is closed");
+    }
+    int length = payload.readableBytes();
+    long needed = (long) HEADER_SIZE + length + Integer.BYTES;
+    if (needed > maxBytes) {
+      return false;
+    }
+
+    Segment tail = segments.peekLast();
+    if (tail == null || tail.remaining() < needed) {
+      int size = (int) Math.max(segmentSize, needed);
+      while (!segments.isEmpty() && bytes + size > maxBytes) {
+        evictOldest();
+      }
+      tail = Segment.map(segmentFile(nextSequence), nextSequence, size);
+      nextSequence++;
+      segments.addLast(tail);
+      bytes += size;
+    }
+
+    ByteBuffer mapping = tail.mapping;
+    int position = tail.writePosition;
+    int end = position + HEADER_SIZE + length;
+    ByteBuffer body = mapping.duplicate();
+    body.limit(end).position(position + HEADER_SIZE);
+    payload.getBytes(payload.readerIndex(), body);
+
+    body.position(position + HEADER_SIZE);
+    crc.reset();
+    crc.update(body);
+    mapping.putInt(position + CRC, (int) crc.getValue());
+    mapping.put(position + STATE, PENDING);
+    // Terminates the segment, in case a torn entry was once written past here
+    mapping.putInt(end + LENGTH, 0);
+    // Written last, so the entry is only visible once it is complete
+    mapping.putInt(position + LENGTH, length);
+
+    tail.writePosition = end;
+    tail.pending++;
+    entries++;
+    return true;
+  }
+
+  private File segmentFile(long sequence) {
+    return new File(directory, String.format("segment-%020d.log", sequence));
+  }
+
+  private void evictOldest() {
+    Segment oldest = segments.removeFirst();
+    bytes -= oldest.size();
+    entries -= oldest.pending;
+    evicted += oldest.pending;
+    if (oldest.pending > 0) {
+      logger.warn("Evicted {} spooled entries, as the spool is full", oldest.pending);
+    }
+    oldest.delete();
+  }
+
+  /**
+   * Returns the payload of the oldest entry that has not been consumed, as a read-only view of
+   * the mapped segment which is only valid until the entry is consumed or the log is closed, or
+   * null if there is none or the log is closed.
+   */
+  ByteBuffer peek() {
+    if (closed) {
+      return null;
+    }
+    Segment head = segments.peekFirst();
+    if (head == null || head.pending == 0) {
+      return null;
+    }
+    int position = head.readPosition;
+    int length = head.mapping.getInt(position + LENGTH);
+    ByteBuffer payload = head.mapping.asReadOnlyBuffer();
+    payload.limit(position + HEADER_SIZE + length).position(position + HEADER_SIZE);
+    return payload.slice();
+  }
+
+  /**
+   * Returns an identifier of the oldest entry that has not been consumed, or -1 if there is none
+   * or the log is closed.
+   */
+  long head() {
+    if (closed) {
+      return -1;
+    }
+    Segment head = segments.peekFirst();
+    return head == null || head.pending == 0 ? -1 : head.sequence << 32 | head.readPosition;
+  }
+
+  /**
+   * Marks the oldest entry that has not been consumed as consumed, deleting its segment if every
+   * entry in it is now consumed.
+   *
+   * @param expectedHead the identifier of the entry, as returned by {@link #head()}
+   * @return whether the entry was consumed, which it is not if it is no longer the oldest, such as
+   *     after being evicted, or if the log is closed
+   */
+  boolean consume(long expectedHead) {
+    if (closed || expectedHead < 0 || head() != expectedHead) {
+      return false;
+    }
+    Segment head = segments.peekFirst();
+    head.mapping.put(head.readPosition + STATE, CONSUMED);
+    head.advance();
+    entries--;
+    if (head.pending == 0) {
+      segments.removeFirst();
+      bytes -= head.size();
+      head.delete();
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of entries that have not been consumed
+   */
+  int entries() {
+    return entries;
+  }
+
+  /**
+   * @return the total size of the segments, in bytes
+   */
+  long bytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the number of entries evicted without being consumed
+   */
+  long evicted() {
+    return evicted;
+  }
+
+  /**
+   * @return whether the log is closed
+   */
+  boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Unmaps every segment, keeping the files of those with entries that were not consumed.
+   */
+  @Override public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Segment segment : segments) {
+      segment.mapping.force();
+      segment.unmap();
+    }
+    segments.clear();
+  }
+
+  /**
+   * A single mapped segment file, with the positions of its oldest pending entry and its end.
+   */
+  private static final class Segment {
+
+    final File file;
+    final long sequence;
+    final MappedByteBuffer mapping;
+    int readPosition;
+    int writePosition;
+    int pending;
+
+    private Segment(File file, long sequence, MappedByteBuffer mapping) {
+      this.file = file;
+      this.sequence = sequence;
+      this.mapping = mapping;
+    }
+
+    /**
+     * Maps a file of the given size, creating it if needed. New files are zero filled.
+     */
+    static Segment map(File file, long sequence, long size) throws IOException {
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Segment " + file + " is too large to map: " + size);
+      }
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+          FileChannel channel = raf.getChannel()) {
+        if (raf.length() < size) {
+          raf.setLength(size);
+        }
+        // The mapping remains valid after the channel is closed
+        return new Segment(file, sequence, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+      }
+    }
+
+    int size() {
+      return mapping.capacity();
+    }
+
+    long remaining() {
+      return size() - writePosition;
+    }
+
+    /**
+     * Finds the entries of an existing segment, stopping at the first that is incomplete or
+     * corrupt, and positions the segment at the first entry that was not consumed.
+     */
+    void scan(CRC32 crc) {
+      int position = 0;
+      readPosition = -1;
+      while (position + HEADER_SIZE + Integer.BYTES <= size()) {
+        int length = mapping.getInt(position + LENGTH);
+        if (length <= 0 || length > size() - position - HEADER_SIZE) {
+          break;
+        }
+        byte state = mapping.get(position + STATE);
+        if (state == PENDING) {
+          ByteBuffer body = mapping.duplicate();
+          body.limit(position + HEADER_SIZE + length).position(position + HEADER_SIZE);
+          crc.reset();
+          crc.update(body);
+          if ((int) crc.getValue() != mapping.getInt(position + CRC)) {
+            logger.warn("Ignoring corrupt entries from offset {} of {}", position, file);
+            break;
+          }
+          pending++;
+          if (readPosition < 0) {
+            readPosition = position;
+          }
+        } else if (state != CONSUMED) {
+          break;
+        }
+        position += HEADER_SIZE + length;
+      }
+      // Entries after a corrupt one are discarded, and overwritten by later appends
+      writePosition = position;
+      if (position + Integer.BYTES <= size()) {
+        mapping.putInt(position + LENGTH, 0);
+      }
+      if (readPosition < 0) {
+        readPosition = position;
+      }
+    }
+
+    /**
+     * Moves past the entry at the read position, and any consumed entries after it.
+     */
+    void advance() {
+      pending--;
+      readPosition += HEADER_SIZE + mapping.getInt(readPosition + LENGTH);
+      while (pending > 0 && mapping.get(readPosition + STATE) == CONSUMED) {
+        readPosition += HEADER_SIZE + mapping.getInt(readPosition + LENGTH);
+      }
+    }
+
+    void unmap() {
+      PlatformDependent.freeDirectBuffer(mapping);
+    }
+
+    void delete() {
+      unmap();
+      if (!file.delete()) {
+        logger.warn("Could not delete spool segment {}", file);
+      }
+    }
+  }
+}
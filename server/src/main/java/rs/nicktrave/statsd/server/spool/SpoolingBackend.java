@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.spool;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import rs.nicktrave.statsd.server.Backend;
+import rs.nicktrave.statsd.server.aggregate.Snapshot;
+import rs.nicktrave.statsd.server.aggregate.SnapshotCodec;
+
+/**
+ * A {@link Backend} that writes each snapshot to another backend on a thread of its own, and
+ * spools the snapshots that backend fails to take to disk, to be replayed once it recovers.
+ *
+ * <p>A flush only hands the snapshot to the sending thread over a bounded queue, so a slow or
+ * unavailable backend never holds up the flush thread. Only the sending thread encodes and spools
+ * snapshots. If the queue is full because the sending thread is stuck on a slow write, the new
+ * snapshot is dropped and counted, so at most a few snapshots are ever held on the heap.
+ *
+ * <p>Snapshots are spooled with {@link SnapshotCodec} into a {@link SegmentLog} of memory-mapped
+ * segment files, whose total size is bounded: when it is full, the oldest snapshots are evicted.
+ * While anything is spooled, new snapshots are spooled behind it, and the spool is replayed in the
+ * order it was written, no faster than a configured rate, so that a recovering backend is not
+ * flooded. A failed replay is retried after an interval. Each spooled snapshot is copied out of
+ * its segment before it is decoded and written, so the spool is never locked during either.
+ *
+ * <p>Snapshots still spooled when the backend is closed are replayed when a backend is next
+ * opened with the same directory.
+ */
+public final class SpoolingBackend implements Backend, Closeable {
+
+  private static final InternalLogger logger =
+      InternalLoggerFactory.getInstance(SpoolingBackend.class);
+
+  private static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+  private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  private static final double DEFAULT_REPLAY_RATE = 5;
+  private static final long DEFAULT_RETRY_INTERVAL_MILLIS = 5_000;
+  private static final int DEFAULT_QUEUE_CAPACITY = 2;
+  private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final Backend backend;
+  private final SegmentLog log;
+  private final long replayIntervalNanos;
+  private final long retryIntervalNanos;
+  private final BlockingQueue<Snapshot> waiting;
+  private final Thread sender;
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong spooled = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  // Replayed snapshots whose entries were evicted while they were being written, and so are
+  // counted by the spool as evicted
+  private final AtomicLong evictedAfterReplay = new AtomicLong();
+
+  private volatile boolean closed;
+  // Only accessed by the sending thread
+  private long nextReplayNanos;
+
+  private SpoolingBackend(Builder builder) throws IOException {
+    backend = builder.backend;
+    long maxBytes = builder.maxBytes > 0 ? builder.maxBytes : DEFAULT_MAX_BYTES;
+    int segmentSize = builder.segmentSize > 0
+        ? builder.segmentSize : (int) Math.min(DEFAULT_SEGMENT_SIZE, maxBytes);
+    log = new SegmentLog(builder.directory, segmentSize, maxBytes);
+    double replayRate = builder.replayRate > 0 ? builder.replayRate : DEFAULT_REPLAY_RATE;
+    replayIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / replayRate);
+    retryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.retryIntervalMillis > 0
+        ? builder.retryIntervalMillis : DEFAULT_RETRY_INTERVAL_MILLIS);
+    waiting = new ArrayBlockingQueue<>(
+        builder.queueCapacity > 0 ? builder.queueCapacity : DEFAULT_QUEUE_CAPACITY);
+    nextReplayNanos = System.nanoTime();
+    sender = new DefaultThreadFactory("statsd-spool", true).newThread(this::send);
+    sender.start();
+  }
+
+  /**
+   * Returns a new builder for a {@link SpoolingBackend} instance.
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * A builder for a {@link SpoolingBackend} instance.
+   */
+  public static class Builder {
+
+    private Backend backend;
+    private File directory;
+    private long maxBytes;
+    private int segmentSize;
+    private double replayRate;
+    private long retryIntervalMillis;
+    private int queueCapacity;
+
+    private Builder() {
+    }
+
+    /**
+     * Sets the backend to write snapshots to, which is required.
+     */
+    public Builder withBackend(Backend backend) {
+      this.backend = backend;
+      return this;
+    }
+
+    /**
+     * Sets the directory to keep the spool in, which is required, and is created if it does not
+     * exist. The directory must not be shared with another backend.
+     */
+    public Builder withDirectory(File directory) {
+      this.directory = directory;
+      return this;
+    }
+
+    /**
+     * Sets the maximum total size of the spool's files, in bytes. Defaults to 1GB.
+     */
+    public Builder withMaxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * Sets the size of each of the spool's files, in bytes. A snapshot larger than this is spooled
+     * in a file of its own. Smaller files are reclaimed sooner, and larger files are created less
+     * often. Defaults to 64MB, or the maximum size if that is smaller.
+     */
+    public Builder withSegmentSize(int segmentSize) {
+      this.segmentSize = segmentSize;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of spooled snapshots replayed per second. Defaults to five.
+     */
+    public Builder withReplayRate(double snapshotsPerSecond) {
+      this.replayRate = snapshotsPerSecond;
+      return this;
+    }
+
+    /**
+     * Sets how long to wait after the backend fails before trying it again. Defaults to five
+     * seconds.
+     */
+    public Builder withRetryInterval(long interval, TimeUnit unit) {
+      this.retryIntervalMillis = unit.toMillis(interval);
+      return this;
+    }
+
+    /**
+     * Sets the number of snapshots that can wait for the sending thread. Further snapshots are
+     * dropped until it catches up. Defaults to two.
+     */
+    public Builder withQueueCapacity(int snapshots) {
+      this.queueCapacity = snapshots;
+      return this;
+    }
+
+    /**
+     * Construct and return a new backend instance, opening the spool and starting to replay
+     * anything already in it.
+     *
+     * @throws IllegalArgumentException if the backend or directory is missing, or the segment
+     *     size is larger than the maximum size
+     * @throws IOException if the spool could not be opened
+     */
+    public SpoolingBackend build() throws IOException {
+      if (backend == null) {
+        throw new IllegalArgumentException("Backend must be provided");
+      }
+      if (directory == null) {
+        throw new IllegalArgumentException("Directory must be provided");
+      }
+      if (segmentSize > 0 && segmentSize > (maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES)) {
+        throw new IllegalArgumentException(
+            "Segment size " + segmentSize + " is larger than the maximum size");
+      }
+      return new SpoolingBackend(this);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Hands the snapshot to the sending thread and returns, dropping the snapshot if the queue
+   * of snapshots waiting for the sending thread is full.
+   *
+   * @throws IOException if the backend is closed
+   */
+  @Override public void flush(Snapshot snapshot) throws IOException {
+    if (closed) {
+      throw new IOException("Backend is closed");
+    }
+    if (!waiting.offer(snapshot)) {
+      if (dropped.getAndIncrement() == 0 || logger.isDebugEnabled()) {
+        logger.warn("Dropping a snapshot, as {} are already waiting to be sent or spooled",
+            waiting.size());
+      }
+    }
+  }
+
+  private void send() {
+    while (!closed) {
+      try {
+        if (spooledEntries() == 0) {
+          Snapshot snapshot = waiting.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+          if (snapshot == null) {
+            continue;
+          }
+          if (write(snapshot)) {
+            sent.incrementAndGet();
+          } else {
+            spool(snapshot);
+            nextReplayNanos = System.nanoTime() + retryIntervalNanos;
+          }
+          continue;
+        }
+
+        // Keep newer snapshots behind those already spooled
+        Snapshot snapshot;
+        while ((snapshot = waiting.poll()) != null) {
+          spool(snapshot);
+        }
+        long wait = nextReplayNanos - System.nanoTime();
+        if (wait > 0) {
+          snapshot = waiting.poll(Math.min(wait, POLL_NANOS), TimeUnit.NANOSECONDS);
+          if (snapshot != null) {
+            spool(snapshot);
+          }
+          continue;
+        }
+        replay();
+      } catch (InterruptedException e) {
+        // Closed
+        return;
+      } catch (RuntimeException e) {
+        logger.warn("Unexpected failure in the spool", e);
+      }
+    }
+  }
+
+  /**
+   * Writes the oldest spooled snapshot to the backend, and removes it from the spool if it was
+   * written.
+   */
+  private void replay() {
+    long head;
+    ByteBuf copy;
+    synchronized (log) {
+      ByteBuffer entry = log.peek();
+      if (entry == null) {
+        return;
+      }
+      head = log.head();
+      // Copied, as the entry's segment may be unmapped once the spool is unlocked
+      copy = PooledByteBufAllocator.DEFAULT.heapBuffer(entry.remaining());
+      copy.writeBytes(entry);
+    }
+
+    Snapshot snapshot;
+    try {
+      snapshot = SnapshotCodec.decode(copy);
+    } catch (IllegalArgumentException e) {
+      logger.warn("Dropping a spooled snapshot that could not be decoded", e);
+      boolean consumed;
+      synchronized (log) {
+        consumed = log.consume(head);
+      }
+      // Otherwise the entry was evicted, and counted by the spool
+      if (consumed) {
+        dropped.incrementAndGet();
+      }
+      return;
+    } finally {
+      copy.release();
+    }
+
+    if (!write(snapshot)) {
+      nextReplayNanos = System.nanoTime() + retryIntervalNanos;
+      return;
+    }
+    boolean evicted;
+    synchronized (log) {
+      evicted = !log.consume(head) && !log.isClosed();
+    }
+    replayed.incrementAndGet();
+    if (evicted) {
+      evictedAfterReplay.incrementAndGet();
+    }
+    nextReplayNanos = System.nanoTime() + replayIntervalNanos;
+    if (spooledEntries() == 0) {
+      logger.info("Replayed every spooled snapshot");
+    }
+  }
+
+  private boolean write(Snapshot snapshot) {
+    try {
+      backend.flush(snapshot);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      if (failures.getAndIncrement() == 0 || logger.isDebugEnabled()) {
+        logger.warn("Failed to write a snapshot, spooling until the backend recovers", e);
+      }
+      return false;
+    }
+  }
+
+  private void spool(Snapshot snapshot) {
+    ByteBuf encoded = PooledByteBufAllocator.DEFAULT.heapBuffer();
+    try {
+      SnapshotCodec.encode(snapshot, encoded);
+      boolean appended;
+      synchronized (log) {
+        appended = log.append(encoded);
+      }
+      if (appended) {
+        spooled.incrementAndGet();
+      } else {
+        logger.warn("Dropping a snapshot of {} bytes, which is larger than the spool",
+            encoded.readableBytes());
+        dropped.incrementAndGet();
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Failed to spool a snapshot", e);
+      dropped.incrementAndGet();
+    } finally {
+      encoded.release();
+    }
+  }
+
+  private int spooledEntries() {
+    synchronized (log) {
+      return log.entries();
+    }
+  }
+
+  /**
+   * @return the number of snapshots written to the backend when they were flushed, without being
+   *     spooled
+   */
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  /**
+   * @return the number of snapshots written to the spool
+   */
+  public long getSpooledCount() {
+    return spooled.get();
+  }
+
+  /**
+   * @return the number of spooled snapshots written to the backend
+   */
+  public long getReplayedCount() {
+    return replayed.get();
+  }
+
+  /**
+   * @return the number of snapshots dropped because the sending thread was too far behind, or
+   *     because they could not be spooled, or evicted from a full spool before being replayed
+   */
+  public long getDroppedCount() {
+    synchronized (log) {
+      return dropped.get() + log.evicted() - evictedAfterReplay.get();
+    }
+  }
+
+  /**
+   * @return the number of times the backend failed to take a snapshot
+   */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * @return the number of snapshots currently spooled
+   */
+  public int getSpooledSnapshots() {
+    return spooledEntries();
+  }
+
+  /**
+   * @return the total size of the spool's files, in bytes
+   */
+  public long getSpoolBytes() {
+    synchronized (log) {
+      return log.bytes();
+    }
+  }
+
+  /**
+   * Stops the sending thread, interrupting a write in progress, spools any snapshots still
+   * waiting to be sent, and closes the spool. If the sending thread does not stop within the retry
+   * interval, anything it later tries to spool is dropped.
+   */
+  @Override public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    sender.interrupt();
+    try {
+      sender.join(TimeUnit.NANOSECONDS.toMillis(retryIntervalNanos));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    Snapshot snapshot;
+    while ((snapshot = waiting.poll()) != null) {
+      spool(snapshot);
+    }
+    synchronized (log) {
+      log.close();
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.stats;
+
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.MetricProcessor;
+
+/**
+ * Counts the metrics passed to a {@link MetricProcessor}, and records how long it takes to process
+ * each call.
+ */
+final class InstrumentedProcessor implements MetricProcessor {
+
+  private final MetricProcessor delegate;
+  private final StatsCounter metrics;
+  private final StatsHistogram latency;
+
+  InstrumentedProcessor(MetricProcessor delegate, StatsCounter metrics, StatsHistogram latency) {
+    this.delegate = delegate;
+    this.metrics = metrics;
+    this.latency = latency;
+  }
+
+  @Override public void process(Metric metric) {
+    long start = System.nanoTime();
+    try {
+      delegate.process(metric);
+    } finally {
+      latency.record(System.nanoTime() - start);
+      metrics.increment();
+    }
+  }
+
+  @Override public void processBatch(MetricBatch batch) {
+    int size = batch.size();
+    long start = System.nanoTime();
+    try {
+      delegate.processBatch(batch);
+    } finally {
+      latency.record(System.nanoTime() - start);
+      metrics.add(size);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count that may be incremented by any number of threads concurrently.
+ *
+ * <p>The count is striped across threads, so that incrementing it from several event loops does
+ * not contend on a single cache line.
+ */
+public final class StatsCounter {
+
+  private final LongAdder count = new LongAdder();
+
+  StatsCounter() {
+  }
+
+  public void increment() {
+    count.increment();
+  }
+
+  public void add(long delta) {
+    count.add(delta);
+  }
+
+  /**
+   * @return the current count
+   */
+  public long get() {
+    return count.sum();
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.stats;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.internal.MathUtil;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values, such as latencies in nanoseconds, that may be
+ * recorded by any number of threads concurrently.
+ *
+ * <p>Each power of two is split into four equal buckets, so a value is reported with a relative
+ * error of at most 25%, across the full range of a long, in 2KB of counts.
+ *
+ * <p>Most values recorded by a histogram fall into the same few buckets, so the counts are striped
+ * across threads, like the sum: each thread is assigned its own stripe of 2KB of counts in turn,
+ * up to one stripe per available processor, and the stripes are merged when the histogram is
+ * read. Recording a value is then an uncontended atomic increment of its bucket in the calling
+ * thread's stripe, plus a striped addition to the sum.
+ *
+ * <p>Counts are cumulative. The distribution over an interval is the difference between two
+ * {@link #counts()} snapshots, as taken by {@link StatsRegistry#report}.
+ */
+public final class StatsHistogram {
+
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  // Values below SUB_BUCKETS have a bucket each, then each power of two from SUB_BUCKETS to 2^62
+  // is split into SUB_BUCKETS
+  static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private static final int STRIPES =
+      MathUtil.findNextPositivePowerOfTwo(Runtime.getRuntime().availableProcessors());
+  private static final AtomicInteger nextStripe = new AtomicInteger();
+  private static final FastThreadLocal<Integer> threadStripe = new FastThreadLocal<Integer>() {
+    @Override protected Integer initialValue() {
+      return nextStripe.getAndIncrement() & (STRIPES - 1);
+    }
+  };
+
+  // Each stripe is a separate array, so stripes do not share cache lines other than at their ends
+  private final AtomicLongArray[] counts = new AtomicLongArray[STRIPES];
+  private final LongAdder sum = new LongAdder();
+
+  StatsHistogram() {
+    for (int i = 0; i < STRIPES; i++) {
+      counts[i] = new AtomicLongArray(BUCKETS);
+    }
+  }
+
+  /**
+   * Records a value. Negative values are recorded as zero.
+   */
+  public void record(long value) {
+    long clamped = Math.max(0, value);
+    counts[threadStripe.get()].incrementAndGet(index(clamped));
+    sum.add(clamped);
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Returns the highest value recorded in the given bucket.
+   */
+  static long highestValueAt(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int shift = exponent - SUB_BUCKET_BITS;
+    long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  /**
+   * @return the number of values recorded
+   */
+  public long count() {
+    long count = 0;
+    for (AtomicLongArray stripe : counts) {
+      for (int i = 0; i < BUCKETS; i++) {
+        count += stripe.get(i);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the sum of the values recorded
+   */
+  public long sum() {
+    return sum.sum();
+  }
+
+  /**
+   * Returns the highest value in the bucket containing the given percentile of the values
+   * recorded, or zero if none have been.
+   *
+   * @param percentile the percentile, in the range [0, 100]
+   */
+  public long valueAtPercentile(double percentile) {
+    return valueAtPercentile(counts(), percentile);
+  }
+
+  /**
+   * @return a snapshot of the count of each bucket, summed across the stripes
+   */
+  long[] counts() {
+    long[] snapshot = new long[BUCKETS];
+    for (AtomicLongArray stripe : counts) {
+      for (int i = 0; i < BUCKETS; i++) {
+        snapshot[i] += stripe.get(i);
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Returns the highest value in the bucket containing the given percentile of the given bucket
+   * counts, or zero if they are all zero.
+   */
+  static long valueAtPercentile(long[] counts, double percentile) {
+    long total = 0;
+    for (long count : counts) {
+      total += count;
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    double fraction = Math.min(Math.max(percentile, 0), 100) / 100;
+    long target = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return highestValueAt(i);
+      }
+    }
+    return highestValueAt(counts.length - 1);
+  }
+}
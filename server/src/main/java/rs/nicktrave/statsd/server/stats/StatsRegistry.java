@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.stats;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.MetricProcessor;
+
+/**
+ * A registry of the server's own statistics, which can be read programmatically or reported into
+ * a {@link MetricProcessor} as metrics prefixed with {@code statsd.}.
+ *
+ * <p>There are three kinds of statistic, each with its own namespace:
+ *
+ * <ul>
+ *   <li>Counters only ever increase, and are reported as counters of the increase since the last
+ *   report. They are either a {@link StatsCounter}, or an existing count registered with {@link
+ *   #registerCounter(String, LongSupplier)}.</li>
+ *   <li>Gauges are a current value, such as a queue depth, and are reported as gauges.</li>
+ *   <li>Histograms record a distribution of values, such as latencies. The distribution since the
+ *   last report is reported as a counter of the number of values, and gauges of the median, 99th
+ *   percentile and maximum, suffixed {@code .count}, {@code .p50}, {@code .p99} and {@code
+ *   .max}.</li>
+ * </ul>
+ *
+ * <p>Updating a statistic never takes a lock. Statistics are registered once, typically when a
+ * component is constructed.
+ */
+public final class StatsRegistry {
+
+  /**
+   * The prefix of the name of every reported metric.
+   */
+  public static final String PREFIX = "statsd.";
+
+  private final Map<String, LongSupplier> counters = new ConcurrentHashMap<>();
+  private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+  private final Map<String, StatsHistogram> histograms = new ConcurrentHashMap<>();
+
+  // The values at the last report. Only accessed when reporting.
+  private final Map<String, Long> reportedCounters = new HashMap<>();
+  private final Map<String, long[]> reportedHistograms = new HashMap<>();
+
+  /**
+   * Returns the counter with the given name, creating it if it does not exist.
+   *
+   * @throws IllegalArgumentException if a counter with the name was registered with {@link
+   *     #registerCounter(String, LongSupplier)}
+   */
+  public StatsCounter counter(String name) {
+    LongSupplier existing = counters.computeIfAbsent(name, key -> new CounterSupplier());
+    if (!(existing instanceof CounterSupplier)) {
+      throw new IllegalArgumentException("Counter is already registered: " + name);
+    }
+    return ((CounterSupplier) existing).counter;
+  }
+
+  /**
+   * Registers an existing count, which must only ever increase, as a counter.
+   *
+   * @throws IllegalArgumentException if a counter with the name already exists
+   */
+  public void registerCounter(String name, LongSupplier value) {
+    register(counters, name, value);
+  }
+
+  /**
+   * Registers a current value as a gauge.
+   *
+   * @throws IllegalArgumentException if a gauge with the name already exists
+   */
+  public void registerGauge(String name, LongSupplier value) {
+    register(gauges, name, value);
+  }
+
+  private static void register(Map<String, LongSupplier> stats, String name, LongSupplier value) {
+    if (stats.putIfAbsent(name, value) != null) {
+      throw new IllegalArgumentException("Statistic is already registered: " + name);
+    }
+  }
+
+  /**
+   * Returns the histogram with the given name, creating it if it does not exist.
+   */
+  public StatsHistogram histogram(String name) {
+    return histograms.computeIfAbsent(name, key -> new StatsHistogram());
+  }
+
+  /**
+   * Returns a processor that passes metrics on to the given processor, counting them in the
+   * counter {@code <name>.metrics} and recording the nanoseconds taken by each call in the
+   * histogram {@code <name>.latency_nanos}.
+   */
+  public MetricProcessor instrument(MetricProcessor processor, String name) {
+    return new InstrumentedProcessor(processor, counter(name + ".metrics"),
+        histogram(name + ".latency_nanos"));
+  }
+
+  /**
+   * @return the current value of every counter, by name
+   */
+  public Map<String, Long> getCounters() {
+    return read(counters);
+  }
+
+  /**
+   * @return the current value of every gauge, by name
+   */
+  public Map<String, Long> getGauges() {
+    return read(gauges);
+  }
+
+  private static Map<String, Long> read(Map<String, LongSupplier> stats) {
+    Map<String, Long> values = new TreeMap<>();
+    stats.forEach((name, value) -> values.put(name, value.getAsLong()));
+    return values;
+  }
+
+  /**
+   * @return every histogram, by name
+   */
+  public Map<String, StatsHistogram> getHistograms() {
+    return Collections.unmodifiableMap(new TreeMap<>(histograms));
+  }
+
+  /**
+   * Passes the statistics to the given processor as metrics, in one or more batches. Counters and
+   * histograms that have not changed since the last report are omitted.
+   */
+  public synchronized void report(MetricProcessor processor) {
+    MetricBatch batch = new MetricBatch();
+
+    counters.forEach((name, value) -> {
+      long current = value.getAsLong();
+      Long previous = reportedCounters.put(name, current);
+      long delta = current - (previous != null ? previous : 0);
+      if (delta != 0) {
+        add(processor, batch, name, delta, false);
+      }
+    });
+
+    gauges.forEach((name, value) -> add(processor, batch, name, value.getAsLong(), true));
+
+    histograms.forEach((name, histogram) -> {
+      long[] current = histogram.counts();
+      long[] previous = reportedHistograms.put(name, current);
+      long count = 0;
+      for (int i = 0; i < current.length; i++) {
+        if (previous != null) {
+          current[i] -= previous[i];
+        }
+        count += current[i];
+      }
+      if (count > 0) {
+        add(processor, batch, name + ".count", count, false);
+        add(processor, batch, name + ".p50", StatsHistogram.valueAtPercentile(current, 50), true);
+        add(processor, batch, name + ".p99", StatsHistogram.valueAtPercentile(current, 99), true);
+        add(processor, batch, name + ".max", StatsHistogram.valueAtPercentile(current, 100), true);
+      }
+      // Keep the cumulative counts for the next report
+      if (previous != null) {
+        for (int i = 0; i < current.length; i++) {
+          current[i] += previous[i];
+        }
+      }
+    });
+
+    if (!batch.isEmpty()) {
+      processor.processBatch(batch);
+    }
+  }
+
+  private static void add(MetricProcessor processor, MetricBatch batch, String name, long value,
+      boolean gauge) {
+    if (batch.isFull()) {
+      processor.processBatch(batch);
+      batch.clear();
+    }
+    if (gauge) {
+      batch.addGauge(PREFIX + name, value, Gauge.Type.SET);
+    } else {
+      batch.addCounter(PREFIX + name, value, 1.0);
+    }
+  }
+
+  /**
+   * A counter created by the registry, as opposed to one registered with an existing count.
+   */
+  private static final class CounterSupplier implements LongSupplier {
+
+    final StatsCounter counter = new StatsCounter();
+
+    @Override public long getAsLong() {
+      return counter.get();
+    }
+  }
+}
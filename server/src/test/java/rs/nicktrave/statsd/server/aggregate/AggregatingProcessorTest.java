@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.common.Timing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class AggregatingProcessorTest {
+
+  private static final String NAME = "foo";
+
+  private AggregatingProcessor processor;
+
+  @Before public void setup() {
+    processor = newProcessor();
+  }
+
+  @After public void teardown() {
+    processor.close();
+  }
+
+  AggregatingProcessor.Builder newBuilder() {
+    return AggregatingProcessor.newBuilder();
+  }
+
+  AggregatingProcessor newProcessor() {
+    return newBuilder().build();
+  }
+
+  @Test public void testCounter() {
+    processor.process(new Counter(NAME, 1));
+    processor.process(new Counter(NAME, 2));
+    processor.process(new Counter(NAME, 1, 0.1));
+
+    Collected collected = Collected.from(processor.flush());
+
+    assertThat(collected.counters.get(NAME)).isCloseTo(13, within(1e-9));
+  }
+
+  @Test public void testCounter_resetOnFlush() {
+    processor.process(new Counter(NAME, 1));
+    processor.flush();
+
+    Collected collected = Collected.from(processor.flush());
+
+    assertThat(collected.counters).isEmpty();
+  }
+
+  @Test public void testGauge() {
+    processor.process(new Gauge(NAME, 10));
+    processor.process(new Gauge(NAME, 5, Gauge.Type.UPDATE));
+    processor.process(new Gauge(NAME, -2, Gauge.Type.UPDATE));
+
+    Collected collected = Collected.from(processor.flush());
+
+    assertThat(collected.gauges).containsEntry(NAME, 13L);
+  }
+
+  @Test public void testGauge_setReplacesUpdates() {
+    processor.process(new Gauge(NAME, 5, Gauge.Type.UPDATE));
+    processor.process(new Gauge(NAME, 10));
+
+    Collected collected = Collected.from(processor.flush());
+
+    assertThat(collected.gauges).containsEntry(NAME, 10L);
+  }
+
+  @Test public void testGauge_updateAppliesToPreviousInterval() {
+    processor.process(new Gauge(NAME, 10));
+    processor.flush();
+    processor.process(new Gauge(NAME, 3, Gauge.Type.UPDATE));
+
+    Collected collected = Collected.from(processor.flush());
+
+    assertThat(collected.gauges).containsEntry(NAME, 13L);
+  }
+
+  @Test public void testGauge_expiry() {
+    AggregatingProcessor processor = newBuilder().withGaugeExpiry(2).build();
+    try {
+      processor.process(new Gauge(NAME, 10));
+      processor.process(new Gauge("bar", 10));
+      processor.flush();
+      processor.process(new Gauge("bar", 1, Gauge.Type.UPDATE));
+      processor.flush();
+      processor.flush();
+      processor.process(new Gauge(NAME, 1, Gauge.Type.UPDATE));
+      processor.process(new Gauge("bar", 1, Gauge.Type.UPDATE));
+
+      Collected collected = Collected.from(processor.flush());
+
+      // Idle for two intervals, so the update applies to zero
+      assertThat(collected.gauges).containsEntry(NAME, 1L);
+      assertThat(collected.gauges).containsEntry("bar", 12L);
+    } finally {
+      processor.close();
+    }
+  }
+
+  @Test public void testTimer() {
+    for (int i = 1; i <= 100; i++) {
+      processor.process(new Timing(NAME, i, 0.5));
+    }
+
+    TimerSummary timer = Collected.from(processor.flush()).timers.get(NAME);
+
+    assertThat(timer.getSampleCount()).isEqualTo(100);
+    assertThat(timer.getCount()).isCloseTo(200, within(1e-9));
+    assertThat(timer.getMin()).isEqualTo(1);
+    assertThat(timer.getMax()).isEqualTo(100);
+    assertThat(timer.getMean()).isCloseTo(50.5, within(1e-9));
+    assertThat(timer.getValueAtPercentile(50)).isEqualTo(50);
+    assertThat(timer.getValueAtPercentile(99)).isEqualTo(99);
+  }
+
+  @Test public void testTimer_idleNotFlushed() {
+    processor.process(new Timing(NAME, 1));
+
+    Collected first = Collected.from(processor.flush());
+    Collected second = Collected.from(processor.flush());
+    Collected third = Collected.from(processor.flush());
+
+    assertThat(first.timers.get(NAME).getSampleCount()).isEqualTo(1);
+    assertThat(second.timers).isEmpty();
+    assertThat(third.timers).isEmpty();
+  }
+
+  @Test public void testProcessBatch() {
+    MetricBatch batch = new MetricBatch();
+    batch.add(new Counter(NAME, 1));
+    batch.add(new Gauge(NAME, 2));
+    batch.add(new Timing(NAME, 3));
+    processor.processBatch(batch);
+
+    Collected collected = Collected.from(processor.flush());
+
+    assertThat(collected.counters).containsEntry(NAME, 1.0);
+    assertThat(collected.gauges).containsEntry(NAME, 2L);
+    assertThat(collected.timers.get(NAME).getMax()).isEqualTo(3);
+  }
+
+  @Test public void testSameNameDifferentTypes() {
+    processor.process(new Counter(NAME, 1));
+    processor.process(new Gauge(NAME, 2));
+    processor.process(new Timing(NAME, 3));
+
+    Snapshot snapshot = processor.flush();
+    Collected collected = Collected.from(snapshot);
+
+    assertThat(snapshot.size()).isEqualTo(3);
+    assertThat(collected.counters).containsKey(NAME);
+    assertThat(collected.gauges).containsKey(NAME);
+    assertThat(collected.timers).containsKey(NAME);
+  }
+
+  @Test public void testConcurrentWritersAndFlushes() throws Exception {
+    int writers = 4;
+    int iterations = 100_000;
+    ExecutorService executor = Executors.newFixedThreadPool(writers);
+    CountDownLatch start = new CountDownLatch(1);
+
+    try {
+      Future<?>[] futures = new Future<?>[writers];
+      for (int i = 0; i < writers; i++) {
+        futures[i] = executor.submit(() -> {
+          start.await();
+          for (int j = 0; j < iterations; j++) {
+            processor.process(new Counter(NAME, 1));
+            processor.process(new Timing(NAME, j));
+          }
+          return null;
+        });
+      }
+
+      double count = 0;
+      long timings = 0;
+      start.countDown();
+      for (Future<?> future : futures) {
+        while (!future.isDone()) {
+          Collected collected = Collected.from(processor.flush());
+          count += collected.counters.getOrDefault(NAME, 0.0);
+          timings += collected.timers.containsKey(NAME)
+              ? collected.timers.get(NAME).getSampleCount() : 0;
+        }
+        future.get();
+      }
+
+      Collected collected = Collected.from(processor.flush());
+      count += collected.counters.getOrDefault(NAME, 0.0);
+      timings += collected.timers.containsKey(NAME)
+          ? collected.timers.get(NAME).getSampleCount() : 0;
+
+      assertThat(count).isEqualTo((double) writers * iterations);
+      assertThat(timings).isEqualTo((long) writers * iterations);
+    } finally {
+      executor.shutdownNow();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Collects the series in a snapshot into maps keyed by name.
+   */
+  static final class Collected implements SeriesVisitor {
+
+    final Map<String, Double> counters = new HashMap<>();
+    final Map<String, Long> gauges = new HashMap<>();
+    final Map<String, TimerSummary> timers = new HashMap<>();
+
+    static Collected from(Snapshot snapshot) {
+      Collected collected = new Collected();
+      snapshot.accept(collected);
+      return collected;
+    }
+
+    @Override public void visitCounter(String name, double value) {
+      counters.put(name, value);
+    }
+
+    @Override public void visitGauge(String name, long value) {
+      gauges.put(name, value);
+    }
+
+    @Override public void visitTimer(String name, TimerSummary timer) {
+      timers.put(name, timer);
+    }
+  }
+}
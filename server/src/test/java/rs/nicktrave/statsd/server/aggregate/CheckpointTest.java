@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.Timing;
+import rs.nicktrave.statsd.server.aggregate.AggregatingProcessorTest.Collected;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class CheckpointTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final AggregatingProcessor processor = AggregatingProcessor.newBuilder().build();
+  private final AggregatingProcessor restored = AggregatingProcessor.newBuilder().build();
+  private File file;
+
+  @Before public void setup() {
+    file = new File(folder.getRoot(), "checkpoint");
+  }
+
+  @After public void teardown() {
+    processor.close();
+    restored.close();
+  }
+
+  @Test public void testRestore_missingFile() throws Exception {
+    assertThat(restored.restore(file)).isFalse();
+    assertThat(restored.flush().size()).isZero();
+  }
+
+  @Test public void testRestore_pendingSeries() throws Exception {
+    processor.process(new Counter("foo", 3));
+    processor.process(new Gauge("bar", 10));
+    for (int i = 1; i <= 100; i++) {
+      processor.process(new Timing("baz", i));
+    }
+    processor.checkpoint(file, true);
+
+    assertThat(restored.restore(file)).isTrue();
+    restored.process(new Counter("foo", 2));
+    restored.process(new Gauge("bar", 5, Gauge.Type.UPDATE));
+    restored.process(new Timing("baz", 101));
+    Collected collected = Collected.from(restored.flush());
+
+    assertThat(collected.counters.get("foo")).isCloseTo(5, within(1e-9));
+    assertThat(collected.gauges).containsEntry("bar", 15L);
+    TimerSummary timer = collected.timers.get("baz");
+    assertThat(timer.getSampleCount()).isEqualTo(101);
+    assertThat(timer.getMin()).isEqualTo(1);
+    assertThat(timer.getMax()).isEqualTo(101);
+    assertThat(timer.getValueAtPercentile(50)).isEqualTo(51);
+  }
+
+  @Test public void testRestore_setAfterRestoreWins() throws Exception {
+    processor.process(new Gauge("bar", 10));
+    processor.checkpoint(file, true);
+
+    restored.restore(file);
+    restored.process(new Gauge("bar", 3));
+
+    assertThat(Collected.from(restored.flush()).gauges).containsEntry("bar", 3L);
+  }
+
+  @Test public void testRestore_retainedGauges() throws Exception {
+    processor.process(new Gauge("bar", 10));
+    processor.process(new Counter("foo", 1));
+    processor.flush();
+    processor.checkpoint(file, false);
+
+    restored.restore(file);
+    Collected first = Collected.from(restored.flush());
+    restored.process(new Gauge("bar", -4, Gauge.Type.UPDATE));
+    Collected second = Collected.from(restored.flush());
+
+    // Flushed series are not flushed again
+    assertThat(first.counters).isEmpty();
+    assertThat(first.gauges).isEmpty();
+    assertThat(second.gauges).containsEntry("bar", 6L);
+  }
+
+  @Test public void testCheckpoint_drainedSeriesFlushedOnce() throws Exception {
+    processor.process(new Counter("foo", 1));
+    processor.checkpoint(file, true);
+    processor.process(new Counter("foo", 2));
+
+    Collected first = Collected.from(processor.flush());
+    Collected second = Collected.from(processor.flush());
+
+    assertThat(first.counters.get("foo")).isCloseTo(3, within(1e-9));
+    assertThat(second.counters).isEmpty();
+  }
+
+  @Test public void testRestore_differentTimerLayout() throws Exception {
+    AggregatingProcessor precise = AggregatingProcessor.newBuilder()
+        .withTimerPrecision(3)
+        .withTimerMaxValue(10_000)
+        .build();
+    try {
+      for (int i = 1; i <= 1000; i++) {
+        precise.process(new Timing("baz", i));
+      }
+      precise.checkpoint(file, true);
+    } finally {
+      precise.close();
+    }
+
+    restored.restore(file);
+    TimerSummary timer = Collected.from(restored.flush()).timers.get("baz");
+
+    assertThat(timer.getSampleCount()).isEqualTo(1000);
+    assertThat(timer.getMax()).isEqualTo(1000);
+    assertThat((double) timer.getValueAtPercentile(50)).isCloseTo(500, within(5.0));
+  }
+
+  @Test public void testRestore_alreadyPending() throws Exception {
+    processor.checkpoint(file, true);
+
+    assertThatThrownBy(() -> processor.restore(file))
+        .isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test public void testRestore_corrupt() throws Exception {
+    processor.process(new Counter("foo", 1));
+    processor.checkpoint(file, true);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(raf.length() - 1);
+      int last = raf.read();
+      raf.seek(raf.length() - 1);
+      raf.write(last ^ 0xff);
+    }
+
+    assertThatThrownBy(() -> restored.restore(file))
+        .isInstanceOf(IOException.class)
+        .hasMessageContaining("Invalid checkpoint");
+  }
+
+  @Test public void testRestore_truncated() throws Exception {
+    processor.process(new Counter("foo", 1));
+    processor.checkpoint(file, true);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() / 2);
+    }
+
+    assertThatThrownBy(() -> restored.restore(file))
+        .isInstanceOf(IOException.class);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class HistogramTest {
+
+  private static final HistogramLayout LAYOUT = new HistogramLayout(2, 3_600_000);
+
+  @Test public void testLayout_length() {
+    // 128 sub-buckets per half-bucket, 15 buckets to cover one hour in milliseconds
+    assertThat(LAYOUT.length()).isEqualTo(16 * 128);
+    assertThat(new HistogramLayout(1, 3_600_000).length()).isLessThan(LAYOUT.length());
+  }
+
+  @Test public void testLayout_invalid() {
+    assertThatThrownBy(() -> new HistogramLayout(6, 1_000))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new HistogramLayout(2, 1))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void testLayout_smallValuesAreExact() {
+    for (long value = 0; value < 256; value++) {
+      assertThat(LAYOUT.highestValueAt(LAYOUT.index(value))).isEqualTo(value);
+    }
+  }
+
+  @Test public void testLayout_relativeError() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100_000; i++) {
+      long value = (long) (random.nextDouble() * LAYOUT.highestTrackableValue());
+      long highest = LAYOUT.highestValueAt(LAYOUT.index(value));
+
+      assertThat(highest).isGreaterThanOrEqualTo(value);
+      assertThat((double) (highest - value)).isLessThanOrEqualTo(value / 100.0);
+    }
+  }
+
+  @Test public void testEmpty() {
+    Histogram histogram = new Histogram(LAYOUT);
+
+    assertThat(histogram.getSampleCount()).isZero();
+    assertThat(histogram.getMin()).isZero();
+    assertThat(histogram.getMax()).isZero();
+    assertThat(histogram.getMean()).isZero();
+    assertThat(histogram.getValueAtPercentile(99)).isZero();
+  }
+
+  @Test public void testPercentiles() {
+    Random random = new Random(42);
+    long[] values = new long[10_000];
+    Histogram histogram = new Histogram(LAYOUT);
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextInt(100_000);
+      histogram.record(values[i], 1);
+    }
+    Arrays.sort(values);
+
+    assertThat(histogram.getMin()).isEqualTo(values[0]);
+    assertThat(histogram.getMax()).isEqualTo(values[values.length - 1]);
+    for (double percentile : new double[] {50, 90, 99, 99.9}) {
+      long expected = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+      assertThat(histogram.getValueAtPercentile(percentile))
+          .isBetween(expected, expected + expected / 100);
+    }
+  }
+
+  @Test public void testSampleRate() {
+    Histogram histogram = new Histogram(LAYOUT);
+    histogram.record(10, 0.1);
+    histogram.record(20, 0.5);
+    histogram.record(30, 1);
+
+    assertThat(histogram.getSampleCount()).isEqualTo(3);
+    assertThat(histogram.getCount()).isCloseTo(13, within(1e-9));
+    assertThat(histogram.getMean()).isCloseTo(20, within(1e-9));
+  }
+
+  @Test public void testOutOfRangeValues() {
+    Histogram histogram = new Histogram(LAYOUT);
+    histogram.record(-5, 1);
+    histogram.record(Long.MAX_VALUE / 2, 1);
+
+    assertThat(histogram.getMin()).isEqualTo(-5);
+    assertThat(histogram.getMax()).isEqualTo(Long.MAX_VALUE / 2);
+    assertThat(histogram.getValueAtPercentile(0)).isEqualTo(0);
+    assertThat(histogram.getValueAtPercentile(100))
+        .isGreaterThanOrEqualTo(LAYOUT.highestTrackableValue());
+  }
+
+  @Test public void testAddAndReset() {
+    Histogram first = new Histogram(LAYOUT);
+    Histogram second = new Histogram(LAYOUT);
+    first.record(1, 1);
+    second.record(1_000, 1);
+
+    first.add(second);
+
+    assertThat(first.getSampleCount()).isEqualTo(2);
+    assertThat(first.getMin()).isEqualTo(1);
+    assertThat(first.getMax()).isEqualTo(1_000);
+    assertThat(first.getValueAtPercentile(50)).isEqualTo(1);
+
+    first.reset();
+
+    assertThat(first.getSampleCount()).isZero();
+    assertThat(first.getValueAtPercentile(50)).isZero();
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.server.Backend;
+import rs.nicktrave.statsd.server.stats.StatsRegistry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IntervalFlusherTest {
+
+  private static final long INTERVAL_MILLIS = 100;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private AggregatingProcessor processor;
+  private BlockingQueue<Snapshot> snapshots;
+  private IntervalFlusher flusher;
+
+  @Before public void setup() {
+    processor = AggregatingProcessor.newBuilder().build();
+    snapshots = new LinkedBlockingQueue<>();
+    flusher = IntervalFlusher.newBuilder()
+        .withProcessor(processor)
+        .withBackend(snapshots::add)
+        .withBackend(failingBackend())
+        .withInterval(INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  @After public void teardown() {
+    flusher.close();
+  }
+
+  @Test public void testNextBoundary() {
+    assertThat(IntervalFlusher.nextBoundary(0, 10_000)).isEqualTo(10_000);
+    assertThat(IntervalFlusher.nextBoundary(9_999, 10_000)).isEqualTo(10_000);
+    assertThat(IntervalFlusher.nextBoundary(10_000, 10_000)).isEqualTo(20_000);
+    assertThat(IntervalFlusher.nextBoundary(12_345, 10_000)).isEqualTo(20_000);
+  }
+
+  @Test public void testFlush() {
+    processor.process(new Counter("foo", 1));
+
+    Snapshot snapshot = flusher.flush(42);
+
+    assertThat(snapshot.getTimestamp()).isEqualTo(42);
+    assertThat(snapshots).containsExactly(snapshot);
+  }
+
+  @Test public void testCloseAndFlush() throws InterruptedException {
+    flusher.close();
+    flusher = IntervalFlusher.newBuilder()
+        .withProcessor(processor)
+        .withBackend(snapshots::add)
+        .withInterval(1, TimeUnit.HOURS)
+        .build();
+    flusher.start();
+    processor.process(new Counter("foo", 1));
+
+    long before = System.currentTimeMillis();
+    Snapshot snapshot = flusher.closeAndFlush(1, TimeUnit.SECONDS);
+
+    assertThat(snapshot.getTimestamp()).isGreaterThanOrEqualTo(before);
+    assertThat(AggregatingProcessorTest.Collected.from(snapshot).counters)
+        .containsEntry("foo", 1.0);
+    assertThat(snapshots).containsExactly(snapshot);
+  }
+
+  @Test public void testCloseAndCheckpoint() throws InterruptedException {
+    File checkpoint = new File(folder.getRoot(), "checkpoint");
+    flusher.close();
+    flusher = IntervalFlusher.newBuilder()
+        .withProcessor(processor)
+        .withBackend(snapshots::add)
+        .withInterval(1, TimeUnit.HOURS)
+        .withCheckpoint(checkpoint)
+        .build();
+    flusher.start();
+    processor.process(new Counter("foo", 1));
+
+    assertThat(flusher.closeAndCheckpoint(1, TimeUnit.SECONDS)).isTrue();
+    assertThat(snapshots).isEmpty();
+
+    AggregatingProcessor restored = AggregatingProcessor.newBuilder().build();
+    IntervalFlusher restoring = IntervalFlusher.newBuilder()
+        .withProcessor(restored)
+        .withBackend(snapshots::add)
+        .withCheckpoint(checkpoint)
+        .build();
+    try {
+      assertThat(restoring.restore()).isTrue();
+      assertThat(AggregatingProcessorTest.Collected.from(restoring.flush(42)).counters)
+          .containsEntry("foo", 1.0);
+    } finally {
+      restoring.close();
+      restored.close();
+    }
+  }
+
+  @Test public void testFlush_selfMetrics() {
+    StatsRegistry stats = new StatsRegistry();
+    stats.counter("foo").add(3);
+    flusher.close();
+    flusher = IntervalFlusher.newBuilder()
+        .withProcessor(processor)
+        .withBackend(snapshots::add)
+        .withBackend(failingBackend())
+        .withStats(stats, true)
+        .build();
+
+    AggregatingProcessorTest.Collected first = AggregatingProcessorTest.Collected.from(
+        flusher.flush(42));
+    AggregatingProcessorTest.Collected second = AggregatingProcessorTest.Collected.from(
+        flusher.flush(43));
+
+    assertThat(first.counters).containsEntry("statsd.foo", 3.0);
+    assertThat(first.gauges).containsKey("statsd.aggregate.reserved_bytes");
+    // The first flush's duration and backend failure are reported in the second
+    assertThat(second.counters)
+        .containsEntry("statsd.flush.backend_failures", 1.0)
+        .containsEntry("statsd.flush.duration_nanos.count", 1.0)
+        .doesNotContainKey("statsd.foo");
+    assertThat(stats.getHistograms().get("flush.duration_nanos").count()).isEqualTo(2);
+  }
+
+  @Test public void testPeriodicFlush_alignedToInterval() throws InterruptedException {
+    processor.process(new Counter("foo", 1));
+    flusher.start();
+
+    Snapshot first = snapshots.poll(10, TimeUnit.SECONDS);
+    Snapshot second = snapshots.poll(10, TimeUnit.SECONDS);
+
+    assertThat(first).isNotNull();
+    assertThat(second).isNotNull();
+    assertThat(first.size()).isEqualTo(1);
+    assertThat(first.getTimestamp() % INTERVAL_MILLIS).isZero();
+    assertThat(second.getTimestamp() - first.getTimestamp()).isEqualTo(INTERVAL_MILLIS);
+  }
+
+  private static Backend failingBackend() {
+    return snapshot -> {
+      throw new IllegalStateException("Expected");
+    };
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.Timing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Runs the {@link AggregatingProcessorTest} cases against shards with an off-heap store.
+ */
+public class OffHeapAggregatingProcessorTest extends AggregatingProcessorTest {
+
+  @Override AggregatingProcessor.Builder newBuilder() {
+    return AggregatingProcessor.newBuilder().withOffHeapStore(16, 4);
+  }
+
+  @Test public void testReservedBytes() {
+    AggregatingProcessor processor = newProcessor();
+    try {
+      assertThat(processor.getReservedBytes()).isZero();
+
+      processor.process(new Counter("foo", 1));
+
+      assertThat(processor.getReservedBytes()).isPositive();
+    } finally {
+      processor.close();
+    }
+  }
+
+  @Test public void testDropsNewSeriesWhenFull() {
+    AggregatingProcessor processor = newProcessor();
+    try {
+      for (int i = 0; i < 20; i++) {
+        processor.process(new Counter("counter." + i, 1));
+        processor.process(new Gauge("gauge." + i, 1));
+        processor.process(new Timing("timer." + i, 1));
+      }
+
+      Collected collected = Collected.from(processor.flush());
+
+      assertThat(collected.counters).hasSize(16);
+      assertThat(collected.gauges).hasSize(16);
+      assertThat(collected.timers).hasSize(4);
+      assertThat(processor.getDroppedCount()).isEqualTo(4 + 4 + 16);
+
+      // Capacity is freed for the next interval
+      processor.process(new Counter("counter.19", 1));
+
+      assertThat(Collected.from(processor.flush()).counters).containsKey("counter.19");
+    } finally {
+      processor.close();
+    }
+  }
+
+  @Test public void testInvalidCapacity() {
+    assertThatThrownBy(() -> AggregatingProcessor.newBuilder().withOffHeapStore(16, -1).build())
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> AggregatingProcessor.newBuilder()
+        .withOffHeapStore(Integer.MAX_VALUE, 1).build())
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
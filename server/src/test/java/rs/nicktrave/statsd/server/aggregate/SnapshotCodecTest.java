@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.aggregate;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.Timing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SnapshotCodecTest {
+
+  private final AggregatingProcessor processor = AggregatingProcessor.newBuilder().build();
+  private final ByteBuf buf = Unpooled.buffer();
+
+  @After public void teardown() {
+    processor.close();
+    buf.release();
+  }
+
+  @Test public void testRoundTrip() {
+    processor.process(new Counter("foo", 3, 0.5));
+    processor.process(new Counter("naïve", 1));
+    processor.process(new Gauge("bar", -7));
+    for (int i = 1; i <= 1000; i++) {
+      processor.process(new Timing("baz", i, i % 2 == 0 ? 0.5 : 1));
+    }
+    Snapshot snapshot = processor.flush(42_000);
+
+    SnapshotCodec.encode(snapshot, buf);
+    Snapshot decoded = SnapshotCodec.decode(buf);
+
+    assertThat(buf.isReadable()).isFalse();
+    assertThat(decoded.getTimestamp()).isEqualTo(42_000);
+    assertThat(describe(decoded)).isEqualTo(describe(snapshot));
+  }
+
+  @Test public void testRoundTrip_empty() {
+    SnapshotCodec.encode(processor.flush(1_000), buf);
+
+    Snapshot decoded = SnapshotCodec.decode(buf);
+
+    assertThat(decoded.size()).isZero();
+    assertThat(decoded.getTimestamp()).isEqualTo(1_000);
+  }
+
+  @Test public void testSparseTimers() {
+    for (int i = 0; i < 100; i++) {
+      processor.process(new Timing("timer." + i, i));
+    }
+    SnapshotCodec.encode(processor.flush(1_000), buf);
+
+    // Far smaller than the few KB of a dense histogram per timer
+    assertThat(buf.readableBytes()).isLessThan(100 * 100);
+  }
+
+  @Test public void testMaxEncodedSize() {
+    processor.process(new Counter("ünïcödé", 1));
+    processor.process(new Gauge("bar", 1));
+    for (int i = 0; i < 1000; i++) {
+      processor.process(new Timing("baz", i * 1000));
+    }
+    Snapshot snapshot = processor.flush(1_000);
+
+    SnapshotCodec.encode(snapshot, buf);
+
+    assertThat(SnapshotCodec.maxEncodedSize(snapshot))
+        .isGreaterThanOrEqualTo(buf.readableBytes());
+  }
+
+  @Test public void testDecode_invalid() {
+    buf.writeInt(42);
+    assertThatThrownBy(() -> SnapshotCodec.decode(buf))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("Not an encoded snapshot");
+
+    buf.clear();
+    processor.process(new Counter("foo", 1));
+    SnapshotCodec.encode(processor.flush(1_000), buf);
+    buf.writerIndex(buf.writerIndex() - 1);
+    assertThatThrownBy(() -> SnapshotCodec.decode(buf))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("truncated");
+  }
+
+  private static List<String> describe(Snapshot snapshot) {
+    List<String> series = new ArrayList<>();
+    snapshot.accept(new SeriesVisitor() {
+      @Override public void visitCounter(String name, double value) {
+        series.add("counter " + name + " " + value);
+      }
+
+      @Override public void visitGauge(String name, long value) {
+        series.add("gauge " + name + " " + value);
+      }
+
+      @Override public void visitTimer(String name, TimerSummary timer) {
+        series.add("timer " + name + " " + timer.getSampleCount() + " " + timer.getCount() + " "
+            + timer.getMin() + " " + timer.getMax() + " " + timer.getMean() + " "
+            + timer.getValueAtPercentile(50) + " " + timer.getValueAtPercentile(99.9));
+      }
+    });
+    return series;
+  }
+}
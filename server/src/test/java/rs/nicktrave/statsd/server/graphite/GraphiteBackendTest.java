@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.graphite;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.Timing;
+import rs.nicktrave.statsd.server.aggregate.AggregatingProcessor;
+import rs.nicktrave.statsd.server.aggregate.Snapshot;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class GraphiteBackendTest {
+
+  private GraphiteListener listener;
+  private GraphiteBackend backend;
+  private AggregatingProcessor processor;
+
+  @Before public void setup() throws IOException {
+    listener = new GraphiteListener();
+    processor = AggregatingProcessor.newBuilder().build();
+  }
+
+  @After public void teardown() throws IOException {
+    if (backend != null) {
+      backend.close();
+    }
+    listener.close();
+    processor.close();
+  }
+
+  @Test public void testFlush() throws Exception {
+    backend = GraphiteBackend.newBuilder()
+        .withAddress(listener.address())
+        .withPrefix("stats.")
+        .withPercentiles(99)
+        .build();
+    processor.process(new Counter("foo", 2));
+    processor.process(new Gauge("bar", 7));
+    processor.process(new Timing("baz", 5));
+
+    backend.flush(processor.flush(42_000));
+
+    assertThat(listener.awaitLines(7)).containsExactly(
+        "stats.foo 2 42",
+        "stats.bar 7 42",
+        "stats.baz.count 1 42",
+        "stats.baz.min 5 42",
+        "stats.baz.max 5 42",
+        "stats.baz.mean 5 42",
+        "stats.baz.p99 5 42");
+    assertThat(backend.getLinesWritten()).isEqualTo(7);
+    assertThat(backend.getBytesWritten()).isPositive();
+  }
+
+  @Test public void testReconnect() throws Exception {
+    backend = GraphiteBackend.newBuilder().withAddress(listener.address()).build();
+    processor.process(new Counter("foo", 1));
+    backend.flush(processor.flush(1_000));
+    assertThat(listener.awaitLines(1)).containsExactly("foo 1 1");
+
+    listener.closeConnections();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (backend.isConnected() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+
+    processor.process(new Counter("foo", 2));
+    backend.flush(processor.flush(2_000));
+
+    assertThat(listener.awaitLines(1)).containsExactly("foo 2 2");
+    assertThat(backend.getConnectCount()).isEqualTo(2);
+    assertThat(listener.connectionCount()).isEqualTo(2);
+  }
+
+  @Test public void testConnectFailure() throws Exception {
+    InetSocketAddress closed;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      closed = new InetSocketAddress("127.0.0.1", socket.getLocalPort());
+    }
+    backend = GraphiteBackend.newBuilder().withAddress(closed).build();
+
+    assertThatThrownBy(() -> backend.flush(processor.flush(0)))
+        .isInstanceOf(IOException.class)
+        .hasMessageContaining("Failed to connect");
+  }
+
+  @Test public void testBytesInFlightCapped() throws Exception {
+    int series = 500_000;
+    backend = GraphiteBackend.newBuilder()
+        .withAddress(listener.address())
+        .withMaxBytesInFlight(64 * 1024)
+        .build();
+    for (int i = 0; i < series; i++) {
+      processor.process(new Gauge("series." + i, i));
+    }
+    Snapshot snapshot = processor.flush(0);
+
+    // Once the socket buffers fill, the flush waits for the listener rather than queueing the
+    // rest of the snapshot
+    listener.setPaused(true);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> flush = executor.submit(() -> {
+        backend.flush(snapshot);
+        return null;
+      });
+      Thread.sleep(500);
+      assertThat(flush.isDone()).isFalse();
+
+      listener.setPaused(false);
+      flush.get(30, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    List<String> lines = listener.awaitLines(series);
+    assertThat(lines).hasSize(series);
+    assertThat(backend.getLinesWritten()).isEqualTo(series);
+  }
+
+  @Test public void testBuild_invalid() {
+    assertThatThrownBy(() -> GraphiteBackend.newBuilder().build())
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> GraphiteBackend.newBuilder()
+        .withAddress(listener.address())
+        .withPercentiles(101)
+        .build())
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.graphite;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Timing;
+import rs.nicktrave.statsd.server.aggregate.AggregatingProcessor;
+import rs.nicktrave.statsd.server.aggregate.SeriesVisitor;
+import rs.nicktrave.statsd.server.aggregate.TimerSummary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GraphiteEncoderTest {
+
+  private final GraphiteEncoder encoder = new GraphiteEncoder("stats.", new double[] {50, 99.9});
+  private final ByteBuf buf = Unpooled.buffer();
+
+  @Test public void testWriteLong() {
+    assertThat(writeLong(0)).isEqualTo("0");
+    assertThat(writeLong(7)).isEqualTo("7");
+    assertThat(writeLong(-1234567890)).isEqualTo("-1234567890");
+    assertThat(writeLong(Long.MAX_VALUE)).isEqualTo(Long.toString(Long.MAX_VALUE));
+    assertThat(writeLong(Long.MIN_VALUE)).isEqualTo(Long.toString(Long.MIN_VALUE));
+  }
+
+  @Test public void testWriteDouble() {
+    assertThat(writeDouble(0)).isEqualTo("0");
+    assertThat(writeDouble(42)).isEqualTo("42");
+    assertThat(writeDouble(-2.5)).isEqualTo("-2.5");
+    assertThat(writeDouble(0.000001)).isEqualTo("0.000001");
+    assertThat(writeDouble(1.0000004)).isEqualTo("1");
+    assertThat(writeDouble(-0.0000001)).isEqualTo("0");
+    assertThat(writeDouble(123456.789)).isEqualTo("123456.789");
+    assertThat(writeDouble(1e20)).isEqualTo("1.0E20");
+  }
+
+  @Test public void testCounterAndGauge() {
+    assertThat(encoder.counter(buf, "foo bar", 1.5, 1000)).isEqualTo(1);
+    assertThat(encoder.gauge(buf, "baz", -3, 1000)).isEqualTo(1);
+    assertThat(encoder.counter(buf, "nan", Double.NaN, 1000)).isZero();
+
+    assertThat(buf.toString(StandardCharsets.US_ASCII))
+        .isEqualTo("stats.foo_bar 1.5 1000\nstats.baz -3 1000\n");
+  }
+
+  @Test public void testTimer() {
+    AggregatingProcessor processor = AggregatingProcessor.newBuilder().build();
+    processor.process(new Timing("t", 10));
+    processor.process(new Timing("t", 20, 0.5));
+    TimerSummary[] timer = new TimerSummary[1];
+    processor.flush(0).accept(new SeriesVisitor() {
+      @Override public void visitCounter(String name, double value) {
+      }
+
+      @Override public void visitGauge(String name, long value) {
+      }
+
+      @Override public void visitTimer(String name, TimerSummary summary) {
+        timer[0] = summary;
+      }
+    });
+
+    assertThat(encoder.timer(buf, "t", timer[0], 5)).isEqualTo(6);
+
+    assertThat(buf.toString(StandardCharsets.US_ASCII).split("\n")).containsExactly(
+        "stats.t.count 3 5",
+        "stats.t.min 10 5",
+        "stats.t.max 20 5",
+        "stats.t.mean 15 5",
+        "stats.t.p50 " + timer[0].getValueAtPercentile(50) + " 5",
+        "stats.t.p99_9 " + timer[0].getValueAtPercentile(99.9) + " 5");
+  }
+
+  private String writeLong(long value) {
+    buf.clear();
+    GraphiteEncoder.writeLong(buf, value);
+    return buf.toString(StandardCharsets.US_ASCII);
+  }
+
+  private String writeDouble(double value) {
+    buf.clear();
+    GraphiteEncoder.writeDouble(buf, value);
+    return buf.toString(StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.graphite;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stand-in for a Graphite plaintext listener, which collects every line it receives.
+ */
+final class GraphiteListener implements Closeable {
+
+  private final ServerSocket serverSocket;
+  private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+  private final List<Socket> connections = new CopyOnWriteArrayList<>();
+  private final Object pause = new Object();
+  private boolean paused; // Guarded by pause
+
+  GraphiteListener() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::accept, "graphite-listener");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  InetSocketAddress address() {
+    return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+  }
+
+  /**
+   * Stops or resumes reading from every connection, to simulate a stalled receiver.
+   */
+  void setPaused(boolean paused) {
+    synchronized (pause) {
+      this.paused = paused;
+      pause.notifyAll();
+    }
+  }
+
+  /**
+   * Waits for the given number of lines to be received, and returns them.
+   */
+  List<String> awaitLines(int count) throws InterruptedException {
+    List<String> received = new ArrayList<>();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (received.size() < count) {
+      String line = lines.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      if (line == null) {
+        break;
+      }
+      received.add(line);
+    }
+    return received;
+  }
+
+  /**
+   * @return the number of connections accepted
+   */
+  int connectionCount() {
+    return connections.size();
+  }
+
+  /**
+   * Closes every connection accepted so far, as a restarting Graphite would.
+   */
+  void closeConnections() throws IOException {
+    for (Socket connection : connections) {
+      connection.close();
+    }
+  }
+
+  @Override public void close() throws IOException {
+    serverSocket.close();
+    closeConnections();
+  }
+
+  private void accept() {
+    try {
+      while (true) {
+        Socket connection = serverSocket.accept();
+        connections.add(connection);
+        Thread reader = new Thread(() -> read(connection), "graphite-connection");
+        reader.setDaemon(true);
+        reader.start();
+      }
+    } catch (IOException e) {
+      // Closed
+    }
+  }
+
+  private void read(Socket connection) {
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        synchronized (pause) {
+          while (paused) {
+            pause.wait();
+          }
+        }
+        lines.add(line);
+      }
+    } catch (SocketException | InterruptedException e) {
+      // Closed
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DatagramReadStatsHandlerTest {
+
+  @Test public void testCounts() {
+    DatagramReadStatsHandler handler = new DatagramReadStatsHandler();
+    EmbeddedChannel first = new EmbeddedChannel(handler);
+    EmbeddedChannel second = new EmbeddedChannel(handler);
+
+    first.pipeline().fireChannelRead("a").fireChannelRead("b").fireChannelReadComplete();
+    second.pipeline().fireChannelRead("c").fireChannelReadComplete();
+    second.pipeline().fireChannelReadComplete();
+
+    assertThat(handler.datagramCount()).isEqualTo(3);
+    assertThat(handler.readCount()).isEqualTo(3);
+    // Messages are passed on unchanged
+    assertThat(first.<String>readInbound()).isEqualTo("a");
+    assertThat(first.<String>readInbound()).isEqualTo("b");
+    assertThat(second.<String>readInbound()).isEqualTo("c");
+  }
+}
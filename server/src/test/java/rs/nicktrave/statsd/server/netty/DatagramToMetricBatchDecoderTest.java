@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.DecoderException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.MetricProcessor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DatagramToMetricBatchDecoderTest {
+
+  private final List<String> metrics = new ArrayList<>();
+  private final List<Integer> batchSizes = new ArrayList<>();
+  private EmbeddedChannel channel;
+
+  @Before public void setup() {
+    channel = new EmbeddedChannel(new DatagramToMetricBatchDecoder(new DatagramToMetricDecoder(),
+        new MetricProcessor() {
+          @Override public void process(Metric metric) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override public void processBatch(MetricBatch batch) {
+            batchSizes.add(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+              metrics.add(batch.get(i).toString());
+            }
+          }
+        }));
+  }
+
+  @Test public void testDecodesColumns() {
+    List<Byte> types = new ArrayList<>();
+    List<Gauge.Type> gaugeTypes = new ArrayList<>();
+    MetricProcessor columns = new MetricProcessor() {
+      @Override public void process(Metric metric) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override public void processBatch(MetricBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+          types.add(batch.type(i));
+          gaugeTypes.add(batch.gaugeType(i));
+        }
+      }
+    };
+    channel = new EmbeddedChannel(
+        new DatagramToMetricBatchDecoder(new DatagramToMetricDecoder(), columns));
+
+    channel.writeInbound(newDatagramPacket("foo:1|c\nbar:+2|g\nbaz:3|ms"));
+
+    assertThat(types).containsExactly(MetricBatch.COUNTER, MetricBatch.GAUGE, MetricBatch.TIMING);
+    assertThat(gaugeTypes.get(1)).isEqualTo(Gauge.Type.UPDATE);
+  }
+
+  @Test public void testBatchPerReadCycle() {
+    channel.pipeline().fireChannelRead(newDatagramPacket("foo:1|c\nbar:2|g"));
+    channel.pipeline().fireChannelRead(newDatagramPacket("baz:3|ms|@0.5"));
+    assertThat(batchSizes).isEmpty();
+
+    channel.pipeline().fireChannelReadComplete();
+
+    assertThat(batchSizes).containsExactly(3);
+    assertThat(metrics).containsExactly("foo:1|c", "bar:2|g", "baz:3|ms|@0.5");
+  }
+
+  @Test public void testBatchFullWithinPacket() {
+    StringBuilder packet = new StringBuilder();
+    for (int i = 0; i <= MetricBatch.DEFAULT_CAPACITY; i++) {
+      packet.append("foo:").append(i).append("|c\n");
+    }
+
+    channel.writeInbound(newDatagramPacket(packet.toString()));
+
+    assertThat(batchSizes).containsExactly(MetricBatch.DEFAULT_CAPACITY, 1);
+    assertThat(metrics).hasSize(MetricBatch.DEFAULT_CAPACITY + 1);
+    assertThat(metrics.get(MetricBatch.DEFAULT_CAPACITY))
+        .isEqualTo("foo:" + MetricBatch.DEFAULT_CAPACITY + "|c");
+  }
+
+  @Test public void testBadLine() {
+    assertThatThrownBy(() -> channel.writeInbound(newDatagramPacket("foo:1|c\nbad\nbar:2|x")))
+        .isInstanceOf(DecoderException.class)
+        .hasCauseInstanceOf(IllegalStateException.class)
+        .satisfies(e -> assertThat(e.getCause().getSuppressed()).hasSize(1));
+
+    channel.pipeline().fireChannelReadComplete();
+
+    assertThat(metrics).containsExactly("foo:1|c");
+  }
+
+  private static DatagramPacket newDatagramPacket(String statsdMetricString) {
+    ByteBuf input = Unpooled.buffer();
+    input.writeCharSequence(statsdMetricString, StandardCharsets.US_ASCII);
+    return new DatagramPacket(input, new InetSocketAddress(42));
+  }
+}
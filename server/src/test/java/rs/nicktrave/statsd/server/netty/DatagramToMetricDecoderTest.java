@@ -19,6 +19,7 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.DecoderException;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import javax.annotation.Nullable;
@@ -30,6 +31,7 @@ import rs.nicktrave.statsd.common.Metric;
 import rs.nicktrave.statsd.common.Timing;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class DatagramToMetricDecoderTest {
 
@@ -133,6 +135,185 @@ public class DatagramToMetricDecoderTest {
     assertTimingEquals(METRIC_NAME, METRIC_VALUE, 1, metric);
   }
 
+  @Test public void testTiming_sampleWithoutLeadingZero() {
+    String metricString = String.format("%s:%d|ms|@.5", METRIC_NAME, METRIC_VALUE);
+    channel.writeInbound(newDatagramPacket(metricString));
+
+    Metric metric = channel.readInbound();
+
+    assertTimingEquals(METRIC_NAME, METRIC_VALUE, 0.5, metric);
+  }
+
+  @Test public void testSampleRate_manyDigits() {
+    // Each of these is rounded twice if its mantissa is first converted to a double
+    for (String rate : new String[] {"0.9764506089268301", "0.105505464039185171"}) {
+      channel.writeInbound(newDatagramPacket(String.format("%s:%d|c|@%s", METRIC_NAME,
+          METRIC_VALUE, rate)));
+
+      assertCounterEquals(METRIC_NAME, METRIC_VALUE, Double.parseDouble(rate),
+          channel.readInbound());
+    }
+  }
+
+  @Test public void testCounter_extremeValues() {
+    channel.writeInbound(newDatagramPacket(newCounterString(Long.MAX_VALUE, false)));
+    channel.writeInbound(newDatagramPacket(newCounterString(Long.MIN_VALUE, false)));
+
+    assertCounterEquals(METRIC_NAME, Long.MAX_VALUE, 1, channel.readInbound());
+    assertCounterEquals(METRIC_NAME, Long.MIN_VALUE, 1, channel.readInbound());
+  }
+
+  @Test public void testCounter_overflow() {
+    String metricString = String.format("%s:%d0|c", METRIC_NAME, Long.MAX_VALUE);
+
+    assertThatThrownBy(() -> channel.writeInbound(newDatagramPacket(metricString)))
+        .isInstanceOf(DecoderException.class)
+        .hasCauseInstanceOf(NumberFormatException.class);
+  }
+
+  @Test public void testInvalidValue() {
+    String metricString = String.format("%s:4x2|c", METRIC_NAME);
+
+    assertThatThrownBy(() -> channel.writeInbound(newDatagramPacket(metricString)))
+        .isInstanceOf(DecoderException.class)
+        .hasCauseInstanceOf(NumberFormatException.class);
+  }
+
+  @Test public void testUnknownType() {
+    String metricString = String.format("%s:%d|x", METRIC_NAME, METRIC_VALUE);
+
+    assertThatThrownBy(() -> channel.writeInbound(newDatagramPacket(metricString)))
+        .isInstanceOf(DecoderException.class)
+        .hasCauseInstanceOf(IllegalStateException.class);
+  }
+
+  @Test public void testMissingType() {
+    String metricString = String.format("%s:%d", METRIC_NAME, METRIC_VALUE);
+
+    assertThatThrownBy(() -> channel.writeInbound(newDatagramPacket(metricString)))
+        .isInstanceOf(DecoderException.class)
+        .hasCauseInstanceOf(IllegalStateException.class);
+  }
+
+  @Test public void testMultipleMetrics() {
+    String metricString = String.join("\n",
+        newCounterString(METRIC_VALUE, true),
+        newGaugeString("-"),
+        newTimingString(METRIC_VALUE, false));
+    channel.writeInbound(newDatagramPacket(metricString));
+
+    assertCounterEquals(METRIC_NAME, METRIC_VALUE, METRIC_SAMPLE_RATE, channel.readInbound());
+    assertGaugeEquals(METRIC_NAME, -METRIC_VALUE, Gauge.Type.UPDATE, channel.readInbound());
+    assertTimingEquals(METRIC_NAME, METRIC_VALUE, 1, channel.readInbound());
+    assertThat((Object) channel.readInbound()).isNull();
+  }
+
+  @Test public void testMultipleMetrics_blankLinesAndCarriageReturns() {
+    String metricString = "\n" + newCounterString(METRIC_VALUE, false) + "\r\n\n"
+        + newTimingString(METRIC_VALUE, false) + "\n";
+    channel.writeInbound(newDatagramPacket(metricString));
+
+    assertCounterEquals(METRIC_NAME, METRIC_VALUE, 1, channel.readInbound());
+    assertTimingEquals(METRIC_NAME, METRIC_VALUE, 1, channel.readInbound());
+    assertThat((Object) channel.readInbound()).isNull();
+  }
+
+  @Test public void testMultipleMetrics_badLine() {
+    String metricString = String.join("\n",
+        newCounterString(METRIC_VALUE, false),
+        "bad",
+        String.format("%s:4x2|c", METRIC_NAME),
+        newTimingString(METRIC_VALUE, false));
+
+    assertThatThrownBy(() -> channel.writeInbound(newDatagramPacket(metricString)))
+        .isInstanceOf(DecoderException.class)
+        .hasCauseInstanceOf(IllegalStateException.class)
+        .satisfies(e -> assertThat(e.getCause().getSuppressed())
+            .hasOnlyElementsOfType(NumberFormatException.class)
+            .hasSize(1));
+
+    assertCounterEquals(METRIC_NAME, METRIC_VALUE, 1, channel.readInbound());
+    assertTimingEquals(METRIC_NAME, METRIC_VALUE, 1, channel.readInbound());
+    assertThat((Object) channel.readInbound()).isNull();
+  }
+
+  @Test public void testSampleRate_exponent() {
+    channel.writeInbound(newDatagramPacket(String.format("%s:%d|c|@5e-1", METRIC_NAME,
+        METRIC_VALUE)));
+
+    assertCounterEquals(METRIC_NAME, METRIC_VALUE, 0.5, channel.readInbound());
+  }
+
+  @Test public void testSampleRate_invalid() {
+    for (String rate : new String[] {"x", "", "1e", "NaN", "0.5d", "0x1p-1"}) {
+      String metricString = String.format("%s:%d|c|@%s", METRIC_NAME, METRIC_VALUE, rate);
+
+      assertThatThrownBy(() -> channel.writeInbound(newDatagramPacket(metricString)))
+          .as(rate)
+          .isInstanceOf(DecoderException.class)
+          .hasCauseInstanceOf(NumberFormatException.class);
+    }
+  }
+
+  @Test public void testSampleRate_outOfRange() {
+    String metricString = String.format("%s:%d|c|@1.5", METRIC_NAME, METRIC_VALUE);
+
+    assertThatThrownBy(() -> channel.writeInbound(newDatagramPacket(metricString)))
+        .isInstanceOf(DecoderException.class)
+        .hasCauseInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void testLenient() {
+    ParseErrors errors = new ParseErrors(1, 2);
+    channel = new EmbeddedChannel(new DatagramToMetricDecoder(
+        new MetricNameCache(MetricNameCache.DEFAULT_CAPACITY), errors, true));
+
+    String metricString = String.join("\n",
+        newCounterString(METRIC_VALUE, false),
+        "bad",
+        METRIC_NAME + ":1",
+        METRIC_NAME + ":1|x",
+        METRIC_NAME + ":4x2|c",
+        METRIC_NAME + ":1|c|0.5",
+        METRIC_NAME + ":1|c|@x",
+        METRIC_NAME + ":1|c|@2",
+        newTimingString(METRIC_VALUE, false));
+    channel.writeInbound(newDatagramPacket(metricString));
+
+    assertCounterEquals(METRIC_NAME, METRIC_VALUE, 1, channel.readInbound());
+    assertTimingEquals(METRIC_NAME, METRIC_VALUE, 1, channel.readInbound());
+    assertThat((Object) channel.readInbound()).isNull();
+
+    for (ParseError error : ParseError.values()) {
+      assertThat(errors.count(error)).as(error.name()).isEqualTo(1);
+    }
+    assertThat(errors.total()).isEqualTo(ParseError.values().length);
+    // Every error is sampled, and only the most recent are retained
+    assertThat(errors.samples()).containsExactly(
+        "INVALID_SAMPLE_RATE: foo:1|c|@x", "SAMPLE_RATE_OUT_OF_RANGE: foo:1|c|@2");
+  }
+
+  @Test public void testStrictCountsErrors() {
+    DatagramToMetricDecoder decoder = new DatagramToMetricDecoder();
+    channel = new EmbeddedChannel(decoder);
+
+    assertThatThrownBy(() -> channel.writeInbound(newDatagramPacket("bad\nfoo:1|x")))
+        .isInstanceOf(DecoderException.class);
+
+    assertThat(decoder.getParseErrors().count(ParseError.MISSING_VALUE)).isEqualTo(1);
+    assertThat(decoder.getParseErrors().count(ParseError.UNKNOWN_TYPE)).isEqualTo(1);
+  }
+
+  @Test public void testNameIsInterned() {
+    channel.writeInbound(newDatagramPacket(newCounterString(METRIC_VALUE, false)));
+    channel.writeInbound(newDatagramPacket(newTimingString(METRIC_VALUE, false)));
+
+    Metric first = channel.readInbound();
+    Metric second = channel.readInbound();
+
+    assertThat(first.name).isSameAs(second.name);
+  }
+
   private static DatagramPacket newDatagramPacket(String statsdMetricString) {
     ByteBuf input = Unpooled.buffer();
     input.writeCharSequence(statsdMetricString, StandardCharsets.US_ASCII);
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class KernelUdpStatsTest {
+
+  private static final List<String> LINES = Arrays.asList(
+      "   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout"
+          + " inode ref pointer drops",
+      "  120: 00000000:1FBD 00000000:0000 07 00000000:00000A00 00:00000000 00000000  1000        0"
+          + " 5001 2 0000000000000000 17",
+      "  120: 00000000:1FBD 00000000:0000 07 00000000:00000000 00:00000000 00000000  1000        0"
+          + " 5002 2 0000000000000000 0",
+      "  121: 0100007F:1FBE 00000000:0000 07 00000000:00000000 00:00000000 00000000  1000        0"
+          + " 5003 2 0000000000000000 3");
+
+  @Test public void testUpdate_byInode() {
+    KernelUdpStats stats = new KernelUdpStats(1);
+    stats.setSocket(0, -1, 8125);
+    // Identify the socket as if its file descriptor had been resolved
+    stats.update(LINES, Collections.singleton(5001L));
+
+    assertThat(stats.inode(0)).isEqualTo(5001);
+    assertThat(stats.receiveQueueBytes(0)).isEqualTo(0xA00);
+    assertThat(stats.drops(0)).isEqualTo(17);
+  }
+
+  @Test public void testUpdate_byPort() {
+    KernelUdpStats stats = new KernelUdpStats(2);
+    stats.setSocket(0, -1, 8125);
+    stats.setSocket(1, -1, 8126);
+    assertThat(stats.hasUnidentifiedSockets()).isTrue();
+
+    // 5002 is on the same port, but belongs to another process
+    stats.update(LINES, new HashSet<>(Arrays.asList(5001L, 5003L)));
+
+    assertThat(stats.drops(0)).isEqualTo(17);
+    assertThat(stats.drops(1)).isEqualTo(3);
+    assertThat(stats.totalDrops()).isEqualTo(20);
+  }
+
+  @Test public void testUpdate_ambiguousPort() {
+    KernelUdpStats stats = new KernelUdpStats(2);
+    stats.setSocket(0, -1, 8125);
+    stats.setSocket(1, -1, 8125);
+
+    // Known to be ambiguous, so the process's sockets are not scanned on each refresh
+    assertThat(stats.hasUnidentifiedSockets()).isFalse();
+
+    stats.update(LINES, new HashSet<>(Arrays.asList(5001L, 5002L)));
+
+    assertThat(stats.inode(0)).isZero();
+    assertThat(stats.inode(1)).isZero();
+    assertThat(stats.totalDrops()).isZero();
+  }
+
+  @Test public void testRefresh_drops() throws Exception {
+    assumeTrue(KernelUdpStats.isAvailable());
+
+    try (DatagramChannel receiver = DatagramChannel.open();
+        DatagramChannel sender = DatagramChannel.open()) {
+      receiver.setOption(StandardSocketOptions.SO_RCVBUF, 1024);
+      receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+      int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+
+      KernelUdpStats stats = new KernelUdpStats(1);
+      stats.setSocket(0, -1, port);
+
+      // Nothing reads from the receiver, so its buffer fills and the rest are dropped
+      for (int i = 0; i < 1000; i++) {
+        sender.send(ByteBuffer.wrap(new byte[512]), receiver.getLocalAddress());
+      }
+      stats.refresh();
+
+      assertThat(stats.inode(0)).isNotZero();
+      assertThat(stats.receiveQueueBytes(0)).isPositive();
+      assertThat(stats.drops(0)).isPositive();
+    }
+  }
+}
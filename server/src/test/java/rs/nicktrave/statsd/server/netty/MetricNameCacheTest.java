@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MetricNameCacheTest {
+
+  @Test public void testIntern_returnsCanonicalInstance() {
+    MetricNameCache cache = new MetricNameCache(16);
+
+    String first = cache.intern(newBuffer("foo"), 0, 3);
+    String second = cache.intern(newBuffer("foo"), 0, 3);
+
+    assertThat(first).isEqualTo("foo");
+    assertThat(second).isSameAs(first);
+  }
+
+  @Test public void testIntern_range() {
+    MetricNameCache cache = new MetricNameCache(16);
+    ByteBuf buf = newBuffer("foo:1|c");
+
+    String name = cache.intern(buf, 0, 3);
+
+    assertThat(name).isEqualTo("foo");
+    assertThat(buf.readerIndex()).isEqualTo(0);
+  }
+
+  @Test public void testIntern_distinctNames() {
+    MetricNameCache cache = new MetricNameCache(16);
+
+    assertThat(cache.intern(newBuffer("foo"), 0, 3)).isEqualTo("foo");
+    assertThat(cache.intern(newBuffer("bar"), 0, 3)).isEqualTo("bar");
+    assertThat(cache.intern(newBuffer("fo"), 0, 2)).isEqualTo("fo");
+  }
+
+  @Test public void testIntern_bounded() {
+    MetricNameCache cache = new MetricNameCache(16);
+    assertThat(cache.capacity()).isEqualTo(16);
+
+    Set<String> names = new HashSet<>();
+    for (int i = 0; i < 1_000; i++) {
+      String name = "name." + i;
+      names.add(cache.intern(newBuffer(name), 0, name.length()));
+    }
+
+    assertThat(names).hasSize(1_000);
+  }
+
+  @Test public void testIntern_retainsRecentlyUsed() {
+    MetricNameCache cache = new MetricNameCache(4);
+    String hot = cache.intern(newBuffer("hot"), 0, 3);
+
+    for (int i = 0; i < 3; i++) {
+      String name = "cold." + i;
+      cache.intern(newBuffer(name), 0, name.length());
+    }
+    assertThat(cache.intern(newBuffer("hot"), 0, 3)).isSameAs(hot);
+
+    // The next insertion evicts a cold name rather than the recently used one
+    cache.intern(newBuffer("new"), 0, 3);
+    assertThat(cache.intern(newBuffer("hot"), 0, 3)).isSameAs(hot);
+  }
+
+  @Test public void testCapacity_roundedUp() {
+    assertThat(new MetricNameCache(1).capacity()).isEqualTo(4);
+    assertThat(new MetricNameCache(100).capacity()).isEqualTo(128);
+  }
+
+  @Test public void testCapacity_invalid() {
+    assertThatThrownBy(() -> new MetricNameCache(0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static ByteBuf newBuffer(String s) {
+    return Unpooled.wrappedBuffer(s.getBytes(StandardCharsets.US_ASCII));
+  }
+}
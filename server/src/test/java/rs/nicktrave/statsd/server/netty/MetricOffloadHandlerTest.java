@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.MetricProcessor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricOffloadHandlerTest {
+
+  private final List<Integer> batchSizes = new ArrayList<>();
+  private EmbeddedChannel channel;
+
+  @Before public void setup() {
+    channel = new EmbeddedChannel(new MetricOffloadHandler(new MetricProcessor() {
+      @Override public void process(Metric metric) {
+        batchSizes.add(1);
+      }
+
+      @Override public void processBatch(MetricBatch batch) {
+        batchSizes.add(batch.size());
+      }
+    }));
+  }
+
+  @Test public void testBatchProcessedOnReadComplete() {
+    channel.pipeline().fireChannelRead(new Counter("foo", 1));
+    channel.pipeline().fireChannelRead(new Counter("foo", 2));
+    assertThat(batchSizes).isEmpty();
+
+    channel.pipeline().fireChannelReadComplete();
+
+    assertThat(batchSizes).containsExactly(2);
+  }
+
+  @Test public void testBatchProcessedWhenFull() {
+    for (int i = 0; i <= MetricBatch.DEFAULT_CAPACITY; i++) {
+      channel.pipeline().fireChannelRead(new Counter("foo", i));
+    }
+    assertThat(batchSizes).containsExactly(MetricBatch.DEFAULT_CAPACITY);
+
+    channel.pipeline().fireChannelReadComplete();
+
+    assertThat(batchSizes).containsExactly(MetricBatch.DEFAULT_CAPACITY, 1);
+  }
+
+  @Test public void testBatchProcessedOnClose() {
+    channel.pipeline().fireChannelRead(new Counter("foo", 1));
+
+    channel.finish();
+
+    assertThat(batchSizes).containsExactly(1);
+  }
+}
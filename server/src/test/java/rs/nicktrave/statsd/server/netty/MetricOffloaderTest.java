@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.MetricProcessor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MetricOffloaderTest {
+
+  private final List<Metric> processed = new CopyOnWriteArrayList<>();
+  private final List<String> threads = new CopyOnWriteArrayList<>();
+  private MetricOffloader offloader;
+
+  @After public void teardown() {
+    if (offloader != null) {
+      offloader.close();
+    }
+  }
+
+  @Test public void testProcessesOnConsumerThread() {
+    offloader = newOffloader(2, OverflowPolicy.DROP_NEWEST);
+    offloader.start();
+    MetricRing ring = offloader.ring(ImmediateEventExecutor.INSTANCE);
+
+    offloader.offload(ring, new Counter("foo", 1));
+    offloader.close();
+
+    assertThat(processed).hasSize(1);
+    assertThat(threads).allMatch(name -> name.startsWith("statsd-offload"));
+  }
+
+  @Test public void testRingPerExecutor() {
+    offloader = newOffloader(2, OverflowPolicy.DROP_NEWEST);
+
+    MetricRing ring = offloader.ring(ImmediateEventExecutor.INSTANCE);
+
+    assertThat(offloader.ring(ImmediateEventExecutor.INSTANCE)).isSameAs(ring);
+  }
+
+  @Test public void testDropNewest() {
+    offloader = newOffloader(2, OverflowPolicy.DROP_NEWEST);
+    MetricRing ring = offloader.ring(ImmediateEventExecutor.INSTANCE);
+    Metric first = new Counter("foo", 1);
+    Metric second = new Counter("foo", 2);
+
+    offloader.offload(ring, first);
+    offloader.offload(ring, second);
+    offloader.offload(ring, new Counter("foo", 3));
+
+    assertThat(offloader.depth()).isEqualTo(2);
+    assertThat(offloader.droppedCount()).isEqualTo(1);
+
+    offloader.start();
+    offloader.close();
+
+    // Metrics are converted through a columnar batch, so compare by value
+    assertThat(processed).extracting(Object::toString)
+        .containsExactly(first.toString(), second.toString());
+  }
+
+  @Test public void testDropOldest() {
+    offloader = newOffloader(2, OverflowPolicy.DROP_OLDEST);
+    MetricRing ring = offloader.ring(ImmediateEventExecutor.INSTANCE);
+    Metric second = new Counter("foo", 2);
+    Metric third = new Counter("foo", 3);
+
+    offloader.offload(ring, new Counter("foo", 1));
+    offloader.offload(ring, second);
+    offloader.offload(ring, third);
+
+    assertThat(offloader.depth()).isEqualTo(2);
+    assertThat(offloader.droppedCount()).isEqualTo(1);
+
+    offloader.start();
+    offloader.close();
+
+    assertThat(processed).extracting(Object::toString)
+        .containsExactly(second.toString(), third.toString());
+  }
+
+  @Test public void testBlock() throws Exception {
+    offloader = newOffloader(2, OverflowPolicy.BLOCK);
+    MetricRing ring = offloader.ring(ImmediateEventExecutor.INSTANCE);
+    offloader.offload(ring, new Counter("foo", 1));
+    offloader.offload(ring, new Counter("foo", 2));
+
+    CompletableFuture<Void> blocked =
+        CompletableFuture.runAsync(() -> offloader.offload(ring, new Counter("foo", 3)));
+    Thread.sleep(50);
+    assertThat(blocked.isDone()).isFalse();
+
+    offloader.start();
+    blocked.get(10, TimeUnit.SECONDS);
+    offloader.close();
+
+    assertThat(processed).hasSize(3);
+    assertThat(offloader.droppedCount()).isZero();
+  }
+
+  @Test public void testProcessesInBatches() {
+    List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+    offloader = new MetricOffloader(new MetricProcessor() {
+      @Override public void process(Metric metric) {
+        processed.add(metric);
+      }
+
+      @Override public void processBatch(MetricBatch batch) {
+        batchSizes.add(batch.size());
+        MetricProcessor.super.processBatch(batch);
+      }
+    }, 1, 4, OverflowPolicy.DROP_NEWEST);
+    MetricRing ring = offloader.ring(ImmediateEventExecutor.INSTANCE);
+
+    for (int i = 0; i < 4; i++) {
+      offloader.offload(ring, new Counter("foo", i));
+    }
+    offloader.start();
+    offloader.close();
+
+    assertThat(processed).hasSize(4);
+    assertThat(batchSizes).containsExactly(4);
+  }
+
+  @Test public void testProcessorFailureDoesNotStopConsumer() throws Exception {
+    offloader = new MetricOffloader(metric -> {
+      if (metric.name.equals("bad")) {
+        throw new IllegalStateException();
+      }
+      processed.add(metric);
+    }, 1, 4, OverflowPolicy.DROP_NEWEST);
+    MetricRing ring = offloader.ring(ImmediateEventExecutor.INSTANCE);
+
+    offloader.offload(ring, new Counter("bad", 1));
+    offloader.start();
+    while (offloader.depth() > 0) {
+      Thread.sleep(1);
+    }
+    offloader.offload(ring, new Counter("good", 1));
+    offloader.close();
+
+    assertThat(processed).hasSize(1);
+  }
+
+  @Test public void testInvalidConfiguration() {
+    assertThatThrownBy(() -> new MetricOffloader(processed::add, 0, 1, OverflowPolicy.BLOCK))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new MetricOffloader(processed::add, 1, 0, OverflowPolicy.BLOCK))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private MetricOffloader newOffloader(int capacity, OverflowPolicy policy) {
+    return new MetricOffloader(metric -> {
+      threads.add(Thread.currentThread().getName());
+      processed.add(metric);
+    }, 1, capacity, policy);
+  }
+}
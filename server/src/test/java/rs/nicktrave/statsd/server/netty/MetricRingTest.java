@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Metric;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MetricRingTest {
+
+  @Test public void testCapacity_roundedUpToPowerOfTwo() {
+    assertThat(new MetricRing(1).capacity()).isEqualTo(2);
+    assertThat(new MetricRing(3).capacity()).isEqualTo(4);
+    assertThat(new MetricRing(4).capacity()).isEqualTo(4);
+  }
+
+  @Test public void testCapacity_invalid() {
+    assertThatThrownBy(() -> new MetricRing(0)).isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new MetricRing(Integer.MAX_VALUE))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void testOfferPoll_firstInFirstOut() {
+    MetricRing ring = new MetricRing(4);
+    Metric first = new Counter("foo", 1);
+    Metric second = new Counter("bar", 2);
+
+    assertThat(ring.offer(first)).isTrue();
+    assertThat(ring.offer(second)).isTrue();
+    assertThat(ring.size()).isEqualTo(2);
+
+    assertThat(ring.poll()).isSameAs(first);
+    assertThat(ring.poll()).isSameAs(second);
+    assertThat(ring.poll()).isNull();
+    assertThat(ring.size()).isEqualTo(0);
+  }
+
+  @Test public void testOffer_full() {
+    MetricRing ring = new MetricRing(2);
+
+    assertThat(ring.offer(new Counter("foo", 1))).isTrue();
+    assertThat(ring.offer(new Counter("foo", 2))).isTrue();
+    assertThat(ring.offer(new Counter("foo", 3))).isFalse();
+    assertThat(ring.size()).isEqualTo(2);
+  }
+
+  @Test public void testOfferPoll_wrapsAround() {
+    MetricRing ring = new MetricRing(2);
+
+    for (int i = 0; i < 10; i++) {
+      Metric metric = new Counter("foo", i);
+      assertThat(ring.offer(metric)).isTrue();
+      assertThat(ring.poll()).isSameAs(metric);
+    }
+  }
+}
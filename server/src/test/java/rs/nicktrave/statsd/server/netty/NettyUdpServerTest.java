@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.unix.DomainSocketAddress;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.server.aggregate.AggregatingProcessor;
+import rs.nicktrave.statsd.server.aggregate.IntervalFlusher;
+import rs.nicktrave.statsd.server.aggregate.SeriesVisitor;
+import rs.nicktrave.statsd.server.aggregate.Snapshot;
+import rs.nicktrave.statsd.server.aggregate.TimerSummary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+public class NettyUdpServerTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<String> metrics = new CopyOnWriteArrayList<>();
+  private NettyUdpServer server;
+  private int port;
+  private int tcpPort;
+
+  @Before public void setup() throws Exception {
+    port = freePort();
+    tcpPort = freePort();
+  }
+
+  @After public void teardown() {
+    if (server != null) {
+      server.shutdown();
+    }
+  }
+
+  @Test public void testUdp_readStats() throws Exception {
+    startServer(newBuilder().withMaxDatagramsPerRead(4));
+
+    try (DatagramSocket socket = new DatagramSocket()) {
+      for (int i = 0; i < 8; i++) {
+        byte[] bytes = ("foo:" + i + "|c").getBytes(StandardCharsets.US_ASCII);
+        socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), port));
+      }
+    }
+    awaitMetrics(8);
+
+    assertThat(metrics).hasSize(8);
+    assertThat(server.getDatagramCount()).isEqualTo(8);
+
+    // At most four datagrams are read per pass, the last of which may still be completing
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (server.getDatagramReadCount() < 2 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(server.getDatagramReadCount()).isBetween(2L, 8L);
+  }
+
+  @Test public void testUdp_receiveBufferCapped() throws Exception {
+    assertReceiveBufferCapWarned(false);
+  }
+
+  @Test public void testUdp_receiveBufferCapped_epoll() throws Exception {
+    assumeTrue(Epoll.isAvailable());
+    assertReceiveBufferCapWarned(true);
+  }
+
+  private void assertReceiveBufferCapWarned(boolean epoll) throws Exception {
+    File rmemMax = new File("/proc/sys/net/core/rmem_max");
+    assumeTrue(rmemMax.canRead());
+    int cap = Integer.parseInt(Files.readAllLines(rmemMax.toPath()).get(0).trim());
+    // More than the cap, but less than the doubled size Linux reports
+    int requested = cap + cap / 2;
+    List<LogRecord> records = new CopyOnWriteArrayList<>();
+    Handler handler = new Handler() {
+      @Override public void publish(LogRecord record) {
+        records.add(record);
+      }
+
+      @Override public void flush() {
+      }
+
+      @Override public void close() {
+      }
+    };
+    Logger logger = Logger.getLogger(NettyUdpServer.class.getName());
+    logger.addHandler(handler);
+    try {
+      startServer(newBuilder()
+          .withReceiveBufferSize(requested)
+          .withEpoll(epoll));
+    } finally {
+      logger.removeHandler(handler);
+    }
+
+    assertThat(records).anySatisfy(record -> {
+      assertThat(record.getLevel()).isEqualTo(Level.WARNING);
+      assertThat(record.getMessage())
+          .contains("receive buffer of " + cap + " bytes, less than the " + requested);
+    });
+  }
+
+  @Test public void testUdp_bufferSizing() throws Exception {
+    startServer(newBuilder()
+        .withReceiveBufferSize(64 * 1024)
+        .withAdaptiveDatagramBufferSize(99));
+
+    assertThat(server.getReceiveBufferSize()).isGreaterThan(0);
+
+    try (DatagramSocket socket = new DatagramSocket()) {
+      byte[] bytes = "foo:1|c".getBytes(StandardCharsets.US_ASCII);
+      socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), port));
+    }
+    awaitMetrics(1);
+
+    assertThat(metrics).containsExactly("foo:1|c");
+  }
+
+  @Test public void testUdp_invalidPercentile() {
+    assertThatThrownBy(() -> NettyUdpServer.newBuilder()
+        .withProcessor((Metric metric) -> { })
+        .withAdaptiveDatagramBufferSize(101)
+        .build())
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void testUdp_portRange() throws Exception {
+    startServer(newBuilder()
+        .withThreads(2)
+        .withChannels(2)
+        .withPortRange(true));
+
+    send("foo:1|c", port);
+    send("bar:2|c", port + 1);
+    awaitMetrics(2);
+
+    assertThat(metrics).containsExactlyInAnyOrder("foo:1|c", "bar:2|c");
+  }
+
+  @Test public void testUdp_nioReusePort() throws Exception {
+    assumeTrue(NioReusePort.isSupported());
+    startServer(newBuilder()
+        .withThreads(2)
+        .withChannels(2));
+
+    send("foo:1|c", port);
+    awaitMetrics(1);
+
+    assertThat(metrics).containsExactly("foo:1|c");
+  }
+
+  @Test public void testUdp_nioReusePortUnsupported() {
+    assumeFalse(NioReusePort.isSupported());
+
+    assertThatThrownBy(() -> NettyUdpServer.newBuilder()
+        .withProcessor((Metric metric) -> { })
+        .withChannels(2)
+        .build())
+        .isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test public void testSharedNothing() throws Exception {
+    startServer(newBuilder()
+        .withThreads(2)
+        .withSharedNothing(true));
+
+    send("foo:1|c", port);
+    try (Socket socket = connect()) {
+      socket.getOutputStream().write("bar:2|g\n".getBytes(StandardCharsets.US_ASCII));
+      awaitMetrics(2);
+    }
+
+    assertThat(metrics).containsExactlyInAnyOrder("foo:1|c", "bar:2|g");
+    // Summed across the read statistics of each event loop
+    assertThat(server.getDatagramCount()).isEqualTo(1);
+    assertThat(server.getStats().getCounters()).containsEntry("udp.datagrams", 1L);
+  }
+
+  @Test public void testSharedNothing_offloaded() {
+    assertThatThrownBy(() -> NettyUdpServer.newBuilder()
+        .withProcessor((Metric metric) -> { })
+        .withSharedNothing(true)
+        .withOffload(1, 16, OverflowPolicy.BLOCK)
+        .build())
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void testUdp_lenientParsing() throws Exception {
+    startServer(newBuilder().withLenientParsing(true));
+
+    send("foo:1|c\nbad\nbar:2|c", port);
+    awaitMetrics(2);
+
+    assertThat(metrics).containsExactly("foo:1|c", "bar:2|c");
+    assertThat(server.getParseErrors().count(ParseError.MISSING_VALUE)).isEqualTo(1);
+    assertThat(server.getStats().getCounters())
+        .containsEntry("udp.datagrams", 1L)
+        .containsEntry("processor.metrics", 2L)
+        .containsEntry("parse_errors.missing_value", 1L);
+  }
+
+  @Test public void testUdp_kernelStats() throws Exception {
+    assumeTrue(KernelUdpStats.isAvailable());
+    startServer(newBuilder().withEpoll(Epoll.isAvailable()).withChannels(2)
+        .withPortRange(!Epoll.isAvailable()));
+
+    send("foo:1|c", port);
+    awaitMetrics(1);
+    server.refreshKernelStats();
+
+    assertThat(server.getKernelDropCount()).isZero();
+    assertThat(server.getStats().getCounters())
+        .containsKeys("udp.kernel_drops", "udp.socket.0.kernel_drops",
+            "udp.socket.1.kernel_drops");
+    assertThat(server.getStats().getGauges()).containsKey("udp.socket.1.receive_queue_bytes");
+  }
+
+  @Test public void testShutdown_drainsAndFlushes() throws Exception {
+    AggregatingProcessor aggregator = AggregatingProcessor.newBuilder().build();
+    List<Snapshot> snapshots = new CopyOnWriteArrayList<>();
+    IntervalFlusher flusher = IntervalFlusher.newBuilder()
+        .withProcessor(aggregator)
+        .withBackend(snapshots::add)
+        .withInterval(1, TimeUnit.HOURS)
+        .build();
+    flusher.start();
+    server = newBuilder()
+        .withPort(port)
+        .withProcessor(aggregator)
+        .withOffload(1, 1024, OverflowPolicy.BLOCK)
+        .withFlusher(flusher)
+        .build();
+    server.start();
+
+    for (int i = 0; i < 100; i++) {
+      send("foo:1|c", port);
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (server.getDatagramCount() < 100 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+
+    ShutdownReport report = server.shutdown(10, TimeUnit.SECONDS);
+    server = null;
+
+    assertThat(report.isCompleted()).isTrue();
+    assertThat(report.getTotalMillis()).isLessThan(TimeUnit.SECONDS.toMillis(10));
+    assertThat(snapshots).hasSize(1);
+    Map<String, Double> counters = new HashMap<>();
+    snapshots.get(0).accept(new SeriesVisitor() {
+      @Override public void visitCounter(String name, double value) {
+        counters.put(name, value);
+      }
+
+      @Override public void visitGauge(String name, long value) {
+      }
+
+      @Override public void visitTimer(String name, TimerSummary timer) {
+      }
+    });
+    assertThat(counters).containsEntry("foo", 100.0);
+  }
+
+  @Test public void testShutdown_deadlineExceeded() throws Exception {
+    List<Snapshot> flushed = new CopyOnWriteArrayList<>();
+    IntervalFlusher flusher = IntervalFlusher.newBuilder()
+        .withProcessor(AggregatingProcessor.newBuilder().build())
+        .withBackend(flushed::add)
+        .build();
+    server = newBuilder()
+        .withPort(port)
+        .withProcessor((Metric metric) -> metrics.add(metric.toString()))
+        .withFlusher(flusher)
+        .build();
+    server.start();
+
+    ShutdownReport report = server.shutdown(0, TimeUnit.SECONDS);
+    server = null;
+
+    assertThat(report.isCompleted()).isFalse();
+    assertThat(flushed).isEmpty();
+  }
+
+  @Test public void testTcp() throws Exception {
+    startServer(newBuilder());
+
+    try (Socket socket = connect()) {
+      OutputStream out = socket.getOutputStream();
+      out.write("foo:1|c\nbar:2|g\nbaz:3|ms\n".getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+
+      awaitMetrics(3);
+    }
+
+    assertThat(metrics).containsExactly("foo:1|c", "bar:2|g", "baz:3|ms");
+  }
+
+  @Test public void testTcp_offloaded() throws Exception {
+    startServer(newBuilder().withOffload(1, 16, OverflowPolicy.BLOCK));
+
+    try (Socket socket = connect()) {
+      socket.getOutputStream().write("foo:1|c\n".getBytes(StandardCharsets.US_ASCII));
+
+      awaitMetrics(1);
+    }
+
+    assertThat(metrics).containsExactly("foo:1|c");
+  }
+
+  @Test public void testTcp_connectionLimit() throws Exception {
+    startServer(newBuilder().withTcpMaxConnections(1));
+
+    try (Socket first = connect(); Socket second = connect()) {
+      // The rejected connection is closed by the server
+      InputStream in = second.getInputStream();
+      second.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+      assertThat(in.read()).isEqualTo(-1);
+
+      first.getOutputStream().write("foo:1|c\n".getBytes(StandardCharsets.US_ASCII));
+      awaitMetrics(1);
+
+      assertThat(server.getTcpConnectionCount()).isEqualTo(1);
+      assertThat(server.getTcpRejectedConnectionCount()).isEqualTo(1);
+    }
+  }
+
+  @Test public void testDomainSocket() throws Exception {
+    assumeTrue(Epoll.isAvailable());
+    File path = new File(folder.getRoot(), "statsd.sock");
+    assertThat(path.createNewFile()).isTrue(); // a stale socket is replaced
+
+    startServer(newBuilder()
+        .withEpoll(true)
+        .withDomainSocketPath(path.getPath()));
+
+    EventLoopGroup group = new EpollEventLoopGroup(1);
+    try {
+      Channel channel = new Bootstrap()
+          .group(group)
+          .channel(EpollDomainSocketChannel.class)
+          .handler(new ChannelInboundHandlerAdapter())
+          .connect(new DomainSocketAddress(path)).sync().channel();
+      channel.writeAndFlush(Unpooled.copiedBuffer("foo:1|c\nbar:2|g\n", StandardCharsets.US_ASCII))
+          .sync();
+
+      awaitMetrics(2);
+      assertThat(server.getDomainSocketConnectionCount()).isEqualTo(1);
+      channel.close().sync();
+    } finally {
+      group.shutdownGracefully().sync();
+    }
+
+    assertThat(metrics).containsExactly("foo:1|c", "bar:2|g");
+
+    server.shutdown();
+    assertThat(path).doesNotExist();
+  }
+
+  @Test public void testDomainSocket_requiresEpoll() {
+    assertThatThrownBy(() -> NettyUdpServer.newBuilder()
+        .withProcessor((Metric metric) -> { })
+        .withDomainSocketPath(new File(folder.getRoot(), "statsd.sock").getPath())
+        .build())
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static NettyUdpServer.Builder newBuilder() {
+    return NettyUdpServer.newBuilder().withThreads(1);
+  }
+
+  private void startServer(NettyUdpServer.Builder builder) throws Exception {
+    server = builder
+        .withPort(port)
+        .withTcpPort(tcpPort)
+        .withProcessor((Metric metric) -> metrics.add(metric.toString()))
+        .build();
+    server.start();
+  }
+
+  private static void send(String metric, int port) throws IOException {
+    try (DatagramSocket socket = new DatagramSocket()) {
+      byte[] bytes = metric.getBytes(StandardCharsets.US_ASCII);
+      socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getLoopbackAddress(), port));
+    }
+  }
+
+  private Socket connect() throws IOException {
+    return new Socket(InetAddress.getLoopbackAddress(), tcpPort);
+  }
+
+  private void awaitMetrics(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (metrics.size() < count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
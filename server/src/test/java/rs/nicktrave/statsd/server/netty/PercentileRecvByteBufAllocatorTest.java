@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PercentileRecvByteBufAllocatorTest {
+
+  @Test public void testInitialSize() {
+    assertThat(newHandle(new PercentileRecvByteBufAllocator(128, 2048, 65536, 99)).guess())
+        .isEqualTo(2048);
+  }
+
+  @Test public void testResizesToPercentile() {
+    RecvByteBufAllocator.Handle handle =
+        newHandle(new PercentileRecvByteBufAllocator(128, 2048, 65536, 99));
+
+    // 99% of datagrams are 300 bytes, the rest 1000
+    int large = PercentileRecvByteBufAllocator.WINDOW / 100;
+    read(handle, PercentileRecvByteBufAllocator.WINDOW - large, 300);
+    read(handle, large, 1000);
+
+    assertThat(handle.guess()).isEqualTo(512);
+  }
+
+  @Test public void testResizesToHigherPercentile() {
+    RecvByteBufAllocator.Handle handle =
+        newHandle(new PercentileRecvByteBufAllocator(128, 2048, 65536, 100));
+
+    int large = PercentileRecvByteBufAllocator.WINDOW / 100;
+    read(handle, PercentileRecvByteBufAllocator.WINDOW - large, 300);
+    read(handle, large, 1000);
+
+    assertThat(handle.guess()).isEqualTo(1024);
+  }
+
+  @Test public void testClampsToMinimum() {
+    RecvByteBufAllocator.Handle handle =
+        newHandle(new PercentileRecvByteBufAllocator(128, 2048, 65536, 99));
+
+    read(handle, PercentileRecvByteBufAllocator.WINDOW, 10);
+
+    assertThat(handle.guess()).isEqualTo(128);
+  }
+
+  @Test public void testFullBufferUsesMaximumUntilResize() {
+    RecvByteBufAllocator.Handle handle =
+        newHandle(new PercentileRecvByteBufAllocator(128, 2048, 65536, 99));
+
+    read(handle, 1, 2048);
+    assertThat(handle.guess()).isEqualTo(65536);
+
+    read(handle, PercentileRecvByteBufAllocator.WINDOW - 1, 300);
+    assertThat(handle.guess()).isEqualTo(512);
+  }
+
+  @Test public void testIgnoresEmptyReads() {
+    RecvByteBufAllocator.Handle handle =
+        newHandle(new PercentileRecvByteBufAllocator(128, 2048, 65536, 99));
+
+    read(handle, PercentileRecvByteBufAllocator.WINDOW, -1);
+
+    assertThat(handle.guess()).isEqualTo(2048);
+  }
+
+  @Test public void testInvalidArguments() {
+    assertThatThrownBy(() -> new PercentileRecvByteBufAllocator(0, 2048, 65536, 99))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new PercentileRecvByteBufAllocator(128, 2048, 1024, 99))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new PercentileRecvByteBufAllocator(128, 2048, 65536, 0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static RecvByteBufAllocator.Handle newHandle(RecvByteBufAllocator allocator) {
+    RecvByteBufAllocator.Handle handle = allocator.newHandle();
+    handle.reset(new EmbeddedChannel().config());
+    return handle;
+  }
+
+  private static void read(RecvByteBufAllocator.Handle handle, int count, int bytes) {
+    for (int i = 0; i < count; i++) {
+      handle.attemptedBytesRead(handle.guess());
+      handle.lastBytesRead(bytes);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.TooLongFrameException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.MetricProcessor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class StreamToMetricBatchDecoderTest {
+
+  private static final int MAX_LINE_LENGTH = 16;
+
+  private final List<String> metrics = new ArrayList<>();
+  private final List<Integer> batchSizes = new ArrayList<>();
+  private EmbeddedChannel channel;
+
+  @Before public void setup() {
+    channel = new EmbeddedChannel(new StreamToMetricBatchDecoder(new DatagramToMetricDecoder(),
+        new MetricProcessor() {
+          @Override public void process(Metric metric) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override public void processBatch(MetricBatch batch) {
+            batchSizes.add(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+              metrics.add(batch.get(i).toString());
+            }
+          }
+        }, MAX_LINE_LENGTH));
+  }
+
+  @Test public void testCompleteLines() {
+    write("foo:1|c\nbar:2|g\n");
+
+    assertThat(metrics).containsExactly("foo:1|c", "bar:2|g");
+    assertThat(batchSizes).containsExactly(2);
+  }
+
+  @Test public void testLineSplitAcrossReads() {
+    write("foo:1|c\nba");
+    assertThat(metrics).containsExactly("foo:1|c");
+
+    write("r:2|g\n");
+
+    assertThat(metrics).containsExactly("foo:1|c", "bar:2|g");
+  }
+
+  @Test public void testPartialLineDecodedAtEndOfStream() {
+    write("foo:1|c\nbar:2|g");
+
+    channel.finish();
+
+    assertThat(metrics).containsExactly("foo:1|c", "bar:2|g");
+  }
+
+  @Test public void testLineTooLong() {
+    assertThatThrownBy(() -> write("foo:1|c\nfoo.bar.baz.qux.quux"))
+        .isInstanceOf(TooLongFrameException.class);
+
+    write(":1|c\nbar:2|g\n");
+
+    assertThat(metrics).containsExactly("foo:1|c", "bar:2|g");
+  }
+
+  @Test public void testBadLine() {
+    assertThatThrownBy(() -> write("foo:1|c\nbad\nbar:2|g\n"))
+        .isInstanceOf(DecoderException.class)
+        .hasCauseInstanceOf(IllegalStateException.class);
+
+    assertThat(metrics).containsExactly("foo:1|c", "bar:2|g");
+  }
+
+  private void write(String data) {
+    channel.writeInbound(Unpooled.copiedBuffer(data, StandardCharsets.US_ASCII));
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.prometheus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Gauge;
+import rs.nicktrave.statsd.common.Timing;
+import rs.nicktrave.statsd.server.aggregate.AggregatingProcessor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PrometheusBackendTest {
+
+  private AggregatingProcessor processor;
+  private PrometheusBackend backend;
+
+  @Before public void setup() throws Exception {
+    processor = AggregatingProcessor.newBuilder().build();
+    backend = PrometheusBackend.newBuilder()
+        .withAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+        .withPercentiles(99)
+        .build();
+    backend.start();
+  }
+
+  @After public void teardown() {
+    backend.close();
+    processor.close();
+  }
+
+  @Test public void testScrape() throws Exception {
+    processor.process(new Counter("foo", 2));
+    processor.process(new Gauge("bar", 7));
+    processor.process(new Timing("baz", 5));
+    backend.flush(processor.flush(1_000));
+
+    HttpURLConnection connection = open("/metrics");
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getHeaderField("Content-Type"))
+        .isEqualTo("text/plain; version=0.0.4; charset=utf-8");
+    assertThat(connection.getHeaderField("Transfer-Encoding")).isEqualTo("chunked");
+    assertThat(read(connection)).isEqualTo(
+        "# TYPE foo counter\nfoo 2\n"
+            + "# TYPE bar gauge\nbar 7\n"
+            + "# TYPE baz summary\nbaz{quantile=\"0.99\"} 5\nbaz_sum 5\nbaz_count 1\n");
+    assertThat(backend.getScrapeCount()).isEqualTo(1);
+  }
+
+  @Test public void testScrape_beforeFlush() throws Exception {
+    assertThat(read(open("/metrics"))).isEmpty();
+  }
+
+  @Test public void testFlush_rendersOnlyChanges() throws Exception {
+    processor.process(new Counter("foo", 2));
+    processor.process(new Gauge("bar", 7));
+    processor.process(new Timing("baz", 5));
+    backend.flush(processor.flush(1_000));
+    assertThat(backend.getRenderCount()).isEqualTo(3);
+
+    // The gauge is flushed again with the same value, and the timer is not flushed at all
+    processor.process(new Counter("foo", 3));
+    backend.flush(processor.flush(2_000));
+
+    assertThat(backend.getRenderCount()).isEqualTo(4);
+    assertThat(read(open("/metrics"))).isEqualTo(
+        "# TYPE foo counter\nfoo 5\n"
+            + "# TYPE bar gauge\nbar 7\n"
+            + "# TYPE baz summary\nbaz{quantile=\"0.99\"} 5\nbaz_sum 5\nbaz_count 1\n");
+
+    processor.process(new Gauge("bar", 8));
+    processor.process(new Timing("baz", 7));
+    backend.flush(processor.flush(3_000));
+
+    assertThat(backend.getRenderCount()).isEqualTo(6);
+    assertThat(read(open("/metrics"))).isEqualTo(
+        "# TYPE foo counter\nfoo 5\n"
+            + "# TYPE bar gauge\nbar 8\n"
+            + "# TYPE baz summary\nbaz{quantile=\"0.99\"} 7\nbaz_sum 12\nbaz_count 2\n");
+  }
+
+  @Test public void testFlush_collision() throws Exception {
+    processor.process(new Counter("foo.bar", 1));
+    processor.process(new Counter("foo_bar", 2));
+    processor.process(new Gauge("foo-bar", 3));
+    backend.flush(processor.flush(1_000));
+
+    assertThat(backend.getSeriesCount()).isEqualTo(1);
+    assertThat(backend.getCollisionCount()).isEqualTo(2);
+
+    processor.process(new Counter("foo_bar", 2));
+    backend.flush(processor.flush(2_000));
+
+    assertThat(backend.getCollisionCount()).isEqualTo(2);
+  }
+
+  @Test public void testScrape_largeExposition() throws Exception {
+    int series = 50_000;
+    for (int i = 0; i < series; i++) {
+      processor.process(new Counter("counter." + i, i));
+    }
+    backend.flush(processor.flush(1_000));
+
+    String body = read(open("/metrics"));
+
+    assertThat(body.length()).isGreaterThan(64 * 1024 * 10);
+    assertThat(body.split("\n")).hasSize(2 * series);
+    assertThat(body).contains("# TYPE counter_49999 counter\ncounter_49999 49999\n");
+  }
+
+  @Test public void testNotFound() throws Exception {
+    assertThat(open("/other").getResponseCode()).isEqualTo(404);
+  }
+
+  @Test public void testMethodNotAllowed() throws Exception {
+    HttpURLConnection connection = open("/metrics");
+    connection.setRequestMethod("DELETE");
+
+    assertThat(connection.getResponseCode()).isEqualTo(405);
+  }
+
+  @Test public void testHead() throws Exception {
+    processor.process(new Counter("foo", 2));
+    backend.flush(processor.flush(1_000));
+
+    HttpURLConnection connection = open("/metrics");
+    connection.setRequestMethod("HEAD");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(read(connection)).isEmpty();
+  }
+
+  @Test public void testBuild_invalid() {
+    assertThatThrownBy(() -> PrometheusBackend.newBuilder().build())
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> PrometheusBackend.newBuilder()
+        .withAddress(new InetSocketAddress(0))
+        .withPath("metrics")
+        .build())
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> PrometheusBackend.newBuilder()
+        .withAddress(new InetSocketAddress(0))
+        .withPercentiles(101)
+        .build())
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private HttpURLConnection open(String path) throws IOException {
+    URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(),
+        backend.getPort(), path);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setReadTimeout(10_000);
+    return connection;
+  }
+
+  private static String read(HttpURLConnection connection) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = connection.getInputStream()) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.prometheus;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PrometheusEncoderTest {
+
+  private final PrometheusEncoder encoder = new PrometheusEncoder("", new double[] {50, 99.9});
+
+  @Test public void testName() {
+    assertThat(encoder.name("foo.bar-baz")).isEqualTo("foo_bar_baz");
+    assertThat(encoder.name("ns:foo_1")).isEqualTo("ns:foo_1");
+    assertThat(encoder.name("9lives")).isEqualTo("_9lives");
+    assertThat(encoder.name("café latte")).isEqualTo("caf__latte");
+    assertThat(new PrometheusEncoder("statsd.", new double[0]).name("foo"))
+        .isEqualTo("statsd_foo");
+  }
+
+  @Test public void testCounter() {
+    assertThat(string(encoder.counter("foo", 3))).isEqualTo("# TYPE foo counter\nfoo 3\n");
+    assertThat(string(encoder.counter("foo", 2.5))).isEqualTo("# TYPE foo counter\nfoo 2.5\n");
+  }
+
+  @Test public void testGauge() {
+    assertThat(string(encoder.gauge("bar", -7))).isEqualTo("# TYPE bar gauge\nbar -7\n");
+  }
+
+  @Test public void testSummary() {
+    assertThat(string(encoder.summary("baz", new long[] {5, 9}, 42, 6))).isEqualTo(
+        "# TYPE baz summary\n"
+            + "baz{quantile=\"0.5\"} 5\n"
+            + "baz{quantile=\"0.999\"} 9\n"
+            + "baz_sum 42\n"
+            + "baz_count 6\n");
+  }
+
+  @Test public void testAppendDouble() {
+    assertThat(appendDouble(0)).isEqualTo("0");
+    assertThat(appendDouble(-1.25)).isEqualTo("-1.25");
+    assertThat(appendDouble(1e20)).isEqualTo("1.0E20");
+    assertThat(appendDouble(Double.NaN)).isEqualTo("NaN");
+    assertThat(appendDouble(Double.POSITIVE_INFINITY)).isEqualTo("+Inf");
+    assertThat(appendDouble(Double.NEGATIVE_INFINITY)).isEqualTo("-Inf");
+  }
+
+  private static String appendDouble(double value) {
+    StringBuilder sb = new StringBuilder();
+    PrometheusEncoder.appendDouble(sb, value);
+    return sb.toString();
+  }
+
+  private static String string(byte[] bytes) {
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+}
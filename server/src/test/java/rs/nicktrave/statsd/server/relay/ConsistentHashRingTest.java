@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.relay;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ConsistentHashRingTest {
+
+  private static final int NAMES = 100_000;
+
+  @Test public void testBalance() {
+    ConsistentHashRing ring = new ConsistentHashRing(nodes(4), 128);
+
+    Map<InetSocketAddress, Integer> counts = new HashMap<>();
+    for (int i = 0; i < NAMES; i++) {
+      counts.merge(ring.node(name(i)), 1, Integer::sum);
+    }
+
+    assertThat(counts).hasSize(4);
+    // Within 20% of a perfectly even share
+    assertThat(counts.values()).allSatisfy(count ->
+        assertThat(count).isBetween(NAMES / 4 * 8 / 10, NAMES / 4 * 12 / 10));
+  }
+
+  @Test public void testOrderIndependent() {
+    List<InetSocketAddress> nodes = nodes(5);
+    List<InetSocketAddress> shuffled = new ArrayList<>(nodes);
+    Collections.reverse(shuffled);
+    ConsistentHashRing ring = new ConsistentHashRing(nodes, 64);
+    ConsistentHashRing other = new ConsistentHashRing(shuffled, 64);
+
+    for (int i = 0; i < NAMES; i++) {
+      assertThat(other.node(name(i))).isEqualTo(ring.node(name(i)));
+    }
+  }
+
+  @Test public void testAddNode_movesOnlyToNewNode() {
+    List<InetSocketAddress> nodes = nodes(5);
+    ConsistentHashRing before = new ConsistentHashRing(nodes.subList(0, 4), 128);
+    ConsistentHashRing after = new ConsistentHashRing(nodes, 128);
+
+    int moved = 0;
+    for (int i = 0; i < NAMES; i++) {
+      InetSocketAddress node = after.node(name(i));
+      if (!node.equals(before.node(name(i)))) {
+        assertThat(node).isEqualTo(nodes.get(4));
+        moved++;
+      }
+    }
+
+    // Roughly a fifth of the names move to the new node
+    assertThat(moved).isBetween(NAMES / 5 * 7 / 10, NAMES / 5 * 13 / 10);
+  }
+
+  @Test public void testRemoveNode_movesOnlyFromRemovedNode() {
+    List<InetSocketAddress> nodes = nodes(4);
+    ConsistentHashRing before = new ConsistentHashRing(nodes, 128);
+    ConsistentHashRing after = new ConsistentHashRing(nodes.subList(1, 4), 128);
+
+    for (int i = 0; i < NAMES; i++) {
+      InetSocketAddress node = before.node(name(i));
+      if (!node.equals(nodes.get(0))) {
+        assertThat(after.node(name(i))).isEqualTo(node);
+      }
+    }
+  }
+
+  @Test public void testDuplicateNodes() {
+    InetSocketAddress node = InetSocketAddress.createUnresolved("statsd", 8125);
+    ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(node, node), 8);
+
+    assertThat(ring.nodes()).containsExactly(node);
+    assertThat(ring.nodeIndex("foo")).isEqualTo(0);
+  }
+
+  @Test public void testInvalid() {
+    assertThatThrownBy(() -> new ConsistentHashRing(Collections.emptyList(), 8))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new ConsistentHashRing(nodes(1), 0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static List<InetSocketAddress> nodes(int count) {
+    List<InetSocketAddress> nodes = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      nodes.add(InetSocketAddress.createUnresolved("statsd-" + i, 8125));
+    }
+    return nodes;
+  }
+
+  private static String name(int i) {
+    return "service.host" + (i % 100) + ".metric" + i;
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.relay;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import rs.nicktrave.statsd.client.Transport;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.common.MetricBatch;
+import rs.nicktrave.statsd.server.netty.NettyUdpServer;
+import rs.nicktrave.statsd.server.stats.StatsRegistry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RelayProcessorTest {
+
+  private static final InetSocketAddress NODE_A = InetSocketAddress.createUnresolved("a", 8125);
+  private static final InetSocketAddress NODE_B = InetSocketAddress.createUnresolved("b", 8125);
+  private static final InetSocketAddress NODE_C = InetSocketAddress.createUnresolved("c", 8125);
+
+  private final Map<InetSocketAddress, FakeTransport> transports = new HashMap<>();
+  private RelayProcessor relay;
+
+  @After public void teardown() {
+    if (relay != null) {
+      relay.close();
+    }
+  }
+
+  @Test public void testProcessBatch_oneWritePerNode() throws Exception {
+    relay = newBuilder().withNodes(Arrays.asList(NODE_A, NODE_B)).build();
+
+    MetricBatch batch = new MetricBatch();
+    for (int i = 0; i < 100; i++) {
+      batch.addCounter("metric" + i, i, 1);
+    }
+    relay.processBatch(batch);
+
+    FakeTransport a = transports.get(NODE_A);
+    FakeTransport b = transports.get(NODE_B);
+    assertThat(a.writes).isEqualTo(1);
+    assertThat(b.writes).isEqualTo(1);
+    assertThat(a.metrics.size() + b.metrics.size()).isEqualTo(100);
+    for (Metric metric : a.metrics) {
+      assertThat(relay.nodeFor(metric.name)).isEqualTo(NODE_A);
+    }
+    for (Metric metric : b.metrics) {
+      assertThat(relay.nodeFor(metric.name)).isEqualTo(NODE_B);
+    }
+    assertThat(relay.getRelayedCount()).isEqualTo(100);
+  }
+
+  @Test public void testProcess() throws Exception {
+    relay = newBuilder().withNodes(Arrays.asList(NODE_A, NODE_B)).build();
+
+    relay.process(new Counter("foo", 1));
+
+    assertThat(transports.get(relay.nodeFor("foo")).metrics)
+        .extracting(Metric::toString)
+        .containsExactly("foo:1|c");
+  }
+
+  @Test public void testSetNodes() throws Exception {
+    relay = newBuilder().withNodes(Arrays.asList(NODE_A, NODE_B)).build();
+    FakeTransport a = transports.get(NODE_A);
+    FakeTransport b = transports.get(NODE_B);
+
+    relay.setNodes(Arrays.asList(NODE_B, NODE_C));
+
+    assertThat(relay.getNodes()).containsExactly(NODE_B, NODE_C);
+    assertThat(a.closed).isTrue();
+    assertThat(transports.get(NODE_B)).isSameAs(b);
+    assertThat(b.closed).isFalse();
+    assertThat(transports).containsKey(NODE_C);
+  }
+
+  @Test public void testSetNodes_openFails() throws Exception {
+    relay = newBuilder().withNodes(Collections.singletonList(NODE_A)).build();
+
+    assertThatThrownBy(() -> relay.setNodes(Arrays.asList(NODE_A, NODE_B, failing())))
+        .isInstanceOf(IOException.class);
+
+    assertThat(relay.getNodes()).containsExactly(NODE_A);
+    assertThat(transports.get(NODE_A).closed).isFalse();
+    assertThat(transports.get(NODE_B).closed).isTrue();
+  }
+
+  @Test public void testWriteFails() throws Exception {
+    StatsRegistry stats = new StatsRegistry();
+    relay = newBuilder().withNodes(Collections.singletonList(NODE_A)).withStats(stats).build();
+    transports.get(NODE_A).failing = true;
+
+    relay.process(new Counter("foo", 1));
+
+    assertThat(relay.getFailedCount()).isEqualTo(1);
+    assertThat(stats.getCounters()).containsEntry("relay.failed_metrics", 1L);
+    assertThat(stats.getGauges()).containsEntry("relay.nodes", 1L);
+  }
+
+  @Test public void testClose() throws Exception {
+    relay = newBuilder().withNodes(Arrays.asList(NODE_A, NODE_B)).build();
+
+    relay.close();
+
+    assertThat(transports.values()).allSatisfy(t -> assertThat(t.closed).isTrue());
+    assertThatThrownBy(() -> relay.setNodes(Collections.singletonList(NODE_C)))
+        .isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test public void testBuild_noNodes() {
+    assertThatThrownBy(() -> newBuilder().build())
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void testServer_fansOut() throws Exception {
+    try (DatagramSocket first = newSocket(); DatagramSocket second = newSocket()) {
+      relay = RelayProcessor.newBuilder()
+          .withNodes(Arrays.asList(address(first), address(second)))
+          .build();
+      int port = freePort();
+      NettyUdpServer server = NettyUdpServer.newBuilder()
+          .withThreads(1)
+          .withPort(port)
+          .withProcessor(relay)
+          .build();
+      server.start();
+      try {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+          payload.append("metric").append(i).append(':').append(i).append("|c\n");
+        }
+        byte[] bytes = payload.toString().getBytes(StandardCharsets.US_ASCII);
+        try (DatagramSocket client = new DatagramSocket()) {
+          client.send(new DatagramPacket(bytes, bytes.length,
+              InetAddress.getLoopbackAddress(), port));
+        }
+
+        List<String> toFirst = receive(first);
+        List<String> toSecond = receive(second);
+
+        assertThat(toFirst.size() + toSecond.size()).isEqualTo(20);
+        assertThat(toFirst).allSatisfy(line ->
+            assertThat(relay.nodeFor(line.substring(0, line.indexOf(':'))))
+                .isEqualTo(address(first)));
+        assertThat(toSecond).allSatisfy(line ->
+            assertThat(relay.nodeFor(line.substring(0, line.indexOf(':'))))
+                .isEqualTo(address(second)));
+      } finally {
+        server.shutdown();
+      }
+    }
+  }
+
+  private RelayProcessor.Builder newBuilder() {
+    return RelayProcessor.newBuilder().withTransportFactory(address -> {
+      if (address.getPort() == 0) {
+        throw new IOException("Connection refused");
+      }
+      FakeTransport transport = new FakeTransport();
+      transports.put(address, transport);
+      return transport;
+    });
+  }
+
+  private static InetSocketAddress failing() {
+    return InetSocketAddress.createUnresolved("failing", 0);
+  }
+
+  private static DatagramSocket newSocket() throws IOException {
+    DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    socket.setSoTimeout(1_000);
+    return socket;
+  }
+
+  private static int freePort() throws IOException {
+    try (DatagramSocket socket = new DatagramSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static InetSocketAddress address(DatagramSocket socket) {
+    return new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort());
+  }
+
+  /**
+   * Returns the lines of every datagram received by the socket until it times out.
+   */
+  private static List<String> receive(DatagramSocket socket) throws IOException {
+    List<String> lines = new ArrayList<>();
+    byte[] buffer = new byte[2048];
+    while (true) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+      } catch (SocketTimeoutException e) {
+        return lines;
+      }
+      lines.addAll(Arrays.asList(
+          new String(buffer, 0, packet.getLength(), StandardCharsets.US_ASCII).split("\n")));
+    }
+  }
+
+  private static class FakeTransport implements Transport {
+
+    final List<Metric> metrics = new ArrayList<>();
+    int writes;
+    boolean failing;
+    boolean closed;
+
+    @Override public void write(Metric... metrics) throws IOException {
+      if (failing) {
+        throw new IOException("Write failed");
+      }
+      writes++;
+      this.metrics.addAll(Arrays.asList(metrics));
+    }
+
+    @Override public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.spool;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SegmentLogTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private SegmentLog log;
+
+  @After public void teardown() {
+    if (log != null) {
+      log.close();
+    }
+  }
+
+  @Test public void testAppendAndConsume() throws Exception {
+    log = new SegmentLog(folder.getRoot(), 1024, 1 << 20);
+
+    assertThat(log.peek()).isNull();
+    assertThat(log.append(payload("first"))).isTrue();
+    assertThat(log.append(payload("second"))).isTrue();
+
+    assertThat(log.entries()).isEqualTo(2);
+    assertThat(string(log.peek())).isEqualTo("first");
+    assertThat(log.consume(log.head())).isTrue();
+    assertThat(string(log.peek())).isEqualTo("second");
+    assertThat(log.consume(log.head())).isTrue();
+
+    assertThat(log.peek()).isNull();
+    assertThat(log.head()).isEqualTo(-1);
+    assertThat(log.entries()).isZero();
+  }
+
+  @Test public void testSegmentsReclaimed() throws Exception {
+    log = new SegmentLog(folder.getRoot(), 64, 1 << 20);
+
+    for (int i = 0; i < 10; i++) {
+      log.append(payload("entry-" + i + "-padding-to-fill-a-segment"));
+    }
+    assertThat(segmentFiles()).hasSize(10);
+
+    for (int i = 0; i < 10; i++) {
+      log.consume(log.head());
+    }
+
+    assertThat(segmentFiles()).isEmpty();
+    assertThat(log.bytes()).isZero();
+  }
+
+  @Test public void testLargeEntry() throws Exception {
+    log = new SegmentLog(folder.getRoot(), 64, 1 << 20);
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      large.append(i);
+    }
+
+    assertThat(log.append(payload(large.toString()))).isTrue();
+
+    assertThat(string(log.peek())).isEqualTo(large.toString());
+  }
+
+  @Test public void testEvictsOldest() throws Exception {
+    log = new SegmentLog(folder.getRoot(), 64, 3 * 64);
+
+    for (int i = 0; i < 5; i++) {
+      assertThat(log.append(payload("entry-" + i + "-padding-to-fill-a-segment"))).isTrue();
+    }
+
+    assertThat(log.entries()).isEqualTo(3);
+    assertThat(log.evicted()).isEqualTo(2);
+    assertThat(log.bytes()).isEqualTo(3 * 64);
+    assertThat(string(log.peek())).startsWith("entry-2");
+  }
+
+  @Test public void testTooLarge() throws Exception {
+    log = new SegmentLog(folder.getRoot(), 64, 64);
+
+    String large = "this entry, with its header, is far too large to ever fit in the log";
+
+    assertThat(log.append(payload(large))).isFalse();
+    assertThat(log.entries()).isZero();
+  }
+
+  @Test public void testConsume_evicted() throws Exception {
+    log = new SegmentLog(folder.getRoot(), 64, 2 * 64);
+    log.append(payload("entry-0-padding-to-fill-a-segment"));
+    long head = log.head();
+
+    log.append(payload("entry-1-padding-to-fill-a-segment"));
+    log.append(payload("entry-2-padding-to-fill-a-segment"));
+
+    assertThat(log.consume(head)).isFalse();
+    assertThat(string(log.peek())).startsWith("entry-1");
+  }
+
+  @Test public void testRecover() throws Exception {
+    log = new SegmentLog(folder.getRoot(), 1024, 1 << 20);
+    log.append(payload("first"));
+    log.append(payload("second"));
+    log.append(payload("third"));
+    log.consume(log.head());
+    log.close();
+
+    log = new SegmentLog(folder.getRoot(), 1024, 1 << 20);
+
+    assertThat(log.entries()).isEqualTo(2);
+    assertThat(string(log.peek())).isEqualTo("second");
+    log.consume(log.head());
+    log.append(payload("fourth"));
+    assertThat(string(log.peek())).isEqualTo("third");
+    log.consume(log.head());
+    assertThat(string(log.peek())).isEqualTo("fourth");
+  }
+
+  @Test public void testRecover_corruptEntry() throws Exception {
+    log = new SegmentLog(folder.getRoot(), 1024, 1 << 20);
+    log.append(payload("first"));
+    log.append(payload("second"));
+    log.close();
+
+    // Flip a byte in the payload of the second entry
+    try (RandomAccessFile file = new RandomAccessFile(segmentFiles()[0], "rw")) {
+      long offset = 2 * SegmentLog.HEADER_SIZE + "first".length();
+      file.seek(offset);
+      file.write('S');
+    }
+    log = new SegmentLog(folder.getRoot(), 1024, 1 << 20);
+
+    assertThat(log.entries()).isEqualTo(1);
+    assertThat(string(log.peek())).isEqualTo("first");
+  }
+
+  @Test public void testRecover_removesConsumedSegments() throws Exception {
+    log = new SegmentLog(folder.getRoot(), 64, 1 << 20);
+    log.append(payload("entry-0-padding-to-fill-a-segment"));
+    log.close();
+    File segment = segmentFiles()[0];
+
+    // Consume the entry in place, as if the process died before deleting the segment
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      file.seek(2 * Integer.BYTES);
+      file.write(2);
+    }
+    log = new SegmentLog(folder.getRoot(), 64, 1 << 20);
+
+    assertThat(log.entries()).isZero();
+    assertThat(segment).doesNotExist();
+  }
+
+  @Test public void testClosed() throws Exception {
+    log = new SegmentLog(folder.getRoot(), 64, 1 << 20);
+    log.append(payload("foo"));
+    long head = log.head();
+    log.close();
+
+    assertThatThrownBy(() -> log.append(payload("foo")))
+        .hasMessageContaining("closed");
+    assertThat(log.isClosed()).isTrue();
+    assertThat(log.peek()).isNull();
+    assertThat(log.head()).isEqualTo(-1);
+    assertThat(log.consume(head)).isFalse();
+  }
+
+  private File[] segmentFiles() {
+    return folder.getRoot().listFiles((dir, name) -> name.startsWith("segment-"));
+  }
+
+  private static ByteBuf payload(String s) {
+    return Unpooled.copiedBuffer(s, StandardCharsets.US_ASCII);
+  }
+
+  private static String string(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.spool;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.server.Backend;
+import rs.nicktrave.statsd.server.aggregate.AggregatingProcessor;
+import rs.nicktrave.statsd.server.aggregate.Snapshot;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SpoolingBackendTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final AggregatingProcessor processor = AggregatingProcessor.newBuilder().build();
+  private final FlakyBackend backend = new FlakyBackend();
+  private SpoolingBackend spool;
+
+  @After public void teardown() {
+    if (spool != null) {
+      spool.close();
+    }
+    processor.close();
+  }
+
+  @Test public void testFlush_backendUp() throws Exception {
+    spool = newBuilder().build();
+
+    spool.flush(snapshot(1_000));
+    spool.flush(snapshot(2_000));
+
+    awaitTrue(() -> backend.timestamps.size() == 2);
+    assertThat(backend.timestamps).containsExactly(1_000L, 2_000L);
+    assertThat(spool.getSentCount()).isEqualTo(2);
+    assertThat(spool.getSpooledCount()).isZero();
+  }
+
+  @Test public void testFlush_backendDown_replaysInOrder() throws Exception {
+    backend.down = true;
+    spool = newBuilder().build();
+
+    for (int i = 1; i <= 5; i++) {
+      spool.flush(snapshot(i * 1_000));
+      int spooled = i;
+      awaitTrue(() -> spool.getSpooledSnapshots() == spooled);
+    }
+    assertThat(spool.getSpoolBytes()).isPositive();
+    assertThat(backend.timestamps).isEmpty();
+
+    backend.down = false;
+
+    awaitTrue(() -> backend.timestamps.size() == 5);
+    assertThat(backend.timestamps).containsExactly(1_000L, 2_000L, 3_000L, 4_000L, 5_000L);
+    assertThat(spool.getReplayedCount()).isEqualTo(5);
+    awaitTrue(() -> spool.getSpooledSnapshots() == 0);
+    assertThat(spool.getSpoolBytes()).isZero();
+  }
+
+  @Test public void testReplay_rateLimited() throws Exception {
+    backend.down = true;
+    spool = newBuilder().withReplayRate(10).withQueueCapacity(5).build();
+    for (int i = 1; i <= 5; i++) {
+      spool.flush(snapshot(i * 1_000));
+    }
+    awaitTrue(() -> spool.getSpooledSnapshots() == 5);
+
+    long start = System.nanoTime();
+    backend.down = false;
+    awaitTrue(() -> backend.timestamps.size() == 5);
+
+    // Four intervals of 100ms between the five replays
+    assertThat(System.nanoTime() - start).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(350));
+  }
+
+  @Test public void testFlush_doesNotBlock() throws Exception {
+    backend.blocked = new CountDownLatch(1);
+    spool = newBuilder().withQueueCapacity(2).build();
+    spool.flush(snapshot(1_000));
+    awaitTrue(() -> backend.waiting);
+
+    long start = System.nanoTime();
+    for (int i = 2; i <= 10; i++) {
+      spool.flush(snapshot(i * 1_000));
+    }
+
+    assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(1));
+    // One is being sent and two are waiting, so the rest are dropped
+    assertThat(spool.getDroppedCount()).isEqualTo(7);
+    assertThat(spool.getSpooledCount()).isZero();
+
+    backend.blocked.countDown();
+    awaitTrue(() -> backend.timestamps.size() == 3);
+    assertThat(backend.timestamps).containsExactly(1_000L, 2_000L, 3_000L);
+  }
+
+  @Test public void testReopen_replaysSpool() throws Exception {
+    backend.down = true;
+    spool = newBuilder().build();
+    spool.flush(snapshot(1_000));
+    awaitTrue(() -> spool.getSpooledSnapshots() == 1);
+    spool.close();
+
+    backend.down = false;
+    spool = newBuilder().build();
+
+    awaitTrue(() -> backend.timestamps.size() == 1);
+    assertThat(backend.timestamps).containsExactly(1_000L);
+  }
+
+  @Test public void testFlush_closed() throws Exception {
+    spool = newBuilder().build();
+    spool.close();
+
+    assertThatThrownBy(() -> spool.flush(snapshot(1_000)))
+        .isInstanceOf(IOException.class);
+  }
+
+  @Test public void testBuild_invalid() {
+    assertThatThrownBy(() -> SpoolingBackend.newBuilder().withDirectory(folder.getRoot()).build())
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> SpoolingBackend.newBuilder().withBackend(backend).build())
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> newBuilder().withMaxBytes(1024).withSegmentSize(2048).build())
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private SpoolingBackend.Builder newBuilder() {
+    return SpoolingBackend.newBuilder()
+        .withBackend(backend)
+        .withDirectory(folder.getRoot())
+        .withSegmentSize(4096)
+        .withReplayRate(1000)
+        .withRetryInterval(20, TimeUnit.MILLISECONDS);
+  }
+
+  private Snapshot snapshot(long timestamp) {
+    processor.process(new Counter("foo", 1));
+    return processor.flush(timestamp);
+  }
+
+  private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+    assertThat(condition.getAsBoolean()).isTrue();
+  }
+
+  private static class FlakyBackend implements Backend {
+
+    final List<Long> timestamps = new CopyOnWriteArrayList<>();
+    volatile boolean down;
+    volatile CountDownLatch blocked;
+    volatile boolean waiting;
+
+    @Override public void flush(Snapshot snapshot) throws IOException {
+      if (blocked != null) {
+        waiting = true;
+        try {
+          blocked.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      if (down) {
+        throw new IOException("Backend is down");
+      }
+      timestamps.add(snapshot.getTimestamp());
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StatsHistogramTest {
+
+  @Test public void testBuckets() {
+    int previous = -1;
+    for (long value : new long[] {0, 1, 3, 4, 5, 7, 8, 10, 1000, 1L << 40, Long.MAX_VALUE}) {
+      int index = StatsHistogram.index(value);
+      assertThat(index).isGreaterThan(previous).isLessThan(StatsHistogram.BUCKETS);
+      assertThat(StatsHistogram.highestValueAt(index)).isGreaterThanOrEqualTo(value);
+      if (index > 0) {
+        assertThat(StatsHistogram.highestValueAt(index - 1)).isLessThan(value);
+      }
+      previous = index;
+    }
+    assertThat(StatsHistogram.index(Long.MAX_VALUE)).isEqualTo(StatsHistogram.BUCKETS - 1);
+  }
+
+  @Test public void testRelativeError() {
+    for (long value = 4; value < 1 << 20; value = value * 3 / 2 + 1) {
+      long highest = StatsHistogram.highestValueAt(StatsHistogram.index(value));
+      assertThat((double) (highest - value) / value).isLessThanOrEqualTo(0.25);
+    }
+  }
+
+  @Test public void testPercentiles() {
+    StatsHistogram histogram = new StatsHistogram();
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+    histogram.record(-5);
+
+    assertThat(histogram.count()).isEqualTo(101);
+    assertThat(histogram.sum()).isEqualTo(5050);
+    assertThat(histogram.valueAtPercentile(0)).isEqualTo(0);
+    assertThat(histogram.valueAtPercentile(50)).isEqualTo(55); // bucket [48, 55]
+    assertThat(histogram.valueAtPercentile(100)).isEqualTo(111); // bucket [96, 111]
+  }
+
+  @Test public void testConcurrentRecording() throws Exception {
+    StatsHistogram histogram = new StatsHistogram();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread(() -> {
+        for (int j = 0; j < 10_000; j++) {
+          histogram.record(1000);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(histogram.count()).isEqualTo(80_000);
+    assertThat(histogram.sum()).isEqualTo(80_000_000);
+    assertThat(histogram.counts()[StatsHistogram.index(1000)]).isEqualTo(80_000);
+  }
+
+  @Test public void testEmpty() {
+    assertThat(new StatsHistogram().valueAtPercentile(99)).isZero();
+  }
+}
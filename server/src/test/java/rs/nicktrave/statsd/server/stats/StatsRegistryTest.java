@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 Nick Travers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rs.nicktrave.statsd.server.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import rs.nicktrave.statsd.common.Counter;
+import rs.nicktrave.statsd.common.Metric;
+import rs.nicktrave.statsd.server.MetricProcessor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class StatsRegistryTest {
+
+  private final StatsRegistry stats = new StatsRegistry();
+  private final List<String> reported = new ArrayList<>();
+  private final MetricProcessor processor = (Metric metric) -> reported.add(metric.toString());
+
+  @Test public void testCounters() {
+    AtomicLong existing = new AtomicLong(5);
+    stats.counter("foo").increment();
+    stats.counter("foo").add(2);
+    stats.registerCounter("bar", existing::get);
+
+    assertThat(stats.getCounters()).containsEntry("foo", 3L).containsEntry("bar", 5L);
+
+    assertThatThrownBy(() -> stats.registerCounter("foo", existing::get))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> stats.counter("bar"))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test public void testReport() {
+    AtomicLong depth = new AtomicLong(7);
+    stats.counter("foo").add(3);
+    stats.registerGauge("depth", depth::get);
+    stats.histogram("latency").record(10);
+
+    stats.report(processor);
+
+    assertThat(reported).containsExactlyInAnyOrder(
+        "statsd.foo:3|c", "statsd.depth:7|g", "statsd.latency.count:1|c",
+        "statsd.latency.p50:11|g", "statsd.latency.p99:11|g", "statsd.latency.max:11|g");
+  }
+
+  @Test public void testReport_deltas() {
+    stats.counter("foo").add(3);
+    stats.histogram("latency").record(10);
+    stats.report(processor);
+    reported.clear();
+
+    stats.report(processor);
+    assertThat(reported).isEmpty();
+
+    stats.counter("foo").add(2);
+    stats.histogram("latency").record(100);
+    stats.report(processor);
+
+    assertThat(reported).containsExactlyInAnyOrder(
+        "statsd.foo:2|c", "statsd.latency.count:1|c", "statsd.latency.p50:111|g",
+        "statsd.latency.p99:111|g", "statsd.latency.max:111|g");
+  }
+
+  @Test public void testInstrument() {
+    List<Metric> processed = new ArrayList<>();
+    MetricProcessor instrumented = stats.instrument(processed::add, "processor");
+
+    instrumented.process(new Counter("foo", 1));
+    instrumented.process(new Counter("bar", 1));
+
+    assertThat(processed).hasSize(2);
+    assertThat(stats.getCounters()).containsEntry("processor.metrics", 2L);
+    assertThat(stats.getHistograms().get("processor.latency_nanos").count()).isEqualTo(2);
+  }
+}